@@ -0,0 +1,249 @@
+/*
+Class: ImageRenditions
+Description: Decode a photo once, at no more resolution than its largest rendition needs, and write every configured rendition to S3. Shared by LambdaImageResizer and the orchestrators that resize in-process.
+Records the source's megapixels and the decode, resize and encode times (DecodeDuration, ResizeDuration, EncodeDuration) in Metrics, and the times as decode, resize and encode spans in Trace. No rendition is started once the caller's deadline has passed.
+*/
+
+package vgu.cloud26;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+
+import software.amazon.awssdk.core.sync.RequestBody;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.PutObjectRequest;
+
+public final class ImageRenditions {
+
+    /**
+     * One rendition, encoded and ready to be stored.
+     */
+    public record Encoded(String key, String contentType, byte[] bytes) {
+    }
+
+    // Decode at least this many times the target size, so the final
+    // downscale has enough pixels to average over
+    private static final int SUBSAMPLING_HEADROOM = 4;
+
+    // Large targets already have plenty of pixels to average over; 4x would
+    // decode anything up to 5120 px for a 1280 px rendition at full size
+    private static final int LARGE_TARGET_HEADROOM = 2;
+
+    private static final int LARGE_TARGET = 1024;
+
+    private ImageRenditions() {
+    }
+
+    /**
+     * Decodes an encoded photo for the given renditions and writes all of
+     * them.
+     *
+     * @param s3Client client to write with.
+     * @param imageBytes encoded photo.
+     * @param renditions renditions to write, largest first.
+     * @param dstBucket bucket to write to.
+     * @param imageKey key of the original photo.
+     * @return the keys written.
+     * @throws IllegalArgumentException if no ImageIO reader supports the format.
+     */
+    public static List<String> write(S3Client s3Client, byte[] imageBytes, List<Renditions.Rendition> renditions,
+            String dstBucket, String imageKey) throws IOException {
+        BufferedImage srcImage = readImage(new ByteArrayInputStream(imageBytes), renditions.get(0).maxDimension());
+        if (srcImage == null) {
+            throw new IllegalArgumentException("Unsupported image format");
+        }
+        return write(s3Client, srcImage, renditions, dstBucket, imageKey);
+    }
+
+    /**
+     * Writes every rendition of one decoded image, largest first.
+     *
+     * @return the keys written.
+     */
+    public static List<String> write(S3Client s3Client, BufferedImage srcImage,
+            List<Renditions.Rendition> renditions, String dstBucket, String imageKey) throws IOException {
+        List<String> keys = new ArrayList<>();
+        for (Encoded encoded : encode(srcImage, renditions, imageKey)) {
+            put(s3Client, dstBucket, encoded);
+            keys.add(encoded.key());
+        }
+        return keys;
+    }
+
+    /**
+     * Decodes an encoded photo and encodes all its renditions without storing
+     * them, for callers that keep CPU work and uploads on separate threads.
+     *
+     * @throws IllegalArgumentException if no ImageIO reader supports the format.
+     */
+    public static List<Encoded> encode(byte[] imageBytes, List<Renditions.Rendition> renditions, String imageKey)
+            throws IOException {
+        BufferedImage srcImage = readImage(new ByteArrayInputStream(imageBytes), renditions.get(0).maxDimension());
+        if (srcImage == null) {
+            throw new IllegalArgumentException("Unsupported image format");
+        }
+        return encode(srcImage, renditions, imageKey);
+    }
+
+    /**
+     * Encodes every rendition of one decoded image, largest first. Each
+     * rendition is scaled down from the previous one rather than from the
+     * source, so the work shrinks with every size.
+     */
+    public static List<Encoded> encode(BufferedImage srcImage, List<Renditions.Rendition> renditions,
+            String imageKey) throws IOException {
+        boolean webp = Renditions.webpRequested()
+                && ImageIO.getImageWritersByFormatName("webp").hasNext();
+
+        List<Encoded> encoded = new ArrayList<>();
+        BufferedImage current = srcImage;
+        for (Renditions.Rendition rendition : renditions) {
+            Trace.checkDeadline();
+            current = resizeTo(current, rendition.maxDimension());
+            encoded.add(new Encoded(rendition.keyFor(imageKey), "image/jpeg", toBytes(current, "jpeg")));
+            if (webp) {
+                encoded.add(new Encoded(rendition.webpKeyFor(imageKey), "image/webp", toBytes(current, "webp")));
+            }
+        }
+        return encoded;
+    }
+
+    /**
+     * Stores one encoded rendition.
+     */
+    public static void put(S3Client s3Client, String bucket, Encoded encoded) {
+        s3Client.putObject(PutObjectRequest.builder()
+                .bucket(bucket)
+                .key(encoded.key())
+                .contentType(encoded.contentType())
+                .build(),
+                RequestBody.fromBytes(encoded.bytes()));
+    }
+
+    /**
+     * Runs the whole rendition chain on a generated photo, JPEG and PNG, so
+     * the ImageIO codecs and Java2D scaling loops are loaded and compiled in
+     * a SnapStart snapshot rather than on the first upload.
+     */
+    public static void prime(List<Renditions.Rendition> renditions) throws IOException {
+        BufferedImage sample = new BufferedImage(1600, 1200, BufferedImage.TYPE_INT_RGB);
+        for (String format : List.of("jpeg", "png")) {
+            ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+            ImageIO.write(sample, format, encoded);
+            BufferedImage current = readImage(new ByteArrayInputStream(encoded.toByteArray()),
+                    renditions.get(0).maxDimension());
+            for (Renditions.Rendition rendition : renditions) {
+                current = resizeTo(current, rendition.maxDimension());
+                ImageIO.write(current, "jpeg", new ByteArrayOutputStream());
+            }
+        }
+    }
+
+    /**
+     * Decodes an image at reduced resolution when it is much larger than
+     * needed. The subsampling factor is chosen from the dimensions in the
+     * image header, so the full-size raster is never allocated.
+     *
+     * @param input encoded image.
+     * @param targetDimension largest side, in pixels, the caller will scale to.
+     * @return decoded image, or null if no ImageIO reader supports the format.
+     */
+    public static BufferedImage readImage(InputStream input, float targetDimension) throws IOException {
+        try (ImageInputStream imageInput = ImageIO.createImageInputStream(input)) {
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(imageInput);
+            if (!readers.hasNext()) {
+                return null;
+            }
+            ImageReader reader = readers.next();
+            try {
+                long start = System.nanoTime();
+                reader.setInput(imageInput, true, true);
+                int srcWidth = reader.getWidth(0);
+                int srcHeight = reader.getHeight(0);
+                int factor = subsamplingFactor(srcWidth, srcHeight, targetDimension);
+                ImageReadParam param = reader.getDefaultReadParam();
+                if (factor > 1) {
+                    param.setSourceSubsampling(factor, factor, 0, 0);
+                }
+                BufferedImage image = reader.read(0, param);
+                Metrics.record("InputMegapixels", (double) srcWidth * srcHeight / 1_000_000, Metrics.Unit.NONE);
+                Metrics.record("DecodeDuration", Metrics.millisSince(start), Metrics.Unit.MILLISECONDS);
+                Trace.span("decode", start);
+                return image;
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+
+    static int subsamplingFactor(int srcWidth, int srcHeight, float targetDimension) {
+        int longestSide = Math.max(srcWidth, srcHeight);
+        int headroom = targetDimension >= LARGE_TARGET ? LARGE_TARGET_HEADROOM : SUBSAMPLING_HEADROOM;
+        return Math.max(1, (int) (longestSide / (targetDimension * headroom)));
+    }
+
+    /**
+     * Scales an image so that max(height, width) = maxDimension, halving
+     * step by step before the final bilinear pass. An image already within
+     * maxDimension keeps its size: renditions are never enlarged.
+     */
+    public static BufferedImage resizeTo(BufferedImage srcImage, float maxDimension) {
+        long start = System.nanoTime();
+        int srcHeight = srcImage.getHeight();
+        int srcWidth = srcImage.getWidth();
+        // Infer scaling factor to avoid stretching image unnaturally
+        float scalingFactor = Math.min(1, Math.min(
+                maxDimension / srcWidth, maxDimension / srcHeight));
+        int width = Math.max(1, (int) (scalingFactor * srcWidth));
+        int height = Math.max(1, (int) (scalingFactor * srcHeight));
+
+        // Bilinear only blends 2x2 neighbours, so one big step skips most source
+        // pixels and aliases; halve first until within 2x of the target
+        BufferedImage current = srcImage;
+        while (current.getWidth() / 2 >= width && current.getHeight() / 2 >= height) {
+            current = scale(current, current.getWidth() / 2, current.getHeight() / 2);
+        }
+        BufferedImage resized = scale(current, width, height);
+        Metrics.record("ResizeDuration", Metrics.millisSince(start), Metrics.Unit.MILLISECONDS);
+        Trace.span("resize", start);
+        return resized;
+    }
+
+    private static BufferedImage scale(BufferedImage srcImage, int width, int height) {
+        BufferedImage resizedImage = new BufferedImage(width, height,
+                BufferedImage.TYPE_INT_RGB);
+        Graphics2D graphics = resizedImage.createGraphics();
+        // Fill with white before applying semi-transparent (alpha) images
+        graphics.setPaint(Color.white);
+        graphics.fillRect(0, 0, width, height);
+        // Simple bilinear resize
+        graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION,
+                RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+        graphics.drawImage(srcImage, 0, 0, width, height, null);
+        graphics.dispose();
+        return resizedImage;
+    }
+
+    private static byte[] toBytes(BufferedImage image, String format) throws IOException {
+        long start = System.nanoTime();
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        ImageIO.write(image, format, outputStream);
+        Metrics.record("EncodeDuration", Metrics.millisSince(start), Metrics.Unit.MILLISECONDS);
+        Trace.span("encode", start);
+        return outputStream.toByteArray();
+    }
+}
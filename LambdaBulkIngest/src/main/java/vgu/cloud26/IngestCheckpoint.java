@@ -0,0 +1,130 @@
+/*
+Class: IngestCheckpoint
+Description: Progress of one bulk ingest run, kept as JSON in S3 under ingest-checkpoints/. "processed" only counts entries whose descriptions are committed, so a run that stops for any reason resumes right after them.
+*/
+
+package vgu.cloud26;
+
+import java.nio.charset.StandardCharsets;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import software.amazon.awssdk.core.sync.RequestBody;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.GetObjectRequest;
+import software.amazon.awssdk.services.s3.model.NoSuchKeyException;
+import software.amazon.awssdk.services.s3.model.PutObjectRequest;
+
+public final class IngestCheckpoint {
+
+    static final String PREFIX = "ingest-checkpoints/";
+
+    // Failures kept for the report; the count keeps going past it
+    private static final int MAX_FAILURES_KEPT = 100;
+
+    private final String runId;
+
+    private final long startedAt;
+
+    private int processed;
+
+    private int ingested;
+
+    private int failed;
+
+    private final JSONArray failures;
+
+    private boolean done;
+
+    private IngestCheckpoint(String runId, long startedAt, int processed, int ingested, int failed,
+            JSONArray failures, boolean done) {
+        this.runId = runId;
+        this.startedAt = startedAt;
+        this.processed = processed;
+        this.ingested = ingested;
+        this.failed = failed;
+        this.failures = failures;
+        this.done = done;
+    }
+
+    /**
+     * The run's checkpoint, or a new one if the run has not started.
+     */
+    public static IngestCheckpoint load(S3Client s3Client, String bucket, String runId) {
+        try {
+            JSONObject json = new JSONObject(s3Client.getObjectAsBytes(GetObjectRequest.builder()
+                    .bucket(bucket)
+                    .key(PREFIX + runId + ".json")
+                    .build()).asUtf8String());
+            return new IngestCheckpoint(runId, json.getLong("startedAt"), json.getInt("processed"),
+                    json.getInt("ingested"), json.getInt("failed"), json.getJSONArray("failures"),
+                    json.getBoolean("done"));
+        } catch (NoSuchKeyException ex) {
+            return new IngestCheckpoint(runId, System.currentTimeMillis(), 0, 0, 0, new JSONArray(), false);
+        }
+    }
+
+    public void save(S3Client s3Client, String bucket) {
+        s3Client.putObject(PutObjectRequest.builder()
+                .bucket(bucket)
+                .key(PREFIX + runId + ".json")
+                .contentType("application/json")
+                .build(),
+                RequestBody.fromString(toJSON().toString(), StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Records entries up to position as finished, after their descriptions
+     * were committed.
+     *
+     * @param position entries from the start of the source now finished.
+     * @param newlyIngested photos among them that were recorded.
+     */
+    public void advance(int position, int newlyIngested) {
+        processed = position;
+        ingested += newlyIngested;
+    }
+
+    public void fail(String name, String error) {
+        failed++;
+        if (failures.length() < MAX_FAILURES_KEPT) {
+            failures.put(new JSONObject().put("name", name).put("error", error));
+        }
+    }
+
+    public void finish() {
+        done = true;
+    }
+
+    public String runId() {
+        return runId;
+    }
+
+    /**
+     * When the run started; part of every key it writes, like the
+     * timestamp of an upload.
+     */
+    public long startedAt() {
+        return startedAt;
+    }
+
+    public int processed() {
+        return processed;
+    }
+
+    public boolean done() {
+        return done;
+    }
+
+    public JSONObject toJSON() {
+        return new JSONObject()
+                .put("runId", runId)
+                .put("startedAt", startedAt)
+                .put("processed", processed)
+                .put("ingested", ingested)
+                .put("failed", failed)
+                .put("failures", failures)
+                .put("done", done);
+    }
+}
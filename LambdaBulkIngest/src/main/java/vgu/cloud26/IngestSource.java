@@ -0,0 +1,69 @@
+/*
+Class: IngestSource
+Description: The photos of a bulk ingest, one entry at a time and always in the same order, so a run can be resumed by position. Implemented by ZipIngestSource and PrefixIngestSource.
+*/
+
+package vgu.cloud26;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Locale;
+
+public interface IngestSource extends Closeable {
+
+    /**
+     * Bytes of one entry. Read on a worker thread, so a source that can
+     * fetch entries independently leaves the fetching to the workers.
+     */
+    @FunctionalInterface
+    interface Content {
+
+        byte[] read() throws IOException;
+    }
+
+    /**
+     * @param name the entry's path in the ZIP or its S3 key; the manifest
+     * refers to photos by this name.
+     * @param content the entry's bytes.
+     */
+    record Entry(String name, Content content) {
+    }
+
+    /**
+     * Largest photo read into memory; bigger entries fail on their own.
+     */
+    long MAX_ENTRY_SIZE = 64L * 1024 * 1024;
+
+    /**
+     * The next photo.
+     *
+     * @return the entry, or null when there are no more.
+     */
+    Entry next() throws IOException;
+
+    /**
+     * Passes over photos a previous run already ingested, as cheaply as the
+     * source allows.
+     *
+     * @return the number skipped, less than count only at the end.
+     */
+    default int skip(int count) throws IOException {
+        int skipped = 0;
+        while (skipped < count && next() != null) {
+            skipped++;
+        }
+        return skipped;
+    }
+
+    /**
+     * Whether an entry name is a photo this pipeline can resize.
+     */
+    static boolean isPhoto(String name) {
+        String lower = name.toLowerCase(Locale.ROOT);
+        // Finder puts resource forks for every file of a ZIP under __MACOSX/
+        if (lower.endsWith("/") || lower.startsWith("__macosx/")) {
+            return false;
+        }
+        return lower.endsWith(".jpg") || lower.endsWith(".jpeg") || lower.endsWith(".png");
+    }
+}
@@ -0,0 +1,386 @@
+/*
+Function: LambdaBulkIngest
+Description: Ingest a photo archive in one run instead of one LambdaUploadOrchestrator call per photo: a ZIP in S3 ("zip") or every photo under an S3 prefix ("prefix"), in "bucket", with descriptions from an optional JSON manifest ("manifest", {"<entry name>": "description"}) in the same bucket.
+Entries are streamed, never unpacked to disk. Each is resized on a worker pool with one thread per core while its original and renditions are uploaded on separate I/O threads, and descriptions go to RDS as batched INSERTs. After every batch the progress is checkpointed in S3, so a run close to its timeout invokes itself to carry on, and a run cut off or invoked again with the same request resumes after the last checkpoint.
+*/
+
+package vgu.cloud26;
+
+import com.amazonaws.services.lambda.runtime.Context;
+import com.amazonaws.services.lambda.runtime.LambdaLogger;
+import com.amazonaws.services.lambda.runtime.RequestHandler;
+import com.amazonaws.services.lambda.runtime.events.APIGatewayProxyRequestEvent;
+import com.amazonaws.services.lambda.runtime.events.APIGatewayProxyResponseEvent;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.sql.SQLException;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import org.json.JSONObject;
+import org.crac.Core;
+import org.crac.Resource;
+import software.amazon.awssdk.core.SdkBytes;
+import software.amazon.awssdk.core.sync.RequestBody;
+import software.amazon.awssdk.services.lambda.LambdaClient;
+import software.amazon.awssdk.services.lambda.model.InvocationType;
+import software.amazon.awssdk.services.lambda.model.InvokeRequest;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.GetObjectRequest;
+import software.amazon.awssdk.services.s3.model.PutObjectRequest;
+
+public class LambdaBulkIngest implements
+                RequestHandler<APIGatewayProxyRequestEvent, APIGatewayProxyResponseEvent>, Resource {
+
+        private static final String SOURCE_BUCKET = "cloud-public-mpg";
+
+        private static final String CHECKPOINT_BUCKET_VARIABLE = "INGEST_CHECKPOINT_BUCKET";
+
+        private static final int WORKERS = Runtime.getRuntime().availableProcessors();
+
+        // Photos read but not yet uploaded; bounds the memory held by originals
+        private static final int MAX_IN_FLIGHT = WORKERS * 4;
+
+        // Rows per executeBatch, and so per checkpoint
+        private static final int BATCH_SIZE = 100;
+
+        // Checkpoint at least this often when photos fail or resize slowly
+        private static final Duration CHECKPOINT_INTERVAL = Duration.ofSeconds(20);
+
+        // Time kept back to finish the photos in flight and checkpoint
+        private static final Duration MIN_STOP_MARGIN = Duration.ofSeconds(10);
+
+        // Decoding and scaling are CPU-bound: one thread per core, kept for the life
+        // of the execution environment
+        private static final ExecutorService RESIZE_POOL = Executors.newFixedThreadPool(WORKERS, runnable -> {
+                Thread thread = new Thread(runnable, "ingest-resize");
+                thread.setDaemon(true);
+                return thread;
+        });
+
+        // Fetches and uploads wait on S3, so they never hold up a resize thread
+        private static final ExecutorService TRANSFERS = Executors.newVirtualThreadPerTaskExecutor();
+
+        private final S3Client s3Client = AwsClients.build(S3Client.builder());
+
+        private final LambdaClient lambdaClient = AwsClients.build(LambdaClient.builder());
+
+        private final List<Renditions.Rendition> renditions = Renditions.configured();
+
+        // An entry read from the source, on its way to S3 and into a batch
+        private record Pending(int position, String name, String imageKey, String description,
+                        CompletableFuture<Void> done) {
+        }
+
+        private record Prepared(byte[] original, List<ImageRenditions.Encoded> renditions) {
+        }
+
+        // Finished entries not yet in the database or the checkpoint
+        private static final class Batch {
+
+                private final List<PhotoTable.Photo> photos = new ArrayList<>();
+
+                private final Map<String, String> failures = new HashMap<>();
+
+                private int position;
+        }
+
+        public LambdaBulkIngest() {
+                Core.getGlobalContext().register(this);
+        }
+
+        @Override
+        public void beforeCheckpoint(org.crac.Context<? extends Resource> context) throws IOException, SQLException {
+                JSONObject bodyJSON = new JSONObject(new JSONObject()
+                                .put("email", "priming@example.com")
+                                .put("token", "priming")
+                                .put("bucket", "priming-archive")
+                                .put("zip", "priming.zip")
+                                .toString());
+                TokenVerifier.prime();
+                String runId = runIdFor(bodyJSON.getString("bucket"), "zip", bodyJSON.getString("zip"));
+                imageKeyFor(runId, 0, 0, "IMG_0001.JPG");
+                descriptionFor(Map.of(), "holiday/IMG_0001.JPG");
+                IngestSource.isPhoto("holiday/IMG_0001.JPG");
+                ImageRenditions.prime(renditions);
+                RdsConnectionPool.prepareForCheckpoint();
+        }
+
+        @Override
+        public void afterRestore(org.crac.Context<? extends Resource> context) {
+                Metrics.restored();
+                // The key may have been rotated since the snapshot was taken
+                TokenVerifier.reset();
+        }
+
+        @Override
+        public APIGatewayProxyResponseEvent handleRequest(APIGatewayProxyRequestEvent event, Context context) {
+                Metrics.begin();
+                Metrics.recordSize("RequestBytes", event.getBody());
+                Trace.begin(event.getHeaders(), context);
+                try {
+                        APIGatewayProxyResponseEvent response = Trace.expired() ? Trace.deadlineExceeded() : handle(event, context);
+                        Metrics.recordSize("ResponseBytes", response.getBody());
+                        return Trace.finish(response);
+                } finally {
+                        Metrics.flush(context);
+                }
+        }
+
+        private APIGatewayProxyResponseEvent handle(APIGatewayProxyRequestEvent event, Context context) {
+                LambdaLogger logger = context.getLogger();
+
+                long remaining = context.getRemainingTimeInMillis();
+                long stopAt = System.currentTimeMillis() + remaining
+                                - Math.max(MIN_STOP_MARGIN.toMillis(), remaining / 5);
+
+                String requestBody = event.getBody();
+                JSONObject bodyJSON = new JSONObject(requestBody);
+
+                String email = bodyJSON.getString("email");
+                String token = bodyJSON.getString("token");
+
+                if (!TokenVerifier.verify(email, token, logger)) {
+                        logger.log("Token validation failed. Aborting ingest.");
+                        return response(403, new JSONObject().put("message", "Invalid token. Access denied."));
+                }
+
+                String bucket = bodyJSON.getString("bucket");
+                String zipKey = bodyJSON.optString("zip", null);
+                String prefix = bodyJSON.optString("prefix", null);
+                if ((zipKey == null) == (prefix == null)) {
+                        return response(400, new JSONObject().put("message", "Give either \"zip\" or \"prefix\"."));
+                }
+
+                // The same request always maps to the same run, so repeating it resumes
+                String runId = bodyJSON.optString("runId",
+                                zipKey != null ? runIdFor(bucket, "zip", zipKey) : runIdFor(bucket, "prefix", prefix));
+                bodyJSON.put("runId", runId);
+                String checkpointBucket = System.getenv().getOrDefault(CHECKPOINT_BUCKET_VARIABLE, bucket);
+
+                IngestCheckpoint checkpoint = IngestCheckpoint.load(s3Client, checkpointBucket, runId);
+                if (checkpoint.done()) {
+                        return response(200, checkpoint.toJSON().put("status", "done"));
+                }
+                int startedFrom = checkpoint.processed();
+
+                boolean exhausted;
+                try (IngestSource source = zipKey != null
+                                ? new ZipIngestSource(s3Client, bucket, zipKey)
+                                : new PrefixIngestSource(s3Client, bucket, prefix)) {
+                        Map<String, String> descriptions = bodyJSON.has("manifest")
+                                        ? loadManifest(bucket, bodyJSON.getString("manifest"))
+                                        : Map.of();
+                        source.skip(startedFrom);
+                        exhausted = ingest(source, checkpoint, checkpointBucket, descriptions, email, stopAt, logger);
+                } catch (IOException | SQLException | RuntimeException ex) {
+                        // Everything up to the last checkpoint stays ingested
+                        logger.log("Ingest " + runId + " stopped: " + ex);
+                        return response(502, checkpoint.toJSON()
+                                        .put("status", "failed")
+                                        .put("message", String.valueOf(ex.getMessage())));
+                }
+
+                if (exhausted) {
+                        checkpoint.finish();
+                        checkpoint.save(s3Client, checkpointBucket);
+                        logger.log("Ingest " + runId + " done: " + checkpoint.toJSON());
+                        return response(200, checkpoint.toJSON().put("status", "done"));
+                }
+
+                // Out of time. Only carry on if this invocation got anywhere, so a
+                // photo that can never be ingested cannot keep the run invoking itself
+                if (checkpoint.processed() > startedFrom && bodyJSON.optBoolean("continue", true)) {
+                        lambdaClient.invoke(InvokeRequest.builder()
+                                        .functionName(context.getInvokedFunctionArn())
+                                        .invocationType(InvocationType.EVENT)
+                                        .payload(SdkBytes.fromUtf8String(new JSONObject()
+                                                        .put("body", bodyJSON.toString())
+                                                        // Same trace, but the next invocation has its own time
+                                                        .put("headers", Trace.headers(null))
+                                                        .toString()))
+                                        .build());
+                        logger.log("Ingest " + runId + " continues in a new invocation after "
+                                        + checkpoint.processed() + " photo(s)");
+                }
+                return response(202, checkpoint.toJSON().put("status", "running"));
+        }
+
+        /**
+         * Reads entries until the source ends or stopAt passes, keeping up to
+         * MAX_IN_FLIGHT of them resizing and uploading. Finished entries are
+         * collected in source order, so the checkpoint position never skips
+         * one that is still running.
+         *
+         * @return whether the whole source was ingested.
+         */
+        private boolean ingest(IngestSource source, IngestCheckpoint checkpoint, String checkpointBucket,
+                        Map<String, String> descriptions, String email, long stopAt, LambdaLogger logger)
+                        throws IOException, SQLException {
+                Semaphore inFlight = new Semaphore(MAX_IN_FLIGHT);
+                Deque<Pending> pending = new ArrayDeque<>();
+                Batch batch = new Batch();
+                batch.position = checkpoint.processed();
+                int position = checkpoint.processed();
+                long nextCheckpoint = System.currentTimeMillis() + CHECKPOINT_INTERVAL.toMillis();
+                boolean exhausted = false;
+
+                while (System.currentTimeMillis() < stopAt) {
+                        IngestSource.Entry entry = source.next();
+                        if (entry == null) {
+                                exhausted = true;
+                                break;
+                        }
+                        inFlight.acquireUninterruptibly();
+                        String imageKey = imageKeyFor(checkpoint.runId(), checkpoint.startedAt(), position, entry.name());
+                        CompletableFuture<Void> done = process(entry, imageKey);
+                        done.whenComplete((result, ex) -> inFlight.release());
+                        pending.add(new Pending(position, entry.name(), imageKey,
+                                        descriptionFor(descriptions, entry.name()), done));
+                        position++;
+
+                        collect(pending, batch, email, false);
+                        if (batch.photos.size() >= BATCH_SIZE || System.currentTimeMillis() >= nextCheckpoint) {
+                                flush(batch, checkpoint, checkpointBucket, logger);
+                                nextCheckpoint = System.currentTimeMillis() + CHECKPOINT_INTERVAL.toMillis();
+                        }
+                }
+
+                collect(pending, batch, email, true);
+                flush(batch, checkpoint, checkpointBucket, logger);
+                return exhausted;
+        }
+
+        // Fetch on an I/O thread, resize on a core, then store the original and
+        // every rendition at once
+        private CompletableFuture<Void> process(IngestSource.Entry entry, String imageKey) {
+                return CompletableFuture.supplyAsync(() -> {
+                        try {
+                                return entry.content().read();
+                        } catch (IOException ex) {
+                                throw new UncheckedIOException(ex);
+                        }
+                }, TRANSFERS).thenApplyAsync(original -> {
+                        try {
+                                return new Prepared(original, ImageRenditions.encode(original, renditions, imageKey));
+                        } catch (IOException ex) {
+                                throw new UncheckedIOException(ex);
+                        }
+                }, RESIZE_POOL).thenCompose(prepared -> {
+                        List<CompletableFuture<Void>> puts = new ArrayList<>();
+                        puts.add(CompletableFuture.runAsync(() -> putOriginal(imageKey, prepared.original()), TRANSFERS));
+                        for (ImageRenditions.Encoded encoded : prepared.renditions()) {
+                                puts.add(CompletableFuture.runAsync(
+                                                () -> ImageRenditions.put(s3Client, Renditions.BUCKET, encoded), TRANSFERS));
+                        }
+                        return CompletableFuture.allOf(puts.toArray(CompletableFuture[]::new));
+                });
+        }
+
+        // Moves finished entries, in source order, from pending into the batch
+        private static void collect(Deque<Pending> pending, Batch batch, String email, boolean wait) {
+                while (!pending.isEmpty() && (wait || pending.peek().done().isDone())) {
+                        Pending head = pending.poll();
+                        try {
+                                head.done().join();
+                                batch.photos.add(new PhotoTable.Photo(head.description(), head.imageKey(), email));
+                        } catch (CompletionException ex) {
+                                Throwable cause = ex.getCause() != null ? ex.getCause() : ex;
+                                batch.failures.put(head.name(), String.valueOf(cause.getMessage()));
+                        }
+                        batch.position = head.position() + 1;
+                }
+        }
+
+        // Commits the batch's rows, then moves the checkpoint past them
+        private void flush(Batch batch, IngestCheckpoint checkpoint, String checkpointBucket, LambdaLogger logger)
+                        throws SQLException {
+                if (batch.position == checkpoint.processed()) {
+                        return;
+                }
+                PhotoTable.insertAll(batch.photos);
+                batch.failures.forEach(checkpoint::fail);
+                checkpoint.advance(batch.position, batch.photos.size());
+                checkpoint.save(s3Client, checkpointBucket);
+                logger.log("Ingest " + checkpoint.runId() + ": " + batch.photos.size() + " photo(s) recorded, "
+                                + batch.failures.size() + " failed, " + checkpoint.processed() + " processed");
+                batch.photos.clear();
+                batch.failures.clear();
+        }
+
+        private void putOriginal(String imageKey, byte[] original) {
+                s3Client.putObject(PutObjectRequest.builder()
+                                .bucket(SOURCE_BUCKET)
+                                .key(imageKey)
+                                .contentType(imageKey.endsWith(".png") ? "image/png" : "image/jpeg")
+                                .build(),
+                                RequestBody.fromBytes(original));
+        }
+
+        private Map<String, String> loadManifest(String bucket, String key) {
+                JSONObject manifest = new JSONObject(s3Client.getObjectAsBytes(GetObjectRequest.builder()
+                                .bucket(bucket)
+                                .key(key)
+                                .build()).asUtf8String());
+                Map<String, String> descriptions = new HashMap<>();
+                for (String name : manifest.keySet()) {
+                        descriptions.put(name, manifest.getString(name));
+                }
+                return descriptions;
+        }
+
+        /**
+         * Key for the photo at position in a run. Derived from the run rather
+         * than random, so a photo redone after a resume overwrites its first
+         * copy instead of leaving an orphan.
+         */
+        static String imageKeyFor(String runId, long startedAt, int position, String name) {
+                String extension = name.toLowerCase(Locale.ROOT).endsWith(".png") ? ".png" : ".jpeg";
+                UUID uuid = UUID.nameUUIDFromBytes((runId + "/" + position).getBytes(StandardCharsets.UTF_8));
+                return startedAt + "_" + uuid + extension;
+        }
+
+        // The manifest's description, or else the file name without its extension
+        static String descriptionFor(Map<String, String> descriptions, String name) {
+                String description = descriptions.get(name);
+                if (description != null) {
+                        return description;
+                }
+                String fileName = name.substring(name.lastIndexOf('/') + 1);
+                int lastDot = fileName.lastIndexOf('.');
+                return lastDot == -1 ? fileName : fileName.substring(0, lastDot);
+        }
+
+        static String runIdFor(String bucket, String kind, String location) {
+                try {
+                        MessageDigest digest = MessageDigest.getInstance("SHA-256");
+                        byte[] hash = digest.digest((bucket + "/" + kind + ":" + location).getBytes(StandardCharsets.UTF_8));
+                        return HexFormat.of().formatHex(hash, 0, 8);
+                } catch (NoSuchAlgorithmException ex) {
+                        throw new IllegalStateException(ex);
+                }
+        }
+
+        private static APIGatewayProxyResponseEvent response(int statusCode, JSONObject body) {
+                return new APIGatewayProxyResponseEvent()
+                                .withStatusCode(statusCode)
+                                .withBody(body.toString())
+                                .withIsBase64Encoded(false)
+                                .withHeaders(Map.of("Content-Type", "application/json"));
+        }
+}
@@ -0,0 +1,76 @@
+/*
+Class: PrefixIngestSource
+Description: Photos stored under a prefix of an S3 bucket, in key order. Keys come from a lazy listing; each photo is fetched by the worker that resizes it.
+*/
+
+package vgu.cloud26;
+
+import java.io.IOException;
+import java.util.Iterator;
+
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.GetObjectRequest;
+import software.amazon.awssdk.services.s3.model.ListObjectsV2Request;
+import software.amazon.awssdk.services.s3.model.S3Object;
+
+public final class PrefixIngestSource implements IngestSource {
+
+    private final S3Client s3Client;
+
+    private final String bucket;
+
+    private final Iterator<S3Object> objects;
+
+    public PrefixIngestSource(S3Client s3Client, String bucket, String prefix) {
+        this.s3Client = s3Client;
+        this.bucket = bucket;
+        // Listings are in key order, which makes positions stable across runs
+        this.objects = s3Client.listObjectsV2Paginator(ListObjectsV2Request.builder()
+                .bucket(bucket)
+                .prefix(prefix)
+                .build()).contents().iterator();
+    }
+
+    @Override
+    public Entry next() {
+        S3Object object = nextPhoto();
+        if (object == null) {
+            return null;
+        }
+        String key = object.key();
+        if (object.size() > MAX_ENTRY_SIZE) {
+            return new Entry(key, () -> {
+                throw new IOException("Larger than " + MAX_ENTRY_SIZE + " bytes");
+            });
+        }
+        return new Entry(key, () -> s3Client.getObjectAsBytes(GetObjectRequest.builder()
+                .bucket(bucket)
+                .key(key)
+                .build()).asByteArray());
+    }
+
+    @Override
+    public int skip(int count) {
+        // Only the listing is read; nothing is fetched
+        int skipped = 0;
+        while (skipped < count && nextPhoto() != null) {
+            skipped++;
+        }
+        return skipped;
+    }
+
+    @Override
+    public void close() {
+        // Nothing held open between listing pages
+    }
+
+    private S3Object nextPhoto() {
+        while (objects.hasNext()) {
+            S3Object object = objects.next();
+            if (IngestSource.isPhoto(object.key())) {
+                return object;
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,235 @@
+/*
+Class: RdsConnectionPool
+Description: Keep one warm, validated JDBC connection per Lambda execution environment and cache the IAM auth token until shortly before it expires. Opening a connection, token included, is recorded as JdbcConnect and as the jdbc.connect span.
+*/
+
+package vgu.cloud26;
+
+import java.sql.Connection;
+import java.sql.Driver;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Properties;
+import java.util.function.Supplier;
+
+import software.amazon.awssdk.auth.credentials.DefaultCredentialsProvider;
+import software.amazon.awssdk.regions.Region;
+import software.amazon.awssdk.services.rds.RdsUtilities;
+import software.amazon.awssdk.services.rds.model.GenerateAuthenticationTokenRequest;
+
+public final class RdsConnectionPool {
+
+    static final String RDS_INSTANCE_HOSTNAME
+            = "database-1.c6p4im2uqehz.us-east-1.rds.amazonaws.com";
+
+    static final int RDS_INSTANCE_PORT = 3306;
+
+    static final String DB_USER = "cloud26";
+
+    static final String JDBC_URL
+            = "jdbc:mysql://" + RDS_INSTANCE_HOSTNAME
+                    + ":" + RDS_INSTANCE_PORT + "/Cloud26";
+
+    private static final String DRIVER_CLASS = "com.mysql.cj.jdbc.Driver";
+
+    // IAM auth tokens are valid for 15 minutes; renew a little before that
+    private static final Duration TOKEN_LIFETIME = Duration.ofMinutes(15);
+
+    private static final Duration TOKEN_REFRESH_MARGIN = Duration.ofMinutes(2);
+
+    // Skip the validation round-trip when the connection was used very recently
+    private static final Duration VALIDATION_INTERVAL = Duration.ofSeconds(5);
+
+    private static final int VALIDATION_TIMEOUT_SECONDS = 2;
+
+    private static String jdbcUrl = JDBC_URL;
+
+    // Null for the MySQL driver, found through DriverManager
+    private static Driver driver;
+
+    private static Supplier<String> tokenSupplier = RdsConnectionPool::generateAuthToken;
+
+    private static Properties extraProperties = defaultProperties();
+
+    private static Clock clock = Clock.systemUTC();
+
+    private static Connection connection;
+
+    private static Instant lastUsed = Instant.EPOCH;
+
+    private static String authToken;
+
+    private static Instant authTokenIssued = Instant.EPOCH;
+
+    private static RdsUtilities rdsUtilities;
+
+    private static boolean driverLoaded;
+
+    private RdsConnectionPool() {
+    }
+
+    /**
+     * Returns the container's shared connection, opening a new one only when
+     * there is none yet or the cached one no longer passes validation.
+     *
+     * The returned connection is owned by the pool: callers close their
+     * statements and result sets, but must not close the connection itself.
+     *
+     * @return an open JDBC connection.
+     * @throws SQLException if a new connection cannot be opened.
+     */
+    public static synchronized Connection getConnection() throws SQLException {
+        Instant now = clock.instant();
+        if (connection != null && isUsable(connection, now)) {
+            lastUsed = now;
+            return connection;
+        }
+
+        closeQuietly(connection);
+        long start = System.nanoTime();
+        connection = connect(connectionProperties(now));
+        Metrics.record("JdbcConnect", Metrics.millisSince(start), Metrics.Unit.MILLISECONDS);
+        Trace.span("jdbc.connect", start);
+        lastUsed = now;
+        return connection;
+    }
+
+    /**
+     * Drops the cached connection so the next call reconnects. Used when a
+     * statement fails in a way that leaves the connection in doubt.
+     */
+    public static synchronized void invalidate() {
+        closeQuietly(connection);
+        connection = null;
+    }
+
+    /**
+     * Loads the JDBC driver and drops the connection and auth token, so a
+     * SnapStart snapshot keeps the loaded classes but no socket or token
+     * that would be stale after restore.
+     *
+     * @throws SQLException if the driver cannot be loaded.
+     */
+    public static synchronized void prepareForCheckpoint() throws SQLException {
+        loadDriver();
+        invalidate();
+        authToken = null;
+        authTokenIssued = Instant.EPOCH;
+    }
+
+    /**
+     * Points the pool at a different database, e.g. a stand-in driver in a
+     * test. Resets any cached connection and token.
+     *
+     * @param url JDBC URL to connect to.
+     * @param jdbcDriver driver to open it with.
+     * @param passwordSupplier supplier used instead of IAM token generation.
+     * @param properties connection properties other than user and password.
+     * @param poolClock clock used for token expiry and validation intervals.
+     */
+    static synchronized void configure(String url, Driver jdbcDriver, Supplier<String> passwordSupplier,
+            Properties properties, Clock poolClock) {
+        invalidate();
+        jdbcUrl = url;
+        driver = jdbcDriver;
+        tokenSupplier = passwordSupplier;
+        extraProperties = properties;
+        clock = poolClock;
+        authToken = null;
+        authTokenIssued = Instant.EPOCH;
+    }
+
+    private static Connection connect(Properties properties) throws SQLException {
+        if (driver != null) {
+            Connection opened = driver.connect(jdbcUrl, properties);
+            if (opened == null) {
+                throw new SQLException(driver.getClass().getName() + " does not accept " + jdbcUrl);
+            }
+            return opened;
+        }
+        loadDriver();
+        return DriverManager.getConnection(jdbcUrl, properties);
+    }
+
+    private static void loadDriver() throws SQLException {
+        if (driverLoaded) {
+            return;
+        }
+        try {
+            // The Lambda class loader is not visible to DriverManager's service lookup
+            Class.forName(DRIVER_CLASS);
+            driverLoaded = true;
+        } catch (ClassNotFoundException ex) {
+            throw new SQLException("JDBC driver not found: " + DRIVER_CLASS, ex);
+        }
+    }
+
+    private static boolean isUsable(Connection conn, Instant now) {
+        try {
+            if (conn.isClosed()) {
+                return false;
+            }
+            if (Duration.between(lastUsed, now).compareTo(VALIDATION_INTERVAL) < 0) {
+                return true;
+            }
+            return conn.isValid(VALIDATION_TIMEOUT_SECONDS);
+        } catch (SQLException ex) {
+            return false;
+        }
+    }
+
+    private static Properties connectionProperties(Instant now) {
+        Properties mysqlConnectionProperties = new Properties();
+        mysqlConnectionProperties.putAll(extraProperties);
+        mysqlConnectionProperties.setProperty("user", DB_USER);
+        mysqlConnectionProperties.setProperty("password", currentAuthToken(now));
+        return mysqlConnectionProperties;
+    }
+
+    private static String currentAuthToken(Instant now) {
+        Instant refreshAt = authTokenIssued.plus(TOKEN_LIFETIME).minus(TOKEN_REFRESH_MARGIN);
+        if (authToken == null || !now.isBefore(refreshAt)) {
+            authToken = tokenSupplier.get();
+            authTokenIssued = now;
+        }
+        return authToken;
+    }
+
+    private static Properties defaultProperties() {
+        Properties properties = new Properties();
+        properties.setProperty("useSSL", "true");
+        // Lets PhotoTable.insertAll send its batch as multi-row INSERTs
+        properties.setProperty("rewriteBatchedStatements", "true");
+        return properties;
+    }
+
+    private static String generateAuthToken() {
+        if (rdsUtilities == null) {
+            rdsUtilities = RdsUtilities.builder()
+                    .region(Region.US_EAST_1)
+                    .credentialsProvider(DefaultCredentialsProvider.create())
+                    .build();
+        }
+
+        return rdsUtilities.generateAuthenticationToken(
+                GenerateAuthenticationTokenRequest.builder()
+                        .hostname(RDS_INSTANCE_HOSTNAME)
+                        .port(RDS_INSTANCE_PORT)
+                        .username(DB_USER)
+                        .build());
+    }
+
+    private static void closeQuietly(Connection conn) {
+        if (conn == null) {
+            return;
+        }
+        try {
+            conn.close();
+        } catch (SQLException ex) {
+            // Connection is being discarded anyway
+        }
+    }
+}
@@ -0,0 +1,176 @@
+/*
+Class: TokenVerifier
+Description: In-process issue and check of HMAC-SHA256 user tokens. The secret key comes from a SecretCache, recently verified users are remembered in a bounded LRU, and each thread reuses an initialized Mac.
+*/
+
+package vgu.cloud26;
+
+import com.amazonaws.services.lambda.runtime.LambdaLogger;
+
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.Base64;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+public final class TokenVerifier {
+
+    static final String PARAMETER_NAME = "S3DownloadKey";
+
+    private static final String ALGORITHM = "HmacSHA256";
+
+    private static final int MAX_VERIFIED_USERS = 1024;
+
+    private record KeyedMac(String key, Mac mac) {
+    }
+
+    // Mac is not thread-safe, and getInstance + init costs more than the HMAC itself
+    private static final ThreadLocal<KeyedMac> MACS = new ThreadLocal<>();
+
+    private static volatile SecretCache keyCache = SecretCache.forParameter(PARAMETER_NAME);
+
+    // Key the entries in verifiedTokens were computed with
+    private static String verifiedUnderKey;
+
+    // email -> token bytes that were last verified for it under verifiedUnderKey
+    private static final Map<String, byte[]> verifiedTokens
+            = new LinkedHashMap<>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, byte[]> eldest) {
+                    return size() > MAX_VERIFIED_USERS;
+                }
+            };
+
+    private TokenVerifier() {
+    }
+
+    /**
+     * Checks that the token is the HMAC of the email under the current key.
+     * Any failure to obtain the key counts as an invalid token.
+     *
+     * @param email user email the token was issued for.
+     * @param token Base64 token supplied by the client.
+     * @param logger logger for key fetch failures.
+     * @return true if the token is valid.
+     */
+    public static boolean verify(String email, String token, LambdaLogger logger) {
+        if (email == null || email.isEmpty() || token == null) {
+            return false;
+        }
+        String signingKey = currentKey(logger);
+        if (signingKey == null) {
+            return false;
+        }
+        byte[] provided = token.getBytes(StandardCharsets.UTF_8);
+
+        synchronized (TokenVerifier.class) {
+            if (!signingKey.equals(verifiedUnderKey)) {
+                // Tokens verified under a rotated key are no longer valid
+                verifiedTokens.clear();
+                verifiedUnderKey = signingKey;
+            }
+            byte[] remembered = verifiedTokens.get(email);
+            if (remembered != null && MessageDigest.isEqual(remembered, provided)) {
+                return true;
+            }
+        }
+
+        String expected = generateSecureToken(email, signingKey);
+        if (expected == null) {
+            return false;
+        }
+        byte[] expectedBytes = expected.getBytes(StandardCharsets.UTF_8);
+        if (!MessageDigest.isEqual(expectedBytes, provided)) {
+            return false;
+        }
+
+        synchronized (TokenVerifier.class) {
+            if (signingKey.equals(verifiedUnderKey)) {
+                verifiedTokens.put(email, expectedBytes);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Issues the token for an email under the current key.
+     *
+     * @return the token, or null if the key or HMAC is unavailable.
+     */
+    public static String issue(String email, LambdaLogger logger) {
+        String signingKey = currentKey(logger);
+        return signingKey == null ? null : generateSecureToken(email, signingKey);
+    }
+
+    /**
+     * Computes the Base64 HMAC-SHA256 of data with the given key, reusing
+     * this thread's Mac while the key stays the same.
+     *
+     * @return the token, or null if the HMAC cannot be computed.
+     */
+    public static String generateSecureToken(String data, String secretKey) {
+        if (secretKey == null) {
+            return null;
+        }
+        try {
+            byte[] hmacBytes = macFor(secretKey).doFinal(data.getBytes(StandardCharsets.UTF_8));
+            return Base64.getEncoder().encodeToString(hmacBytes);
+        } catch (GeneralSecurityException ex) {
+            return null;
+        }
+    }
+
+    /**
+     * Runs the HMAC, Base64 and comparison code once with a throwaway key,
+     * without fetching the real one. Used before a SnapStart snapshot.
+     */
+    public static void prime() {
+        String token = generateSecureToken("priming@example.com", "priming-key");
+        byte[] tokenBytes = token.getBytes(StandardCharsets.UTF_8);
+        MessageDigest.isEqual(tokenBytes, tokenBytes);
+        MACS.remove();
+    }
+
+    /**
+     * Forgets the key and the verified users, so a restored snapshot fetches
+     * the current key instead of trusting the one it was taken with.
+     */
+    public static synchronized void reset() {
+        keyCache.invalidate();
+        verifiedUnderKey = null;
+        verifiedTokens.clear();
+    }
+
+    /**
+     * Replaces the key source, e.g. with a fixed key for local runs. Clears
+     * the verified users.
+     */
+    static synchronized void configure(SecretCache cache) {
+        keyCache = cache;
+        verifiedUnderKey = null;
+        verifiedTokens.clear();
+    }
+
+    private static Mac macFor(String secretKey) throws GeneralSecurityException {
+        KeyedMac cached = MACS.get();
+        if (cached == null || !cached.key().equals(secretKey)) {
+            Mac mac = Mac.getInstance(ALGORITHM);
+            mac.init(new SecretKeySpec(secretKey.getBytes(StandardCharsets.UTF_8), ALGORITHM));
+            cached = new KeyedMac(secretKey, mac);
+            MACS.set(cached);
+        }
+        return cached.mac();
+    }
+
+    private static String currentKey(LambdaLogger logger) {
+        try {
+            return keyCache.get();
+        } catch (RuntimeException ex) {
+            logger.log("Could not fetch " + PARAMETER_NAME + ": " + ex.getMessage());
+            return null;
+        }
+    }
+}
@@ -0,0 +1,75 @@
+/*
+Class: ZipIngestSource
+Description: Photos of a ZIP archive in S3, inflated straight from the GetObject stream. Nothing is written to disk and only one entry is held in memory by the reader.
+*/
+
+package vgu.cloud26;
+
+import java.io.IOException;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+import software.amazon.awssdk.core.ResponseInputStream;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.GetObjectRequest;
+import software.amazon.awssdk.services.s3.model.GetObjectResponse;
+
+public final class ZipIngestSource implements IngestSource {
+
+    private final ResponseInputStream<GetObjectResponse> object;
+
+    private final ZipInputStream zip;
+
+    public ZipIngestSource(S3Client s3Client, String bucket, String key) {
+        this.object = s3Client.getObject(GetObjectRequest.builder()
+                .bucket(bucket)
+                .key(key)
+                .build());
+        this.zip = new ZipInputStream(object);
+    }
+
+    @Override
+    public Entry next() throws IOException {
+        ZipEntry entry = nextPhoto();
+        if (entry == null) {
+            return null;
+        }
+        // A ZIP can only be read in order, so the entry is read here rather
+        // than by the worker
+        byte[] bytes = zip.readNBytes((int) MAX_ENTRY_SIZE + 1);
+        String name = entry.getName();
+        if (bytes.length > MAX_ENTRY_SIZE) {
+            return new Entry(name, () -> {
+                throw new IOException("Larger than " + MAX_ENTRY_SIZE + " bytes");
+            });
+        }
+        return new Entry(name, () -> bytes);
+    }
+
+    @Override
+    public int skip(int count) throws IOException {
+        // getNextEntry() inflates past the current entry without keeping it
+        int skipped = 0;
+        while (skipped < count && nextPhoto() != null) {
+            skipped++;
+        }
+        return skipped;
+    }
+
+    @Override
+    public void close() throws IOException {
+        // The rest of the archive is not needed; do not drain it
+        object.abort();
+        zip.close();
+    }
+
+    private ZipEntry nextPhoto() throws IOException {
+        ZipEntry entry;
+        while ((entry = zip.getNextEntry()) != null) {
+            if (!entry.isDirectory() && IngestSource.isPhoto(entry.getName())) {
+                return entry;
+            }
+        }
+        return null;
+    }
+}
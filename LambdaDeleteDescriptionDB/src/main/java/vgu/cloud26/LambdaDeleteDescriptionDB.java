@@ -1,6 +1,7 @@
 /*
  function: LambdaDeleteDescriptionDB
  description: This lambda delete description from the RDS database given the image key 
+ With "imageKeys" instead of "imageKey", one DELETE removes all of them and {"deleted": [...]} lists the keys that had a description.
 */
 package vgu.cloud26;
 
@@ -14,70 +15,85 @@ import com.amazonaws.services.lambda.runtime.events.APIGatewayProxyRequestEvent;
 
 import com.amazonaws.services.lambda.runtime.events.APIGatewayProxyResponseEvent;
 
-import java.sql.Connection;
-
-import java.sql.DriverManager;
-
-import java.sql.PreparedStatement;
+import java.sql.SQLException;
 
+import java.util.ArrayList;
 import java.util.Base64;
 import java.util.Collections;
-import java.util.Properties;
+import java.util.List;
+import java.util.Set;
 
+import org.json.JSONArray;
 import org.json.JSONObject;
-
-import software.amazon.awssdk.auth.credentials.DefaultCredentialsProvider;
-
-import software.amazon.awssdk.regions.Region;
-
-import software.amazon.awssdk.services.rds.RdsUtilities;
-
-import software.amazon.awssdk.services.rds.model.GenerateAuthenticationTokenRequest;
+import org.crac.Core;
+import org.crac.Resource;
 
 public class LambdaDeleteDescriptionDB
-                implements RequestHandler<APIGatewayProxyRequestEvent, APIGatewayProxyResponseEvent> {
-
-        private static final String RDS_INSTANCE_HOSTNAME
+                implements RequestHandler<APIGatewayProxyRequestEvent, APIGatewayProxyResponseEvent>, Resource {
 
-                        = "database-1.c6p4im2uqehz.us-east-1.rds.amazonaws.com";
-
-        private static final int RDS_INSTANCE_PORT = 3306;
-
-        private static final String DB_USER = "cloud26";
-
-        private static final String JDBC_URL
-
-                        = "jdbc:mysql://" + RDS_INSTANCE_HOSTNAME
+        public LambdaDeleteDescriptionDB() {
+                Core.getGlobalContext().register(this);
+        }
 
-                                        + ":" + RDS_INSTANCE_PORT + "/Cloud26";
+        @Override
+        public void beforeCheckpoint(org.crac.Context<? extends Resource> context) throws SQLException {
+                new JSONObject(new JSONObject().put("imageKey", "priming.jpeg").toString()).getString("imageKey");
+                new JSONObject(new JSONObject().put("imageKeys", List.of("priming.jpeg")).toString())
+                                .getJSONArray("imageKeys").getString(0);
+                new JSONObject().put("deleted", Set.of("priming.jpeg")).toString();
+                RdsConnectionPool.prepareForCheckpoint();
+        }
 
         @Override
+        public void afterRestore(org.crac.Context<? extends Resource> context) {
+                Metrics.restored();
+                // getConnection() opens a fresh connection with a new IAM token on first use
+        }
 
+        @Override
         public APIGatewayProxyResponseEvent handleRequest(APIGatewayProxyRequestEvent request, Context context) {
+                Metrics.begin();
+                Metrics.recordSize("RequestBytes", request.getBody());
+                Trace.begin(request.getHeaders(), context);
+                try {
+                        APIGatewayProxyResponseEvent response = Trace.expired() ? Trace.deadlineExceeded() : handle(request, context);
+                        Metrics.recordSize("ResponseBytes", response.getBody());
+                        return Trace.finish(response);
+                } finally {
+                        Metrics.flush(context);
+                }
+        }
+
+        private APIGatewayProxyResponseEvent handle(APIGatewayProxyRequestEvent request, Context context) {
                 LambdaLogger logger = context.getLogger();
 
                 String requestBody = request.getBody();
-                if (requestBody != null && requestBody.equals("EventBridgeInvoke")) {
-                        logger.log("Invoked by EventBridge, no action taken.");
-                        return new APIGatewayProxyResponseEvent()
-                                        .withStatusCode(200)
-                                        .withBody("No action taken for EventBridge invocation.");
-                }
 
                 try {
                         JSONObject json = new JSONObject(requestBody);
-                        String imageKey = json.getString("imageKey");
-
-                        Class.forName("com.mysql.cj.jdbc.Driver");
 
-                        try (Connection conn = DriverManager.getConnection(JDBC_URL, setMySqlConnectionProperties());
-                                        PreparedStatement stmt = conn.prepareStatement(
-                                                        "DELETE FROM Photos WHERE S3Key = ?")) {
-                                stmt.setString(1, imageKey);
-                                int rowsAffected = stmt.executeUpdate();
-                                logger.log("Deleted " + rowsAffected + " row(s) for key: " + imageKey);
+                        if (json.has("imageKeys")) {
+                                List<String> imageKeys = new ArrayList<>();
+                                JSONArray keys = json.getJSONArray("imageKeys");
+                                for (int i = 0; i < keys.length(); i++) {
+                                        imageKeys.add(keys.getString(i));
+                                }
+
+                                Set<String> deleted = PhotoTable.deleteAll(imageKeys);
+                                logger.log("Deleted " + deleted.size() + " of " + imageKeys.size() + " description(s)");
+
+                                return new APIGatewayProxyResponseEvent()
+                                                .withStatusCode(200)
+                                                .withBody(new JSONObject().put("deleted", deleted).toString())
+                                                .withIsBase64Encoded(false)
+                                                .withHeaders(Collections.singletonMap("Content-Type", "application/json"));
                         }
 
+                        String imageKey = json.getString("imageKey");
+
+                        int rowsAffected = PhotoTable.delete(imageKey);
+                        logger.log("Deleted " + rowsAffected + " row(s) for key: " + imageKey);
+
                 } catch (Exception ex) {
                         logger.log("Error: " + ex.getMessage());
 
@@ -96,45 +112,4 @@ public class LambdaDeleteDescriptionDB
                                 .withHeaders(Collections.singletonMap("Content-Type", "application/json"));
         }
 
-        private static Properties setMySqlConnectionProperties() throws Exception {
-
-                Properties mysqlConnectionProperties = new Properties();
-
-                mysqlConnectionProperties.setProperty("useSSL", "true");
-
-                mysqlConnectionProperties.setProperty("user", DB_USER);
-
-                mysqlConnectionProperties.setProperty("password", generateAuthToken());
-
-                return mysqlConnectionProperties;
-
-        }
-
-        private static String generateAuthToken() throws Exception {
-
-                RdsUtilities rdsUtilities = RdsUtilities.builder().build();
-
-                String authToken
-
-                                = rdsUtilities.generateAuthenticationToken(
-
-                                                GenerateAuthenticationTokenRequest.builder()
-
-                                                                .hostname(RDS_INSTANCE_HOSTNAME)
-
-                                                                .port(RDS_INSTANCE_PORT)
-
-                                                                .username(DB_USER)
-
-                                                                .region(Region.US_EAST_1)
-
-                                                                .credentialsProvider(
-                                                                                DefaultCredentialsProvider.create())
-
-                                                                .build());
-
-                return authToken;
-
-        }
-
 }
@@ -1,6 +1,6 @@
 /*
 function LambdaDeleteObject
-Description: Delete object from given S3 bucket
+Description: Delete object from given S3 bucket. With "keys" instead of "key", delete all of them with DeleteObjects and return {"errors": {key: message}} for the keys that could not be deleted.
 */
 
 package vgu.cloud26;
@@ -9,33 +9,76 @@ import com.amazonaws.services.lambda.runtime.Context;
 import com.amazonaws.services.lambda.runtime.RequestHandler;
 import com.amazonaws.services.lambda.runtime.events.APIGatewayProxyRequestEvent;
 import com.amazonaws.services.lambda.runtime.events.APIGatewayProxyResponseEvent;
+import java.util.ArrayList;
 import java.util.Base64;
+import java.util.List;
+import java.util.Map;
+import org.json.JSONArray;
 import org.json.JSONObject;
-import software.amazon.awssdk.regions.Region;
+import org.crac.Core;
+import org.crac.Resource;
 import software.amazon.awssdk.services.s3.S3Client;
 import software.amazon.awssdk.services.s3.model.DeleteObjectRequest;
 
 
 public class LambdaDeleteObject implements
-        RequestHandler<APIGatewayProxyRequestEvent, APIGatewayProxyResponseEvent> {
+        RequestHandler<APIGatewayProxyRequestEvent, APIGatewayProxyResponseEvent>, Resource {
+
+    // Built once per execution environment and reused by every warm invocation
+    private final S3Client s3Client = AwsClients.build(S3Client.builder());
+
+    public LambdaDeleteObject() {
+        Core.getGlobalContext().register(this);
+    }
+
+    @Override
+    public void beforeCheckpoint(org.crac.Context<? extends Resource> context) {
+        JSONObject bodyJSON = new JSONObject(new JSONObject()
+                .put("key", "priming.jpeg")
+                .put("bucket", "cloud-public-mpg")
+                .toString());
+        DeleteObjectRequest.builder()
+                .bucket(bodyJSON.getString("bucket"))
+                .key(bodyJSON.getString("key"))
+                .build();
+        Base64.getEncoder().encodeToString("Object deleted successfully".getBytes());
+        new JSONObject().put("errors", Map.of("priming.jpeg", "AccessDenied: priming")).toString();
+    }
+
+    @Override
+    public void afterRestore(org.crac.Context<? extends Resource> context) {
+        Metrics.restored();
+        // The S3 client resolves credentials and connects on first use
+    }
 
     @Override
-    public APIGatewayProxyResponseEvent
-            handleRequest(APIGatewayProxyRequestEvent event, Context context) {
+    public APIGatewayProxyResponseEvent handleRequest(APIGatewayProxyRequestEvent event, Context context) {
+        Metrics.begin();
+        Metrics.recordSize("RequestBytes", event.getBody());
+        Trace.begin(event.getHeaders(), context);
+        try {
+            APIGatewayProxyResponseEvent response = Trace.expired() ? Trace.deadlineExceeded() : handle(event, context);
+            Metrics.recordSize("ResponseBytes", response.getBody());
+            return Trace.finish(response);
+        } finally {
+            Metrics.flush(context);
+        }
+    }
+
+    private APIGatewayProxyResponseEvent handle(APIGatewayProxyRequestEvent event, Context context) {
        
         // String bucketName = "cloud-public-mpg";
                         
         // Parse request body to get the object key
         String requestBody = event.getBody();
-        if (requestBody != null && requestBody.equals("EventBridgeInvoke")) {
-            context.getLogger().log("Invoked by EventBridge, no action taken.");
-            return new APIGatewayProxyResponseEvent()
-                    .withStatusCode(200)
-                    .withBody("No action taken for EventBridge invocation.");
-        }
         JSONObject bodyJSON = new JSONObject(requestBody);
-        String objName = bodyJSON.getString("key");
         String bucketName = bodyJSON.getString("bucket");
+
+        if (bodyJSON.has("keys")) {
+            return deleteBatch(bucketName, bodyJSON.getJSONArray("keys"), context);
+        }
+
+        String objName = bodyJSON.getString("key");
         
         // Delete object from S3
         DeleteObjectRequest deleteObjectRequest = 
@@ -44,9 +87,6 @@ public class LambdaDeleteObject implements
                         .key(objName)
                         .build();
 
-        S3Client s3Client = S3Client.builder()
-                        .region(Region.US_EAST_1)
-                        .build();
         
         try {
                 s3Client.deleteObject(deleteObjectRequest);
@@ -67,5 +107,27 @@ public class LambdaDeleteObject implements
         return response;
     }
 
+    private APIGatewayProxyResponseEvent deleteBatch(String bucketName, JSONArray keys, Context context) {
+        List<String> objNames = new ArrayList<>();
+        for (int i = 0; i < keys.length(); i++) {
+            objNames.add(keys.getString(i));
+        }
+
+        Map<String, String> errors;
+        try {
+            errors = ObjectBatches.delete(s3Client, bucketName, objNames);
+        } catch (Exception ex) {
+            throw new RuntimeException("An S3 exception occurred during delete", ex);
+        }
+        context.getLogger().log((objNames.size() - errors.size()) + " of " + objNames.size()
+                + " object(s) deleted from " + bucketName);
+
+        return new APIGatewayProxyResponseEvent()
+                .withStatusCode(200)
+                .withBody(new JSONObject().put("errors", errors).toString())
+                .withIsBase64Encoded(false)
+                .withHeaders(java.util.Collections.singletonMap("Content-Type", "application/json"));
+    }
+
 }
 
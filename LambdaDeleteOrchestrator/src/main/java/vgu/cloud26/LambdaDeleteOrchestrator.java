@@ -1,6 +1,10 @@
 /*
 function LambdaDeleteOrchestrator
 Description: Invoke deleteion of object in S3, resized S3, and description in DB. Handle token validation beforehand.
+Steps listed as "local" in STEP_MODES (see StepModes) run in this function instead of through their own Lambda.
+Each request runs as a Workflow (see deleteWorkflow and batchDeleteWorkflow), and the response lists how long each step took.
+With "keys" instead of "key", up to MAX_BATCH_KEYS photos are deleted with DeleteObjects on both buckets and one SQL DELETE, and the response reports each key.
+Calls to a function whose circuit breaker is open fail at once, and the delete answers 503 with Retry-After instead of 502.
 */
 
 package vgu.cloud26;
@@ -10,94 +14,336 @@ import com.amazonaws.services.lambda.runtime.LambdaLogger;
 import com.amazonaws.services.lambda.runtime.RequestHandler;
 import com.amazonaws.services.lambda.runtime.events.APIGatewayProxyRequestEvent;
 import com.amazonaws.services.lambda.runtime.events.APIGatewayProxyResponseEvent;
-import java.nio.ByteBuffer;
-import java.nio.charset.StandardCharsets;
+import java.sql.SQLException;
+import java.time.Duration;
+import java.util.ArrayList;
 import java.util.Base64;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.CompletableFuture;
-import java.util.concurrent.ExecutionException;
+import org.json.JSONArray;
 import org.json.JSONObject;
-import software.amazon.awssdk.awscore.exception.AwsServiceException;
+import org.crac.Core;
+import org.crac.Resource;
 import software.amazon.awssdk.core.SdkBytes;
-import software.amazon.awssdk.core.exception.SdkClientException;
-import software.amazon.awssdk.regions.Region;
-import software.amazon.awssdk.services.lambda.LambdaClient;
 import software.amazon.awssdk.services.lambda.model.InvokeRequest;
-import software.amazon.awssdk.services.lambda.model.InvokeResponse;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.DeleteObjectRequest;
 
 public class LambdaDeleteOrchestrator implements
-                RequestHandler<APIGatewayProxyRequestEvent, APIGatewayProxyResponseEvent> {
+                RequestHandler<APIGatewayProxyRequestEvent, APIGatewayProxyResponseEvent>, Resource {
 
-        private final LambdaClient lambdaClient;
+        // Each step is one S3 or SQL delete
+        private static final Duration DELETE_TIMEOUT = Duration.ofSeconds(10);
+
+        // A batch step makes up to one DeleteObjects call per 1000 keys
+        private static final Duration BATCH_DELETE_TIMEOUT = Duration.ofSeconds(30);
+
+        // Keeps the IN (...) list and the rendition keys (several per photo) bounded
+        static final int MAX_BATCH_KEYS = 1000;
+
+        private static final String SOURCE_BUCKET = "cloud-public-mpg";
+
+        private static final String DELETE_OBJECT = "LambdaDeleteObject";
+
+        private static final String DELETE_DESCRIPTION = "LambdaDeleteDescriptionDB";
+
+        // Deleting twice is harmless, so a failed delete is tried once more
+        private static final Workflow.Retry DELETE_RETRY = new Workflow.Retry(2, Duration.ofMillis(200));
+
+        private final LambdaInvoker invoker;
+
+        private final StepModes steps;
+
+        // Only needed when a step runs in-process
+        private final S3Client s3Client;
 
         public LambdaDeleteOrchestrator() {
-                this.lambdaClient = LambdaClient.builder()
-                                .region(Region.of("us-east-1"))
-                                .build();
+                this(LambdaInvoker.create(), StepModes.fromEnvironment());
+        }
+
+        LambdaDeleteOrchestrator(LambdaInvoker invoker, StepModes steps) {
+                this.invoker = invoker;
+                this.steps = steps;
+                this.s3Client = steps.anyLocal() ? AwsClients.build(S3Client.builder()) : null;
+                Core.getGlobalContext().register(this);
         }
 
-        // Helper to call another Lambda
-        public String callLambda(String functionName, String payload, LambdaLogger logger) {
-                String message;
-                InvokeRequest invokeRequest = InvokeRequest.builder()
-                                .functionName(functionName)
+        @Override
+        public void beforeCheckpoint(org.crac.Context<? extends Resource> context) throws SQLException {
+                JSONObject bodyJSON = new JSONObject(new JSONObject()
+                                .put("email", "priming@example.com")
+                                .put("token", "priming")
+                                .put("key", "priming.jpeg")
+                                .toString());
+                TokenVerifier.prime();
+                deleteWorkflow(bodyJSON.getString("key"));
+                for (String renditionKey : Renditions.keysFor(bodyJSON.getString("key"))) {
+                        InvokeRequest.builder()
+                                        .functionName("LambdaDeleteObject")
+                                        .invocationType("RequestResponse")
+                                        .payload(SdkBytes.fromUtf8String(new JSONObject()
+                                                        .put("key", renditionKey)
+                                                        .put("bucket", Renditions.BUCKET)
+                                                        .toString()))
+                                        .build();
+                }
+                InvokeRequest.builder()
+                                .functionName("LambdaDeleteObject")
                                 .invocationType("RequestResponse")
-                                .payload(SdkBytes.fromUtf8String(payload))
+                                .payload(SdkBytes.fromUtf8String(new JSONObject()
+                                                .put("keys", Renditions.keysFor(bodyJSON.getString("key")))
+                                                .put("bucket", Renditions.BUCKET)
+                                                .toString()))
                                 .build();
+                new JSONObject("{\"errors\":{},\"deleted\":[\"priming.jpeg\"]}").getJSONArray("deleted").toList();
+                if (steps.isLocal(DELETE_DESCRIPTION)) {
+                        RdsConnectionPool.prepareForCheckpoint();
+                }
+        }
 
-                try {
-                        InvokeResponse invokeResult = lambdaClient.invoke(invokeRequest);
-                        ByteBuffer responsePayload = invokeResult.payload().asByteBuffer();
-                        String responseString = StandardCharsets.UTF_8.decode(responsePayload).toString();
+        @Override
+        public void afterRestore(org.crac.Context<? extends Resource> context) {
+                Metrics.restored();
+                // The key may have been rotated since the snapshot was taken
+                TokenVerifier.reset();
+        }
 
-                        JSONObject responseObject = new JSONObject(responseString);
-                        message = responseObject.optString("body", "");
-                        logger.log("Response from " + functionName + ": " + message);
-                        return message;
+        // Helper to call another Lambda with {"body": body, "headers": trace} without blocking a thread while it runs
+        private CompletableFuture<String> callLambdaAsync(String functionName, JSONObject body, Duration timeout) {
+                return invoker.invoke(functionName, new JSONObject()
+                                .put("body", body.toString())
+                                .put("headers", Trace.headers(timeout))
+                                .toString(), timeout);
+        }
 
-                } catch (AwsServiceException | SdkClientException e) {
-                        message = "Error calling " + functionName + ": " + e.getMessage();
-                        logger.log(message);
-                        return message;
+        /**
+         * Deletes one photo: the original, its description and every
+         * rendition, all at once. A delete can be repeated, so each is tried
+         * again once; it cannot be undone, so nothing is compensated.
+         */
+        Workflow deleteWorkflow(String imageKey) {
+                List<Workflow.Step> stepList = new ArrayList<>();
+                stepList.add(Workflow.Step.of("original", DELETE_TIMEOUT,
+                                (inputs, timeout) -> deleteObject(SOURCE_BUCKET, imageKey, timeout))
+                                .retry(DELETE_RETRY));
+                stepList.add(Workflow.Step.of("description", DELETE_TIMEOUT,
+                                (inputs, timeout) -> deleteDescription(imageKey, timeout))
+                                .retry(DELETE_RETRY));
+                for (String renditionKey : Renditions.keysFor(imageKey)) {
+                        stepList.add(Workflow.Step.of(renditionKey, DELETE_TIMEOUT,
+                                        (inputs, timeout) -> deleteObject(Renditions.BUCKET, renditionKey, timeout))
+                                        .retry(DELETE_RETRY));
                 }
+                return Workflow.of("delete", stepList);
+        }
+
+        /**
+         * Deletes many photos with three steps whatever their number.
+         * "originals" and "renditions" complete with {"errors": {key:
+         * message}}, "descriptions" with {"deleted": [...]}.
+         */
+        Workflow batchDeleteWorkflow(List<String> keys, List<String> renditionKeys) {
+                return Workflow.of("batch delete",
+                                Workflow.Step.of("originals", BATCH_DELETE_TIMEOUT,
+                                                (inputs, timeout) -> deleteObjects(SOURCE_BUCKET, keys, timeout))
+                                                .retry(DELETE_RETRY),
+                                Workflow.Step.of("renditions", BATCH_DELETE_TIMEOUT,
+                                                (inputs, timeout) -> deleteObjects(Renditions.BUCKET, renditionKeys, timeout))
+                                                .retry(DELETE_RETRY),
+                                Workflow.Step.of("descriptions", BATCH_DELETE_TIMEOUT,
+                                                (inputs, timeout) -> deleteDescriptions(keys, timeout))
+                                                .retry(DELETE_RETRY));
+        }
+
+        private CompletableFuture<String> deleteObject(String bucket, String key, Duration timeout) {
+                if (steps.isLocal(DELETE_OBJECT)) {
+                        return LambdaInvoker.runLocal(DELETE_OBJECT, () -> {
+                                s3Client.deleteObject(DeleteObjectRequest.builder()
+                                                .bucket(bucket)
+                                                .key(key)
+                                                .build());
+                                return Base64.getEncoder().encodeToString("Object deleted successfully".getBytes());
+                        }, timeout);
+                }
+                return callLambdaAsync(DELETE_OBJECT, new JSONObject()
+                                .put("key", key)
+                                .put("bucket", bucket), timeout);
+        }
+
+        private CompletableFuture<String> deleteDescription(String imageKey, Duration timeout) {
+                if (steps.isLocal(DELETE_DESCRIPTION)) {
+                        return LambdaInvoker.runLocal(DELETE_DESCRIPTION, () -> {
+                                PhotoTable.delete(imageKey);
+                                return Base64.getEncoder().encodeToString("Delete description success".getBytes());
+                        }, timeout);
+                }
+                return callLambdaAsync(DELETE_DESCRIPTION, new JSONObject()
+                                .put("imageKey", imageKey), timeout);
+        }
+
+        // Completes with {"errors": {key: message}} for the keys S3 did not delete
+        private CompletableFuture<String> deleteObjects(String bucket, List<String> keys, Duration timeout) {
+                if (steps.isLocal(DELETE_OBJECT)) {
+                        return LambdaInvoker.runLocal(DELETE_OBJECT, () -> new JSONObject()
+                                        .put("errors", ObjectBatches.delete(s3Client, bucket, keys))
+                                        .toString(), timeout);
+                }
+                return callLambdaAsync(DELETE_OBJECT, new JSONObject()
+                                .put("keys", keys)
+                                .put("bucket", bucket), timeout);
+        }
+
+        // Completes with {"deleted": [...]}, the keys that had a description
+        private CompletableFuture<String> deleteDescriptions(List<String> imageKeys, Duration timeout) {
+                if (steps.isLocal(DELETE_DESCRIPTION)) {
+                        return LambdaInvoker.runLocal(DELETE_DESCRIPTION, () -> new JSONObject()
+                                        .put("deleted", PhotoTable.deleteAll(imageKeys))
+                                        .toString(), timeout);
+                }
+                return callLambdaAsync(DELETE_DESCRIPTION, new JSONObject()
+                                .put("imageKeys", imageKeys), timeout);
+        }
+
+        // 502 for a workflow that failed: which step, and the timings up to then.
+        // 503 with Retry-After if the step was refused by an open circuit or a full bulkhead
+        private APIGatewayProxyResponseEvent failed(Workflow.Failed e, LambdaLogger logger) {
+                logger.log("Delete failed at " + e.step() + ": " + e.getMessage() + "; " + e.timings());
+                e.timings().recordMetrics();
+                invoker.breakers().recordMetrics();
+                Duration retryAfter = LambdaInvoker.retryAfter(e);
+                return new APIGatewayProxyResponseEvent()
+                                .withStatusCode(retryAfter != null ? 503 : 502)
+                                .withBody(new JSONObject()
+                                                .put("message", "Error: " + e.getMessage())
+                                                .put("step", e.step())
+                                                .put("timings", e.timings().toJSON())
+                                                .toString())
+                                .withIsBase64Encoded(false)
+                                .withHeaders(retryAfter != null
+                                                ? Map.of("Content-Type", "application/json",
+                                                                "Retry-After", retryAfterSeconds(retryAfter))
+                                                : Map.of("Content-Type", "application/json"));
         }
 
-        // Helper to call another Lambda asynchronously
-        public CompletableFuture<String> callLambdaAsync(String functionName, String payload, LambdaLogger logger) {
-                return CompletableFuture.supplyAsync(() -> {
-                        return callLambda(functionName, payload, logger);
-                });
+        // Retry-After in whole seconds, rounded up
+        private static String retryAfterSeconds(Duration retryAfter) {
+                return Long.toString(Math.max(1, (retryAfter.toMillis() + 999) / 1000));
+        }
+
+        /**
+         * Deletes many photos with three calls in parallel: DeleteObjects on
+         * the originals, DeleteObjects on every rendition and one SQL DELETE.
+         * Each key is reported as "deleted" or, if S3 refused any of its
+         * objects, "failed" with the errors; "description" says whether it
+         * had a row in Photos.
+         */
+        private APIGatewayProxyResponseEvent deleteBatch(JSONArray keyArray, Context context) {
+                LambdaLogger logger = context.getLogger();
+
+                Set<String> uniqueKeys = new LinkedHashSet<>();
+                for (int i = 0; i < keyArray.length(); i++) {
+                        uniqueKeys.add(keyArray.getString(i));
+                }
+                List<String> keys = List.copyOf(uniqueKeys);
+                if (keys.isEmpty() || keys.size() > MAX_BATCH_KEYS) {
+                        return new APIGatewayProxyResponseEvent()
+                                        .withStatusCode(400)
+                                        .withBody("Between 1 and " + MAX_BATCH_KEYS + " keys per request.")
+                                        .withIsBase64Encoded(false)
+                                        .withHeaders(Map.of("Content-Type", "text/plain"));
+                }
+
+                // Rendition key -> the photo it belongs to
+                Map<String, String> renditionOwners = new HashMap<>();
+                for (String key : keys) {
+                        for (String renditionKey : Renditions.keysFor(key)) {
+                                renditionOwners.put(renditionKey, key);
+                        }
+                }
+
+                Workflow.Result result;
+                try {
+                        result = batchDeleteWorkflow(keys, List.copyOf(renditionOwners.keySet()))
+                                        .run(timeout -> LambdaInvoker.timeoutWithin(context, timeout));
+                } catch (Workflow.Failed e) {
+                        return failed(e, logger);
+                }
+
+                Map<String, List<String>> errors = new HashMap<>();
+                JSONObject originalErrors = new JSONObject(result.output("originals")).getJSONObject("errors");
+                for (String key : originalErrors.keySet()) {
+                        errors.computeIfAbsent(key, k -> new ArrayList<>())
+                                        .add(SOURCE_BUCKET + "/" + key + ": " + originalErrors.getString(key));
+                }
+                JSONObject renditionErrors = new JSONObject(result.output("renditions")).getJSONObject("errors");
+                for (String renditionKey : renditionErrors.keySet()) {
+                        errors.computeIfAbsent(renditionOwners.get(renditionKey), k -> new ArrayList<>())
+                                        .add(Renditions.BUCKET + "/" + renditionKey + ": "
+                                                        + renditionErrors.getString(renditionKey));
+                }
+                Set<Object> described = new HashSet<>(
+                                new JSONObject(result.output("descriptions")).getJSONArray("deleted").toList());
+
+                JSONArray results = new JSONArray();
+                for (String key : keys) {
+                        JSONObject keyResult = new JSONObject()
+                                        .put("key", key)
+                                        .put("status", errors.containsKey(key) ? "failed" : "deleted")
+                                        .put("description", described.contains(key));
+                        if (errors.containsKey(key)) {
+                                keyResult.put("errors", errors.get(key));
+                        }
+                        results.put(keyResult);
+                }
+                logger.log("Batch delete: " + (keys.size() - errors.size()) + " of " + keys.size()
+                                + " photo(s) deleted, " + described.size() + " description(s); " + result.timings());
+                result.timings().recordMetrics();
+                invoker.breakers().recordMetrics();
+
+                return new APIGatewayProxyResponseEvent()
+                                .withStatusCode(200)
+                                .withBody(new JSONObject()
+                                                .put("results", results)
+                                                .put("deleted", keys.size() - errors.size())
+                                                .put("failed", errors.size())
+                                                .put("timings", result.timings().toJSON())
+                                                .toString())
+                                .withIsBase64Encoded(false)
+                                .withHeaders(Map.of("Content-Type", "application/json"));
         }
 
         @Override
         public APIGatewayProxyResponseEvent handleRequest(APIGatewayProxyRequestEvent event, Context context) {
+                Metrics.begin();
+                Metrics.recordSize("RequestBytes", event.getBody());
+                Trace.begin(event.getHeaders(), context);
+                try {
+                        APIGatewayProxyResponseEvent response = Trace.expired() ? Trace.deadlineExceeded() : handle(event, context);
+                        Metrics.recordSize("ResponseBytes", response.getBody());
+                        return Trace.finish(response);
+                } finally {
+                        Metrics.flush(context);
+                }
+        }
+
+        private APIGatewayProxyResponseEvent handle(APIGatewayProxyRequestEvent event, Context context) {
                 LambdaLogger logger = context.getLogger();
 
                 String requestBody = event.getBody();
-                if (requestBody != null && requestBody.equals("EventBridgeInvoke")) {
-                        logger.log("Invoked by EventBridge, no action taken.");
-                        return new APIGatewayProxyResponseEvent()
-                                        .withStatusCode(200)
-                                        .withBody("No action taken for EventBridge invocation.");
-                }
                 JSONObject bodyJSON = new JSONObject(requestBody);
 
                 String email = bodyJSON.getString("email");
                 String token = bodyJSON.getString("token");
-                String objName = bodyJSON.getString("key");
-                String responseString = "";
-
-                // PARALLEL PROCESSING: Delete original image and description DB concurrently
+                Workflow.Result result;
+                String objName;
                 try {
                         // Step 0: Validate token first
-                        JSONObject tokenPayload = new JSONObject()
-                                        .put("email", email)
-                                        .put("token", token);
-                        JSONObject tokenWrapper = new JSONObject()
-                                        .put("body", tokenPayload.toString());
-                        String tokenResponse = callLambda("LambdaTokenChecker", tokenWrapper.toString(), logger);
-                        JSONObject tokenResponseJSON = new JSONObject(tokenResponse);
-                        boolean success = tokenResponseJSON.optBoolean("success", false);
+                        boolean success = TokenVerifier.verify(email, token, logger);
                         if (!success) {
                                 logger.log("Token validation failed. Aborting upload.");
                                 return new APIGatewayProxyResponseEvent()
@@ -107,46 +353,22 @@ public class LambdaDeleteOrchestrator implements
                                                 .withHeaders(Map.of("Content-Type", "text/plain"));
                         }
 
-                        // 1. Delete original object from S3
-                        JSONObject deletePayload = new JSONObject()
-                                        .put("key", objName)
-                                        .put("bucket", "cloud-public-mpg");
-                        JSONObject deleteWrapper = new JSONObject()
-                                        .put("body", deletePayload.toString());                      
-
-                        // 2. Delete description from DB - can run in parallel
-                        JSONObject deleteDescPayload = new JSONObject()
-                                        .put("imageKey", objName);
-                        JSONObject deleteDescWrapper = new JSONObject()
-                                        .put("body", deleteDescPayload.toString());
-
-                        // 3. Delete resized image from S3 - can run in parallel
-                        String resizedKey = "resized-" + objName;
-                        JSONObject deleteResizedPayload = new JSONObject()
-                                        .put("key", resizedKey)
-                                        .put("bucket", "resized-cloud-public-mpg");
-                        JSONObject deleteResizedWrapper = new JSONObject()
-                                        .put("body", deleteResizedPayload.toString());
-
-                        // Invoke Lambdas asynchronously
-                        CompletableFuture<String> deleteObjectFuture = callLambdaAsync("LambdaDeleteObject",
-                                        deleteWrapper.toString(), logger);
-                        CompletableFuture<String> deleteDescFuture = callLambdaAsync("LambdaDeleteDescriptionDB",
-                                        deleteDescWrapper.toString(), logger);
-                        CompletableFuture<String> deleteResizedFuture = callLambdaAsync("LambdaDeleteObject",
-                                        deleteResizedWrapper.toString(), logger);
-
-                        // Wait for those to complete
-                        String deleteObjectResponse = deleteObjectFuture.get();
-                        String deleteDescResponse = deleteDescFuture.get();
-                        String deleteResizedResponse = deleteResizedFuture.get();
-
-                        responseString = deleteObjectResponse + deleteDescResponse + deleteResizedResponse;
-
-                } catch (InterruptedException | ExecutionException e) {
-                        logger.log("Error during parallel execution: " + e.getMessage());
-                        responseString = "Error: " + e.getMessage();
+                        if (bodyJSON.has("keys")) {
+                                return deleteBatch(bodyJSON.getJSONArray("keys"), context);
+                        }
+                        objName = bodyJSON.getString("key");
+
+                        // The original, the description and every rendition in parallel;
+                        // the first failure cancels the others
+                        result = deleteWorkflow(objName)
+                                        .run(timeout -> LambdaInvoker.timeoutWithin(context, timeout));
+
+                } catch (Workflow.Failed e) {
+                        return failed(e, logger);
                 }
+                logger.log("Delete " + objName + ": " + result.timings());
+                result.timings().recordMetrics();
+                invoker.breakers().recordMetrics();
 
                 /*
                  * SEQUENTIAL PROCESSING (FOR COMPARISON):
@@ -179,13 +401,13 @@ public class LambdaDeleteOrchestrator implements
                  * deleteResizedWrapper.toString(), logger);
                  */
 
-                // Base64 encode final combined response
-                String encodedString = Base64.getEncoder().encodeToString(responseString.getBytes());
-
                 return new APIGatewayProxyResponseEvent()
                                 .withStatusCode(200)
-                                .withBody(encodedString)
-                                .withIsBase64Encoded(true)
-                                .withHeaders(Map.of("Content-Type", "text/plain"));
+                                .withBody(new JSONObject()
+                                                .put("key", objName)
+                                                .put("timings", result.timings().toJSON())
+                                                .toString())
+                                .withIsBase64Encoded(false)
+                                .withHeaders(Map.of("Content-Type", "application/json"));
         }
 }
@@ -0,0 +1,53 @@
+/*
+Class: ObjectBatches
+Description: Delete many keys from one S3 bucket with DeleteObjects, up to 1000 keys per call, and report the keys S3 could not delete.
+*/
+
+package vgu.cloud26;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.Delete;
+import software.amazon.awssdk.services.s3.model.DeleteObjectsRequest;
+import software.amazon.awssdk.services.s3.model.DeleteObjectsResponse;
+import software.amazon.awssdk.services.s3.model.ObjectIdentifier;
+import software.amazon.awssdk.services.s3.model.S3Error;
+
+public final class ObjectBatches {
+
+    // The most keys S3 accepts in one DeleteObjects request
+    public static final int MAX_KEYS_PER_REQUEST = 1000;
+
+    private ObjectBatches() {
+    }
+
+    /**
+     * Deletes keys from bucket. Keys that do not exist count as deleted, as
+     * with DeleteObject.
+     *
+     * @return error message per key S3 refused to delete; empty if all went.
+     * @throws software.amazon.awssdk.core.exception.SdkException if a whole
+     * request fails; keys in earlier requests are already deleted.
+     */
+    public static Map<String, String> delete(S3Client s3Client, String bucket, List<String> keys) {
+        Map<String, String> errors = new LinkedHashMap<>();
+        for (int start = 0; start < keys.size(); start += MAX_KEYS_PER_REQUEST) {
+            List<ObjectIdentifier> chunk = keys.subList(start, Math.min(keys.size(), start + MAX_KEYS_PER_REQUEST))
+                    .stream()
+                    .map(key -> ObjectIdentifier.builder().key(key).build())
+                    .toList();
+            // Quiet mode: S3 lists only the keys it failed on
+            DeleteObjectsResponse response = s3Client.deleteObjects(DeleteObjectsRequest.builder()
+                    .bucket(bucket)
+                    .delete(Delete.builder().objects(chunk).quiet(true).build())
+                    .build());
+            for (S3Error error : response.errors()) {
+                errors.put(error.key(), error.code() + ": " + error.message());
+            }
+        }
+        return errors;
+    }
+}
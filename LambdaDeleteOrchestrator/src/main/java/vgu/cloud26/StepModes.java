@@ -0,0 +1,82 @@
+/*
+Class: StepModes
+Description: Which pipeline steps an orchestrator runs in-process ("local") instead of invoking the step's own Lambda ("remote"). Set per orchestrator under "steps" in lambda-config.json, which the deploy workflows pass in as STEP_MODES.
+*/
+
+package vgu.cloud26;
+
+import java.util.HashMap;
+import java.util.Map;
+
+public final class StepModes {
+
+    public static final String LOCAL = "local";
+
+    public static final String REMOTE = "remote";
+
+    private static final String MODES_VARIABLE = "STEP_MODES";
+
+    private final Map<String, String> modes;
+
+    private StepModes(Map<String, String> modes) {
+        this.modes = Map.copyOf(modes);
+    }
+
+    /**
+     * Modes from the STEP_MODES environment variable, e.g.
+     * "LambdaUploadObject=local,LambdaImageResizer=remote". Steps it does not
+     * name stay remote.
+     */
+    public static StepModes fromEnvironment() {
+        String spec = System.getenv(MODES_VARIABLE);
+        return spec == null || spec.isBlank() ? allRemote() : parse(spec);
+    }
+
+    public static StepModes allRemote() {
+        return new StepModes(Map.of());
+    }
+
+    /**
+     * Runs the given steps in-process and every other step remotely.
+     */
+    public static StepModes local(String... functionNames) {
+        Map<String, String> modes = new HashMap<>();
+        for (String functionName : functionNames) {
+            modes.put(functionName, LOCAL);
+        }
+        return new StepModes(modes);
+    }
+
+    /**
+     * Whether the step normally done by functionName runs in-process.
+     */
+    public boolean isLocal(String functionName) {
+        return LOCAL.equals(modes.get(functionName));
+    }
+
+    public boolean anyLocal() {
+        return modes.containsValue(LOCAL);
+    }
+
+    static StepModes parse(String spec) {
+        Map<String, String> modes = new HashMap<>();
+        for (String entry : spec.split(",")) {
+            String[] parts = entry.trim().split("=");
+            if (parts.length != 2) {
+                throw new IllegalArgumentException("Step mode must be function=mode, got '" + entry + "'");
+            }
+            String mode = parts[1].trim();
+            if (!mode.equals(LOCAL) && !mode.equals(REMOTE)) {
+                throw new IllegalArgumentException("Step mode must be " + LOCAL + " or " + REMOTE
+                        + ", got '" + mode + "'");
+            }
+            modes.put(parts[0].trim(), mode);
+        }
+        return new StepModes(modes);
+    }
+
+    @Override
+    public String toString() {
+        return modes.toString();
+    }
+}
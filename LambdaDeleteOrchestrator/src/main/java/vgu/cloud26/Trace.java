@@ -0,0 +1,363 @@
+/*
+Class: Trace
+Description: The trace context of one invocation: a trace id shared by every hop of a request, this hop's span id, and the deadline by which the caller needs an answer. Calls to other functions carry it as "traceparent" (W3C Trace Context) and "x-deadline" (epoch milliseconds) in the payload's "headers", where the API Gateway event keeps them. Every hop sums the time it spends in S3, JDBC, image work and calls to other functions by name, and answers with those sums in a Server-Timing header; a caller folds its callees' sums into its own, prefixed with the callee's name.
+Work an invocation hands to another thread, and that may outlive it, runs through bind, so that its spans count toward that invocation and are dropped once the next one has begun.
+*/
+
+package vgu.cloud26;
+
+import com.amazonaws.services.lambda.runtime.Context;
+import com.amazonaws.services.lambda.runtime.events.APIGatewayProxyResponseEvent;
+
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+public final class Trace {
+
+    public static final String TRACEPARENT = "traceparent";
+
+    public static final String DEADLINE = "x-deadline";
+
+    public static final String SERVER_TIMING = "Server-Timing";
+
+    // Request header asking for the "trace" section in a JSON response body
+    public static final String DEBUG = "x-trace-debug";
+
+    /**
+     * Work not started because the caller's deadline has passed: nobody is
+     * waiting for its result any more.
+     */
+    public static final class DeadlineExceeded extends RuntimeException {
+
+        private static final long serialVersionUID = 1L;
+
+        DeadlineExceeded(long lateMillis) {
+            super("Deadline passed " + lateMillis + " ms ago");
+        }
+    }
+
+    // Distinct span names kept, so a hop making many different calls still fits in a header
+    private static final int MAX_SPANS = 32;
+
+    private static String traceId = newId(16);
+
+    private static String spanId = newId(8);
+
+    private static String parentSpanId;
+
+    private static long deadlineMillis = Long.MAX_VALUE;
+
+    private static boolean debug;
+
+    private static long startNanos = System.nanoTime();
+
+    private static final Map<String, Span> spans = new LinkedHashMap<>();
+
+    // Counts the invocations begun, so that spans of work outliving its own can be told apart
+    private static long invocation;
+
+    // The invocation that handed over the work running on this thread
+    private static final ThreadLocal<Long> bound = new ThreadLocal<>();
+
+    private Trace() {
+    }
+
+    /**
+     * Starts an invocation: joins the caller's trace, or starts one if there
+     * is none, and takes the earlier of the caller's deadline and the
+     * function's own timeout.
+     *
+     * @param headers request headers in any case, or null.
+     * @param context the invocation's context, or null outside Lambda.
+     */
+    public static synchronized void begin(Map<String, ?> headers, Context context) {
+        Map<String, String> lower = new HashMap<>();
+        if (headers != null) {
+            headers.forEach((name, value) -> {
+                if (value != null) {
+                    lower.put(name.toLowerCase(Locale.ROOT), value.toString());
+                }
+            });
+        }
+        invocation++;
+        startNanos = System.nanoTime();
+        spans.clear();
+        spanId = newId(8);
+        parentSpanId = null;
+        traceId = newId(16);
+        String[] parent = lower.getOrDefault(TRACEPARENT, "").split("-");
+        if (parent.length == 4 && parent[1].length() == 32 && parent[2].length() == 16) {
+            traceId = parent[1];
+            parentSpanId = parent[2];
+        }
+        deadlineMillis = context == null
+                ? Long.MAX_VALUE
+                : System.currentTimeMillis() + context.getRemainingTimeInMillis();
+        try {
+            deadlineMillis = Math.min(deadlineMillis, Long.parseLong(lower.getOrDefault(DEADLINE, "")));
+        } catch (NumberFormatException ex) {
+            // No deadline from the caller
+        }
+        debug = !lower.getOrDefault(DEBUG, "").isEmpty();
+    }
+
+    public static synchronized String traceId() {
+        return traceId;
+    }
+
+    /**
+     * Whether the request asked for the "trace" section.
+     */
+    public static synchronized boolean debug() {
+        return debug;
+    }
+
+    /**
+     * Time left before the deadline; zero once it has passed.
+     */
+    public static synchronized Duration remaining() {
+        if (deadlineMillis == Long.MAX_VALUE) {
+            return Duration.ofMillis(Long.MAX_VALUE);
+        }
+        return Duration.ofMillis(Math.max(0, deadlineMillis - System.currentTimeMillis()));
+    }
+
+    public static boolean expired() {
+        return remaining().isZero();
+    }
+
+    /**
+     * Call before work that is wasted if the caller has given up, e.g. an S3
+     * write or a database statement.
+     *
+     * @throws DeadlineExceeded if the deadline has passed.
+     */
+    public static synchronized void checkDeadline() {
+        long late = System.currentTimeMillis() - deadlineMillis;
+        if (deadlineMillis != Long.MAX_VALUE && late >= 0) {
+            throw new DeadlineExceeded(late);
+        }
+    }
+
+    /**
+     * Headers for a call to another function, to send as the "headers" of
+     * its payload.
+     *
+     * @param timeout how long this hop waits for the call; the callee's
+     * deadline is the earlier of that and this hop's own. Null for a call
+     * nobody waits for, which then carries no deadline.
+     */
+    public static synchronized JSONObject headers(Duration timeout) {
+        JSONObject headers = new JSONObject().put(TRACEPARENT, "00-" + traceId + "-" + spanId + "-01");
+        if (timeout != null) {
+            long deadline = Math.min(deadlineMillis, System.currentTimeMillis() + timeout.toMillis());
+            if (deadline != Long.MAX_VALUE) {
+                headers.put(DEADLINE, Long.toString(deadline));
+            }
+        }
+        return headers;
+    }
+
+    /**
+     * Adds the time since startNanos, a System.nanoTime() reading, to the
+     * span called name.
+     */
+    public static void span(String name, long startNanos) {
+        long endNanos = System.nanoTime();
+        add(name, 1, (endNanos - startNanos) / (double) TimeUnit.MILLISECONDS.toNanos(1), startNanos);
+    }
+
+    /**
+     * Wraps executor so that the spans of tasks run on it count toward the
+     * invocation calling bind, and are dropped once another has begun: the
+     * Server-Timing they belong in has been sent.
+     */
+    public static Executor bind(Executor executor) {
+        long owner;
+        synchronized (Trace.class) {
+            owner = bound.get() != null ? bound.get() : invocation;
+        }
+        return task -> executor.execute(() -> {
+            Long previous = bound.get();
+            bound.set(owner);
+            try {
+                task.run();
+            } finally {
+                bound.set(previous);
+            }
+        });
+    }
+
+    /**
+     * Adds the spans of a callee's Server-Timing header, as "callee.span".
+     * Entries that do not parse are skipped.
+     */
+    public static void remote(String callee, String serverTiming) {
+        if (serverTiming == null) {
+            return;
+        }
+        for (String entry : serverTiming.split(",")) {
+            String[] parts = entry.trim().split(";");
+            double millis = -1;
+            int count = 1;
+            for (int i = 1; i < parts.length; i++) {
+                String part = parts[i].trim();
+                try {
+                    if (part.startsWith("dur=")) {
+                        millis = Double.parseDouble(part.substring(4));
+                    } else if (part.startsWith("desc=")) {
+                        String desc = part.substring(5).replace("\"", "");
+                        if (desc.endsWith("x")) {
+                            count = Integer.parseInt(desc.substring(0, desc.length() - 1));
+                        }
+                    }
+                } catch (NumberFormatException ex) {
+                    millis = -1;
+                }
+            }
+            if (!parts[0].isBlank() && millis >= 0) {
+                add(callee + "." + parts[0].trim(), count, millis, null);
+            }
+        }
+    }
+
+    /**
+     * This hop's spans and its total so far, as a Server-Timing header value,
+     * e.g. "S3.PutObject;dur=41.2, jdbc.insert;dur=12.0;desc=\"2x\", total;dur=80.5".
+     */
+    public static synchronized String serverTiming() {
+        StringBuilder header = new StringBuilder();
+        spans.forEach((name, span) -> {
+            header.append(name).append(";dur=").append(format(span.millis));
+            if (span.count > 1) {
+                header.append(";desc=\"").append(span.count).append("x\"");
+            }
+            header.append(", ");
+        });
+        return header.append("total;dur=").append(format(millisSince(startNanos))).toString();
+    }
+
+    /**
+     * Copy of headers with Server-Timing added.
+     *
+     * @param headers response headers, or null.
+     */
+    public static Map<String, String> withServerTiming(Map<String, String> headers) {
+        Map<String, String> timed = headers == null ? new LinkedHashMap<>() : new LinkedHashMap<>(headers);
+        timed.put(SERVER_TIMING, serverTiming());
+        return timed;
+    }
+
+    /**
+     * Ends an invocation's response: adds Server-Timing and, if the request
+     * asked for it and the body is a JSON object, the "trace" section.
+     */
+    public static APIGatewayProxyResponseEvent finish(APIGatewayProxyResponseEvent response) {
+        if (debug() && response.getBody() != null && response.getBody().startsWith("{")) {
+            try {
+                response.setBody(new JSONObject(response.getBody()).put("trace", toJSON()).toString());
+            } catch (JSONException ex) {
+                // Not JSON after all; the header still carries the spans
+            }
+        }
+        response.setHeaders(withServerTiming(response.getHeaders()));
+        return response;
+    }
+
+    /**
+     * 504 for a request that arrived after its deadline.
+     */
+    public static APIGatewayProxyResponseEvent deadlineExceeded() {
+        return new APIGatewayProxyResponseEvent()
+                .withStatusCode(504)
+                .withHeaders(Map.of("Content-Type", "application/json"))
+                .withBody(new JSONObject().put("message", "Deadline exceeded").toString())
+                .withIsBase64Encoded(false);
+    }
+
+    /**
+     * The "trace" section: ids, time left, and every span with its count,
+     * its total and, for this hop's own spans, when the first one started.
+     */
+    public static synchronized JSONObject toJSON() {
+        JSONArray spanArray = new JSONArray();
+        spans.forEach((name, span) -> {
+            JSONObject json = new JSONObject()
+                    .put("name", name)
+                    .put("count", span.count)
+                    .put("ms", span.millis);
+            if (span.startNanos != null) {
+                json.put("startMs", millisSince(startNanos) - millisSince(span.startNanos));
+            }
+            spanArray.put(json);
+        });
+        JSONObject trace = new JSONObject()
+                .put("traceId", traceId)
+                .put("spanId", spanId)
+                .put("totalMs", millisSince(startNanos))
+                .put("spans", spanArray);
+        if (parentSpanId != null) {
+            trace.put("parentSpanId", parentSpanId);
+        }
+        if (deadlineMillis != Long.MAX_VALUE) {
+            trace.put("deadline", deadlineMillis);
+        }
+        return trace;
+    }
+
+    private static synchronized void add(String name, int count, double millis, Long startNanos) {
+        if (bound.get() != null && bound.get() != invocation) {
+            return;
+        }
+        Span span = spans.get(name);
+        if (span == null) {
+            if (spans.size() == MAX_SPANS) {
+                return;
+            }
+            span = new Span(startNanos);
+            spans.put(name, span);
+        }
+        span.count += count;
+        span.millis += millis;
+    }
+
+    private static double millisSince(long nanos) {
+        return (System.nanoTime() - nanos) / (double) TimeUnit.MILLISECONDS.toNanos(1);
+    }
+
+    private static String format(double millis) {
+        return String.format(Locale.ROOT, "%.1f", millis);
+    }
+
+    private static String newId(int bytes) {
+        byte[] id = new byte[bytes];
+        ThreadLocalRandom.current().nextBytes(id);
+        return HexFormat.of().formatHex(id);
+    }
+
+    // Calls sharing a name, summed
+    private static final class Span {
+
+        // When the first one started; null for a callee's span
+        private final Long startNanos;
+
+        private int count;
+
+        private double millis;
+
+        Span(Long startNanos) {
+            this.startNanos = startNanos;
+        }
+    }
+}
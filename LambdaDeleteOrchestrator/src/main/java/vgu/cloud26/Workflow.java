@@ -0,0 +1,530 @@
+/*
+Class: Workflow
+Description: The steps of a request as a DAG. Every step starts as soon as the steps it depends on have finished, with its own timeout, retries and optional compensation. The first step to fail cancels the steps still running and compensates the ones that started, each once its last attempt has settled or timed out, with its step's own timeout rather than one capped by the deadline. A step can declare failures that leave its outcome unknown, such as a timed-out insert that may still have committed; such a failure compensates nothing, since undoing the other steps could leave its write behind without them. Every run records when each step started and finished, and the critical path through them, which Timings.recordMetrics() turns into metrics.
+*/
+
+package vgu.cloud26;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.function.UnaryOperator;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+public final class Workflow {
+
+    /**
+     * Starts one attempt of a step.
+     */
+    @FunctionalInterface
+    public interface Action {
+
+        /**
+         * @param inputs outputs of the steps this one depends on, by step
+         * name. A compensation gets the output of the step it undoes, if it
+         * finished.
+         * @param timeout time after which the attempt must be abandoned. A
+         * compensation gets its step's own timeout, not capped like the
+         * step's attempts: it usually runs once the time is nearly up, and
+         * should hand the undo off rather than let the deadline stop it.
+         * @return the step's output. Cancelling it must abandon the work.
+         */
+        CompletableFuture<String> start(Map<String, String> inputs, Duration timeout);
+    }
+
+    /**
+     * How often a failed step is attempted, and how long to wait in between.
+     * Only for steps that are safe to repeat.
+     */
+    public record Retry(int maxAttempts, Duration backoff) {
+
+        public static final Retry NONE = new Retry(1, Duration.ZERO);
+
+        /**
+         * Wait before the given attempt: a random time up to backoff,
+         * doubled for every earlier retry.
+         */
+        Duration delayBefore(int attempt) {
+            long ceiling = backoff.toMillis() << Math.min(attempt - 2, 10);
+            return Duration.ofMillis(ceiling <= 0 ? 0 : ThreadLocalRandom.current().nextLong(ceiling + 1));
+        }
+    }
+
+    /**
+     * One node of the DAG.
+     *
+     * @param dependsOn steps that must finish first; their outputs are the
+     * action's inputs.
+     * @param compensation undoes the step when a later one fails; null if
+     * it cannot or need not be undone.
+     * @param outcomeUnknown true for a failure after which the step's write
+     * may or may not have happened; null if every failure means it did not.
+     */
+    public record Step(String name, List<String> dependsOn, Duration timeout, Retry retry, Action action,
+            Action compensation, Predicate<Throwable> outcomeUnknown) {
+
+        public static Step of(String name, Duration timeout, Action action) {
+            return new Step(name, List.of(), timeout, Retry.NONE, action, null, null);
+        }
+
+        public Step after(String... stepNames) {
+            return new Step(name, List.of(stepNames), timeout, retry, action, compensation, outcomeUnknown);
+        }
+
+        public Step retry(Retry policy) {
+            return new Step(name, dependsOn, timeout, policy, action, compensation, outcomeUnknown);
+        }
+
+        public Step compensate(Action undo) {
+            return new Step(name, dependsOn, timeout, retry, action, undo, outcomeUnknown);
+        }
+
+        public Step outcomeUnknownIf(Predicate<Throwable> failure) {
+            return new Step(name, dependsOn, timeout, retry, action, compensation, failure);
+        }
+    }
+
+    /**
+     * When one step ran, in milliseconds from the start of the run.
+     *
+     * @param status "done", "failed" or "cancelled".
+     */
+    public record Timing(String step, String status, int attempts, long startMillis, long endMillis) {
+
+        public long millis() {
+            return endMillis - startMillis;
+        }
+    }
+
+    /**
+     * Every step that started, in the order they were declared, and the
+     * chain of dependencies that decided how long the run took.
+     */
+    public record Timings(long totalMillis, List<Timing> steps, List<String> criticalPath) {
+
+        public JSONObject toJSON() {
+            JSONArray stepArray = new JSONArray();
+            for (Timing timing : steps) {
+                stepArray.put(new JSONObject()
+                        .put("step", timing.step())
+                        .put("status", timing.status())
+                        .put("attempts", timing.attempts())
+                        .put("start", timing.startMillis())
+                        .put("ms", timing.millis()));
+            }
+            return new JSONObject()
+                    .put("totalMs", totalMillis)
+                    .put("steps", stepArray)
+                    .put("criticalPath", criticalPath);
+        }
+
+        /**
+         * Records WorkflowDuration, and StepDuration by Step for every step
+         * that started, in Metrics.
+         */
+        public void recordMetrics() {
+            Metrics.record("WorkflowDuration", totalMillis, Metrics.Unit.MILLISECONDS);
+            for (Timing timing : steps) {
+                Metrics.record("StepDuration", timing.millis(), Metrics.Unit.MILLISECONDS, "Step", timing.step());
+            }
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder line = new StringBuilder().append(totalMillis).append(" ms, critical path ");
+            line.append(String.join(" > ", criticalPath)).append(";");
+            for (Timing timing : steps) {
+                line.append(' ').append(timing.step()).append('=').append(timing.millis()).append("ms");
+                if (!timing.status().equals("done") || timing.attempts() > 1) {
+                    line.append('(').append(timing.status()).append(", ").append(timing.attempts())
+                            .append(timing.attempts() == 1 ? " attempt)" : " attempts)");
+                }
+            }
+            return line.toString();
+        }
+    }
+
+    /**
+     * Outputs of a run that succeeded, by step name.
+     */
+    public record Result(Map<String, String> outputs, Timings timings) {
+
+        public String output(String step) {
+            return outputs.get(step);
+        }
+    }
+
+    /**
+     * A run stopped by a step that failed after all its attempts. Steps that
+     * started were compensated before this is thrown, unless the failure
+     * left the outcome unknown.
+     */
+    public static final class Failed extends RuntimeException {
+
+        private static final long serialVersionUID = 1L;
+
+        private final String step;
+
+        private final boolean outcomeUnknown;
+
+        // For the handler that caught it; not serialized, as Timings is not Serializable
+        private final transient List<String> compensated;
+
+        private final transient List<String> notCompensated;
+
+        private final transient Timings timings;
+
+        Failed(String step, Throwable cause, boolean outcomeUnknown, List<String> compensated,
+                List<String> notCompensated, Timings timings) {
+            super(step + ": " + cause.getMessage(), cause);
+            this.step = step;
+            this.outcomeUnknown = outcomeUnknown;
+            this.compensated = compensated;
+            this.notCompensated = notCompensated;
+            this.timings = timings;
+        }
+
+        public String step() {
+            return step;
+        }
+
+        /**
+         * Whether the failed step may still have done its write, see
+         * Step.outcomeUnknownIf. Nothing was compensated then.
+         */
+        public boolean outcomeUnknown() {
+            return outcomeUnknown;
+        }
+
+        /**
+         * Steps whose compensation succeeded.
+         */
+        public List<String> compensated() {
+            return compensated;
+        }
+
+        /**
+         * Steps with a compensation that failed or could not be started:
+         * their writes are still there.
+         */
+        public List<String> notCompensated() {
+            return notCompensated;
+        }
+
+        public Timings timings() {
+            return timings;
+        }
+    }
+
+    private final String name;
+
+    private final List<Step> steps;
+
+    private Workflow(String name, List<Step> steps) {
+        this.name = name;
+        this.steps = steps;
+    }
+
+    /**
+     * @param steps in any order in which every step comes after the steps
+     * it depends on, which also rules out cycles.
+     * @throws IllegalArgumentException for a repeated name or a dependency
+     * on a step not declared before.
+     */
+    public static Workflow of(String name, List<Step> steps) {
+        Set<String> declared = new HashSet<>();
+        for (Step step : steps) {
+            for (String dependency : step.dependsOn()) {
+                if (!declared.contains(dependency)) {
+                    throw new IllegalArgumentException(name + ": step '" + step.name()
+                            + "' depends on '" + dependency + "', which is not declared before it");
+                }
+            }
+            if (!declared.add(step.name())) {
+                throw new IllegalArgumentException(name + ": step '" + step.name() + "' is declared twice");
+            }
+        }
+        return new Workflow(name, List.copyOf(steps));
+    }
+
+    public static Workflow of(String name, Step... steps) {
+        return of(name, Arrays.asList(steps));
+    }
+
+    public String name() {
+        return name;
+    }
+
+    /**
+     * Runs every step and waits for them.
+     *
+     * @param timeouts applied to each step's timeout before every attempt,
+     * e.g. to cap it at the time the function has left.
+     * @throws Failed when a step fails, after compensating.
+     */
+    public Result run(UnaryOperator<Duration> timeouts) {
+        return new Execution(timeouts).run();
+    }
+
+    // State of one step within a run
+    private static final class StepRun {
+
+        private final Step step;
+
+        private final CompletableFuture<String> result = new CompletableFuture<>();
+
+        private volatile CompletableFuture<String> attempt;
+
+        // System.nanoTime() at which the current attempt's timeout runs out
+        private volatile long attemptDeadlineNanos;
+
+        private volatile int attempts;
+
+        private volatile long startNanos;
+
+        private volatile long endNanos;
+
+        private volatile String status;
+
+        StepRun(Step step) {
+            this.step = step;
+        }
+    }
+
+    private final class Execution {
+
+        private final UnaryOperator<Duration> timeouts;
+
+        private final Map<String, StepRun> runs = new LinkedHashMap<>();
+
+        private final AtomicReference<StepRun> failed = new AtomicReference<>();
+
+        private final long startNanos = System.nanoTime();
+
+        Execution(UnaryOperator<Duration> timeouts) {
+            this.timeouts = timeouts;
+        }
+
+        Result run() {
+            // Every run is in the map before any callback can look one up from another thread
+            for (Step step : steps) {
+                runs.put(step.name(), new StepRun(step));
+            }
+            for (StepRun stepRun : runs.values()) {
+                Step step = stepRun.step;
+                CompletableFuture<?>[] dependencies = step.dependsOn().stream()
+                        .map(dependency -> runs.get(dependency).result)
+                        .toArray(CompletableFuture[]::new);
+                CompletableFuture.allOf(dependencies).whenComplete((ignored, ex) -> {
+                    if (ex != null) {
+                        // A dependency failed or was cancelled; this step never starts
+                        stepRun.result.cancel(false);
+                    } else {
+                        Map<String, String> inputs = new HashMap<>();
+                        for (String dependency : step.dependsOn()) {
+                            inputs.put(dependency, runs.get(dependency).result.join());
+                        }
+                        start(stepRun, inputs, 1);
+                    }
+                });
+            }
+
+            CompletableFuture<Void> firstFailure = new CompletableFuture<>();
+            for (StepRun stepRun : runs.values()) {
+                stepRun.result.whenComplete((output, ex) -> {
+                    if (ex != null) {
+                        firstFailure.completeExceptionally(ex);
+                    }
+                });
+            }
+            try {
+                CompletableFuture.anyOf(CompletableFuture.allOf(runs.values().stream()
+                        .map(stepRun -> stepRun.result)
+                        .toArray(CompletableFuture[]::new)), firstFailure).join();
+            } catch (CompletionException | CancellationException ex) {
+                throw fail();
+            }
+
+            Map<String, String> outputs = new LinkedHashMap<>();
+            runs.forEach((stepName, stepRun) -> outputs.put(stepName, stepRun.result.join()));
+            return new Result(outputs, timings());
+        }
+
+        private void start(StepRun stepRun, Map<String, String> inputs, int attempt) {
+            if (stepRun.result.isDone()) {
+                // Cancelled while waiting to retry
+                return;
+            }
+            if (attempt == 1) {
+                stepRun.startNanos = System.nanoTime();
+            }
+            stepRun.attempts = attempt;
+            Duration timeout = timeouts.apply(stepRun.step.timeout());
+            stepRun.attemptDeadlineNanos = System.nanoTime() + timeout.toNanos();
+            CompletableFuture<String> call;
+            try {
+                call = stepRun.step.action().start(inputs, timeout);
+            } catch (RuntimeException ex) {
+                call = CompletableFuture.failedFuture(ex);
+            }
+            stepRun.attempt = call;
+            call.whenComplete((output, ex) -> {
+                if (stepRun.result.isDone()) {
+                    // Cancelled by another step's failure; compensate() may still wait for this attempt
+                } else if (ex == null) {
+                    finish(stepRun, "done");
+                    stepRun.result.complete(output);
+                } else if (attempt < stepRun.step.retry().maxAttempts()) {
+                    CompletableFuture.runAsync(() -> start(stepRun, inputs, attempt + 1),
+                            CompletableFuture.delayedExecutor(
+                                    stepRun.step.retry().delayBefore(attempt + 1).toMillis(), TimeUnit.MILLISECONDS));
+                } else {
+                    finish(stepRun, "failed");
+                    failed.compareAndSet(null, stepRun);
+                    stepRun.result.completeExceptionally(ex);
+                }
+            });
+        }
+
+        private void finish(StepRun stepRun, String status) {
+            stepRun.endNanos = System.nanoTime();
+            stepRun.status = status;
+        }
+
+        // Cancels what still runs, compensates what started, and reports the step that failed
+        private Failed fail() {
+            StepRun failedRun = failed.get();
+            Throwable cause = failedRun != null
+                    ? unwrap(failedRun.result.handle((output, ex) -> ex).join())
+                    : new IllegalStateException("cancelled");
+            boolean outcomeUnknown = failedRun != null && failedRun.step.outcomeUnknown() != null
+                    && failedRun.step.outcomeUnknown().test(cause);
+            for (StepRun stepRun : runs.values()) {
+                if (stepRun.result.cancel(false)) {
+                    CompletableFuture<String> attempt = stepRun.attempt;
+                    if (attempt != null) {
+                        finish(stepRun, "cancelled");
+                        // An attempt to be compensated is left to settle first, see compensate()
+                        if (stepRun.step.compensation() == null || outcomeUnknown) {
+                            attempt.cancel(true);
+                        }
+                    }
+                }
+            }
+            List<String> compensated = new ArrayList<>();
+            List<String> notCompensated = new ArrayList<>();
+            if (!outcomeUnknown) {
+                compensate(failedRun, compensated, notCompensated);
+            }
+            return new Failed(failedRun != null ? failedRun.step.name() : name, cause, outcomeUnknown, compensated,
+                    notCompensated, timings());
+        }
+
+        /**
+         * Runs the compensation of every other step that started, all at
+         * once: the steps that need one undo independent writes. A step
+         * cancelled mid-flight is compensated too, since its write may
+         * still have happened. Cancelling the attempt's future does not stop
+         * a call already sent, so its compensation waits until the attempt
+         * settles or its timeout runs out; by then the callee is past the
+         * deadline it was given and starts no more writes, and an undo sent
+         * earlier could be overtaken by the write it undoes. Each
+         * compensation gets its step's own timeout, see Action.
+         */
+        private void compensate(StepRun failedRun, List<String> compensated, List<String> notCompensated) {
+            Map<String, CompletableFuture<String>> undos = new LinkedHashMap<>();
+            for (StepRun stepRun : runs.values()) {
+                if (stepRun == failedRun || stepRun.attempt == null || stepRun.step.compensation() == null) {
+                    continue;
+                }
+                CompletableFuture<String> attempt = stepRun.attempt;
+                long remainingNanos = Math.max(0, stepRun.attemptDeadlineNanos - System.nanoTime());
+                CompletableFuture<String> undo = attempt
+                        .handle((output, ex) -> ex == null ? output : null)
+                        .completeOnTimeout(null, remainingNanos, TimeUnit.NANOSECONDS)
+                        .thenCompose(output -> {
+                            attempt.cancel(true);
+                            Map<String, String> inputs = new HashMap<>();
+                            if (output != null) {
+                                inputs.put(stepRun.step.name(), output);
+                            }
+                            try {
+                                return stepRun.step.compensation().start(inputs, stepRun.step.timeout());
+                            } catch (RuntimeException ex) {
+                                return CompletableFuture.failedFuture(ex);
+                            }
+                        });
+                undos.put(stepRun.step.name(), undo);
+            }
+            undos.forEach((stepName, undo) -> {
+                if (undo.handle((output, ex) -> ex == null).join()) {
+                    compensated.add(stepName);
+                } else {
+                    notCompensated.add(stepName);
+                }
+            });
+        }
+
+        private Timings timings() {
+            long now = System.nanoTime();
+            List<Timing> timingList = new ArrayList<>();
+            Map<String, Timing> byStep = new HashMap<>();
+            for (StepRun stepRun : runs.values()) {
+                if (stepRun.attempt == null) {
+                    continue;
+                }
+                long end = stepRun.status != null ? stepRun.endNanos : now;
+                Timing timing = new Timing(stepRun.step.name(),
+                        stepRun.status != null ? stepRun.status : "running",
+                        stepRun.attempts, millisSinceStart(stepRun.startNanos), millisSinceStart(end));
+                timingList.add(timing);
+                byStep.put(timing.step(), timing);
+            }
+            return new Timings(millisSinceStart(now), timingList, criticalPath(byStep));
+        }
+
+        // From the step that ended last, back through the dependency that ended last
+        private List<String> criticalPath(Map<String, Timing> byStep) {
+            Function<List<String>, Timing> latest = stepNames -> stepNames.stream()
+                    .map(byStep::get)
+                    .filter(timing -> timing != null)
+                    .max((a, b) -> Long.compare(a.endMillis(), b.endMillis()))
+                    .orElse(null);
+            List<String> path = new ArrayList<>();
+            Timing current = latest.apply(new ArrayList<>(byStep.keySet()));
+            while (current != null) {
+                path.add(0, current.step());
+                current = latest.apply(runs.get(current.step()).step.dependsOn());
+            }
+            return path;
+        }
+
+        private long millisSinceStart(long nanos) {
+            return TimeUnit.NANOSECONDS.toMillis(nanos - startNanos);
+        }
+    }
+
+    private static Throwable unwrap(Throwable ex) {
+        Throwable cause = ex;
+        while (cause instanceof CompletionException && cause.getCause() != null) {
+            cause = cause.getCause();
+        }
+        return cause;
+    }
+}
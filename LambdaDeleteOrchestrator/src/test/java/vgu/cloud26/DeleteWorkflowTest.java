@@ -0,0 +1,46 @@
+package vgu.cloud26;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.List;
+import java.util.function.UnaryOperator;
+
+import org.junit.Test;
+
+public class DeleteWorkflowTest {
+
+    private static Workflow deleteWorkflow(SimulatedTransport transport) {
+        LambdaDeleteOrchestrator orchestrator = new LambdaDeleteOrchestrator(new LambdaInvoker(transport),
+                StepModes.allRemote());
+        return orchestrator.deleteWorkflow("simulated.jpeg");
+    }
+
+    @Test
+    public void everyDeleteRunsAtOnce() {
+        SimulatedTransport transport = SimulatedTransport.parse("LambdaDeleteObject=300",
+                "LambdaDeleteDescriptionDB=300");
+
+        Workflow.Result result = deleteWorkflow(transport).run(UnaryOperator.identity());
+
+        // The original, the description and every rendition
+        assertEquals(2 + Renditions.keysFor("simulated.jpeg").size(), result.timings().steps().size());
+        assertEquals(2 + Renditions.keysFor("simulated.jpeg").size(), transport.calls().size());
+        assertTrue(result.timings().toString(), result.timings().totalMillis() < 600);
+    }
+
+    @Test
+    public void failedDeleteIsRetriedOnceAndNothingIsCompensated() {
+        SimulatedTransport transport = SimulatedTransport.parse("LambdaDeleteDescriptionDB=fail:50");
+
+        try {
+            deleteWorkflow(transport).run(UnaryOperator.identity());
+            fail("expected Workflow.Failed");
+        } catch (Workflow.Failed e) {
+            assertEquals("description", e.step());
+            assertEquals(List.of(), e.compensated());
+        }
+        assertEquals(2, transport.calls("LambdaDeleteDescriptionDB").size());
+    }
+}
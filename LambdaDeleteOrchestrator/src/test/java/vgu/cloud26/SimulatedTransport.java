@@ -0,0 +1,102 @@
+/*
+Class: SimulatedTransport
+Description: A LambdaInvoker.Transport that answers every call itself after a set delay, so a workflow can be run without AWS to see how step latencies and failures play out. Used by the workflow tests.
+*/
+
+package vgu.cloud26;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.json.JSONObject;
+
+public final class SimulatedTransport implements LambdaInvoker.Transport {
+
+    private static final long DEFAULT_LATENCY_MILLIS = 100;
+
+    private final Map<String, Long> latencies;
+
+    private final Set<String> failing;
+
+    /**
+     * One call, made startMillis after the transport was created.
+     */
+    public record Call(long startMillis, String functionName) {
+
+        @Override
+        public String toString() {
+            return startMillis + " ms " + functionName;
+        }
+    }
+
+    private final List<Call> calls = Collections.synchronizedList(new ArrayList<>());
+
+    private final long startNanos = System.nanoTime();
+
+    SimulatedTransport(Map<String, Long> latencies, Set<String> failing) {
+        this.latencies = Map.copyOf(latencies);
+        this.failing = Set.copyOf(failing);
+    }
+
+    /**
+     * Transport from arguments like "LambdaImageResizer=800" (answer after
+     * 800 ms) or "LambdaUploadDescriptionDB=fail:50" (answer with status 500
+     * after 50 ms). Functions not named answer after 100 ms.
+     */
+    public static SimulatedTransport parse(String... specs) {
+        Map<String, Long> latencies = new HashMap<>();
+        Set<String> failing = new HashSet<>();
+        for (String spec : specs) {
+            String[] parts = spec.split("=", 2);
+            if (parts.length != 2) {
+                throw new IllegalArgumentException("Expected Function=millis or Function=fail[:millis], got '"
+                        + spec + "'");
+            }
+            String behaviour = parts[1];
+            if (behaviour.startsWith("fail")) {
+                failing.add(parts[0]);
+                behaviour = behaviour.startsWith("fail:") ? behaviour.substring("fail:".length()) : "";
+            }
+            if (!behaviour.isEmpty()) {
+                latencies.put(parts[0], Long.parseLong(behaviour));
+            }
+        }
+        return new SimulatedTransport(latencies, failing);
+    }
+
+    @Override
+    public CompletableFuture<String> invoke(String functionName, String payload) {
+        calls.add(new Call(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos), functionName));
+        boolean fails = failing.contains(functionName);
+        String response = new JSONObject()
+                .put("statusCode", fails ? 500 : 200)
+                .put("body", fails ? "simulated failure" : "{}")
+                .toString();
+        long latency = latencies.getOrDefault(functionName, DEFAULT_LATENCY_MILLIS);
+        return CompletableFuture.supplyAsync(() -> response,
+                CompletableFuture.delayedExecutor(latency, TimeUnit.MILLISECONDS));
+    }
+
+    /**
+     * Every call made so far, in the order they were made.
+     */
+    public List<Call> calls() {
+        synchronized (calls) {
+            return List.copyOf(calls);
+        }
+    }
+
+    /**
+     * The calls made so far to one function.
+     */
+    public List<Call> calls(String functionName) {
+        return calls().stream().filter(call -> call.functionName().equals(functionName)).toList();
+    }
+}
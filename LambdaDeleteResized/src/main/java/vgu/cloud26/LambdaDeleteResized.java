@@ -9,8 +9,9 @@ import java.util.Base64;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
+import org.crac.Core;
+import org.crac.Resource;
 import org.json.JSONObject;
-import software.amazon.awssdk.regions.Region;
 import software.amazon.awssdk.services.s3.S3Client;
 import software.amazon.awssdk.services.s3.model.DeleteObjectRequest;
 import com.amazonaws.services.lambda.runtime.Context;
@@ -21,7 +22,11 @@ import com.amazonaws.services.lambda.runtime.events.models.s3.S3EventNotificatio
 import com.amazonaws.services.lambda.runtime.events.APIGatewayProxyRequestEvent;
 import com.amazonaws.services.lambda.runtime.events.APIGatewayProxyResponseEvent;
 
-public class LambdaDeleteResized implements RequestHandler<S3Event, String> {
+public class LambdaDeleteResized implements RequestHandler<S3Event, String>, Resource {
+
+        // Built once per execution environment and reused by every warm invocation
+        private final S3Client s3Client = AwsClients.build(S3Client.builder());
+
         private static final float MAX_DIMENSION = 100;
         private final String REGEX = ".*\\.([^\\.]*)";
         private final String JPG_TYPE = "jpg";
@@ -30,8 +35,38 @@ public class LambdaDeleteResized implements RequestHandler<S3Event, String> {
         private final String PNG_TYPE = "png";
         private final String PNG_MIME = "image/png";
 
+        public LambdaDeleteResized() {
+                Core.getGlobalContext().register(this);
+        }
+
+        @Override
+        public void beforeCheckpoint(org.crac.Context<? extends Resource> context) {
+                Pattern.compile(REGEX).matcher("priming.jpeg").matches();
+                DeleteObjectRequest.builder()
+                                .bucket("resized-cloud-public-mpg")
+                                .key("resized-priming.jpeg")
+                                .build();
+        }
+
+        @Override
+        public void afterRestore(org.crac.Context<? extends Resource> context) {
+                Metrics.restored();
+                // The S3 client resolves credentials and connects on first use
+        }
+
         @Override
         public String handleRequest(S3Event s3event, Context context) {
+                Metrics.begin();
+                // Started by S3, so each invocation is a new trace
+                Trace.begin(null, context);
+                try {
+                        return handle(s3event, context);
+                } finally {
+                        Metrics.flush(context);
+                }
+        }
+
+        private String handle(S3Event s3event, Context context) {
                 
 
                 LambdaLogger logger = context.getLogger();
@@ -41,12 +76,6 @@ public class LambdaDeleteResized implements RequestHandler<S3Event, String> {
                 // Object key may have spaces or unicode non-ASCII characters.
                 String srcKey = record.getS3().getObject().getUrlDecodedKey();
 
-                // Check if this is a fake EventBridge trigger
-                if ("EventBridgeInvoke".equals(srcKey)) {
-                        logger.log("Invoked by EventBridge, no action taken.");
-                        return "No action taken for EventBridge invocation.";
-                }
-
                 // String dstBucket = "lab-source-images-resized";
                 String dstBucket = "resized-" + srcBucket;
                 String dstKey = "resized-" + srcKey;
@@ -69,10 +98,6 @@ public class LambdaDeleteResized implements RequestHandler<S3Event, String> {
                                 .key(dstKey)
                                 .build();
 
-                S3Client s3Client = S3Client.builder()
-                                .region(Region.US_EAST_1)
-                                .build();
-
                 try {
                         s3Client.deleteObject(deleteObjectRequest);
                         context.getLogger().log(dstKey + " was deleted");
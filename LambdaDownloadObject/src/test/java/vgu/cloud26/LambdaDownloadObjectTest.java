@@ -0,0 +1,76 @@
+package vgu.cloud26;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.amazonaws.services.lambda.runtime.events.APIGatewayProxyRequestEvent;
+import com.amazonaws.services.lambda.runtime.events.APIGatewayProxyResponseEvent;
+
+import java.io.IOException;
+import java.util.List;
+
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import software.amazon.awssdk.auth.credentials.AwsBasicCredentials;
+import software.amazon.awssdk.auth.credentials.StaticCredentialsProvider;
+
+public class LambdaDownloadObjectTest {
+
+    private static final String BUCKET = "cloud-public-mpg";
+
+    private LocalS3Server s3;
+
+    private LambdaDownloadObject handler;
+
+    @Before
+    public void startS3() throws IOException {
+        s3 = new LocalS3Server();
+        AwsClients.configure(s3.endpoint(),
+                StaticCredentialsProvider.create(AwsBasicCredentials.create("test", "test")));
+        handler = new LambdaDownloadObject();
+        Metrics.restored();
+    }
+
+    @After
+    public void stopS3() {
+        s3.close();
+    }
+
+    private APIGatewayProxyResponseEvent download(String key, StubContext context) {
+        return handler.handleRequest(new APIGatewayProxyRequestEvent()
+                .withBody(new JSONObject().put("key", key).toString()), context);
+    }
+
+    @Test
+    public void downloadRecordsS3LatencyAndBytesByOperation() {
+        s3.put(BUCKET, "photo.jpg", new byte[300_000], "image/jpeg");
+        StubContext context = new StubContext("LambdaDownloadObject");
+
+        APIGatewayProxyResponseEvent response = download("photo.jpg", context);
+
+        assertEquals(200, (int) response.getStatusCode());
+        assertEquals(1, context.metric("S3Latency", "Operation", "HeadObject").size());
+        List<Double> getLatency = context.metric("S3Latency", "Operation", "GetObject");
+        assertEquals(1, getLatency.size());
+        assertTrue(getLatency.get(0) > 0);
+        assertEquals(List.of(300_000.0), context.metric("S3BytesReceived", "Operation", "GetObject"));
+        assertEquals(List.of((double) response.getBody().length()), context.metric("ResponseBytes"));
+        assertEquals(List.of(1.0), context.metric("ColdStart"));
+        assertEquals(1, context.metric("InitDuration").size());
+    }
+
+    @Test
+    public void missingObjectIsNeverRead() {
+        download("warm-up.jpg", new StubContext("LambdaDownloadObject"));
+        StubContext context = new StubContext("LambdaDownloadObject");
+
+        download("missing.jpg", context);
+
+        assertEquals(1, context.metric("S3Latency", "Operation", "HeadObject").size());
+        assertTrue(context.metric("S3Latency", "Operation", "GetObject").isEmpty());
+        assertEquals(List.of(0.0), context.metric("ColdStart"));
+    }
+}
@@ -0,0 +1,340 @@
+/*
+Class: CircuitBreakers
+Description: A circuit breaker and a bulkhead for every function this container calls. The breaker counts failures and slow calls over a rolling window; when too many go wrong it opens, and calls are refused at once instead of each waiting out its timeout. After a pause one probe call is let through, and its outcome closes or reopens the circuit. The bulkhead caps how many calls to one function are in flight, so a stalled function cannot hold every call this container makes. State is kept per execution environment.
+Refused calls and circuits opening are recorded in Metrics as they happen; recordMetrics() adds every breaker's state and calls in flight.
+*/
+
+package vgu.cloud26;
+
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.json.JSONObject;
+
+public final class CircuitBreakers {
+
+    public enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    /**
+     * When a breaker opens and for how long, and how many calls each
+     * bulkhead lets through.
+     *
+     * @param window how far back failures and slow calls are counted.
+     * @param minCalls calls the window must hold before it can open the
+     * circuit.
+     * @param failureRate share of failed calls that opens the circuit.
+     * @param slowFraction a call is slow if it takes longer than this share
+     * of its timeout.
+     * @param slowRate share of slow calls that opens the circuit.
+     * @param openFor how long an open circuit refuses calls before a probe.
+     * @param maxInFlight calls to one function allowed in flight at once.
+     */
+    public record Settings(Duration window, int minCalls, double failureRate, double slowFraction, double slowRate,
+            Duration openFor, int maxInFlight) {
+
+        public static final Settings DEFAULT = new Settings(Duration.ofSeconds(60), 4, 0.5, 0.5, 0.8,
+                Duration.ofSeconds(15), 10);
+    }
+
+    /**
+     * A call that was not sent, because the function's circuit is open or
+     * its bulkhead is full.
+     */
+    public static final class Rejected extends RuntimeException {
+
+        private static final long serialVersionUID = 1L;
+
+        private final String functionName;
+
+        private final Duration retryAfter;
+
+        Rejected(String functionName, String reason, Duration retryAfter) {
+            super(functionName + " not called: " + reason);
+            this.functionName = functionName;
+            this.retryAfter = retryAfter;
+        }
+
+        public String functionName() {
+            return functionName;
+        }
+
+        /**
+         * When the function may be called again.
+         */
+        public Duration retryAfter() {
+            return retryAfter;
+        }
+    }
+
+    /**
+     * A call let through. Exactly one of succeeded, failed or abandoned must
+     * follow; later ones are ignored.
+     */
+    public final class Call {
+
+        private final Breaker breaker;
+
+        private final long startNanos = System.nanoTime();
+
+        private final long slowNanos;
+
+        private final boolean probe;
+
+        private final AtomicBoolean finished = new AtomicBoolean();
+
+        Call(Breaker breaker, Duration timeout, boolean probe) {
+            this.breaker = breaker;
+            this.slowNanos = (long) (timeout.toNanos() * settings.slowFraction());
+            this.probe = probe;
+        }
+
+        public void succeeded() {
+            if (finished.compareAndSet(false, true)) {
+                breaker.finish(this, false, System.nanoTime() - startNanos > slowNanos);
+            }
+        }
+
+        /**
+         * The function failed or timed out.
+         */
+        public void failed() {
+            if (finished.compareAndSet(false, true)) {
+                breaker.finish(this, true, System.nanoTime() - startNanos > slowNanos);
+            }
+        }
+
+        /**
+         * The caller gave up on the call, e.g. because another step failed;
+         * it says nothing about the function.
+         */
+        public void abandoned() {
+            if (finished.compareAndSet(false, true)) {
+                breaker.abandon(this);
+            }
+        }
+    }
+
+    // Metrics dimension naming the function called
+    private static final String TARGET = "Target";
+
+    // Time slices of the rolling window
+    private static final int BUCKETS = 12;
+
+    // How long a caller refused by a full bulkhead or a running probe should wait
+    private static final Duration BUSY_RETRY_AFTER = Duration.ofSeconds(1);
+
+    private final Settings settings;
+
+    private final Map<String, Breaker> breakers = new ConcurrentHashMap<>();
+
+    public CircuitBreakers() {
+        this(Settings.DEFAULT);
+    }
+
+    public CircuitBreakers(Settings settings) {
+        this.settings = settings;
+    }
+
+    /**
+     * Lets a call to functionName through, or refuses it.
+     *
+     * @param timeout the call's timeout; a call that takes more than
+     * Settings.slowFraction of it counts as slow.
+     * @throws Rejected if the circuit is open, a probe is already running,
+     * or maxInFlight calls are in flight.
+     */
+    public Call start(String functionName, Duration timeout) {
+        return breakers.computeIfAbsent(functionName, Breaker::new).start(timeout);
+    }
+
+    public State state(String functionName) {
+        Breaker breaker = breakers.get(functionName);
+        return breaker == null ? State.CLOSED : breaker.state();
+    }
+
+    /**
+     * Records CircuitState (0 closed, 1 half-open, 2 open) and CallsInFlight
+     * for every function called so far, by Target.
+     */
+    public void recordMetrics() {
+        breakers.forEach((functionName, breaker) -> breaker.recordMetrics());
+    }
+
+    /**
+     * Every function called so far: state, calls in flight, calls, failures
+     * and slow calls in the window, and calls refused and times opened since
+     * the container started.
+     */
+    public JSONObject toJSON() {
+        JSONObject functions = new JSONObject();
+        breakers.forEach((functionName, breaker) -> functions.put(functionName, breaker.toJSON()));
+        return functions;
+    }
+
+    private final class Breaker {
+
+        private final String functionName;
+
+        private final long bucketNanos = settings.window().toNanos() / BUCKETS;
+
+        // Per bucket: the slice it counts, and its calls, failures and slow calls
+        private final long[] slices = new long[BUCKETS];
+
+        private final int[] calls = new int[BUCKETS];
+
+        private final int[] failures = new int[BUCKETS];
+
+        private final int[] slowCalls = new int[BUCKETS];
+
+        private State state = State.CLOSED;
+
+        private long openUntilNanos;
+
+        private boolean probing;
+
+        private int inFlight;
+
+        private long rejected;
+
+        private long opened;
+
+        Breaker(String functionName) {
+            this.functionName = functionName;
+            Arrays.fill(slices, Long.MIN_VALUE);
+        }
+
+        synchronized Call start(Duration timeout) {
+            long now = System.nanoTime();
+            if (state == State.OPEN) {
+                if (now - openUntilNanos < 0) {
+                    throw reject("circuit open", Duration.ofNanos(openUntilNanos - now));
+                }
+                state = State.HALF_OPEN;
+            }
+            boolean probe = false;
+            if (state == State.HALF_OPEN) {
+                if (probing) {
+                    throw reject("circuit half-open, probe running", BUSY_RETRY_AFTER);
+                }
+                probing = true;
+                probe = true;
+            } else if (inFlight >= settings.maxInFlight()) {
+                throw reject(inFlight + " calls in flight", BUSY_RETRY_AFTER);
+            }
+            inFlight++;
+            return new Call(this, timeout, probe);
+        }
+
+        synchronized void finish(Call call, boolean failed, boolean slow) {
+            inFlight--;
+            long now = System.nanoTime();
+            int bucket = bucket(now);
+            calls[bucket]++;
+            if (failed) {
+                failures[bucket]++;
+            }
+            if (slow) {
+                slowCalls[bucket]++;
+            }
+            if (call.probe) {
+                probing = false;
+                if (failed || slow) {
+                    open(now);
+                } else {
+                    // Recovered: what went wrong before it opened no longer counts
+                    state = State.CLOSED;
+                    Arrays.fill(slices, Long.MIN_VALUE);
+                }
+                return;
+            }
+            if (state != State.CLOSED) {
+                // A call sent before the circuit opened
+                return;
+            }
+            int[] totals = totals(now);
+            if (totals[0] >= settings.minCalls()
+                    && (totals[1] >= settings.failureRate() * totals[0]
+                            || totals[2] >= settings.slowRate() * totals[0])) {
+                open(now);
+            }
+        }
+
+        synchronized void abandon(Call call) {
+            inFlight--;
+            if (call.probe) {
+                probing = false;
+            }
+        }
+
+        synchronized State state() {
+            if (state == State.OPEN && System.nanoTime() - openUntilNanos >= 0) {
+                return State.HALF_OPEN;
+            }
+            return state;
+        }
+
+        synchronized JSONObject toJSON() {
+            int[] totals = totals(System.nanoTime());
+            return new JSONObject()
+                    .put("state", state().name())
+                    .put("inFlight", inFlight)
+                    .put("calls", totals[0])
+                    .put("failures", totals[1])
+                    .put("slowCalls", totals[2])
+                    .put("rejected", rejected)
+                    .put("opened", opened);
+        }
+
+        synchronized void recordMetrics() {
+            State current = state();
+            int level = current == State.CLOSED ? 0 : current == State.HALF_OPEN ? 1 : 2;
+            Metrics.record("CircuitState", level, Metrics.Unit.NONE, TARGET, functionName);
+            Metrics.record("CallsInFlight", inFlight, Metrics.Unit.COUNT, TARGET, functionName);
+        }
+
+        private Rejected reject(String reason, Duration retryAfter) {
+            rejected++;
+            Metrics.record("CallsRejected", 1, Metrics.Unit.COUNT, TARGET, functionName);
+            return new Rejected(functionName, reason, retryAfter);
+        }
+
+        private void open(long now) {
+            state = State.OPEN;
+            openUntilNanos = now + settings.openFor().toNanos();
+            opened++;
+            Metrics.record("CircuitOpened", 1, Metrics.Unit.COUNT, TARGET, functionName);
+        }
+
+        // Bucket for now, emptied first if it still counts an older slice
+        private int bucket(long now) {
+            long slice = Math.floorDiv(now, bucketNanos);
+            int bucket = (int) Math.floorMod(slice, (long) BUCKETS);
+            if (slices[bucket] != slice) {
+                slices[bucket] = slice;
+                calls[bucket] = 0;
+                failures[bucket] = 0;
+                slowCalls[bucket] = 0;
+            }
+            return bucket;
+        }
+
+        // Calls, failures and slow calls in the window
+        private int[] totals(long now) {
+            long current = Math.floorDiv(now, bucketNanos);
+            int[] totals = new int[3];
+            for (int bucket = 0; bucket < BUCKETS; bucket++) {
+                if (slices[bucket] > current - BUCKETS) {
+                    totals[0] += calls[bucket];
+                    totals[1] += failures[bucket];
+                    totals[2] += slowCalls[bucket];
+                }
+            }
+            return totals;
+        }
+    }
+}
@@ -0,0 +1,474 @@
+/*
+Class: HedgedReads
+Description: Lambda-to-Lambda calls for reads that are safe to send twice (LambdaGetPhotosDB, LambdaDownloadObject, LambdaFetchThumbnails). If the first attempt has not answered after the HEDGE_PERCENTILE latency of recent calls, a second one is sent and whichever answers first is used. Failed attempts are retried with jittered backoff. Hedges and retries both come out of a small budget per request, so a struggling function sees at most a few extra calls. Writes must not go through here.
+Every attempt, hedges included, goes through CircuitBreakers: while a function's circuit is open or its bulkhead full, reads of it fail at once with a retryAfter instead of being sent or retried.
+Every read records InvokeDuration and InvokeResponseBytes in Metrics by Target, the function read, and each hedge or retry it sends a Hedges or Retries count. The read as a whole is a span in Trace. Callbacks run bound to the caller's invocation (Metrics.bind, Trace.bind), so a read that outlives it is not counted in the next one.
+*/
+
+package vgu.cloud26;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import software.amazon.awssdk.core.SdkBytes;
+import software.amazon.awssdk.regions.Region;
+import software.amazon.awssdk.services.lambda.LambdaAsyncClient;
+import software.amazon.awssdk.services.lambda.model.InvokeRequest;
+import software.amazon.awssdk.services.lambda.model.InvokeResponse;
+
+public final class HedgedReads {
+
+    /**
+     * Sends one payload to a function. Cancelling the returned future must
+     * abandon the call.
+     */
+    @FunctionalInterface
+    public interface Transport {
+
+        CompletableFuture<InvokeResponse> invoke(String functionName, String payload);
+    }
+
+    /**
+     * Extra attempts, hedges and retries alike, that one request may still
+     * send. Shared by every read the request makes.
+     */
+    public static final class Budget {
+
+        private final AtomicInteger remaining;
+
+        public Budget(int extraAttempts) {
+            this.remaining = new AtomicInteger(extraAttempts);
+        }
+
+        boolean tryAcquire() {
+            return remaining.getAndUpdate(left -> left > 0 ? left - 1 : 0) > 0;
+        }
+    }
+
+    // Only reads may be sent more than once
+    static final Set<String> READ_FUNCTIONS = Set.of("LambdaGetPhotosDB", "LambdaDownloadObject",
+            "LambdaFetchThumbnails");
+
+    // Metrics dimension naming the function read
+    private static final String TARGET = "Target";
+
+    private static final byte[] STATUS_CODE_KEY = "\"statusCode\"".getBytes(StandardCharsets.US_ASCII);
+
+    private static final String PERCENTILE_VARIABLE = "HEDGE_PERCENTILE";
+
+    private static final double DEFAULT_PERCENTILE = 95;
+
+    static final int DEFAULT_EXTRA_ATTEMPTS = 2;
+
+    // Recent latencies kept per function
+    private static final int WINDOW = 256;
+
+    // Below this many samples the percentile says little; FALLBACK_HEDGE_DELAY is used
+    private static final int MIN_SAMPLES = 20;
+
+    private static final Duration FALLBACK_HEDGE_DELAY = Duration.ofMillis(300);
+
+    // A hedge sooner than this mostly duplicates calls that were about to answer
+    private static final Duration MIN_HEDGE_DELAY = Duration.ofMillis(20);
+
+    private static final Duration RETRY_BACKOFF = Duration.ofMillis(50);
+
+    private final Transport transport;
+
+    private final double percentile;
+
+    private final CircuitBreakers breakers;
+
+    private final Map<String, LatencyWindow> latencies = new ConcurrentHashMap<>();
+
+    private final AtomicLong calls = new AtomicLong();
+
+    private final AtomicLong hedges = new AtomicLong();
+
+    private final AtomicLong hedgeWins = new AtomicLong();
+
+    private final AtomicLong retries = new AtomicLong();
+
+    public HedgedReads(Transport transport, double percentile) {
+        this(transport, percentile, new CircuitBreakers());
+    }
+
+    public HedgedReads(Transport transport, double percentile, CircuitBreakers breakers) {
+        if (percentile <= 0 || percentile >= 100) {
+            throw new IllegalArgumentException("Hedge percentile must be between 0 and 100, got " + percentile);
+        }
+        this.transport = transport;
+        this.percentile = percentile;
+        this.breakers = breakers;
+    }
+
+    /**
+     * Reads on LambdaAsyncClient, hedged at HEDGE_PERCENTILE (95 if unset).
+     */
+    public static HedgedReads create() {
+        LambdaAsyncClient client = LambdaAsyncClient.builder()
+                .region(Region.of("us-east-1"))
+                .build();
+        String configured = System.getenv(PERCENTILE_VARIABLE);
+        double percentile = configured == null || configured.isBlank()
+                ? DEFAULT_PERCENTILE
+                : Double.parseDouble(configured);
+        return new HedgedReads((functionName, payload) -> client.invoke(InvokeRequest.builder()
+                .functionName(functionName)
+                .invocationType("RequestResponse")
+                .payload(SdkBytes.fromUtf8String(payload))
+                .build()), percentile);
+    }
+
+    public static Budget newBudget() {
+        return new Budget(DEFAULT_EXTRA_ATTEMPTS);
+    }
+
+    /**
+     * Invokes a read function, hedging and retrying within budget.
+     *
+     * @param timeout how long the whole read may take, over all attempts.
+     * @return the first response that succeeded or failed for good: a
+     * function error raised for the request itself, such as an
+     * IllegalArgumentException, comes back as a response rather than
+     * being retried. Completes exceptionally if every attempt failed, and
+     * with CircuitBreakers.Rejected if the function's circuit breaker or
+     * bulkhead refused the read. A read with no time left is not sent and
+     * fails with Trace.DeadlineExceeded.
+     * @throws IllegalArgumentException for a function not known to be a read.
+     */
+    public CompletableFuture<InvokeResponse> invoke(String functionName, String payload, Duration timeout,
+            Budget budget) {
+        if (!READ_FUNCTIONS.contains(functionName)) {
+            throw new IllegalArgumentException(functionName + " is not a read; it must not be hedged or retried");
+        }
+        if (timeout.isZero() || timeout.isNegative()) {
+            // It could only time out, which says nothing about the function, so the breaker is left out
+            return CompletableFuture.failedFuture(new Trace.DeadlineExceeded(0));
+        }
+        calls.incrementAndGet();
+        long startNanos = System.nanoTime();
+        Read read = new Read(functionName, payload, timeout, budget);
+        read.start(false);
+        read.scheduleHedge(hedgeDelay(functionName));
+        read.result.orTimeout(timeout.toMillis(), TimeUnit.MILLISECONDS);
+        read.result.whenCompleteAsync((response, ex) -> {
+            read.timedOut = ex instanceof TimeoutException;
+            read.cancelAll();
+            if (ex instanceof CancellationException) {
+                return;
+            }
+            if (response != null) {
+                Metrics.record("InvokeResponseBytes", response.payload().asByteArrayUnsafe().length,
+                        Metrics.Unit.BYTES, TARGET, functionName);
+            }
+            Metrics.record("InvokeDuration", Metrics.millisSince(startNanos), Metrics.Unit.MILLISECONDS,
+                    TARGET, functionName);
+            Trace.span(functionName, startNanos);
+        }, read.scope);
+        return read.result;
+    }
+
+    /**
+     * The delay after which a read of functionName is hedged: the configured
+     * percentile of its recent latencies.
+     */
+    Duration hedgeDelay(String functionName) {
+        LatencyWindow window = latencies.get(functionName);
+        long[] samples = window == null ? new long[0] : window.snapshot();
+        if (samples.length < MIN_SAMPLES) {
+            return FALLBACK_HEDGE_DELAY;
+        }
+        Arrays.sort(samples);
+        int index = (int) Math.ceil(percentile / 100 * samples.length) - 1;
+        long millis = samples[Math.max(0, Math.min(index, samples.length - 1))];
+        return Duration.ofMillis(Math.max(millis, MIN_HEDGE_DELAY.toMillis()));
+    }
+
+    /**
+     * State of the circuit breakers and bulkheads, by function.
+     */
+    public CircuitBreakers breakers() {
+        return breakers;
+    }
+
+    /**
+     * How long to wait before trying again, if ex comes from a read that was
+     * never sent because the function's circuit is open or its bulkhead
+     * full; null otherwise.
+     */
+    public static Duration retryAfter(Throwable ex) {
+        for (Throwable cause = ex; cause != null; cause = cause.getCause()) {
+            if (cause instanceof CircuitBreakers.Rejected rejected) {
+                return rejected.retryAfter();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Running totals, e.g. "100 reads, 6 hedged (4 won), 1 retried".
+     */
+    public String stats() {
+        return calls.get() + " reads, " + hedges.get() + " hedged (" + hedgeWins.get() + " won), "
+                + retries.get() + " retried";
+    }
+
+    // One read: its attempts in flight and the result they race to complete
+    private final class Read {
+
+        private final String functionName;
+
+        private final String payload;
+
+        // Of the whole read; an attempt that takes most of it counts as slow
+        private final Duration timeout;
+
+        private final Budget budget;
+
+        private final CompletableFuture<InvokeResponse> result = new CompletableFuture<>();
+
+        // Runs callbacks at once, on behalf of the invocation that started the read
+        private final Executor scope = Trace.bind(Metrics.bind(Runnable::run));
+
+        private final List<CompletableFuture<InvokeResponse>> attempts = new ArrayList<>();
+
+        private int running;
+
+        // Attempts cancelled because the read timed out count as failed, not abandoned
+        private volatile boolean timedOut;
+
+        private int retryCount;
+
+        Read(String functionName, String payload, Duration timeout, Budget budget) {
+            this.functionName = functionName;
+            this.payload = payload;
+            this.timeout = timeout;
+            this.budget = budget;
+        }
+
+        void start(boolean hedge) {
+            CompletableFuture<InvokeResponse> attempt;
+            synchronized (this) {
+                if (result.isDone()) {
+                    return;
+                }
+                running++;
+                long startNanos = System.nanoTime();
+                CircuitBreakers.Call permit = null;
+                try {
+                    permit = breakers.start(functionName, timeout);
+                    try {
+                        attempt = transport.invoke(functionName, payload);
+                    } catch (RuntimeException ex) {
+                        attempt = CompletableFuture.failedFuture(ex);
+                    }
+                } catch (CircuitBreakers.Rejected ex) {
+                    attempt = CompletableFuture.failedFuture(ex);
+                }
+                attempts.add(attempt);
+                CircuitBreakers.Call call = permit;
+                attempt.whenCompleteAsync((response, ex) -> {
+                    // Checked once per attempt, for the breaker and the read alike
+                    boolean failed = ex != null || retryable(response);
+                    // No call when the breaker refused it, as nothing was sent
+                    if (call != null) {
+                        if (ex instanceof CancellationException && !timedOut) {
+                            // A hedge that lost, or a read given up on; says nothing about the function
+                            call.abandoned();
+                        } else if (failed) {
+                            call.failed();
+                        } else {
+                            call.succeeded();
+                        }
+                    }
+                    finished(hedge, startNanos, response, ex, failed);
+                }, scope);
+            }
+        }
+
+        void scheduleHedge(Duration delay) {
+            CompletableFuture.delayedExecutor(delay.toMillis(), TimeUnit.MILLISECONDS)
+                    .execute(() -> scope.execute(() -> {
+                        if (!result.isDone() && budget.tryAcquire()) {
+                            hedges.incrementAndGet();
+                            Metrics.record("Hedges", 1, Metrics.Unit.COUNT, TARGET, functionName);
+                            start(true);
+                        }
+                    }));
+        }
+
+        private void finished(boolean hedge, long startNanos, InvokeResponse response, Throwable ex,
+                boolean failed) {
+            boolean retry;
+            synchronized (this) {
+                running--;
+                if (result.isDone()) {
+                    return;
+                }
+                if (!failed) {
+                    latencies.computeIfAbsent(functionName, name -> new LatencyWindow())
+                            .add(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos));
+                    if (hedge) {
+                        hedgeWins.incrementAndGet();
+                    }
+                    result.complete(response);
+                    return;
+                }
+                if (running > 0) {
+                    // Another attempt may still answer
+                    return;
+                }
+                // A refused read would only be refused again
+                retry = !(unwrap(ex) instanceof CircuitBreakers.Rejected) && budget.tryAcquire();
+                if (!retry) {
+                    result.completeExceptionally(ex != null ? unwrap(ex) : new IllegalStateException(
+                            functionName + " failed: " + response.payload().asUtf8String()));
+                    return;
+                }
+                retryCount++;
+            }
+            retries.incrementAndGet();
+            Metrics.record("Retries", 1, Metrics.Unit.COUNT, TARGET, functionName);
+            // Full jitter, doubling per retry, so retries from many containers spread out
+            long ceiling = RETRY_BACKOFF.toMillis() << Math.min(retryCount - 1, 6);
+            CompletableFuture.delayedExecutor(ThreadLocalRandom.current().nextLong(ceiling + 1), TimeUnit.MILLISECONDS)
+                    .execute(() -> scope.execute(() -> start(false)));
+        }
+
+        void cancelAll() {
+            List<CompletableFuture<InvokeResponse>> inFlight;
+            synchronized (this) {
+                inFlight = List.copyOf(attempts);
+            }
+            inFlight.forEach(attempt -> attempt.cancel(true));
+        }
+    }
+
+    /**
+     * Whether another attempt might succeed where this response failed: an
+     * unhandled error such as a crash or the callee's timeout, not an
+     * IllegalArgumentException about the request, or an API Gateway style
+     * response with statusCode >= 500.
+     */
+    static boolean retryable(InvokeResponse response) {
+        if (response.functionError() == null) {
+            return statusCode(response.payload()) >= 500;
+        }
+        // An error payload is a small {"errorType", "errorMessage", ...}
+        try {
+            String errorType = new JSONObject(response.payload().asUtf8String()).optString("errorType");
+            return !IllegalArgumentException.class.getName().equals(errorType);
+        } catch (JSONException ex) {
+            return true;
+        }
+    }
+
+    /**
+     * The statusCode of an API Gateway style payload, read from its bytes in
+     * place: a download's payload is megabytes of Base64, not worth copying
+     * or parsing for one number. An occurrence inside a string has its
+     * quotes escaped, so only the key itself matches.
+     *
+     * @return the status, or 200 for a payload without one, such as a page
+     * sent without an envelope, or one that cannot be read.
+     */
+    static int statusCode(SdkBytes payload) {
+        ByteBuffer bytes = payload.asByteBuffer();
+        int limit = bytes.limit() - STATUS_CODE_KEY.length;
+        for (int i = bytes.position(); i <= limit; i++) {
+            if (matchesAt(bytes, i, STATUS_CODE_KEY) && !escaped(bytes, i)) {
+                return statusAfter(bytes, i + STATUS_CODE_KEY.length);
+            }
+        }
+        return 200;
+    }
+
+    private static boolean matchesAt(ByteBuffer bytes, int index, byte[] expected) {
+        for (int j = 0; j < expected.length; j++) {
+            if (bytes.get(index + j) != expected[j]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Whether the quote at index follows an odd number of backslashes
+    private static boolean escaped(ByteBuffer bytes, int index) {
+        int backslashes = 0;
+        for (int i = index - 1; i >= bytes.position() && bytes.get(i) == '\\'; i--) {
+            backslashes++;
+        }
+        return backslashes % 2 == 1;
+    }
+
+    // Reads ": <digits>" from index on
+    private static int statusAfter(ByteBuffer bytes, int index) {
+        int i = skipWhitespace(bytes, index);
+        if (i >= bytes.limit() || bytes.get(i) != ':') {
+            return 200;
+        }
+        i = skipWhitespace(bytes, i + 1);
+        int status = 0;
+        int digits = 0;
+        for (; i < bytes.limit() && digits < 3 && bytes.get(i) >= '0' && bytes.get(i) <= '9'; i++, digits++) {
+            status = status * 10 + bytes.get(i) - '0';
+        }
+        return digits == 0 ? 200 : status;
+    }
+
+    private static int skipWhitespace(ByteBuffer bytes, int index) {
+        int i = index;
+        while (i < bytes.limit() && Character.isWhitespace(bytes.get(i))) {
+            i++;
+        }
+        return i;
+    }
+
+    private static Throwable unwrap(Throwable ex) {
+        Throwable cause = ex;
+        while (cause instanceof CompletionException && cause.getCause() != null) {
+            cause = cause.getCause();
+        }
+        return cause;
+    }
+
+    // The last WINDOW latencies of one function, in milliseconds
+    private static final class LatencyWindow {
+
+        private final long[] samples = new long[WINDOW];
+
+        private int count;
+
+        private int next;
+
+        synchronized void add(long millis) {
+            samples[next] = millis;
+            next = (next + 1) % WINDOW;
+            count = Math.min(count + 1, WINDOW);
+        }
+
+        synchronized long[] snapshot() {
+            return Arrays.copyOf(samples, count);
+        }
+    }
+}
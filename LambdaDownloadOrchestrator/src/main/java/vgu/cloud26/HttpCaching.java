@@ -0,0 +1,112 @@
+/*
+Class: HttpCaching
+Description: HTTP validators (ETag, Last-Modified) and Cache-Control for S3 objects served through Lambda, and the If-None-Match / If-Modified-Since check that lets a handler answer 304 without reading the object.
+*/
+
+package vgu.cloud26;
+
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.time.temporal.ChronoUnit;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+public final class HttpCaching {
+
+    /**
+     * Keys are never reused (timestamp_uuid.jpeg), so what is stored under a
+     * key never changes and browsers may keep it for a year without asking.
+     */
+    public static final String IMMUTABLE = "public, max-age=31536000, immutable";
+
+    /**
+     * Same as IMMUTABLE, for responses only the requesting user may see.
+     */
+    public static final String PRIVATE_IMMUTABLE = "private, max-age=31536000, immutable";
+
+    // IMF-fixdate; RFC_1123_DATE_TIME would drop the leading zero of the day
+    private static final DateTimeFormatter HTTP_DATE
+            = DateTimeFormatter.ofPattern("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US).withZone(ZoneOffset.UTC);
+
+    private HttpCaching() {
+    }
+
+    /**
+     * Whether the client already has the object, by RFC 9110 rules: when
+     * If-None-Match is present If-Modified-Since is ignored.
+     *
+     * @param requestHeaders the request's headers, any case; may be null.
+     */
+    public static boolean notModified(Map<String, String> requestHeaders, String eTag, Instant lastModified) {
+        String ifNoneMatch = header(requestHeaders, "If-None-Match");
+        if (ifNoneMatch != null) {
+            return eTag != null && matches(ifNoneMatch, eTag);
+        }
+        String ifModifiedSince = header(requestHeaders, "If-Modified-Since");
+        if (ifModifiedSince != null && lastModified != null) {
+            try {
+                Instant since = ZonedDateTime.parse(ifModifiedSince, DateTimeFormatter.RFC_1123_DATE_TIME).toInstant();
+                // Last-Modified only carries whole seconds
+                return !lastModified.truncatedTo(ChronoUnit.SECONDS).isAfter(since);
+            } catch (DateTimeParseException ex) {
+                return false;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * ETag, Last-Modified and Cache-Control for a response about the object;
+     * a 304 must carry the same ones as the 200 would.
+     *
+     * @param cacheControl IMMUTABLE or PRIVATE_IMMUTABLE.
+     * @return a mutable map, so callers can add Content-Type and the like.
+     */
+    public static Map<String, String> headers(String eTag, Instant lastModified, String cacheControl) {
+        Map<String, String> headers = new HashMap<>();
+        if (eTag != null) {
+            headers.put("ETag", eTag);
+        }
+        if (lastModified != null) {
+            headers.put("Last-Modified", HTTP_DATE.format(lastModified));
+        }
+        headers.put("Cache-Control", cacheControl);
+        return headers;
+    }
+
+    /**
+     * A header by name, ignoring case: function URLs lower-case every name,
+     * API Gateway keeps the client's spelling.
+     */
+    public static String header(Map<String, String> headers, String name) {
+        if (headers == null) {
+            return null;
+        }
+        for (Map.Entry<String, String> header : headers.entrySet()) {
+            if (header.getKey().equalsIgnoreCase(name)) {
+                return header.getValue();
+            }
+        }
+        return null;
+    }
+
+    // Weak comparison over a list of entity tags, or "*"
+    private static boolean matches(String ifNoneMatch, String eTag) {
+        String current = opaque(eTag);
+        for (String candidate : ifNoneMatch.split(",")) {
+            String tag = candidate.trim();
+            if (tag.equals("*") || opaque(tag).equals(current)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static String opaque(String eTag) {
+        return eTag.startsWith("W/") ? eTag.substring(2) : eTag;
+    }
+}
@@ -1,6 +1,8 @@
 /*
 Function: LambdaDownloadOrchestrator
-Description: Invoke download of object from original S3 bucket if token validation is successful.
+Description: Invoke download of object from original S3 bucket if token validation is successful. With "mode": "url", return a short-lived presigned S3 URL instead of the image bytes.
+LambdaDownloadObject is called through HedgedReads: a slow call is hedged with a second one and a failed one retried, within a budget per request; if it still fails, the answer is 502. While its circuit breaker is open or its bulkhead full, the answer is 503 with Retry-After.
+If-None-Match / If-Modified-Since are passed on to LambdaDownloadObject, and its 304 or its ETag, Last-Modified and Cache-Control come back to the client.
 */
 
 package vgu.cloud26;
@@ -10,89 +12,156 @@ import com.amazonaws.services.lambda.runtime.LambdaLogger;
 import com.amazonaws.services.lambda.runtime.RequestHandler;
 import com.amazonaws.services.lambda.runtime.events.APIGatewayProxyRequestEvent;
 import com.amazonaws.services.lambda.runtime.events.APIGatewayProxyResponseEvent;
-import java.nio.ByteBuffer;
-import java.nio.charset.StandardCharsets;
+import java.time.Duration;
 import java.util.Base64;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletionException;
 import org.json.JSONObject;
-import software.amazon.awssdk.awscore.exception.AwsServiceException;
-import software.amazon.awssdk.core.SdkBytes;            
-import software.amazon.awssdk.core.exception.SdkClientException;
+import org.crac.Core;
+import org.crac.Resource;
+import software.amazon.awssdk.auth.credentials.AwsBasicCredentials;
+import software.amazon.awssdk.auth.credentials.StaticCredentialsProvider;
+import software.amazon.awssdk.core.SdkBytes;
 import software.amazon.awssdk.regions.Region;
-import software.amazon.awssdk.services.lambda.LambdaClient;
 import software.amazon.awssdk.services.lambda.model.InvokeRequest;
 import software.amazon.awssdk.services.lambda.model.InvokeResponse;
+import software.amazon.awssdk.services.s3.model.GetObjectRequest;
+import software.amazon.awssdk.services.s3.presigner.S3Presigner;
+import software.amazon.awssdk.services.s3.presigner.model.GetObjectPresignRequest;
+import software.amazon.awssdk.services.s3.presigner.model.PresignedGetObjectRequest;
 
 public class LambdaDownloadOrchestrator implements
-        RequestHandler<APIGatewayProxyRequestEvent, APIGatewayProxyResponseEvent> {
+        RequestHandler<APIGatewayProxyRequestEvent, APIGatewayProxyResponseEvent>, Resource {
 
-    private final LambdaClient lambdaClient;
+    private static final String BUCKET_NAME = "cloud-public-mpg";
+
+    private static final Duration PRESIGNED_URL_LIFETIME = Duration.ofMinutes(5);
+
+    private static final List<String> CACHE_HEADERS = List.of("ETag", "Last-Modified", "Cache-Control");
+
+    // Reading and encoding a large original dominates the download
+    private static final Duration DOWNLOAD_TIMEOUT = Duration.ofSeconds(20);
+
+    // Leaves time to answer 502 before this function's own timeout
+    private static final Duration DEADLINE_MARGIN = Duration.ofSeconds(1);
+
+    private final HedgedReads reads;
+
+    private final S3Presigner presigner;
 
     public LambdaDownloadOrchestrator() {
-        this.lambdaClient = LambdaClient.builder()
+        this(HedgedReads.create());
+    }
+
+    LambdaDownloadOrchestrator(HedgedReads reads) {
+        this.reads = reads;
+        this.presigner = S3Presigner.builder()
                 .region(Region.of("us-east-1"))
                 .build();
+        Core.getGlobalContext().register(this);
     }
 
-    // Helper to call another Lambda
-    public String callLambda(String functionName, String payload, LambdaLogger logger) {
-        String message;
-        InvokeRequest invokeRequest = InvokeRequest.builder()
-                .functionName(functionName)
+    @Override
+    public void beforeCheckpoint(org.crac.Context<? extends Resource> context) {
+        JSONObject bodyJSON = new JSONObject(new JSONObject()
+                .put("email", "priming@example.com")
+                .put("token", "priming")
+                .put("key", "priming.jpeg")
+                .toString());
+        TokenVerifier.prime();
+        InvokeRequest.builder()
+                .functionName("LambdaDownloadObject")
                 .invocationType("RequestResponse")
-                .payload(SdkBytes.fromUtf8String(payload))
+                .payload(SdkBytes.fromUtf8String(bodyJSON.toString()))
                 .build();
 
+        // Sign with throwaway credentials: the real ones must not be resolved
+        // before the snapshot, or every restored copy would share them
+        try (S3Presigner primingPresigner = S3Presigner.builder()
+                .region(Region.of("us-east-1"))
+                .credentialsProvider(StaticCredentialsProvider.create(
+                        AwsBasicCredentials.create("priming", "priming")))
+                .build()) {
+            primingPresigner.presignGetObject(GetObjectPresignRequest.builder()
+                    .signatureDuration(PRESIGNED_URL_LIFETIME)
+                    .getObjectRequest(GetObjectRequest.builder()
+                            .bucket(BUCKET_NAME)
+                            .key(bodyJSON.getString("key"))
+                            .build())
+                    .build());
+        }
+    }
+
+    @Override
+    public void afterRestore(org.crac.Context<? extends Resource> context) {
+        Metrics.restored();
+        // The key may have been rotated since the snapshot was taken
+        TokenVerifier.reset();
+    }
+
+    // Helper to call a read Lambda, hedged and retried; returns its response, or null if it failed.
+    // Throws CircuitBreakers.Rejected if the read was refused without being sent
+    public JSONObject callLambda(String functionName, String payload, Duration timeout, LambdaLogger logger) {
         try {
-            InvokeResponse invokeResult = lambdaClient.invoke(invokeRequest);
-            ByteBuffer responsePayload = invokeResult.payload().asByteBuffer();
-            String responseString = StandardCharsets.UTF_8.decode(responsePayload).toString();
+            InvokeResponse invokeResult = reads.invoke(functionName, payload, timeout, HedgedReads.newBudget())
+                    .join();
+            String responseString = invokeResult.payload().asUtf8String();
+            if (invokeResult.functionError() != null) {
+                logger.log("Error from " + functionName + ": " + responseString);
+                return null;
+            }
 
             JSONObject responseObject = new JSONObject(responseString);
-            message = responseObject.optString("body", "");
-            logger.log("Response from " + functionName + ": " + message);
-            return message;
-
-        } catch (AwsServiceException | SdkClientException e) {
-            message = "Error calling " + functionName + ": " + e.getMessage();
-            logger.log(message);
-            return message;
+            JSONObject responseHeaders = responseObject.optJSONObject("headers");
+            if (responseHeaders != null) {
+                Trace.remote(functionName, responseHeaders.optString(Trace.SERVER_TIMING, null));
+            }
+            logger.log("Response from " + functionName + ": status " + responseObject.optInt("statusCode")
+                    + ", " + responseObject.optString("body", "").length() + " chars (" + reads.stats() + ")");
+            return responseObject;
+
+        } catch (CompletionException | CancellationException e) {
+            logger.log("Error calling " + functionName + ": " + e.getCause());
+            if (e.getCause() instanceof CircuitBreakers.Rejected rejected) {
+                throw rejected;
+            }
+            return null;
         }
     }
 
     @Override
     public APIGatewayProxyResponseEvent handleRequest(APIGatewayProxyRequestEvent event, Context context) {
+        Metrics.begin();
+        Metrics.recordSize("RequestBytes", event.getBody());
+        Trace.begin(event.getHeaders(), context);
+        try {
+            APIGatewayProxyResponseEvent response = Trace.expired() ? Trace.deadlineExceeded() : handle(event, context);
+            Metrics.recordSize("ResponseBytes", response.getBody());
+            return Trace.finish(response);
+        } finally {
+            Metrics.flush(context);
+        }
+    }
+
+    private APIGatewayProxyResponseEvent handle(APIGatewayProxyRequestEvent event, Context context) {
         LambdaLogger logger = context.getLogger();
 
         String requestBody = event.getBody();
-        if (requestBody != null && requestBody.equals("EventBridgeInvoke")) {
-            logger.log("Invoked by EventBridge, no action taken.");
-            return new APIGatewayProxyResponseEvent()
-                    .withStatusCode(200)
-                    .withBody("No action taken for EventBridge invocation.");
-        }
         JSONObject bodyJSON = new JSONObject(requestBody);
 
 
         String email = bodyJSON.getString("email");
         String token = bodyJSON.getString("token");
         String key = bodyJSON.getString("key");
+        String mode = bodyJSON.optString("mode", "inline");
 
         String responseString = "";
 
-        // 1. Invoke LambdaTokenChecker
-        JSONObject tokenPayload = new JSONObject()
-                .put("email", email)
-                .put("token", token);
-
-        JSONObject tokenWrapper = new JSONObject()
-                .put("body", tokenPayload.toString());
-
-        responseString = callLambda("LambdaTokenChecker", tokenWrapper.toString(), logger);
-
-        // 2. Check if Email and Token are valid
-        JSONObject tokenResponse = new JSONObject(responseString);
-        Boolean success = tokenResponse.optBoolean("success", false);
+        // 1. Check if Email and Token are valid
+        boolean success = TokenVerifier.verify(email, token, logger);
         if (!success) {
             logger.log("Token validation failed. Aborting download.");
             return new APIGatewayProxyResponseEvent()
@@ -102,23 +171,116 @@ public class LambdaDownloadOrchestrator implements
                     .withHeaders(Map.of("Content-Type", "text/plain"));
         }
 
-        // 3. Invoke LambdaDownloadObject
+        // 2a. URL mode: hand out a short-lived presigned GET so the image never passes through Lambda
+        if (mode.equals("url")) {
+            return presignedDownload(key);
+        }
+
+        // 2. Invoke LambdaDownloadObject
         JSONObject downloadPayload = new JSONObject()
                 .put("key", key);
-        
+        // Passed on so that LambdaDownloadObject can answer 304 without reading the object
+        String ifNoneMatch = HttpCaching.header(event.getHeaders(), "If-None-Match");
+        if (ifNoneMatch != null) {
+            downloadPayload.put("ifNoneMatch", ifNoneMatch);
+        }
+        String ifModifiedSince = HttpCaching.header(event.getHeaders(), "If-Modified-Since");
+        if (ifModifiedSince != null) {
+            downloadPayload.put("ifModifiedSince", ifModifiedSince);
+        }
+
+        Duration downloadTimeout = timeoutWithin(context, DOWNLOAD_TIMEOUT);
         JSONObject downloadWrapper = new JSONObject()
-                .put("body", downloadPayload.toString());
+                .put("body", downloadPayload.toString())
+                .put("headers", Trace.headers(downloadTimeout));
+
+        JSONObject download;
+        try {
+            download = callLambda("LambdaDownloadObject", downloadWrapper.toString(), downloadTimeout, logger);
+        } catch (CircuitBreakers.Rejected e) {
+            reads.breakers().recordMetrics();
+            return new APIGatewayProxyResponseEvent()
+                    .withStatusCode(503)
+                    .withBody("Error downloading object.")
+                    .withIsBase64Encoded(false)
+                    .withHeaders(Map.of("Content-Type", "text/plain",
+                            "Retry-After", retryAfterSeconds(e.retryAfter())));
+        }
+        if (download == null) {
+            reads.breakers().recordMetrics();
+            return new APIGatewayProxyResponseEvent()
+                    .withStatusCode(502)
+                    .withBody("Error downloading object.")
+                    .withIsBase64Encoded(false)
+                    .withHeaders(Map.of("Content-Type", "text/plain"));
+        }
+        responseString = download.optString("body", "");
 
-        responseString = callLambda("LambdaDownloadObject", downloadWrapper.toString(), logger);
+        // The object's validators and Cache-Control go back to the client as they came
+        Map<String, String> headers = new HashMap<>();
+        JSONObject downloadHeaders = download.optJSONObject("headers");
+        for (String name : CACHE_HEADERS) {
+            if (downloadHeaders != null && downloadHeaders.has(name)) {
+                headers.put(name, downloadHeaders.getString(name));
+            }
+        }
+        if (download.optInt("statusCode") == 304) {
+            return new APIGatewayProxyResponseEvent()
+                    .withStatusCode(304)
+                    .withHeaders(headers);
+        }
 
-        // 4. Return the downloaded object (base64 encoded)
+        // 3. Return the downloaded object (base64 encoded)
         // Base64 encode final combined response
         String encodedString = Base64.getEncoder().encodeToString(responseString.getBytes());
+        headers.put("Content-Type", "text/plain");
 
         return new APIGatewayProxyResponseEvent()
                 .withStatusCode(200)
                 .withBody(encodedString)
                 .withIsBase64Encoded(true)
-                .withHeaders(Map.of("Content-Type", "text/plain"));
+                .withHeaders(headers);
+    }
+
+    // Caps a read's timeout at the time this function has left, or at the caller's
+    // deadline if that is sooner
+    static Duration timeoutWithin(Context context, Duration timeout) {
+        Duration remaining = Duration.ofMillis(context.getRemainingTimeInMillis());
+        if (Trace.remaining().compareTo(remaining) < 0) {
+            remaining = Trace.remaining();
+        }
+        remaining = remaining.minus(DEADLINE_MARGIN);
+        if (remaining.isNegative()) {
+            return Duration.ZERO;
+        }
+        return remaining.compareTo(timeout) < 0 ? remaining : timeout;
+    }
+
+    // Retry-After in whole seconds, rounded up
+    private static String retryAfterSeconds(Duration retryAfter) {
+        return Long.toString(Math.max(1, (retryAfter.toMillis() + 999) / 1000));
+    }
+
+    private APIGatewayProxyResponseEvent presignedDownload(String key) {
+        GetObjectRequest getObjectRequest = GetObjectRequest.builder()
+                .bucket(BUCKET_NAME)
+                .key(key)
+                .responseContentDisposition("attachment; filename=\"" + key + "\"")
+                .build();
+
+        PresignedGetObjectRequest presigned = presigner.presignGetObject(GetObjectPresignRequest.builder()
+                .signatureDuration(PRESIGNED_URL_LIFETIME)
+                .getObjectRequest(getObjectRequest)
+                .build());
+
+        JSONObject responseBody = new JSONObject()
+                .put("url", presigned.url().toString())
+                .put("expiresIn", PRESIGNED_URL_LIFETIME.toSeconds());
+
+        return new APIGatewayProxyResponseEvent()
+                .withStatusCode(200)
+                .withBody(responseBody.toString())
+                .withIsBase64Encoded(false)
+                .withHeaders(Map.of("Content-Type", "application/json"));
     }
 }
@@ -0,0 +1,47 @@
+package vgu.cloud26;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.time.Duration;
+import java.util.Map;
+
+import org.junit.Test;
+
+public class LambdaDownloadOrchestratorTest {
+
+    private static final Duration READ_TIMEOUT = Duration.ofSeconds(20);
+
+    @Test
+    public void readStopsAtTheCallersDeadline() {
+        StubContext context = new StubContext("LambdaDownloadOrchestrator");
+        Trace.begin(Map.of(Trace.DEADLINE, Long.toString(System.currentTimeMillis() + 3_000)), context);
+
+        Duration timeout = LambdaDownloadOrchestrator.timeoutWithin(context, READ_TIMEOUT);
+
+        // The 3 s left on the caller's deadline, less the 1 s margin
+        assertTrue(timeout.toString(), timeout.compareTo(Duration.ofSeconds(2)) <= 0);
+        assertTrue(timeout.toString(), timeout.compareTo(Duration.ofMillis(1_500)) > 0);
+    }
+
+    @Test
+    public void readStopsAtTheFunctionsTimeoutWithoutADeadline() {
+        StubContext context = new StubContext("LambdaDownloadOrchestrator");
+        Trace.begin(null, context);
+
+        Duration timeout = LambdaDownloadOrchestrator.timeoutWithin(context, Duration.ofMinutes(1));
+
+        // The 30 s the function has left, less the margin
+        assertTrue(timeout.toString(), timeout.compareTo(Duration.ofSeconds(29)) <= 0);
+        assertTrue(timeout.toString(), timeout.compareTo(Duration.ofSeconds(28)) > 0);
+        assertEquals(READ_TIMEOUT, LambdaDownloadOrchestrator.timeoutWithin(context, READ_TIMEOUT));
+    }
+
+    @Test
+    public void readPastTheDeadlineGetsNoTime() {
+        StubContext context = new StubContext("LambdaDownloadOrchestrator");
+        Trace.begin(Map.of(Trace.DEADLINE, Long.toString(System.currentTimeMillis() + 500)), context);
+
+        assertEquals(Duration.ZERO, LambdaDownloadOrchestrator.timeoutWithin(context, READ_TIMEOUT));
+    }
+}
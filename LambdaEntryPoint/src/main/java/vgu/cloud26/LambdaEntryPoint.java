@@ -14,6 +14,8 @@ import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.util.Map;
 import org.json.JSONObject;
+import org.crac.Core;
+import org.crac.Resource;
 import software.amazon.awssdk.awscore.exception.AwsServiceException;
 import software.amazon.awssdk.core.SdkBytes;
 import software.amazon.awssdk.core.exception.SdkClientException;
@@ -24,13 +26,31 @@ import software.amazon.awssdk.services.lambda.model.InvokeResponse;
 
 
 public class LambdaEntryPoint implements
-        RequestHandler<APIGatewayProxyRequestEvent, APIGatewayProxyResponseEvent> {
+        RequestHandler<APIGatewayProxyRequestEvent, APIGatewayProxyResponseEvent>, Resource {
     private final LambdaClient lambdaClient;
        
     public LambdaEntryPoint() {
         this.lambdaClient = LambdaClient.builder()
                 .region(Region.of("us-east-1"))
                 .build();
+        Core.getGlobalContext().register(this);
+    }
+
+    @Override
+    public void beforeCheckpoint(org.crac.Context<? extends Resource> context) {
+        JSONObject json = new JSONObject()
+                .put("body", new JSONObject().put("key", "cloud-public.html").toString());
+        InvokeRequest.builder()
+                .functionName("BlsLambdaGetObjects")
+                .payload(SdkBytes.fromUtf8String(json.toString()))
+                .invocationType("RequestResponse")
+                .build();
+    }
+
+    @Override
+    public void afterRestore(org.crac.Context<? extends Resource> context) {
+        Metrics.restored();
+        // The Lambda client resolves credentials and connects on first use
     }
     
     public String callLambda(String functionName, String payload,  LambdaLogger logger) {
@@ -65,16 +85,29 @@ public class LambdaEntryPoint implements
     
     @Override
     public APIGatewayProxyResponseEvent handleRequest(APIGatewayProxyRequestEvent event, Context cntxt) {
+        Metrics.begin();
+        Metrics.recordSize("RequestBytes", event.getBody());
+        Trace.begin(event.getHeaders(), cntxt);
+        try {
+            APIGatewayProxyResponseEvent response = Trace.expired() ? Trace.deadlineExceeded() : handle(event, cntxt);
+            Metrics.recordSize("ResponseBytes", response.getBody());
+            return Trace.finish(response);
+        } finally {
+            Metrics.flush(cntxt);
+        }
+    }
+
+    private APIGatewayProxyResponseEvent handle(APIGatewayProxyRequestEvent event, Context cntxt) {
         
         LambdaLogger logger = cntxt.getLogger();
         logger.log("Invoking");
-        LambdaEntryPoint caller = new LambdaEntryPoint();
         JSONObject body = new JSONObject();
         body.put("key", "cloud-public.html");
         JSONObject json = new JSONObject();
         json.put("body", body.toString());
+        json.put("headers", Trace.headers(Trace.remaining()));
         String payload = json.toString();
-        String message = caller.callLambda("BlsLambdaGetObjects", 
+        String message = callLambda("BlsLambdaGetObjects", 
                 payload, logger);
 
        
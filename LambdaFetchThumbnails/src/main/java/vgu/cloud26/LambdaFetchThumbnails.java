@@ -1,6 +1,7 @@
 /*
 Function: LambdaFetchThumbnails
-Description: Retrieved the corresponding thumnail (resized image) from resized bucket and transfer through network as base64 encoded string.
+Description: Retrieved the corresponding thumnail (resized image) from resized bucket and transfer through network as base64 encoded string. Also accepts a list of keys and returns many thumbnails per call.
+A single thumbnail can also be fetched with GET ?key=...; it comes with ETag, Last-Modified and an immutable Cache-Control, and If-None-Match / If-Modified-Since are answered with a 304 before the object is read.
 */
 
 package vgu.cloud26;
@@ -12,82 +13,133 @@ import com.amazonaws.services.lambda.runtime.events.APIGatewayProxyRequestEvent;
 import com.amazonaws.services.lambda.runtime.events.APIGatewayProxyResponseEvent;
 
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.Base64;
 import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.json.JSONArray;
 import org.json.JSONObject;
+import org.crac.Core;
+import org.crac.Resource;
 import software.amazon.awssdk.core.ResponseInputStream;
-import software.amazon.awssdk.regions.Region;
+import software.amazon.awssdk.core.exception.SdkException;
 import software.amazon.awssdk.services.s3.S3Client;
 import software.amazon.awssdk.services.s3.model.GetObjectRequest;
 import software.amazon.awssdk.services.s3.model.GetObjectResponse;
-import software.amazon.awssdk.services.s3.model.ListObjectsRequest;
-import software.amazon.awssdk.services.s3.model.ListObjectsResponse;
-import software.amazon.awssdk.services.s3.model.S3Object;
+import software.amazon.awssdk.services.s3.model.NoSuchKeyException;
+import software.amazon.awssdk.services.s3.model.S3Exception;
 
 
-public class LambdaFetchThumbnails implements RequestHandler<APIGatewayProxyRequestEvent, APIGatewayProxyResponseEvent> {
+public class LambdaFetchThumbnails implements RequestHandler<APIGatewayProxyRequestEvent, APIGatewayProxyResponseEvent>, Resource {
+
+    // Built once per execution environment and reused by every warm invocation
+    private final S3Client s3Client = AwsClients.build(S3Client.builder());
+
+    // 1 MB is equal to 1024 kilobytes (KB), and 1 KB is equal to 1024 bytes.
+    private static final int MAX_OBJECT_SIZE = 10 * 1024 * 1024;
+
+    // Base64 characters per batch response, well under the 6 MB Lambda response limit
+    private static final long MAX_BATCH_PAYLOAD = 4L * 1024 * 1024;
+
+    private static final int MAX_KEYS_PER_BATCH = 500;
+
+    private static final int MAX_CONCURRENT_FETCHES = 8;
+
+    // Kept for the life of the execution environment so warm invocations reuse the threads
+    private static final ExecutorService FETCH_POOL = Executors.newFixedThreadPool(MAX_CONCURRENT_FETCHES, runnable -> {
+        Thread thread = new Thread(runnable, "thumbnail-fetch");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public LambdaFetchThumbnails() {
+        Core.getGlobalContext().register(this);
+    }
+
+    @Override
+    public void beforeCheckpoint(org.crac.Context<? extends Resource> context) {
+        // Parse a batch request and build a batch response without calling S3
+        JSONObject bodyJSON = new JSONObject(new JSONObject()
+                .put("keys", new JSONArray().put("resized-priming.jpeg"))
+                .put("cursor", encodeCursor(0))
+                .toString());
+        int start = decodeCursor(bodyJSON.optString("cursor", null));
+        String key = bodyJSON.getJSONArray("keys").getString(start);
+        GetObjectRequest.builder()
+                .bucket("resized-cloud-public-mpg")
+                .key(key)
+                .build();
+        HttpCaching.notModified(Map.of("If-None-Match", "\"priming\""), "\"priming\"", null);
+        HttpCaching.headers("\"priming\"", java.time.Instant.EPOCH, HttpCaching.IMMUTABLE);
+        JSONObject thumbnail = status(key, 200, null)
+                .put("contentType", ObjectLookup.contentTypeFor(key, null))
+                .put("content", Base64.getEncoder().encodeToString(key.getBytes(StandardCharsets.UTF_8)));
+        new JSONObject().put("thumbnails", new JSONArray().put(thumbnail)).toString();
+    }
+
+    @Override
+    public void afterRestore(org.crac.Context<? extends Resource> context) {
+        Metrics.restored();
+        // The S3 client resolves credentials and connects on first use
+    }
 
     @Override
     public APIGatewayProxyResponseEvent handleRequest(APIGatewayProxyRequestEvent request, Context context) {
+        Metrics.begin();
+        Metrics.recordSize("RequestBytes", request.getBody());
+        Trace.begin(request.getHeaders(), context);
+        try {
+            APIGatewayProxyResponseEvent response = Trace.expired() ? Trace.deadlineExceeded() : handle(request, context);
+            Metrics.recordSize("ResponseBytes", response.getBody());
+            return Trace.finish(response);
+        } finally {
+            Metrics.flush(context);
+        }
+    }
+
+    private APIGatewayProxyResponseEvent handle(APIGatewayProxyRequestEvent request, Context context) {
 
         String requestBody = request.getBody();
 
-        if (requestBody != null && requestBody.equals("EventBridgeInvoke")) {
-            context.getLogger().log("Invoked by EventBridge, no action taken.");
-            return new APIGatewayProxyResponseEvent()
-                    .withStatusCode(200)
-                    .withBody("No action taken for EventBridge invocation.");
+        // A GET with ?key=... has no body; it is what browsers can cache
+        JSONObject bodyJSON = requestBody == null || requestBody.isEmpty()
+                ? new JSONObject(request.getQueryStringParameters() == null
+                        ? Map.of() : request.getQueryStringParameters())
+                : new JSONObject(requestBody);
+
+        String bucketName = "resized-cloud-public-mpg";
+
+        // Batch mode: {"keys": [...], "cursor": "..."} returns many thumbnails in one response
+        if (bodyJSON.has("keys")) {
+            return fetchBatch(s3Client, bucketName, bodyJSON.getJSONArray("keys"),
+                    bodyJSON.optString("cursor", null), bodyJSON.optJSONObject("ifNoneMatch"), context);
         }
 
-        JSONObject bodyJSON = new JSONObject(requestBody);
         String key = bodyJSON.getString("key");
-        //Map<String, String> params = request.getQueryStringParameters();
-        //String key = params.get("key");
 
-        String bucketName = "resized-cloud-public-mpg";
-        S3Client s3Client = S3Client.builder()
-                .region(Region.US_EAST_1)
-                .build();
+        // Look the key up directly instead of scanning the bucket listing
+        Optional<ObjectLookup.ObjectInfo> object = ObjectLookup.find(s3Client, bucketName, key);
 
-        ListObjectsRequest listObjects = ListObjectsRequest
-                .builder()
-                .bucket(bucketName)
-                .build();
+        int maxSize = MAX_OBJECT_SIZE;
+        Boolean found = object.isPresent();
+        Boolean validSize = found && object.get().size() < maxSize;
+        String mimeType = found ? object.get().contentType() : "application/octet-stream";
 
-        ListObjectsResponse res = s3Client.listObjects(listObjects);
-        List<S3Object> objects = res.contents();
-        
-         // 1 MB is equal to 1024 kilobytes (KB), and 1 KB is equal to 1024 bytes.
-        int maxSize = 10 * 1024 * 1024;
-        Boolean found = false;
-        Boolean validSize = false;
-        String mimeType = "application/octet-stream";
-
-        // Check if the object exists and its size
-        for (S3Object object : objects) {
-            if (object.key().equals(key)) {
-                found = true;
-                int objectSize = Math.toIntExact(object.size());
-                if (objectSize < maxSize){
-                    validSize = true ;
-                }
-                mimeType = key.split("\\.")[1];
-                if (mimeType.equals("png")){
-                    mimeType = "image/png";
-                } else if (mimeType.equals("html")){
-                    mimeType = "text/html";
-                }
-                break;
-            }
-        }
         String encodedString = "";
         APIGatewayProxyResponseEvent response = new APIGatewayProxyResponseEvent();
         
         if (!found) {
-            // Thumbnail not found - return 404
+            // Thumbnail not found - return 404. Not cacheable: the resizer may
+            // not have written it yet
             response.setStatusCode(404);
             response.setBody("{\"error\": \"Thumbnail not found\"}");
-            response.setHeaders(java.util.Collections.singletonMap("Content-Type", "application/json"));
+            response.setHeaders(Map.of("Content-Type", "application/json", "Cache-Control", "no-store"));
             return response;
         }
         
@@ -99,13 +151,23 @@ public class LambdaFetchThumbnails implements RequestHandler<APIGatewayProxyRequ
             return response;
         }
         
+        // The HEAD above already has the validators, so a client that holds
+        // this version gets a 304 without the object being read
+        ObjectLookup.ObjectInfo info = object.get();
+        Map<String, String> headers = HttpCaching.headers(info.eTag(), info.lastModified(), HttpCaching.IMMUTABLE);
+        if (HttpCaching.notModified(request.getHeaders(), info.eTag(), info.lastModified())) {
+            response.setStatusCode(304);
+            response.setHeaders(headers);
+            return response;
+        }
+
         // File found and valid size
         GetObjectRequest s3Request = GetObjectRequest.builder()
                 .bucket(bucketName)
                 .key(key)
                 .build();
         
-        byte[] buffer = new byte[10 * 1024 * 1024];
+        byte[] buffer;
         try (ResponseInputStream<GetObjectResponse> s3Response = s3Client.getObject(s3Request)) {
             buffer = s3Response.readAllBytes();
         } catch (IOException ex) {
@@ -118,11 +180,145 @@ public class LambdaFetchThumbnails implements RequestHandler<APIGatewayProxyRequ
 
         encodedString = Base64.getEncoder().encodeToString(buffer);
         
+        headers.put("Content-Type", mimeType);
         response.setStatusCode(200);
         response.setBody(encodedString);
         response.withIsBase64Encoded(true);
-        response.setHeaders(java.util.Collections.singletonMap("Content-Type", mimeType));
+        response.setHeaders(headers);
         return response;
     }
 
+    /**
+     * Fetches the thumbnails for a list of keys with bounded parallelism.
+     *
+     * Keys are processed in order, starting at the position encoded in the
+     * cursor. Each key gets its own status (200, 404, 413 or 500). Once the
+     * Base64 payload would exceed MAX_BATCH_PAYLOAD the response stops and
+     * returns a nextCursor; the client repeats the request with it to get the
+     * remaining thumbnails. Every thumbnail carries its eTag; a key whose
+     * eTag the client sends back in ifNoneMatch ({key: eTag}) and that is
+     * unchanged gets status 304 and no content.
+     */
+    private APIGatewayProxyResponseEvent fetchBatch(S3Client s3Client, String bucketName,
+            JSONArray keys, String cursor, JSONObject ifNoneMatch, Context context) {
+        int start = decodeCursor(cursor);
+        int end = Math.min(keys.length(), start + MAX_KEYS_PER_BATCH);
+
+        JSONArray thumbnails = new JSONArray();
+        long payloadSize = 0;
+        int next = start;
+
+        batches:
+        while (next < end) {
+            // Submit one window of GETs at a time so an early cut-off wastes little work
+            int windowEnd = Math.min(end, next + MAX_CONCURRENT_FETCHES);
+            List<Future<JSONObject>> window = new ArrayList<>();
+            for (int i = next; i < windowEnd; i++) {
+                String key = keys.getString(i);
+                String eTag = ifNoneMatch == null ? null : ifNoneMatch.optString(key, null);
+                window.add(FETCH_POOL.submit(() -> fetchOne(s3Client, bucketName, key, eTag, context)));
+            }
+
+            for (Future<JSONObject> future : window) {
+                JSONObject thumbnail = await(future, keys.getString(next), context);
+                long size = thumbnail.optString("content", "").length();
+                if (payloadSize + size > MAX_BATCH_PAYLOAD && thumbnails.length() > 0) {
+                    window.forEach(pending -> pending.cancel(true));
+                    break batches;
+                }
+                if (size > MAX_BATCH_PAYLOAD) {
+                    // A single thumbnail that can never fit in a batch response
+                    thumbnail = status(keys.getString(next), 413, "File too large");
+                    size = 0;
+                }
+                thumbnails.put(thumbnail);
+                payloadSize += size;
+                next++;
+            }
+        }
+
+        JSONObject body = new JSONObject().put("thumbnails", thumbnails);
+        if (next < keys.length()) {
+            body.put("nextCursor", encodeCursor(next));
+        }
+
+        return new APIGatewayProxyResponseEvent()
+                .withStatusCode(200)
+                .withBody(body.toString())
+                .withHeaders(java.util.Collections.singletonMap("Content-Type", "application/json"));
+    }
+
+    private static JSONObject fetchOne(S3Client s3Client, String bucketName, String key, String eTag,
+            Context context) {
+        // S3 answers 304 itself when the client's eTag is still current
+        GetObjectRequest s3Request = GetObjectRequest.builder()
+                .bucket(bucketName)
+                .key(key)
+                .ifNoneMatch(eTag)
+                .build();
+
+        try (ResponseInputStream<GetObjectResponse> s3Response = s3Client.getObject(s3Request)) {
+            Long contentLength = s3Response.response().contentLength();
+            if (contentLength != null && contentLength >= MAX_OBJECT_SIZE) {
+                s3Response.abort();
+                return status(key, 413, "File too large");
+            }
+            byte[] buffer = s3Response.readAllBytes();
+            return status(key, 200, null)
+                    .put("eTag", s3Response.response().eTag())
+                    .put("contentType", ObjectLookup.contentTypeFor(key, s3Response.response().contentType()))
+                    .put("content", Base64.getEncoder().encodeToString(buffer));
+        } catch (NoSuchKeyException ex) {
+            return status(key, 404, "Thumbnail not found");
+        } catch (S3Exception ex) {
+            if (ex.statusCode() == 304) {
+                return status(key, 304, null).put("eTag", eTag);
+            }
+            context.getLogger().log("Failed to fetch " + key + ": " + ex);
+            return status(key, 500, "Failed to read object");
+        } catch (IOException | SdkException ex) {
+            context.getLogger().log("Failed to fetch " + key + ": " + ex);
+            return status(key, 500, "Failed to read object");
+        }
+    }
+
+    private static JSONObject await(Future<JSONObject> future, String key, Context context) {
+        try {
+            return future.get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return status(key, 500, "Interrupted");
+        } catch (ExecutionException ex) {
+            context.getLogger().log("Failed to fetch " + key + ": " + ex.getCause());
+            return status(key, 500, "Failed to read object");
+        }
+    }
+
+    private static JSONObject status(String key, int statusCode, String error) {
+        JSONObject result = new JSONObject()
+                .put("key", key)
+                .put("status", statusCode);
+        if (error != null) {
+            result.put("error", error);
+        }
+        return result;
+    }
+
+    private static String encodeCursor(int index) {
+        return Base64.getUrlEncoder().withoutPadding()
+                .encodeToString(("offset:" + index).getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static int decodeCursor(String cursor) {
+        if (cursor == null || cursor.isEmpty()) {
+            return 0;
+        }
+        try {
+            String decoded = new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8);
+            return Math.max(0, Integer.parseInt(decoded.substring("offset:".length())));
+        } catch (IllegalArgumentException | IndexOutOfBoundsException ex) {
+            return 0;
+        }
+    }
+
 }
@@ -0,0 +1,124 @@
+/*
+Class: ObjectLookup
+Description: Key-addressed existence/size/content-type check for a single S3 object, using HeadObject with a prefix-listing fallback.
+*/
+
+package vgu.cloud26;
+
+import java.time.Instant;
+import java.util.Optional;
+
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.HeadObjectRequest;
+import software.amazon.awssdk.services.s3.model.HeadObjectResponse;
+import software.amazon.awssdk.services.s3.model.ListObjectsV2Request;
+import software.amazon.awssdk.services.s3.model.ListObjectsV2Response;
+import software.amazon.awssdk.services.s3.model.NoSuchKeyException;
+import software.amazon.awssdk.services.s3.model.S3Exception;
+import software.amazon.awssdk.services.s3.model.S3Object;
+
+public final class ObjectLookup {
+
+    /**
+     * HEAD asks S3 for the one key directly. LIST pages through keys sharing
+     * the requested key as prefix, for roles that cannot HEAD the bucket.
+     */
+    public enum Mode {
+        HEAD, LIST
+    }
+
+    public record ObjectInfo(String key, long size, String contentType, String eTag, Instant lastModified) {
+    }
+
+    private static final String MODE_VARIABLE = "OBJECT_LOOKUP_MODE";
+
+    private ObjectLookup() {
+    }
+
+    /**
+     * Looks up a key using the mode from the OBJECT_LOOKUP_MODE environment
+     * variable ("head" by default, "list" to force the fallback).
+     */
+    public static Optional<ObjectInfo> find(S3Client s3Client, String bucket, String key) {
+        return find(s3Client, bucket, key, configuredMode());
+    }
+
+    public static Optional<ObjectInfo> find(S3Client s3Client, String bucket, String key, Mode mode) {
+        if (mode == Mode.LIST) {
+            return findByListing(s3Client, bucket, key);
+        }
+
+        try {
+            HeadObjectResponse head = s3Client.headObject(HeadObjectRequest.builder()
+                    .bucket(bucket)
+                    .key(key)
+                    .build());
+            return Optional.of(new ObjectInfo(key, head.contentLength(),
+                    contentTypeFor(key, head.contentType()), head.eTag(), head.lastModified()));
+        } catch (NoSuchKeyException ex) {
+            return Optional.empty();
+        } catch (S3Exception ex) {
+            if (ex.statusCode() == 404) {
+                return Optional.empty();
+            }
+            if (ex.statusCode() == 403) {
+                // HEAD is refused without s3:GetObject; listing may still be allowed
+                return findByListing(s3Client, bucket, key);
+            }
+            throw ex;
+        }
+    }
+
+    static Mode configuredMode() {
+        String value = System.getenv(MODE_VARIABLE);
+        if (value != null && value.equalsIgnoreCase("list")) {
+            return Mode.LIST;
+        }
+        return Mode.HEAD;
+    }
+
+    private static Optional<ObjectInfo> findByListing(S3Client s3Client, String bucket, String key) {
+        ListObjectsV2Request request = ListObjectsV2Request.builder()
+                .bucket(bucket)
+                .prefix(key)
+                .build();
+
+        // Only keys starting with the requested key are returned, so this is
+        // normally a single page no matter how large the bucket is
+        for (ListObjectsV2Response page : s3Client.listObjectsV2Paginator(request)) {
+            for (S3Object object : page.contents()) {
+                if (object.key().equals(key)) {
+                    return Optional.of(new ObjectInfo(key, object.size(),
+                            contentTypeFor(key, null), object.eTag(), object.lastModified()));
+                }
+            }
+        }
+        return Optional.empty();
+    }
+
+    /**
+     * Uses the stored Content-Type when S3 has a meaningful one, otherwise
+     * infers it from the key's extension.
+     */
+    static String contentTypeFor(String key, String storedContentType) {
+        if (storedContentType != null
+                && !storedContentType.equals("binary/octet-stream")
+                && !storedContentType.equals("application/octet-stream")) {
+            return storedContentType;
+        }
+
+        int lastDot = key.lastIndexOf('.');
+        String extension = lastDot == -1 ? "" : key.substring(lastDot + 1).toLowerCase();
+        switch (extension) {
+            case "jpg":
+            case "jpeg":
+                return "image/jpeg";
+            case "png":
+                return "image/png";
+            case "html":
+                return "text/html";
+            default:
+                return "application/octet-stream";
+        }
+    }
+}
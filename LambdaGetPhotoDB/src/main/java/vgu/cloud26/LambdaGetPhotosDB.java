@@ -1,6 +1,7 @@
 /*
 Function: LambdaGetPhotosDB
-Description: Get all rows of Photos from table in RDS database and return as JSON array (base64 encoded).
+Description: Get one page of rows of Photos from table in RDS database and return them as {"version": ..., "items": [...], "nextCursor": ...}. See PhotoQuery for the paging, filter, order and field parameters.
+The page is written as JSON straight from the ResultSet, once, after the gallery version from PhotoTable. The trace context comes in the request's "headers"; a request past its deadline is not run, and the API Gateway style response carries Server-Timing. With "ifVersion" equal to that version only {"version": ..., "notModified": true} is returned. Callers that send "envelope": "none" (LambdaListObjectsOrchestrator) get that JSON as the whole invoke payload and a function error for bad requests; everyone else gets an API Gateway style response with the JSON as a plain body.
 */
 
 package vgu.cloud26;
@@ -9,187 +10,236 @@ import com.amazonaws.services.lambda.runtime.Context;
 
 import com.amazonaws.services.lambda.runtime.LambdaLogger;
 
-import com.amazonaws.services.lambda.runtime.RequestHandler;
+import com.amazonaws.services.lambda.runtime.RequestStreamHandler;
 
-import com.amazonaws.services.lambda.runtime.events.APIGatewayProxyRequestEvent;
+import java.io.ByteArrayOutputStream;
 
-import com.amazonaws.services.lambda.runtime.events.APIGatewayProxyResponseEvent;
+import java.io.IOException;
 
-import java.sql.Connection;
+import java.io.InputStream;
+
+import java.io.OutputStream;
+
+import java.io.OutputStreamWriter;
+
+import java.io.Writer;
+
+import java.nio.charset.StandardCharsets;
 
-import java.sql.DriverManager;
+import java.sql.Connection;
 
 import java.sql.PreparedStatement;
 
 import java.sql.ResultSet;
 
+import java.sql.SQLException;
+
 import java.util.Base64;
 
-import java.util.Properties;
+import java.util.Map;
 
-import org.json.JSONArray;
+import org.json.JSONException;
 
 import org.json.JSONObject;
 
-import software.amazon.awssdk.auth.credentials.DefaultCredentialsProvider;
+import org.json.JSONTokener;
+import org.crac.Core;
+import org.crac.Resource;
 
-import software.amazon.awssdk.regions.Region;
+public class LambdaGetPhotosDB implements RequestStreamHandler, Resource {
 
-import software.amazon.awssdk.services.rds.RdsUtilities;
+        static final String ENVELOPE_NONE = "none";
 
-import software.amazon.awssdk.services.rds.model.GenerateAuthenticationTokenRequest;
+        // Holds the page between the query and the output; reset, not reallocated,
+        // by every warm invocation
+        private final ByteArrayOutputStream responseBuffer = new ByteArrayOutputStream(64 * 1024);
 
-public class LambdaGetPhotosDB implements RequestHandler<APIGatewayProxyRequestEvent, APIGatewayProxyResponseEvent> {
+        public LambdaGetPhotosDB() {
+                Core.getGlobalContext().register(this);
+        }
 
-        private static final String RDS_INSTANCE_HOSTNAME
+        @Override
+        public void beforeCheckpoint(org.crac.Context<? extends Resource> context) throws SQLException, IOException {
+                PhotoQuery query = PhotoQuery.fromRequest(new JSONObject()
+                                .put("limit", 1)
+                                .put("cursor", PhotoQuery.fromRequest(null).cursorAfter(0))
+                                .put("fields", "Description,S3Key,Email")
+                                .toString());
+                Writer writer = new OutputStreamWriter(new ByteArrayOutputStream(), StandardCharsets.UTF_8);
+                PhotoPageWriter.writeString("priming \"quoted\"\n", writer);
+                writer.write(query.cursorAfter(1));
+                PhotoPageWriter.writeNotModified(1, writer);
+                writer.flush();
+                RdsConnectionPool.prepareForCheckpoint();
+        }
 
-                        = "database-1.c6p4im2uqehz.us-east-1.rds.amazonaws.com";
+        @Override
+        public void afterRestore(org.crac.Context<? extends Resource> context) {
+                Metrics.restored();
+                // getConnection() opens a fresh connection with a new IAM token on first use
+        }
 
-        private static final int RDS_INSTANCE_PORT = 3306;
+        @Override
+        public void handleRequest(InputStream input, OutputStream output, Context context) throws IOException {
+                Metrics.begin();
+                try {
+                        handle(input, output, context);
+                } finally {
+                        Metrics.flush(context);
+                }
+        }
 
-        private static final String DB_USER = "cloud26";
+        private void handle(InputStream input, OutputStream output, Context context) throws IOException {
 
-        private static final String JDBC_URL
+                LambdaLogger logger = context.getLogger();
 
-                        = "jdbc:mysql://" + RDS_INSTANCE_HOSTNAME
+                JSONObject request = new JSONObject(new JSONTokener(input));
 
-                                        + ":" + RDS_INSTANCE_PORT + "/Cloud26";
+                boolean envelope = !ENVELOPE_NONE.equals(request.optString("envelope"));
 
-        @Override
+                JSONObject headers = request.optJSONObject("headers");
 
-        public APIGatewayProxyResponseEvent handleRequest(APIGatewayProxyRequestEvent request, Context context) {
+                Trace.begin(headers == null ? null : headers.toMap(), context);
 
-                LambdaLogger logger = context.getLogger();
+                PhotoQuery query;
 
-                JSONArray items = new JSONArray();
+                try {
 
-                String content = request.getBody();
+                        query = PhotoQuery.fromRequest(bodyOf(request));
 
-                if (content != null && content.contains("EventBridge")) {
-                        logger.log("Invoked by EventBridge, no action taken.");
-                        return new APIGatewayProxyResponseEvent()
-                                        .withStatusCode(200)
-                                        .withBody("No action taken for EventBridge invocation.");
-                }
+                } catch (IllegalArgumentException | JSONException ex) {
 
-                try {
+                        logger.log("Bad listing request: " + ex.getMessage());
 
-                        Class.forName("com.mysql.cj.jdbc.Driver");
+                        if (!envelope) {
+                                // Reaches the caller as a function error with this type and message
+                                throw new IllegalArgumentException(ex.getMessage());
+                        }
 
-                        Connection mySQLClient =
+                        writeEnvelope(output, 400, new JSONObject().put("message", ex.getMessage()).toString());
 
-                                        DriverManager.getConnection(JDBC_URL,
+                        return;
 
-                                                        setMySqlConnectionProperties());
+                }
 
-                        // PreparedStatement st = mySQLClient.prepareStatement("SELECT 1");
+                responseBuffer.reset();
 
-                        // st.execute();
+                Writer writer = new OutputStreamWriter(responseBuffer, StandardCharsets.UTF_8);
 
-                        // result = "Success!";
+                try {
 
+                        // Read before the page, so a write in between can only make the
+                        // page newer than its version, never older
+                        long version = PhotoTable.version();
 
-                        // SQL query to get all photos
-                        PreparedStatement st = mySQLClient.prepareStatement(
+                        if (request.has("ifVersion") && request.getLong("ifVersion") == version) {
 
-                                        "SELECT * FROM Photos"
+                                PhotoPageWriter.writeNotModified(version, writer);
 
-                        );
+                                writer.flush();
 
-                        ResultSet rs = st.executeQuery();
+                                logger.log("Listing unchanged at version " + version);
 
-                        // Iterate through the result set and build JSON array
-                        while (rs.next()) {
+                        } else {
 
-                                JSONObject item = new JSONObject();
+                                // The pooled connection stays open across invocations; only the statement is closed
+                                Connection connection = RdsConnectionPool.getConnection();
+                                Trace.checkDeadline();
+                                long queryStart = System.nanoTime();
+                                try (PreparedStatement st = query.prepare(connection);
+                                                ResultSet rs = st.executeQuery()) {
 
-                                item.put("ID", rs.getInt("ID"));
+                                        int count = PhotoPageWriter.write(rs, query, version, writer);
 
-                                item.put("Description", rs.getString("Description"));
+                                        writer.flush();
 
-                                item.put("S3Key", rs.getString("S3Key"));
+                                        // Rows are streamed into the page, so this covers reading them too
+                                        Metrics.record("JdbcQuery", Metrics.millisSince(queryStart), Metrics.Unit.MILLISECONDS,
+                                                        "Statement", "page");
+                                        Trace.span("jdbc.page", queryStart);
+                                        Metrics.record("ResponseBytes", responseBuffer.size(), Metrics.Unit.BYTES);
 
-                                item.put("Email", rs.getString("Email"));
+                                        logger.log("Listed " + count + " photo(s) at version " + version + ", "
+                                                        + responseBuffer.size() + " bytes");
 
-                                items.put(item);
+                                }
 
                         }
 
-                } catch (ClassNotFoundException ex) {
+                } catch (SQLException ex) {
 
                         logger.log(ex.toString());
 
-                } catch (Exception ex) {
+                        RdsConnectionPool.invalidate();
 
-                        logger.log(ex.toString());
+                        if (!envelope) {
+                                throw new IllegalStateException("Error listing photos", ex);
+                        }
 
-                }
+                        writeEnvelope(output, 500, "{\"message\":\"Error listing photos\"}");
 
-                String encodedResult =
+                        return;
 
-                                Base64.getEncoder()
+                } catch (Trace.DeadlineExceeded ex) {
 
-                                                .encodeToString(items.toString().getBytes());
+                        logger.log("Listing not run: " + ex.getMessage());
 
-                APIGatewayProxyResponseEvent response
+                        if (!envelope) {
+                                throw ex;
+                        }
 
-                                = new APIGatewayProxyResponseEvent();
+                        writeEnvelope(output, 504, "{\"message\":\"Deadline exceeded\"}");
 
-                response.setStatusCode(200);
+                        return;
 
-                response.setBody(encodedResult);
+                }
 
-                response.withIsBase64Encoded(true);
+                if (envelope) {
 
-                response.setHeaders(java.util.Collections
+                        writeEnvelope(output, 200, responseBuffer.toString(StandardCharsets.UTF_8));
 
-                                .singletonMap("Content-Type", "application/json"));
+                } else {
 
-                return response;
+                        // The page is the whole payload; the caller passes it on untouched
+                        responseBuffer.writeTo(output);
+
+                }
 
         }
 
-        private static Properties setMySqlConnectionProperties() throws Exception {
+        // Body of a direct invoke ({"body": "..."}), a function URL or an API Gateway event
+        private static String bodyOf(JSONObject request) {
 
-                Properties mysqlConnectionProperties = new Properties();
+                String body = request.optString("body", null);
 
-                mysqlConnectionProperties.setProperty("useSSL", "true");
+                if (body != null && request.optBoolean("isBase64Encoded")) {
 
-                mysqlConnectionProperties.setProperty("user", DB_USER);
+                        return new String(Base64.getDecoder().decode(body), StandardCharsets.UTF_8);
 
-                mysqlConnectionProperties.setProperty("password", generateAuthToken()); // HERE
+                }
 
-                return mysqlConnectionProperties;
+                return body;
 
         }
 
-        private static String generateAuthToken() throws Exception {
-
-                RdsUtilities rdsUtilities = RdsUtilities.builder().build();
-
-                // Generate the authentication token
-
-                String authToken
-
-                                = rdsUtilities.generateAuthenticationToken(
+        private static void writeEnvelope(OutputStream output, int statusCode, String body) throws IOException {
 
-                                                GenerateAuthenticationTokenRequest.builder()
+                JSONObject response = new JSONObject()
 
-                                                                .hostname(RDS_INSTANCE_HOSTNAME)
+                                .put("statusCode", statusCode)
 
-                                                                .port(RDS_INSTANCE_PORT)
+                                .put("headers", Trace.withServerTiming(Map.of("Content-Type", "application/json")))
 
-                                                                .username(DB_USER)
+                                .put("isBase64Encoded", false)
 
-                                                                .region(Region.US_EAST_1)
+                                .put("body", body);
 
-                                                                .credentialsProvider(
-                                                                                DefaultCredentialsProvider.create())
+                Writer writer = new OutputStreamWriter(output, StandardCharsets.UTF_8);
 
-                                                                .build());
+                response.write(writer);
 
-                return authToken;
+                writer.flush();
 
         }
 
-}
\ No newline at end of file
+}
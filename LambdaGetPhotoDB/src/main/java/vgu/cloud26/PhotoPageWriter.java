@@ -0,0 +1,126 @@
+/*
+Class: PhotoPageWriter
+Description: Write one page of the Photos listing as JSON straight from the ResultSet, row by row, without building a JSONArray or an intermediate String.
+*/
+
+package vgu.cloud26;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+public final class PhotoPageWriter {
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private PhotoPageWriter() {
+    }
+
+    /**
+     * Writes {"version": ..., "items": [...], "nextCursor": ...} for the rows
+     * of rs. The result set holds one row past the page when another page
+     * follows; that row is only used to decide whether to write a cursor.
+     *
+     * @param rs rows selected by query.prepare().
+     * @param query the page being written.
+     * @param version gallery version read before the page was queried.
+     * @param out destination; not flushed.
+     * @return the number of items written.
+     */
+    public static int write(ResultSet rs, PhotoQuery query, long version, Writer out)
+            throws SQLException, IOException {
+        writeVersion(version, out);
+        out.write(",\"items\":[");
+        int count = 0;
+        int lastId = 0;
+        boolean more = false;
+        while (rs.next()) {
+            if (count == query.limit()) {
+                more = true;
+                break;
+            }
+            if (count > 0) {
+                out.write(',');
+            }
+            out.write('{');
+            boolean first = true;
+            for (String column : query.columns()) {
+                if (!first) {
+                    out.write(',');
+                }
+                first = false;
+                out.write('"');
+                out.write(column);
+                out.write("\":");
+                if (column.equals("ID")) {
+                    lastId = rs.getInt(column);
+                    out.write(Integer.toString(lastId));
+                } else {
+                    writeString(rs.getString(column), out);
+                }
+            }
+            out.write('}');
+            count++;
+        }
+        out.write("],\"nextCursor\":");
+        if (more) {
+            writeString(query.cursorAfter(lastId), out);
+        } else {
+            out.write("null");
+        }
+        out.write('}');
+        return count;
+    }
+
+    /**
+     * Answer to a request whose "ifVersion" is still the gallery version:
+     * {"version": ..., "notModified": true}.
+     */
+    public static void writeNotModified(long version, Writer out) throws IOException {
+        writeVersion(version, out);
+        out.write(",\"notModified\":true}");
+    }
+
+    // The version always comes first, so callers can read it without parsing the page
+    private static void writeVersion(long version, Writer out) throws IOException {
+        out.write("{\"version\":");
+        out.write(Long.toString(version));
+    }
+
+    /**
+     * Writes a JSON string literal, or null. Only the characters JSON
+     * requires are escaped; everything else goes out as is.
+     */
+    static void writeString(String value, Writer out) throws IOException {
+        if (value == null) {
+            out.write("null");
+            return;
+        }
+        out.write('"');
+        int start = 0;
+        int length = value.length();
+        for (int i = 0; i < length; i++) {
+            char c = value.charAt(i);
+            if (c >= 0x20 && c != '"' && c != '\\') {
+                continue;
+            }
+            out.write(value, start, i - start);
+            switch (c) {
+                case '"' -> out.write("\\\"");
+                case '\\' -> out.write("\\\\");
+                case '\n' -> out.write("\\n");
+                case '\r' -> out.write("\\r");
+                case '\t' -> out.write("\\t");
+                default -> {
+                    out.write("\\u00");
+                    out.write(HEX[c >> 4]);
+                    out.write(HEX[c & 0xf]);
+                }
+            }
+            start = i + 1;
+        }
+        out.write(value, start, length - start);
+        out.write('"');
+    }
+}
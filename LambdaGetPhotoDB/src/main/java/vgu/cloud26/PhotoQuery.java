@@ -0,0 +1,179 @@
+/*
+Class: PhotoQuery
+Description: One page of the Photos listing: keyset pagination on ID with an opaque cursor, a capped page size, an optional owner (Email) filter, sort order and a whitelisted column projection.
+*/
+
+package vgu.cloud26;
+
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+public final class PhotoQuery {
+
+    public static final int DEFAULT_LIMIT = 50;
+
+    public static final int MAX_LIMIT = 200;
+
+    // Also the only names accepted in "fields", so they can go into the SQL as is
+    public static final List<String> COLUMNS = List.of("ID", "Description", "S3Key", "Email");
+
+    private static final String CURSOR_VERSION = "v1";
+
+    private final int limit;
+
+    private final boolean descending;
+
+    private final String owner;
+
+    private final Integer afterId;
+
+    private final List<String> columns;
+
+    // Unchecked, so no MAX_LIMIT; requests go through fromRequest()
+    PhotoQuery(int limit, boolean descending, String owner, Integer afterId, List<String> columns) {
+        this.limit = limit;
+        this.descending = descending;
+        this.owner = owner;
+        this.afterId = afterId;
+        this.columns = columns;
+    }
+
+    /**
+     * Reads the listing parameters from a request body; every one is
+     * optional.
+     * <ul>
+     * <li>"limit": rows per page, 1 to MAX_LIMIT, DEFAULT_LIMIT if absent.</li>
+     * <li>"cursor": "nextCursor" of the previous page.</li>
+     * <li>"owner": only photos uploaded by this email.</li>
+     * <li>"order": "asc" (oldest first, the default) or "desc".</li>
+     * <li>"fields": columns to return, as an array or comma-separated; ID is
+     * always included.</li>
+     * </ul>
+     *
+     * @param body request body; null or blank for the first page of everything.
+     * @throws IllegalArgumentException if a parameter is invalid.
+     */
+    public static PhotoQuery fromRequest(String body) {
+        JSONObject json = body == null || body.isBlank() ? new JSONObject() : new JSONObject(body);
+
+        int limit = json.optInt("limit", DEFAULT_LIMIT);
+        if (limit < 1 || limit > MAX_LIMIT) {
+            throw new IllegalArgumentException("limit must be between 1 and " + MAX_LIMIT);
+        }
+
+        String order = json.optString("order", "asc");
+        if (!order.equals("asc") && !order.equals("desc")) {
+            throw new IllegalArgumentException("order must be asc or desc");
+        }
+        boolean descending = order.equals("desc");
+
+        String owner = json.optString("owner", "");
+        Integer afterId = json.has("cursor") ? decodeCursor(json.getString("cursor"), order) : null;
+
+        return new PhotoQuery(limit, descending, owner.isEmpty() ? null : owner, afterId, columns(json.opt("fields")));
+    }
+
+    public int limit() {
+        return limit;
+    }
+
+    public List<String> columns() {
+        return columns;
+    }
+
+    /**
+     * Prepares the page's statement. One row more than the page is selected,
+     * so that a next page is only advertised when there is one.
+     */
+    public PreparedStatement prepare(Connection connection) throws SQLException {
+        StringBuilder sql = new StringBuilder("SELECT ")
+                .append(String.join(", ", columns))
+                .append(" FROM Photos");
+        List<Object> parameters = new ArrayList<>();
+        List<String> conditions = new ArrayList<>();
+        if (owner != null) {
+            conditions.add("Email = ?");
+            parameters.add(owner);
+        }
+        if (afterId != null) {
+            conditions.add(descending ? "ID < ?" : "ID > ?");
+            parameters.add(afterId);
+        }
+        if (!conditions.isEmpty()) {
+            sql.append(" WHERE ").append(String.join(" AND ", conditions));
+        }
+        sql.append(" ORDER BY ID ").append(descending ? "DESC" : "ASC").append(" LIMIT ?");
+        parameters.add(limit + 1);
+
+        PreparedStatement stmt = connection.prepareStatement(sql.toString());
+        for (int i = 0; i < parameters.size(); i++) {
+            stmt.setObject(i + 1, parameters.get(i));
+        }
+        return stmt;
+    }
+
+    /**
+     * Cursor for the page after the one ending at lastId.
+     */
+    public String cursorAfter(int lastId) {
+        String cursor = CURSOR_VERSION + ":" + (descending ? "desc" : "asc") + ":" + lastId;
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(cursor.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static Integer decodeCursor(String cursor, String order) {
+        String[] parts;
+        try {
+            parts = new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8).split(":");
+        } catch (IllegalArgumentException ex) {
+            throw new IllegalArgumentException("Invalid cursor");
+        }
+        if (parts.length != 3 || !parts[0].equals(CURSOR_VERSION)) {
+            throw new IllegalArgumentException("Invalid cursor");
+        }
+        if (!parts[1].equals(order)) {
+            throw new IllegalArgumentException("Cursor was issued for order " + parts[1]);
+        }
+        try {
+            return Integer.valueOf(parts[2]);
+        } catch (NumberFormatException ex) {
+            throw new IllegalArgumentException("Invalid cursor");
+        }
+    }
+
+    private static List<String> columns(Object fields) {
+        if (fields == null) {
+            return COLUMNS;
+        }
+        List<String> requested = new ArrayList<>();
+        if (fields instanceof JSONArray array) {
+            for (int i = 0; i < array.length(); i++) {
+                requested.add(array.getString(i).trim());
+            }
+        } else {
+            for (String field : fields.toString().split(",")) {
+                requested.add(field.trim());
+            }
+        }
+
+        // ID first: the cursor is built from it
+        Set<String> columns = new LinkedHashSet<>();
+        columns.add("ID");
+        for (String field : requested) {
+            if (!COLUMNS.contains(field)) {
+                throw new IllegalArgumentException("Unknown field '" + field + "'");
+            }
+            columns.add(field);
+        }
+        return List.copyOf(columns);
+    }
+}
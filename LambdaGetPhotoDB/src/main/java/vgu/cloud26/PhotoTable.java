@@ -0,0 +1,198 @@
+/*
+Class: PhotoTable
+Description: Statements on the Photos table over the container's RdsConnectionPool connection. Every write also bumps the gallery version in GalleryVersion, in the same transaction, so listing caches keyed by that version see it. Shared by the description functions, the listing function and the orchestrators that write descriptions in-process.
+Each statement's time, without getting the connection, is recorded as JdbcQuery by Statement and as a jdbc.<statement> span. No statement starts once the caller's deadline has passed.
+*/
+
+package vgu.cloud26;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+public final class PhotoTable {
+
+    // Single-row counter: CREATE TABLE GalleryVersion (ID INT PRIMARY KEY, Version BIGINT NOT NULL)
+    private static final String BUMP_VERSION
+            = "INSERT INTO GalleryVersion (ID, Version) VALUES (1, 1) ON DUPLICATE KEY UPDATE Version = Version + 1";
+
+    private static final String SELECT_VERSION = "SELECT Version FROM GalleryVersion WHERE ID = 1";
+
+    /**
+     * One row of Photos.
+     */
+    public record Photo(String description, String imageKey, String email) {
+    }
+
+    private interface Write {
+
+        int run(Connection connection) throws SQLException;
+    }
+
+    private PhotoTable() {
+    }
+
+    /**
+     * Records a photo's description.
+     *
+     * @throws SQLException if the insert fails; the pooled connection is
+     * dropped so the next statement reconnects.
+     */
+    public static void insert(String description, String imageKey, String email) throws SQLException {
+        inTransaction("insert", connection -> {
+            try (PreparedStatement stmt = connection.prepareStatement(
+                    "INSERT INTO Photos (Description, S3Key, Email) VALUES (?, ?, ?)")) {
+                stmt.setString(1, description);
+                stmt.setString(2, imageKey);
+                stmt.setString(3, email);
+                return stmt.executeUpdate();
+            }
+        });
+    }
+
+    /**
+     * Records many descriptions as one JDBC batch, which the driver sends as
+     * multi-row INSERTs (rewriteBatchedStatements). Rows already recorded
+     * under the same keys are replaced, so a batch can be retried.
+     *
+     * @throws SQLException if the insert fails; nothing is recorded and the
+     * pooled connection is dropped so the next statement reconnects.
+     */
+    public static void insertAll(List<Photo> photos) throws SQLException {
+        if (photos.isEmpty()) {
+            return;
+        }
+        List<String> imageKeys = photos.stream().map(Photo::imageKey).toList();
+        String keys = String.join(",", Collections.nCopies(imageKeys.size(), "?"));
+        inTransaction("insertAll", connection -> {
+            try (PreparedStatement stmt = connection.prepareStatement(
+                    "DELETE FROM Photos WHERE S3Key IN (" + keys + ")")) {
+                bind(stmt, imageKeys);
+                stmt.executeUpdate();
+            }
+            try (PreparedStatement stmt = connection.prepareStatement(
+                    "INSERT INTO Photos (Description, S3Key, Email) VALUES (?, ?, ?)")) {
+                for (Photo photo : photos) {
+                    stmt.setString(1, photo.description());
+                    stmt.setString(2, photo.imageKey());
+                    stmt.setString(3, photo.email());
+                    stmt.addBatch();
+                }
+                stmt.executeBatch();
+            }
+            return photos.size();
+        });
+    }
+
+    /**
+     * Deletes a photo's description.
+     *
+     * @return the number of rows deleted.
+     * @throws SQLException if the delete fails; the pooled connection is
+     * dropped so the next statement reconnects.
+     */
+    public static int delete(String imageKey) throws SQLException {
+        return inTransaction("delete", connection -> {
+            try (PreparedStatement stmt = connection.prepareStatement(
+                    "DELETE FROM Photos WHERE S3Key = ?")) {
+                stmt.setString(1, imageKey);
+                return stmt.executeUpdate();
+            }
+        });
+    }
+
+    /**
+     * Deletes the descriptions of many photos with one statement.
+     *
+     * @return the keys that had a description.
+     * @throws SQLException if the delete fails; the pooled connection is
+     * dropped so the next statement reconnects.
+     */
+    public static Set<String> deleteAll(List<String> imageKeys) throws SQLException {
+        Set<String> deleted = new HashSet<>();
+        if (imageKeys.isEmpty()) {
+            return deleted;
+        }
+        String keys = String.join(",", Collections.nCopies(imageKeys.size(), "?"));
+        inTransaction("deleteAll", connection -> {
+            // Locks the rows, so the keys reported are exactly the ones deleted
+            try (PreparedStatement select = connection.prepareStatement(
+                    "SELECT S3Key FROM Photos WHERE S3Key IN (" + keys + ") FOR UPDATE")) {
+                bind(select, imageKeys);
+                try (ResultSet rs = select.executeQuery()) {
+                    while (rs.next()) {
+                        deleted.add(rs.getString(1));
+                    }
+                }
+            }
+            try (PreparedStatement stmt = connection.prepareStatement(
+                    "DELETE FROM Photos WHERE S3Key IN (" + keys + ")")) {
+                bind(stmt, imageKeys);
+                return stmt.executeUpdate();
+            }
+        });
+        return deleted;
+    }
+
+    /**
+     * The gallery version: it changes whenever a write changes Photos.
+     *
+     * @return the version, or 0 if nothing was ever written.
+     * @throws SQLException if the query fails; the pooled connection is
+     * dropped so the next statement reconnects.
+     */
+    public static long version() throws SQLException {
+        Trace.checkDeadline();
+        Connection connection = RdsConnectionPool.getConnection();
+        long start = System.nanoTime();
+        try (PreparedStatement stmt = connection.prepareStatement(SELECT_VERSION);
+                ResultSet rs = stmt.executeQuery()) {
+            long version = rs.next() ? rs.getLong(1) : 0;
+            recordQuery("version", start);
+            return version;
+        } catch (SQLException ex) {
+            RdsConnectionPool.invalidate();
+            throw ex;
+        }
+    }
+
+    private static void bind(PreparedStatement stmt, List<String> values) throws SQLException {
+        for (int i = 0; i < values.size(); i++) {
+            stmt.setString(i + 1, values.get(i));
+        }
+    }
+
+    private static void recordQuery(String statement, long startNanos) {
+        Metrics.record("JdbcQuery", Metrics.millisSince(startNanos), Metrics.Unit.MILLISECONDS, "Statement", statement);
+        Trace.span("jdbc." + statement, startNanos);
+    }
+
+    // Runs a write and, if it changed any row, the version bump as one transaction
+    private static int inTransaction(String statement, Write write) throws SQLException {
+        Trace.checkDeadline();
+        Connection connection = RdsConnectionPool.getConnection();
+        long start = System.nanoTime();
+        try {
+            connection.setAutoCommit(false);
+            int rows = write.run(connection);
+            if (rows > 0) {
+                try (PreparedStatement stmt = connection.prepareStatement(BUMP_VERSION)) {
+                    stmt.executeUpdate();
+                }
+            }
+            connection.commit();
+            connection.setAutoCommit(true);
+            recordQuery(statement, start);
+            return rows;
+        } catch (SQLException ex) {
+            // Closing the connection rolls back whatever the transaction did
+            RdsConnectionPool.invalidate();
+            throw ex;
+        }
+    }
+}
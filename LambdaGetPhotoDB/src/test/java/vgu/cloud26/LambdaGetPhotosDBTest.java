@@ -0,0 +1,191 @@
+package vgu.cloud26;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.Driver;
+import java.sql.DriverPropertyInfo;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLFeatureNotSupportedException;
+import java.time.Clock;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class LambdaGetPhotosDBTest {
+
+    private static final long VERSION = 7;
+
+    // Photo IDs in the stand-in table, newest first
+    private static final List<Integer> IDS = List.of(3, 2, 1);
+
+    // A database answering the version query with VERSION and any other query with the rows of IDS
+    private static final class StandInDriver implements Driver {
+
+        private final AtomicInteger connections = new AtomicInteger();
+
+        @Override
+        public Connection connect(String url, Properties info) {
+            if (!acceptsURL(url)) {
+                return null;
+            }
+            connections.incrementAndGet();
+            return proxy(Connection.class, (method, args) -> switch (method) {
+                case "prepareStatement" -> statement((String) args[0]);
+                case "isClosed" -> false;
+                case "isValid" -> true;
+                default -> null;
+            });
+        }
+
+        private static PreparedStatement statement(String sql) {
+            return proxy(PreparedStatement.class, (method, args) -> switch (method) {
+                case "executeQuery" -> sql.startsWith("SELECT Version") ? versionRow() : photoRows();
+                default -> null;
+            });
+        }
+
+        private static ResultSet versionRow() {
+            AtomicInteger row = new AtomicInteger();
+            return proxy(ResultSet.class, (method, args) -> switch (method) {
+                case "next" -> row.incrementAndGet() == 1;
+                case "getLong" -> VERSION;
+                default -> null;
+            });
+        }
+
+        private static ResultSet photoRows() {
+            AtomicInteger row = new AtomicInteger(-1);
+            return proxy(ResultSet.class, (method, args) -> switch (method) {
+                case "next" -> row.incrementAndGet() < IDS.size();
+                case "getInt" -> IDS.get(row.get());
+                case "getString" -> args[0] + "-" + IDS.get(row.get());
+                default -> null;
+            });
+        }
+
+        @Override
+        public boolean acceptsURL(String url) {
+            return url.startsWith("jdbc:standin:");
+        }
+
+        @Override
+        public DriverPropertyInfo[] getPropertyInfo(String url, Properties info) {
+            return new DriverPropertyInfo[0];
+        }
+
+        @Override
+        public int getMajorVersion() {
+            return 1;
+        }
+
+        @Override
+        public int getMinorVersion() {
+            return 0;
+        }
+
+        @Override
+        public boolean jdbcCompliant() {
+            return false;
+        }
+
+        @Override
+        public Logger getParentLogger() throws SQLFeatureNotSupportedException {
+            throw new SQLFeatureNotSupportedException();
+        }
+    }
+
+    private interface Answer {
+
+        Object answer(String method, Object[] args);
+    }
+
+    private static <T> T proxy(Class<T> type, Answer answer) {
+        return type.cast(Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] {type},
+                (proxy, method, args) -> answer.answer(method.getName(), args)));
+    }
+
+    private StandInDriver driver;
+
+    private LambdaGetPhotosDB handler;
+
+    @Before
+    public void useStandIn() {
+        driver = new StandInDriver();
+        RdsConnectionPool.configure("jdbc:standin:photos", driver, () -> "token", new Properties(),
+                Clock.systemUTC());
+        handler = new LambdaGetPhotosDB();
+        Metrics.restored();
+    }
+
+    @After
+    public void dropConnection() {
+        RdsConnectionPool.invalidate();
+    }
+
+    private JSONObject list(JSONObject request, StubContext context) throws IOException {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        handler.handleRequest(new ByteArrayInputStream(request.toString().getBytes(StandardCharsets.UTF_8)),
+                output, context);
+        return new JSONObject(output.toString(StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void listingRecordsTheConnectAndEveryQuery() throws IOException {
+        StubContext context = new StubContext("LambdaGetPhotosDB");
+
+        JSONObject response = list(new JSONObject().put("body", new JSONObject().put("limit", 2).toString()),
+                context);
+
+        assertEquals(200, response.getInt("statusCode"));
+        JSONObject page = new JSONObject(response.getString("body"));
+        assertEquals(VERSION, page.getLong("version"));
+        assertEquals(2, page.getJSONArray("items").length());
+        assertEquals(1, context.metric("JdbcConnect").size());
+        assertEquals(1, context.metric("JdbcQuery", "Statement", "version").size());
+        List<Double> pageQuery = context.metric("JdbcQuery", "Statement", "page");
+        assertEquals(1, pageQuery.size());
+        assertTrue(pageQuery.get(0) >= 0);
+        assertEquals(List.of((double) response.getString("body").length()), context.metric("ResponseBytes"));
+        assertEquals(List.of(1.0), context.metric("ColdStart"));
+    }
+
+    @Test
+    public void warmListingReusesTheConnection() throws IOException {
+        list(new JSONObject(), new StubContext("LambdaGetPhotosDB"));
+        StubContext context = new StubContext("LambdaGetPhotosDB");
+
+        JSONObject response = list(new JSONObject().put("envelope", LambdaGetPhotosDB.ENVELOPE_NONE), context);
+
+        assertEquals(3, response.getJSONArray("items").length());
+        assertEquals(1, driver.connections.get());
+        assertTrue(context.metric("JdbcConnect").isEmpty());
+        assertEquals(1, context.metric("JdbcQuery", "Statement", "page").size());
+        assertEquals(List.of(0.0), context.metric("ColdStart"));
+    }
+
+    @Test
+    public void unchangedListingOnlyQueriesTheVersion() throws IOException {
+        StubContext context = new StubContext("LambdaGetPhotosDB");
+
+        JSONObject response = list(new JSONObject().put("envelope", LambdaGetPhotosDB.ENVELOPE_NONE)
+                .put("ifVersion", VERSION), context);
+
+        assertTrue(response.getBoolean("notModified"));
+        assertEquals(1, context.metric("JdbcQuery", "Statement", "version").size());
+        assertTrue(context.metric("JdbcQuery", "Statement", "page").isEmpty());
+    }
+}
@@ -0,0 +1,215 @@
+package vgu.cloud26;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.Driver;
+import java.sql.DriverPropertyInfo;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class RdsConnectionPoolTest {
+
+    private static final String URL = "jdbc:standin:photos";
+
+    /**
+     * A connection of the stand-in database: remembers the password it was
+     * opened with, and answers isValid with valid.
+     */
+    private static final class StandInConnection {
+
+        private final String password;
+
+        private volatile boolean closed;
+
+        private volatile boolean valid = true;
+
+        private final AtomicInteger validations = new AtomicInteger();
+
+        private Connection connection;
+
+        StandInConnection(String password) {
+            this.password = password;
+        }
+    }
+
+    // Opens StandInConnections and keeps every one it opened
+    private static final class StandInDriver implements Driver {
+
+        private final List<StandInConnection> opened = new CopyOnWriteArrayList<>();
+
+        @Override
+        public Connection connect(String url, Properties info) {
+            if (!acceptsURL(url)) {
+                return null;
+            }
+            StandInConnection standIn = new StandInConnection(info.getProperty("password"));
+            standIn.connection = (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(),
+                    new Class<?>[] {Connection.class}, (proxy, method, args) -> switch (method.getName()) {
+                        case "isClosed" -> standIn.closed;
+                        case "isValid" -> {
+                            standIn.validations.incrementAndGet();
+                            yield standIn.valid;
+                        }
+                        case "close" -> {
+                            standIn.closed = true;
+                            yield null;
+                        }
+                        default -> throw new UnsupportedOperationException(method.getName());
+                    });
+            opened.add(standIn);
+            return standIn.connection;
+        }
+
+        @Override
+        public boolean acceptsURL(String url) {
+            return url.startsWith("jdbc:standin:");
+        }
+
+        @Override
+        public DriverPropertyInfo[] getPropertyInfo(String url, Properties info) {
+            return new DriverPropertyInfo[0];
+        }
+
+        @Override
+        public int getMajorVersion() {
+            return 1;
+        }
+
+        @Override
+        public int getMinorVersion() {
+            return 0;
+        }
+
+        @Override
+        public boolean jdbcCompliant() {
+            return false;
+        }
+
+        @Override
+        public Logger getParentLogger() throws SQLFeatureNotSupportedException {
+            throw new SQLFeatureNotSupportedException();
+        }
+    }
+
+    private static final class SettableClock extends Clock {
+
+        private volatile Instant now = Instant.parse("2026-01-01T00:00:00Z");
+
+        void advance(Duration duration) {
+            now = now.plus(duration);
+        }
+
+        @Override
+        public Instant instant() {
+            return now;
+        }
+
+        @Override
+        public ZoneId getZone() {
+            return ZoneOffset.UTC;
+        }
+
+        @Override
+        public Clock withZone(ZoneId zone) {
+            return this;
+        }
+    }
+
+    private StandInDriver driver;
+
+    private SettableClock clock;
+
+    private AtomicInteger tokens;
+
+    @Before
+    public void useStandIn() {
+        driver = new StandInDriver();
+        clock = new SettableClock();
+        tokens = new AtomicInteger();
+        RdsConnectionPool.configure(URL, driver, () -> "token-" + tokens.incrementAndGet(), new Properties(),
+                clock);
+    }
+
+    @After
+    public void dropConnection() {
+        RdsConnectionPool.invalidate();
+    }
+
+    @Test
+    public void connectionIsReusedWithoutValidationWhenRecentlyUsed() throws SQLException {
+        Connection first = RdsConnectionPool.getConnection();
+        clock.advance(Duration.ofSeconds(4));
+        Connection second = RdsConnectionPool.getConnection();
+
+        assertSame(first, second);
+        assertEquals(1, driver.opened.size());
+        assertEquals(0, driver.opened.get(0).validations.get());
+    }
+
+    @Test
+    public void idleConnectionIsValidatedBeforeReuse() throws SQLException {
+        Connection first = RdsConnectionPool.getConnection();
+        clock.advance(Duration.ofSeconds(6));
+
+        assertSame(first, RdsConnectionPool.getConnection());
+        assertEquals(1, driver.opened.get(0).validations.get());
+    }
+
+    @Test
+    public void connectionFailingValidationIsReplaced() throws SQLException {
+        Connection first = RdsConnectionPool.getConnection();
+        driver.opened.get(0).valid = false;
+        clock.advance(Duration.ofSeconds(6));
+
+        Connection second = RdsConnectionPool.getConnection();
+
+        assertNotSame(first, second);
+        assertEquals(2, driver.opened.size());
+        assertTrue(driver.opened.get(0).closed);
+    }
+
+    @Test
+    public void invalidatedConnectionIsClosedAndReopened() throws SQLException {
+        Connection first = RdsConnectionPool.getConnection();
+        RdsConnectionPool.invalidate();
+
+        assertTrue(driver.opened.get(0).closed);
+        assertNotSame(first, RdsConnectionPool.getConnection());
+        assertEquals(2, driver.opened.size());
+        // Still well within its lifetime, so the token is reused
+        assertEquals(1, tokens.get());
+    }
+
+    @Test
+    public void tokenIsRenewedThirteenMinutesAfterIssue() throws SQLException {
+        RdsConnectionPool.getConnection();
+        clock.advance(Duration.ofMinutes(13).minusSeconds(1));
+        RdsConnectionPool.invalidate();
+        RdsConnectionPool.getConnection();
+        clock.advance(Duration.ofSeconds(1));
+        RdsConnectionPool.invalidate();
+        RdsConnectionPool.getConnection();
+
+        assertEquals(List.of("token-1", "token-1", "token-2"),
+                driver.opened.stream().map(standIn -> standIn.password).toList());
+    }
+}
@@ -1,27 +1,30 @@
 /*
 Function: LambdaImageResizer
 Description: Take input image as base64 string, resize it to thumbnail size, and return reiszed image as base64 string.
+Alternatively read the source from "bucket"/"key" and, when "dstBucket"/"imageKey" are given, write every configured rendition (see Renditions) straight to S3.
 */
 
 package vgu.cloud26;
 
 
-import java.awt.Color;
-import java.awt.Graphics2D;
-import java.awt.RenderingHints;
 import java.awt.image.BufferedImage;
 import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.io.InputStream;
 import java.util.Base64;
+import java.util.List;
 import java.util.Map;
 
 import javax.imageio.ImageIO;
 
-// import software.amazon.awssdk.services.s3.model.GetObjectRequest;
-// import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.GetObjectRequest;
 import com.amazonaws.services.lambda.runtime.events.APIGatewayProxyRequestEvent;
 import com.amazonaws.services.lambda.runtime.events.APIGatewayProxyResponseEvent;
+import org.json.JSONArray;
 import org.json.JSONObject;
+import org.crac.Core;
+import org.crac.Resource;
 
 
 import com.amazonaws.services.lambda.runtime.Context;
@@ -32,40 +35,94 @@ import com.amazonaws.services.lambda.runtime.RequestHandler;
 
 // Handler value: example.Handler
 public class LambdaImageResizer implements
-        RequestHandler<APIGatewayProxyRequestEvent, APIGatewayProxyResponseEvent> {
+        RequestHandler<APIGatewayProxyRequestEvent, APIGatewayProxyResponseEvent>, Resource {
 
     private static final float MAX_DIMENSION = 100;
 
+    // Built once per execution environment and reused by every warm invocation
+    private final S3Client s3Client = AwsClients.build(S3Client.builder());
+
+    public LambdaImageResizer() {
+        Core.getGlobalContext().register(this);
+    }
+
+    /**
+     * Runs the whole rendition chain on generated photos, so the SnapStart
+     * snapshot already holds loaded codecs and compiled scaling loops.
+     */
     @Override
-    public APIGatewayProxyResponseEvent
-            handleRequest(APIGatewayProxyRequestEvent event, Context context) {
-        LambdaLogger logger = context.getLogger();
+    public void beforeCheckpoint(org.crac.Context<? extends Resource> context) throws IOException {
+        ImageRenditions.prime(Renditions.configured());
+    }
 
-        String content = event.getBody();
-        if (content != null && content.equals("EventBridgeInvoke")) {
-            logger.log("Invoked by EventBridge, no action taken.");
-            return new APIGatewayProxyResponseEvent()
-                    .withStatusCode(200)
-                    .withBody("No action taken for EventBridge invocation.");
+    @Override
+    public void afterRestore(org.crac.Context<? extends Resource> context) {
+        Metrics.restored();
+        // The S3 client resolves credentials and connects on first use
+    }
+
+    @Override
+    public APIGatewayProxyResponseEvent handleRequest(APIGatewayProxyRequestEvent event, Context context) {
+        Metrics.begin();
+        Metrics.recordSize("RequestBytes", event.getBody());
+        Trace.begin(event.getHeaders(), context);
+        try {
+            APIGatewayProxyResponseEvent response = Trace.expired() ? Trace.deadlineExceeded() : handle(event, context);
+            Metrics.recordSize("ResponseBytes", response.getBody());
+            return Trace.finish(response);
+        } finally {
+            Metrics.flush(context);
         }
+    }
+
+    private APIGatewayProxyResponseEvent handle(APIGatewayProxyRequestEvent event, Context context) {
+        LambdaLogger logger = context.getLogger();
 
         try {
             // Parse request
             JSONObject bodyJSON = new JSONObject(event.getBody());
-            // String srcKey = bodyJSON.getString("key");
-            // String srcBucket = bodyJSON.getString("bucket");
-            String base64Image = bodyJSON.getString("content");
 
-            byte[] imageBytes = Base64.getDecoder().decode(base64Image.getBytes());
+            // With a destination bucket, every configured rendition is written to S3;
+            // otherwise only the thumbnail is returned inline
+            boolean writeRenditions = bodyJSON.has("dstBucket");
+            List<Renditions.Rendition> renditions = Renditions.configured();
+            float decodeDimension = writeRenditions ? renditions.get(0).maxDimension() : MAX_DIMENSION;
+
+            // Decode once, reading the source from S3 when it is too large to inline
+            BufferedImage srcImage;
+            if (bodyJSON.has("bucket")) {
+                try (InputStream imageInputStream = getObject(s3Client,
+                        bodyJSON.getString("bucket"), bodyJSON.getString("key"))) {
+                    srcImage = readImage(imageInputStream, decodeDimension);
+                }
+            } else {
+                String base64Image = bodyJSON.getString("content");
+                byte[] imageBytes = Base64.getDecoder().decode(base64Image.getBytes());
+                InputStream imageInputStream = new java.io.ByteArrayInputStream(imageBytes);
+                srcImage = readImage(imageInputStream, decodeDimension);
+            }
+            if (srcImage == null) {
+                throw new IllegalArgumentException("Unsupported image format");
+            }
+
+            if (writeRenditions) {
+                JSONArray keys = new JSONArray(ImageRenditions.write(s3Client, srcImage, renditions,
+                        bodyJSON.getString("dstBucket"), bodyJSON.getString("imageKey")));
+
+                return new APIGatewayProxyResponseEvent()
+                        .withStatusCode(200)
+                        .withBody(new JSONObject().put("keys", keys).toString())
+                        .withHeaders(Map.of(
+                                "Content-Type", "application/json"
+                        ));
+            }
 
-            // Resize image
-            InputStream imageInputStream = new java.io.ByteArrayInputStream(imageBytes);
-            BufferedImage srcImage = ImageIO.read(imageInputStream);
             BufferedImage resized = resizeImage(srcImage);
 
-            // Encode as base64
             ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
             ImageIO.write(resized, "jpeg", outputStream);
+
+            // Encode as base64
             String encoded = Base64.getEncoder().encodeToString(outputStream.toByteArray());
 
             // Build response
@@ -99,44 +156,34 @@ public class LambdaImageResizer implements
 //         return key.substring(lastDot + 1).toLowerCase();
 //     }
 
-//     private InputStream getObject(S3Client s3Client, String bucket, String key) {
-//         GetObjectRequest getObjectRequest = GetObjectRequest.builder()
-//                 .bucket(bucket)
-//                 .key(key)
-//                 .build();
-//         return s3Client.getObject(getObjectRequest);
-//     }
+    private InputStream getObject(S3Client s3Client, String bucket, String key) {
+        GetObjectRequest getObjectRequest = GetObjectRequest.builder()
+                .bucket(bucket)
+                .key(key)
+                .build();
+        return s3Client.getObject(getObjectRequest);
+    }
+
+    /**
+     * Decodes an image subsampled to what targetDimension needs; see
+     * ImageRenditions.readImage.
+     */
+    BufferedImage readImage(InputStream input, float targetDimension) throws IOException {
+        return ImageRenditions.readImage(input, targetDimension);
+    }
 
     /**
      * Resizes (shrinks) an image into a small, thumbnail-sized image.
      *
      * The new image is scaled down proportionally based on the source image.
      * The scaling factor is determined based on the value of MAX_DIMENSION. The
-     * resulting new image has max(height, width) = MAX_DIMENSION.
+     * resulting new image has max(height, width) = MAX_DIMENSION. Large
+     * sources are halved step by step before the final bilinear pass.
      *
      * @param srcImage BufferedImage to resize.
      * @return New BufferedImage that is scaled down to thumbnail size.
      */
-    private BufferedImage resizeImage(BufferedImage srcImage) {
-        int srcHeight = srcImage.getHeight();
-        int srcWidth = srcImage.getWidth();
-        // Infer scaling factor to avoid stretching image unnaturally
-        float scalingFactor = Math.min(
-                MAX_DIMENSION / srcWidth, MAX_DIMENSION / srcHeight);
-        int width = (int) (scalingFactor * srcWidth);
-        int height = (int) (scalingFactor * srcHeight);
-
-        BufferedImage resizedImage = new BufferedImage(width, height,
-                BufferedImage.TYPE_INT_RGB);
-        Graphics2D graphics = resizedImage.createGraphics();
-        // Fill with white before applying semi-transparent (alpha) images
-        graphics.setPaint(Color.white);
-        graphics.fillRect(0, 0, width, height);
-        // Simple bilinear resize
-        graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION,
-                RenderingHints.VALUE_INTERPOLATION_BILINEAR);
-        graphics.drawImage(srcImage, 0, 0, width, height, null);
-        graphics.dispose();
-        return resizedImage;
+    BufferedImage resizeImage(BufferedImage srcImage) {
+        return ImageRenditions.resizeTo(srcImage, MAX_DIMENSION);
     }
 }
@@ -0,0 +1,87 @@
+/*
+Class: Renditions
+Description: The set of resized copies kept for every photo, and the keys they are stored under in resized-cloud-public-mpg.
+*/
+
+package vgu.cloud26;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+public final class Renditions {
+
+    public static final String BUCKET = "resized-cloud-public-mpg";
+
+    /**
+     * One resized copy: stored as name + "-" + original key, scaled so its
+     * longest side is maxDimension pixels.
+     */
+    public record Rendition(String name, int maxDimension) {
+
+        public String keyFor(String originalKey) {
+            return name + "-" + originalKey;
+        }
+
+        public String webpKeyFor(String originalKey) {
+            int lastDot = originalKey.lastIndexOf('.');
+            String base = lastDot == -1 ? originalKey : originalKey.substring(0, lastDot);
+            return name + "-" + base + ".webp";
+        }
+    }
+
+    // "resized" is the thumbnail name the gallery has always used
+    static final String DEFAULT_SPEC = "resized:100,preview:400,web:1280";
+
+    private static final String SPEC_VARIABLE = "RENDITIONS";
+
+    private static final String WEBP_VARIABLE = "RENDITIONS_WEBP";
+
+    private Renditions() {
+    }
+
+    /**
+     * Renditions from the RENDITIONS environment variable, largest first.
+     * Every function that writes or deletes renditions must see the same value.
+     */
+    public static List<Rendition> configured() {
+        String spec = System.getenv(SPEC_VARIABLE);
+        return parse(spec == null || spec.isBlank() ? DEFAULT_SPEC : spec);
+    }
+
+    /**
+     * Whether WebP copies are requested via RENDITIONS_WEBP=true. They are
+     * only written if an ImageIO WebP writer is on the classpath.
+     */
+    public static boolean webpRequested() {
+        return Boolean.parseBoolean(System.getenv(WEBP_VARIABLE));
+    }
+
+    /**
+     * Every key the currently configured renditions can occupy, with or
+     * without a WebP copy, so deletes need not know whether one was written.
+     * Keys are derived from RENDITIONS alone: copies of a rendition since
+     * removed from it are not included, and stay behind.
+     */
+    public static List<String> keysFor(String originalKey) {
+        List<String> keys = new ArrayList<>();
+        for (Rendition rendition : configured()) {
+            keys.add(rendition.keyFor(originalKey));
+            keys.add(rendition.webpKeyFor(originalKey));
+        }
+        return keys;
+    }
+
+    static List<Rendition> parse(String spec) {
+        List<Rendition> renditions = new ArrayList<>();
+        for (String entry : spec.split(",")) {
+            String[] parts = entry.trim().split(":");
+            if (parts.length != 2) {
+                throw new IllegalArgumentException("Rendition must be name:size, got '" + entry + "'");
+            }
+            renditions.add(new Rendition(parts[0].trim(), Integer.parseInt(parts[1].trim())));
+        }
+        renditions.sort(Comparator.comparingInt(Rendition::maxDimension).reversed());
+        return List.copyOf(renditions);
+    }
+}
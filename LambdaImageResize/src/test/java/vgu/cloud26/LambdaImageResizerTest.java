@@ -0,0 +1,96 @@
+package vgu.cloud26;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.amazonaws.services.lambda.runtime.events.APIGatewayProxyRequestEvent;
+import com.amazonaws.services.lambda.runtime.events.APIGatewayProxyResponseEvent;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Base64;
+import java.util.List;
+
+import javax.imageio.ImageIO;
+
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import software.amazon.awssdk.auth.credentials.AwsBasicCredentials;
+import software.amazon.awssdk.auth.credentials.StaticCredentialsProvider;
+
+public class LambdaImageResizerTest {
+
+    private LocalS3Server s3;
+
+    private LambdaImageResizer handler;
+
+    @Before
+    public void startS3() throws IOException {
+        s3 = new LocalS3Server();
+        AwsClients.configure(s3.endpoint(),
+                StaticCredentialsProvider.create(AwsBasicCredentials.create("test", "test")));
+        handler = new LambdaImageResizer();
+        Metrics.restored();
+    }
+
+    @After
+    public void stopS3() {
+        s3.close();
+    }
+
+    private static String photo(int width, int height) throws IOException {
+        ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+        ImageIO.write(new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB), "jpeg", encoded);
+        return Base64.getEncoder().encodeToString(encoded.toByteArray());
+    }
+
+    private APIGatewayProxyResponseEvent invoke(JSONObject body, StubContext context) {
+        return handler.handleRequest(new APIGatewayProxyRequestEvent().withBody(body.toString()), context);
+    }
+
+    @Test
+    public void renditionsRecordTheirResizeEncodeAndUpload() throws IOException {
+        StubContext context = new StubContext("LambdaImageResizer");
+        int renditions = Renditions.configured().size();
+
+        APIGatewayProxyResponseEvent response = invoke(new JSONObject()
+                .put("content", photo(1600, 1200))
+                .put("dstBucket", "resized-test")
+                .put("imageKey", "photo.jpg"), context);
+
+        assertEquals(200, (int) response.getStatusCode());
+        assertEquals(List.of(1.92), context.metric("InputMegapixels"));
+        assertEquals(1, context.metric("DecodeDuration").size());
+        assertEquals(renditions, context.metric("ResizeDuration").size());
+        assertEquals(renditions, context.metric("EncodeDuration").size());
+        assertTrue(context.metric("ResizeDuration").stream().allMatch(millis -> millis >= 0));
+        List<Double> putLatency = context.metric("S3Latency", "Operation", "PutObject");
+        assertEquals(renditions, putLatency.size());
+        assertTrue(putLatency.stream().allMatch(millis -> millis > 0));
+        assertTrue(context.metric("S3BytesSent", "Operation", "PutObject").stream().allMatch(bytes -> bytes > 0));
+        assertEquals(List.of(1.0), context.metric("ColdStart"));
+        assertEquals("LambdaImageResizer", context.metricDocuments().get(0).getString("Function"));
+        assertEquals("test-request", context.metricDocuments().get(0).getString("requestId"));
+    }
+
+    @Test
+    public void inlineThumbnailIsResizedOnceAndWritesNothing() throws IOException {
+        invoke(new JSONObject().put("content", photo(320, 240)), new StubContext("LambdaImageResizer"));
+        StubContext context = new StubContext("LambdaImageResizer");
+
+        APIGatewayProxyResponseEvent response = invoke(new JSONObject().put("content", photo(640, 480)), context);
+
+        assertEquals(200, (int) response.getStatusCode());
+        assertEquals(List.of(0.3072), context.metric("InputMegapixels"));
+        assertEquals(1, context.metric("ResizeDuration").size());
+        assertTrue(context.metric("S3Latency", "Operation", "PutObject").isEmpty());
+        // Only the first invocation after the restore is a cold start
+        assertEquals(List.of(0.0), context.metric("ColdStart"));
+        assertFalse(context.metricDocuments().get(0).has("InitDuration"));
+    }
+}
@@ -0,0 +1,136 @@
+/*
+Class: StubContext
+Description: Minimal Lambda Context for calling a handler in a test; log lines, EMF metric documents included, are kept for the test to read.
+*/
+
+package vgu.cloud26;
+
+import com.amazonaws.services.lambda.runtime.ClientContext;
+import com.amazonaws.services.lambda.runtime.CognitoIdentity;
+import com.amazonaws.services.lambda.runtime.Context;
+import com.amazonaws.services.lambda.runtime.LambdaLogger;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.json.JSONObject;
+
+public class StubContext implements Context {
+
+    private final String functionName;
+
+    private final List<String> lines = new ArrayList<>();
+
+    private final LambdaLogger logger = new LambdaLogger() {
+        @Override
+        public void log(String message) {
+            lines.add(message);
+        }
+
+        @Override
+        public void log(byte[] message) {
+            lines.add(new String(message, StandardCharsets.UTF_8));
+        }
+    };
+
+    public StubContext(String functionName) {
+        this.functionName = functionName;
+    }
+
+    /**
+     * The EMF documents Metrics.flush wrote to the log.
+     */
+    public List<JSONObject> metricDocuments() {
+        List<JSONObject> documents = new ArrayList<>();
+        for (String line : lines) {
+            if (line.startsWith("{") && line.contains("\"_aws\"")) {
+                documents.add(new JSONObject(line));
+            }
+        }
+        return documents;
+    }
+
+    /**
+     * Every value of metric in the documents whose dimensions are Function
+     * and, unless dimension is null, dimension = dimensionValue.
+     */
+    public List<Double> metric(String metric, String dimension, String dimensionValue) {
+        List<Double> values = new ArrayList<>();
+        for (JSONObject document : metricDocuments()) {
+            boolean matches = dimension == null
+                    ? document.getJSONObject("_aws").getJSONArray("CloudWatchMetrics").getJSONObject(0)
+                            .getJSONArray("Dimensions").getJSONArray(0).length() == 1
+                    : dimensionValue.equals(document.optString(dimension, null));
+            if (!matches || !document.has(metric)) {
+                continue;
+            }
+            Object value = document.get(metric);
+            if (value instanceof Number number) {
+                values.add(number.doubleValue());
+            } else {
+                document.getJSONArray(metric).forEach(each -> values.add(((Number) each).doubleValue()));
+            }
+        }
+        return values;
+    }
+
+    public List<Double> metric(String metric) {
+        return metric(metric, null, null);
+    }
+
+    @Override
+    public String getAwsRequestId() {
+        return "test-request";
+    }
+
+    @Override
+    public String getLogGroupName() {
+        return "/aws/lambda/" + functionName;
+    }
+
+    @Override
+    public String getLogStreamName() {
+        return functionName;
+    }
+
+    @Override
+    public String getFunctionName() {
+        return functionName;
+    }
+
+    @Override
+    public String getFunctionVersion() {
+        return "$LATEST";
+    }
+
+    @Override
+    public String getInvokedFunctionArn() {
+        return "arn:aws:lambda:us-east-1:000000000000:function:" + functionName;
+    }
+
+    @Override
+    public CognitoIdentity getIdentity() {
+        return null;
+    }
+
+    @Override
+    public ClientContext getClientContext() {
+        return null;
+    }
+
+    @Override
+    public int getRemainingTimeInMillis() {
+        return 30_000;
+    }
+
+    @Override
+    public int getMemoryLimitInMB() {
+        return 1024;
+    }
+
+    @Override
+    public LambdaLogger getLogger() {
+        return logger;
+    }
+}
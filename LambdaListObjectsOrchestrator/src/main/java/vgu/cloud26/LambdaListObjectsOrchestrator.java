@@ -1,6 +1,8 @@
 /*
 Function: LambdaListObjectsOrchestrator
-Description: Orchestrator function to validate token and get list of objects from RDS database.
+Description: Orchestrator function to validate token and get a page of the list of objects from RDS database. "limit", "cursor", "owner", "order" and "fields" in the request are passed on to LambdaGetPhotosDB, and the JSON page it returns is passed back as the body without being parsed or re-encoded.
+LambdaGetPhotosDB is called through HedgedReads: a slow call is hedged with a second one and a failed one retried, within a budget per request. While its circuit breaker is open or its bulkhead full, a page that may be served stale is, and otherwise the answer is 503 with Retry-After.
+Pages are cached per container (and across containers when LISTING_CACHE_BUCKET is set) by their parameters and the gallery version they were read at. A cached page is served once LambdaGetPhotosDB confirms its version is still current; if that takes longer than REVALIDATE_BUDGET or fails, a page confirmed within MAX_STALE is served and refreshed in the background. The X-Cache response header says which happened.
 */
 
 package vgu.cloud26;
@@ -10,89 +12,165 @@ import com.amazonaws.services.lambda.runtime.LambdaLogger;
 import com.amazonaws.services.lambda.runtime.RequestHandler;
 import com.amazonaws.services.lambda.runtime.events.APIGatewayProxyRequestEvent;
 import com.amazonaws.services.lambda.runtime.events.APIGatewayProxyResponseEvent;
-import java.nio.ByteBuffer;
-import java.nio.charset.StandardCharsets;
-import java.util.Base64;
+import java.time.Clock;
+import java.time.Duration;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import org.json.JSONObject;
-import software.amazon.awssdk.awscore.exception.AwsServiceException;
-import software.amazon.awssdk.core.SdkBytes;            
-import software.amazon.awssdk.core.exception.SdkClientException;
-import software.amazon.awssdk.regions.Region;
-import software.amazon.awssdk.services.lambda.LambdaClient;
+import org.crac.Core;
+import org.crac.Resource;
+import software.amazon.awssdk.core.SdkBytes;
 import software.amazon.awssdk.services.lambda.model.InvokeRequest;
 import software.amazon.awssdk.services.lambda.model.InvokeResponse;
 
 public class LambdaListObjectsOrchestrator implements
-        RequestHandler<APIGatewayProxyRequestEvent, APIGatewayProxyResponseEvent> {
+        RequestHandler<APIGatewayProxyRequestEvent, APIGatewayProxyResponseEvent>, Resource {
 
-    private final LambdaClient lambdaClient;
+    private static final List<String> LISTING_PARAMETERS = List.of("limit", "cursor", "owner", "order", "fields");
+
+    // How long a cached page waits for LambdaGetPhotosDB to confirm it
+    private static final Duration REVALIDATE_BUDGET = Duration.ofMillis(500);
+
+    // How long after its last confirmation a page may be served without one
+    private static final Duration MAX_STALE = Duration.ofMinutes(5);
+
+    private static final int CACHE_ENTRIES = 256;
+
+    static final String CACHE_HIT = "hit";
+
+    static final String CACHE_MISS = "miss";
+
+    static final String CACHE_STALE = "stale";
+
+    private static final ExecutorService REFRESHES = Executors.newVirtualThreadPerTaskExecutor();
+
+    // A listing call that outlives this has failed; the stale page is served instead
+    private static final Duration READ_TIMEOUT = Duration.ofSeconds(10);
+
+    private final HedgedReads reads;
+
+    // Lives as long as the execution environment; see ListingCache
+    private final ListingCache cache;
 
     public LambdaListObjectsOrchestrator() {
-        this.lambdaClient = LambdaClient.builder()
-                .region(Region.of("us-east-1"))
-                .build();
+        this(HedgedReads.create());
+    }
+
+    LambdaListObjectsOrchestrator(HedgedReads reads) {
+        this.reads = reads;
+        this.cache = new ListingCache(CACHE_ENTRIES, S3ListingStore.fromEnvironment(), Clock.systemUTC());
+        Core.getGlobalContext().register(this);
     }
 
-    // Helper to call another Lambda
-    public String callLambda(String functionName, String payload, LambdaLogger logger) {
-        String message;
-        InvokeRequest invokeRequest = InvokeRequest.builder()
-                .functionName(functionName)
+    @Override
+    public void beforeCheckpoint(org.crac.Context<? extends Resource> context) {
+        // Token check and invoke request, short of any network call
+        JSONObject bodyJSON = new JSONObject(new JSONObject()
+                .put("email", "priming@example.com")
+                .put("token", "priming")
+                .toString());
+        bodyJSON.getString("email");
+        TokenVerifier.prime();
+        String page = "{\"version\":1,\"notModified\":true}";
+        ListingCache.keyFor(listingParameters(new JSONObject().put("limit", 50).put("order", "desc")));
+        ListingCache.versionOf(page);
+        ListingCache.isNotModified(page);
+        page(page, CACHE_HIT);
+        InvokeRequest.builder()
+                .functionName("LambdaGetPhotosDB")
                 .invocationType("RequestResponse")
-                .payload(SdkBytes.fromUtf8String(payload))
+                .payload(SdkBytes.fromUtf8String(new JSONObject()
+                        .put("envelope", "none")
+                        .put("body", listingParameters(new JSONObject().put("limit", 50)).toString())
+                        .put("ifVersion", 1)
+                        .toString()))
                 .build();
+        reads.hedgeDelay("LambdaGetPhotosDB");
+        HedgedReads.retryable(InvokeResponse.builder()
+                .functionError("Unhandled")
+                .payload(SdkBytes.fromUtf8String(new JSONObject()
+                        .put("errorType", IllegalArgumentException.class.getName())
+                        .toString()))
+                .build());
+    }
+
+    @Override
+    public void afterRestore(org.crac.Context<? extends Resource> context) {
+        Metrics.restored();
+        // The key may have been rotated since the snapshot was taken
+        TokenVerifier.reset();
+    }
 
+    // Helper to call a read Lambda, hedged and retried; returns null if every attempt failed.
+    // Throws CircuitBreakers.Rejected if the read was refused without being sent
+    public InvokeResponse callLambda(String functionName, String payload, LambdaLogger logger) {
         try {
-            InvokeResponse invokeResult = lambdaClient.invoke(invokeRequest);
-            ByteBuffer responsePayload = invokeResult.payload().asByteBuffer();
-            String responseString = StandardCharsets.UTF_8.decode(responsePayload).toString();
-
-            JSONObject responseObject = new JSONObject(responseString);
-            message = responseObject.optString("body", "");
-            logger.log("Response from " + functionName + ": " + message);
-            return message;
-
-        } catch (AwsServiceException | SdkClientException e) {
-            message = "Error calling " + functionName + ": " + e.getMessage();
-            logger.log(message);
-            return message;
+            InvokeResponse invokeResult = reads.invoke(functionName, payload, READ_TIMEOUT, HedgedReads.newBudget())
+                    .join();
+            logger.log("Response from " + functionName + ": " + invokeResult.payload().asByteArrayUnsafe().length
+                    + " bytes" + (invokeResult.functionError() != null ? ", " + invokeResult.functionError() : ""));
+            return invokeResult;
+
+        } catch (CompletionException | CancellationException e) {
+            logger.log("Error calling " + functionName + ": " + e.getCause());
+            if (e.getCause() instanceof CircuitBreakers.Rejected rejected) {
+                throw rejected;
+            }
+            return null;
         }
     }
 
+    /**
+     * Copies the listing parameters LambdaGetPhotosDB understands (limit,
+     * cursor, owner, order, fields) from the caller's request; the rest,
+     * such as the token, is not passed on.
+     */
+    static JSONObject listingParameters(JSONObject bodyJSON) {
+        JSONObject parameters = new JSONObject();
+        for (String name : LISTING_PARAMETERS) {
+            if (bodyJSON.has(name)) {
+                parameters.put(name, bodyJSON.get(name));
+            }
+        }
+        return parameters;
+    }
+
     @Override
     public APIGatewayProxyResponseEvent handleRequest(APIGatewayProxyRequestEvent event, Context context) {
+        Metrics.begin();
+        Metrics.recordSize("RequestBytes", event.getBody());
+        Trace.begin(event.getHeaders(), context);
+        try {
+            APIGatewayProxyResponseEvent response = Trace.expired() ? Trace.deadlineExceeded() : handle(event, context);
+            Metrics.recordSize("ResponseBytes", response.getBody());
+            return Trace.finish(response);
+        } finally {
+            Metrics.flush(context);
+        }
+    }
+
+    private APIGatewayProxyResponseEvent handle(APIGatewayProxyRequestEvent event, Context context) {
         LambdaLogger logger = context.getLogger();
 
         // Parse request
         String requestBody = event.getBody();
-        if (requestBody != null && requestBody.equals("EventBridgeInvoke")) {
-            logger.log("Invoked by EventBridge, no action taken.");
-            return new APIGatewayProxyResponseEvent()
-                    .withStatusCode(200)
-                    .withBody("No action taken for EventBridge invocation.");
-        }
         JSONObject bodyJSON = new JSONObject(requestBody);
 
 
         String email = bodyJSON.getString("email");
         String token = bodyJSON.getString("token");
 
-        String responseString = "";
-
-        // 1. Invoke LambdaTokenChecker
-        JSONObject tokenPayload = new JSONObject()
-                .put("email", email)
-                .put("token", token);
-
-        JSONObject tokenWrapper = new JSONObject()
-                .put("body", tokenPayload.toString());
-
-        responseString = callLambda("LambdaTokenChecker", tokenWrapper.toString(), logger);
-
-        // 2. Check if Email and Token are valid
-        JSONObject tokenResponse = new JSONObject(responseString);
-        Boolean success = tokenResponse.optBoolean("success", false);
+        // 1. Check if Email and Token are valid
+        boolean success = TokenVerifier.verify(email, token, logger);
         if (!success) {
             logger.log("Token validation failed. Aborting download.");
             return new APIGatewayProxyResponseEvent()
@@ -102,18 +180,127 @@ public class LambdaListObjectsOrchestrator implements
                     .withHeaders(Map.of("Content-Type", "text/plain"));
         }
 
-        // 3. Invoke LambdaGetListOfObjects
-        String payload = "";
-        responseString = callLambda("LambdaGetPhotosDB", payload, logger);
+        // 2. Get the requested page: from the cache if LambdaGetPhotosDB confirms
+        // its version in time, else read again. The revalidation runs on its own
+        // thread so that a slow database can be waited out with the cached page;
+        // bound to this invocation, so that what it records after the response
+        // is not counted in the next one
+        JSONObject parameters = listingParameters(bodyJSON);
+        String key = ListingCache.keyFor(parameters);
+        ListingCache.Entry cached = cache.get(key);
+        Future<APIGatewayProxyResponseEvent> refresh = CompletableFuture.supplyAsync(
+                () -> fetchListing(key, parameters, cached, logger), Trace.bind(Metrics.bind(REFRESHES)));
+        APIGatewayProxyResponseEvent response;
+        try {
+            if (cached == null) {
+                response = refresh.get();
+            } else {
+                try {
+                    response = refresh.get(REVALIDATE_BUDGET.toMillis(), TimeUnit.MILLISECONDS);
+                } catch (TimeoutException e) {
+                    if (cache.servableStale(cached, MAX_STALE)) {
+                        // The refresh carries on and updates the cache when it
+                        // finishes, in this invocation or the next one
+                        logger.log("LambdaGetPhotosDB slower than " + REVALIDATE_BUDGET.toMillis()
+                                + " ms, serving version " + cached.version());
+                        response = page(cached.page(), CACHE_STALE);
+                    } else {
+                        response = refresh.get();
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            response = error(502, "Error listing photos.");
+        } catch (ExecutionException e) {
+            logger.log("Error listing photos: " + e.getCause());
+            response = error(502, "Error listing photos.");
+        }
 
-        // 4. Return the downloaded object (base64 encoded)
-        // Base64 encode final combined response
-        String encodedString = Base64.getEncoder().encodeToString(responseString.getBytes());
+        // 3. Return the page
+        String cacheStatus = response.getHeaders().get("X-Cache");
+        if (cacheStatus != null) {
+            switch (cacheStatus) {
+                case CACHE_HIT -> cache.recordHit();
+                case CACHE_MISS -> cache.recordMiss();
+                default -> cache.recordStale();
+            }
+            logger.log("Listing cache " + cacheStatus + " (" + cache.stats() + "; " + reads.stats() + ")");
+        }
+        return response;
+    }
 
+    /**
+     * Invokes LambdaGetPhotosDB for a page and updates the cache. With a
+     * cached entry, only its version is checked ("ifVersion"). Without an
+     * envelope the payload is the page JSON itself, so it is returned as is:
+     * no parse, no Base64, and the page is only ever serialized once.
+     */
+    private APIGatewayProxyResponseEvent fetchListing(String key, JSONObject parameters,
+            ListingCache.Entry cached, LambdaLogger logger) {
+        JSONObject payload = new JSONObject()
+                .put("envelope", "none")
+                .put("body", parameters.toString())
+                .put("headers", Trace.headers(READ_TIMEOUT));
+        if (cached != null) {
+            payload.put("ifVersion", cached.version());
+        }
+        InvokeResponse listing;
+        Duration retryAfter = null;
+        try {
+            listing = callLambda("LambdaGetPhotosDB", payload.toString(), logger);
+        } catch (CircuitBreakers.Rejected e) {
+            listing = null;
+            retryAfter = e.retryAfter();
+        }
+        if (listing != null && listing.functionError() != null) {
+            // A bad cursor or parameter comes back as an IllegalArgumentException
+            JSONObject error = new JSONObject(listing.payload().asUtf8String());
+            if (IllegalArgumentException.class.getName().equals(error.optString("errorType"))) {
+                return error(400, error.optString("errorMessage"));
+            }
+            listing = null;
+        }
+        if (listing == null) {
+            if (cached != null && cache.servableStale(cached, MAX_STALE)) {
+                logger.log("LambdaGetPhotosDB failed, serving version " + cached.version());
+                return page(cached.page(), CACHE_STALE);
+            }
+            reads.breakers().recordMetrics();
+            if (retryAfter != null) {
+                return error(503, "Error listing photos.").withHeaders(Map.of("Content-Type", "application/json",
+                        "Retry-After", retryAfterSeconds(retryAfter)));
+            }
+            return error(502, "Error listing photos.");
+        }
+
+        String body = listing.payload().asUtf8String();
+        if (cached != null && ListingCache.isNotModified(body)) {
+            cache.revalidated(key, cached.version());
+            return page(cached.page(), CACHE_HIT);
+        }
+        cache.put(key, body);
+        return page(body, CACHE_MISS);
+    }
+
+    private static APIGatewayProxyResponseEvent page(String body, String cacheStatus) {
         return new APIGatewayProxyResponseEvent()
                 .withStatusCode(200)
-                .withBody(encodedString)
-                .withIsBase64Encoded(true)
-                .withHeaders(Map.of("Content-Type", "text/plain"));
+                .withBody(body)
+                .withIsBase64Encoded(false)
+                .withHeaders(Map.of("Content-Type", "application/json", "X-Cache", cacheStatus));
+    }
+
+    // Retry-After in whole seconds, rounded up
+    private static String retryAfterSeconds(Duration retryAfter) {
+        return Long.toString(Math.max(1, (retryAfter.toMillis() + 999) / 1000));
+    }
+
+    private static APIGatewayProxyResponseEvent error(int statusCode, String message) {
+        return new APIGatewayProxyResponseEvent()
+                .withStatusCode(statusCode)
+                .withBody(new JSONObject().put("message", message).toString())
+                .withIsBase64Encoded(false)
+                .withHeaders(Map.of("Content-Type", "application/json"));
     }
 }
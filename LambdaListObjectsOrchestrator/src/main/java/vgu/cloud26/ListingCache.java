@@ -0,0 +1,198 @@
+/*
+Class: ListingCache
+Description: Listing pages kept per container, keyed by the listing parameters and tagged with the gallery version they were read at, with an optional shared second tier (see S3ListingStore). Counts hits, misses and stale answers.
+*/
+
+package vgu.cloud26;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.json.JSONObject;
+
+public final class ListingCache {
+
+    /**
+     * A cached page.
+     *
+     * @param version gallery version the page was read at.
+     * @param page the page JSON, as LambdaGetPhotosDB wrote it.
+     * @param validatedAt when LambdaGetPhotosDB last confirmed the version.
+     */
+    public record Entry(long version, String page, Instant validatedAt) {
+    }
+
+    /**
+     * Second tier shared between containers, so that a cold container can
+     * revalidate a page instead of reading it again.
+     */
+    public interface Store {
+
+        Entry get(String key);
+
+        void put(String key, Entry entry);
+    }
+
+    private static final String VERSION_PREFIX = "{\"version\":";
+
+    private static final String NOT_MODIFIED_SUFFIX = ",\"notModified\":true}";
+
+    private final int maxEntries;
+
+    private final Store store;
+
+    private final Clock clock;
+
+    private final Map<String, Entry> entries;
+
+    private final AtomicLong hits = new AtomicLong();
+
+    private final AtomicLong misses = new AtomicLong();
+
+    private final AtomicLong stale = new AtomicLong();
+
+    /**
+     * @param maxEntries entries kept before the least recently used is dropped.
+     * @param store shared tier, or null for this container only.
+     * @param clock clock for validation times.
+     */
+    public ListingCache(int maxEntries, Store store, Clock clock) {
+        this.maxEntries = maxEntries;
+        this.store = store;
+        this.clock = clock;
+        this.entries = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                return size() > ListingCache.this.maxEntries;
+            }
+        };
+    }
+
+    /**
+     * Cache key for a set of listing parameters; the same parameters in any
+     * order give the same key.
+     */
+    public static String keyFor(JSONObject parameters) {
+        return new JSONObject(new TreeMap<>(parameters.toMap())).toString();
+    }
+
+    /**
+     * The entry for key from this container, or else from the shared tier.
+     *
+     * @return the entry, or null if neither has one.
+     */
+    public Entry get(String key) {
+        synchronized (entries) {
+            Entry entry = entries.get(key);
+            if (entry != null || store == null) {
+                return entry;
+            }
+        }
+        Entry shared = store.get(key);
+        if (shared != null) {
+            synchronized (entries) {
+                entries.putIfAbsent(key, shared);
+            }
+        }
+        return shared;
+    }
+
+    /**
+     * Stores a page just read from LambdaGetPhotosDB, here and in the shared
+     * tier.
+     */
+    public Entry put(String key, String page) {
+        Entry entry = new Entry(versionOf(page), page, clock.instant());
+        synchronized (entries) {
+            Entry current = entries.get(key);
+            // A slow background refresh must not replace a newer page
+            if (current == null || current.version() <= entry.version()) {
+                entries.put(key, entry);
+            }
+        }
+        if (store != null) {
+            // Off the response path; if the container is frozen first, the
+            // write finishes when it is next invoked, and its S3 metrics are
+            // still written for the invocation that made it
+            Trace.bind(Metrics.bind(Thread::startVirtualThread)).execute(() -> store.put(key, entry));
+        }
+        return entry;
+    }
+
+    /**
+     * Marks an entry as confirmed current at version.
+     *
+     * @return the entry, or null if it was dropped or replaced meanwhile.
+     */
+    public Entry revalidated(String key, long version) {
+        synchronized (entries) {
+            Entry entry = entries.get(key);
+            if (entry == null || entry.version() != version) {
+                return null;
+            }
+            Entry confirmed = new Entry(version, entry.page(), clock.instant());
+            entries.put(key, confirmed);
+            return confirmed;
+        }
+    }
+
+    /**
+     * Whether an entry may still be answered with while its revalidation
+     * is slow or failing.
+     */
+    public boolean servableStale(Entry entry, Duration maxStale) {
+        return entry.validatedAt().plus(maxStale).isAfter(clock.instant());
+    }
+
+    public void recordHit() {
+        hits.incrementAndGet();
+    }
+
+    public void recordMiss() {
+        misses.incrementAndGet();
+    }
+
+    public void recordStale() {
+        stale.incrementAndGet();
+    }
+
+    /**
+     * Counters since the container started, for the log.
+     */
+    public String stats() {
+        int size;
+        synchronized (entries) {
+            size = entries.size();
+        }
+        return "hits=" + hits.get() + " misses=" + misses.get() + " stale=" + stale.get() + " entries=" + size;
+    }
+
+    /**
+     * Reads the gallery version at the start of a page or not-modified
+     * answer, without parsing the rest.
+     *
+     * @throws IllegalArgumentException if the payload does not start with it.
+     */
+    public static long versionOf(String payload) {
+        if (!payload.startsWith(VERSION_PREFIX)) {
+            throw new IllegalArgumentException("Listing has no version");
+        }
+        int end = VERSION_PREFIX.length();
+        while (end < payload.length() && Character.isDigit(payload.charAt(end))) {
+            end++;
+        }
+        return Long.parseLong(payload.substring(VERSION_PREFIX.length(), end));
+    }
+
+    /**
+     * Whether LambdaGetPhotosDB answered that the page is unchanged.
+     */
+    public static boolean isNotModified(String payload) {
+        return payload.endsWith(NOT_MODIFIED_SUFFIX) && payload.length() < 64;
+    }
+}
@@ -0,0 +1,82 @@
+/*
+Class: S3ListingStore
+Description: ListingCache tier shared by all LambdaListObjectsOrchestrator containers, one S3 object per cache key. A page read from here has not been validated by this container, so it is always revalidated before it is served.
+*/
+
+package vgu.cloud26;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Instant;
+import java.util.HexFormat;
+
+import software.amazon.awssdk.core.exception.SdkException;
+import software.amazon.awssdk.core.sync.RequestBody;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.GetObjectRequest;
+import software.amazon.awssdk.services.s3.model.PutObjectRequest;
+
+public final class S3ListingStore implements ListingCache.Store {
+
+    private static final String PREFIX = "listing-cache/";
+
+    private final S3Client s3Client;
+
+    private final String bucketName;
+
+    public S3ListingStore(S3Client s3Client, String bucketName) {
+        this.s3Client = s3Client;
+        this.bucketName = bucketName;
+    }
+
+    /**
+     * The store named by LISTING_CACHE_BUCKET, or null if it is not set.
+     */
+    public static S3ListingStore fromEnvironment() {
+        String bucketName = System.getenv("LISTING_CACHE_BUCKET");
+        if (bucketName == null || bucketName.isEmpty()) {
+            return null;
+        }
+        return new S3ListingStore(AwsClients.build(S3Client.builder()), bucketName);
+    }
+
+    @Override
+    public ListingCache.Entry get(String key) {
+        try {
+            String page = s3Client.getObjectAsBytes(GetObjectRequest.builder()
+                    .bucket(bucketName)
+                    .key(objectKey(key))
+                    .build()).asUtf8String();
+            // Never validated here: too old to be served stale
+            return new ListingCache.Entry(ListingCache.versionOf(page), page, Instant.EPOCH);
+        } catch (SdkException | IllegalArgumentException ex) {
+            // Not there yet, or unreadable: the page is read again
+            return null;
+        }
+    }
+
+    @Override
+    public void put(String key, ListingCache.Entry entry) {
+        try {
+            s3Client.putObject(PutObjectRequest.builder()
+                    .bucket(bucketName)
+                    .key(objectKey(key))
+                    .contentType("application/json")
+                    .build(),
+                    RequestBody.fromString(entry.page(), StandardCharsets.UTF_8));
+        } catch (SdkException ex) {
+            // Other containers read the page themselves
+        }
+    }
+
+    // Listing parameters can hold any text; the object key is their digest
+    private static String objectKey(String key) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            return PREFIX + HexFormat.of().formatHex(digest.digest(key.getBytes(StandardCharsets.UTF_8)));
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+}
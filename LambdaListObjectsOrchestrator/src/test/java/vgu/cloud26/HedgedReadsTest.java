@@ -0,0 +1,182 @@
+package vgu.cloud26;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntFunction;
+
+import org.json.JSONObject;
+import org.junit.Test;
+
+import software.amazon.awssdk.core.SdkBytes;
+import software.amazon.awssdk.services.lambda.model.InvokeResponse;
+
+public class HedgedReadsTest {
+
+    private static final String FUNCTION = "LambdaGetPhotosDB";
+
+    private static final Duration TIMEOUT = Duration.ofSeconds(5);
+
+    // Opens after a single failed call
+    private static final CircuitBreakers.Settings TRIGGER_HAPPY = new CircuitBreakers.Settings(
+            Duration.ofSeconds(60), 1, 0.5, 0.9, 1.0, Duration.ofSeconds(15), 10);
+
+    /**
+     * Answers the n-th call (from 0) with the response from responses,
+     * after the latency it returns; keeps the futures it handed out.
+     */
+    private static final class ScriptedTransport implements HedgedReads.Transport {
+
+        private final IntFunction<CompletableFuture<InvokeResponse>> responses;
+
+        private final List<CompletableFuture<InvokeResponse>> calls = new CopyOnWriteArrayList<>();
+
+        ScriptedTransport(IntFunction<CompletableFuture<InvokeResponse>> responses) {
+            this.responses = responses;
+        }
+
+        @Override
+        public CompletableFuture<InvokeResponse> invoke(String functionName, String payload) {
+            CompletableFuture<InvokeResponse> call = responses.apply(calls.size());
+            calls.add(call);
+            return call;
+        }
+    }
+
+    private static CompletableFuture<InvokeResponse> after(long millis, InvokeResponse response) {
+        return CompletableFuture.supplyAsync(() -> response,
+                CompletableFuture.delayedExecutor(millis, TimeUnit.MILLISECONDS));
+    }
+
+    private static InvokeResponse page() {
+        return InvokeResponse.builder()
+                .statusCode(200)
+                .payload(SdkBytes.fromUtf8String("{\"version\":1,\"items\":[]}"))
+                .build();
+    }
+
+    private static InvokeResponse crash() {
+        return InvokeResponse.builder()
+                .statusCode(200)
+                .functionError("Unhandled")
+                .payload(SdkBytes.fromUtf8String(new JSONObject()
+                        .put("errorType", "java.lang.IllegalStateException")
+                        .toString()))
+                .build();
+    }
+
+    // An API Gateway style response, as LambdaDownloadObject sends
+    private static InvokeResponse status(int statusCode) {
+        return InvokeResponse.builder()
+                .statusCode(200)
+                .payload(SdkBytes.fromUtf8String(new JSONObject()
+                        .put("statusCode", statusCode)
+                        .put("body", "")
+                        .toString()))
+                .build();
+    }
+
+    @Test
+    public void onlyCrashesAndServerErrorsAreRetryable() {
+        assertTrue(HedgedReads.retryable(crash()));
+        assertTrue(HedgedReads.retryable(status(500)));
+        assertTrue(HedgedReads.retryable(status(503)));
+        assertFalse(HedgedReads.retryable(status(200)));
+        assertFalse(HedgedReads.retryable(status(404)));
+        assertFalse(HedgedReads.retryable(page()));
+        assertFalse(HedgedReads.retryable(InvokeResponse.builder()
+                .statusCode(200)
+                .functionError("Unhandled")
+                .payload(SdkBytes.fromUtf8String(new JSONObject()
+                        .put("errorType", IllegalArgumentException.class.getName())
+                        .toString()))
+                .build()));
+    }
+
+    @Test
+    public void statusCodeIsReadWhereverTheKeySits() {
+        assertEquals(503, HedgedReads.statusCode(SdkBytes.fromUtf8String(
+                "{\"body\":\"" + "QUJD".repeat(100_000) + "\",\"statusCode\" : 503}")));
+        // Only quoted, and so escaped, inside a string
+        assertEquals(200, HedgedReads.statusCode(SdkBytes.fromUtf8String(
+                new JSONObject().put("items", "{\"statusCode\":500}").toString())));
+        assertEquals(502, HedgedReads.statusCode(SdkBytes.fromUtf8String(new JSONObject()
+                .put("body", "a backslash, then \\\"statusCode\":500")
+                .put("statusCode", 502)
+                .toString())));
+        assertEquals(200, HedgedReads.statusCode(SdkBytes.fromUtf8String("not json")));
+    }
+
+    @Test
+    public void serverErrorIsRetried() {
+        ScriptedTransport transport = new ScriptedTransport(n -> after(10, n == 0 ? status(500) : status(200)));
+        HedgedReads reads = new HedgedReads(transport, 95);
+
+        InvokeResponse response = reads.invoke("LambdaDownloadObject", "{}", TIMEOUT, HedgedReads.newBudget()).join();
+
+        assertEquals(2, transport.calls.size());
+        assertEquals(200, new JSONObject(response.payload().asUtf8String()).getInt("statusCode"));
+    }
+
+    @Test
+    public void openCircuitRefusesReadsWithoutSendingThem() {
+        ScriptedTransport transport = new ScriptedTransport(n -> after(10, crash()));
+        HedgedReads reads = new HedgedReads(transport, 95, new CircuitBreakers(TRIGGER_HAPPY));
+
+        // The first crash opens the circuit, so its retry is refused
+        reads.invoke(FUNCTION, "{}", TIMEOUT, HedgedReads.newBudget()).handle((response, ex) -> null).join();
+        int sent = transport.calls.size();
+        try {
+            reads.invoke(FUNCTION, "{}", TIMEOUT, HedgedReads.newBudget()).join();
+            fail("expected CircuitBreakers.Rejected");
+        } catch (CompletionException e) {
+            assertTrue(e.getCause() instanceof CircuitBreakers.Rejected);
+            assertNotNull(HedgedReads.retryAfter(e));
+        }
+
+        assertEquals(1, sent);
+        assertEquals(sent, transport.calls.size());
+        assertEquals(CircuitBreakers.State.OPEN, reads.breakers().state(FUNCTION));
+    }
+
+    @Test
+    public void losingHedgeDoesNotCountAgainstTheFunction() {
+        // The first attempt stalls past the hedge delay; the hedge answers at once
+        ScriptedTransport transport = new ScriptedTransport(n -> n == 0 ? after(2000, page()) : after(10, page()));
+        HedgedReads reads = new HedgedReads(transport, 95, new CircuitBreakers(TRIGGER_HAPPY));
+
+        reads.invoke(FUNCTION, "{}", TIMEOUT, HedgedReads.newBudget()).join();
+
+        assertEquals(2, transport.calls.size());
+        assertTrue(transport.calls.get(0).isCancelled());
+        JSONObject breaker = reads.breakers().toJSON().getJSONObject(FUNCTION);
+        assertEquals(0, breaker.getInt("failures"));
+        assertEquals(0, breaker.getInt("inFlight"));
+        assertEquals(CircuitBreakers.State.CLOSED, reads.breakers().state(FUNCTION));
+    }
+
+    @Test
+    public void readWithNoTimeLeftIsNotSent() {
+        ScriptedTransport transport = new ScriptedTransport(n -> after(10, page()));
+        HedgedReads reads = new HedgedReads(transport, 95, new CircuitBreakers(TRIGGER_HAPPY));
+
+        try {
+            reads.invoke(FUNCTION, "{}", Duration.ZERO, HedgedReads.newBudget()).join();
+            fail("expected Trace.DeadlineExceeded");
+        } catch (CompletionException e) {
+            assertTrue(e.getCause() instanceof Trace.DeadlineExceeded);
+        }
+
+        assertTrue(transport.calls.isEmpty());
+        assertEquals(CircuitBreakers.State.CLOSED, reads.breakers().state(FUNCTION));
+    }
+}
@@ -0,0 +1,167 @@
+/*
+Class: SecretCache
+Description: Per-container cache for a Parameter Store value read through the Parameters and Secrets extension, refreshed in the background before it expires.
+*/
+
+package vgu.cloud26;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Supplier;
+import org.json.JSONObject;
+
+public final class SecretCache {
+
+    // A rotated value is picked up within this interval
+    static final Duration DEFAULT_TTL = Duration.ofMinutes(5);
+
+    // After this age, reads still return the cached value but trigger a reload
+    static final Duration DEFAULT_REFRESH_AFTER = Duration.ofMinutes(4);
+
+    private static final String EXTENSION_URL = "http://localhost:2773/systemsmanager/parameters/get/";
+
+    private static final HttpClient HTTP_CLIENT = HttpClient.newBuilder()
+            .version(HttpClient.Version.HTTP_1_1)
+            .connectTimeout(Duration.ofSeconds(2))
+            .build();
+
+    // Refreshes run while an invocation is in flight; the thread is frozen with
+    // the rest of the container in between
+    private static final ExecutorService REFRESHER = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "secret-cache-refresh");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private record Entry(String value, Instant fetched) {
+    }
+
+    private final Supplier<String> loader;
+
+    private final Duration ttl;
+
+    private final Duration refreshAfter;
+
+    private final Clock clock;
+
+    private final AtomicBoolean refreshing = new AtomicBoolean();
+
+    private volatile Entry current;
+
+    SecretCache(Supplier<String> loader, Duration ttl, Duration refreshAfter, Clock clock) {
+        this.loader = loader;
+        this.ttl = ttl;
+        this.refreshAfter = refreshAfter;
+        this.clock = clock;
+    }
+
+    /**
+     * Creates a cache for a SecureString parameter, read with decryption.
+     *
+     * @param name Parameter Store name.
+     * @return a cache that has not fetched anything yet.
+     */
+    public static SecretCache forParameter(String name) {
+        return new SecretCache(() -> fetchParameter(name), DEFAULT_TTL, DEFAULT_REFRESH_AFTER,
+                Clock.systemUTC());
+    }
+
+    /**
+     * Returns the cached value. Only the first call, and calls after the
+     * value has fully expired, wait for the extension; in between, an ageing
+     * value is reloaded on a background thread.
+     *
+     * @return the parameter value.
+     * @throws IllegalStateException if no value has ever been loaded and
+     * loading fails.
+     */
+    public String get() {
+        Entry entry = current;
+        Instant now = clock.instant();
+        if (entry != null) {
+            Duration age = Duration.between(entry.fetched(), now);
+            if (age.compareTo(ttl) < 0) {
+                if (age.compareTo(refreshAfter) >= 0) {
+                    refreshInBackground();
+                }
+                return entry.value();
+            }
+        }
+        return loadNow();
+    }
+
+    /**
+     * Drops the cached value, so the next get() loads it again.
+     */
+    public synchronized void invalidate() {
+        current = null;
+    }
+
+    private synchronized String loadNow() {
+        Entry entry = current;
+        Instant now = clock.instant();
+        if (entry != null && Duration.between(entry.fetched(), now).compareTo(ttl) < 0) {
+            return entry.value();
+        }
+        try {
+            current = new Entry(loader.get(), now);
+        } catch (RuntimeException ex) {
+            if (entry == null) {
+                throw ex;
+            }
+            // Serve the expired value rather than failing every request while the
+            // extension is unavailable; retry on the next refresh interval
+            current = new Entry(entry.value(), now.minus(refreshAfter));
+        }
+        return current.value();
+    }
+
+    private void refreshInBackground() {
+        if (!refreshing.compareAndSet(false, true)) {
+            return;
+        }
+        REFRESHER.execute(() -> {
+            try {
+                current = new Entry(loader.get(), clock.instant());
+            } catch (RuntimeException ex) {
+                // Keep the current value; the next read past refreshAfter tries again
+            } finally {
+                refreshing.set(false);
+            }
+        });
+    }
+
+    static String fetchParameter(String name) {
+        HttpRequest request = HttpRequest.newBuilder()
+                .uri(URI.create(EXTENSION_URL + "?name=" + URLEncoder.encode(name, StandardCharsets.UTF_8)
+                        + "&withDecryption=true"))
+                .header("X-Aws-Parameters-Secrets-Token", System.getenv("AWS_SESSION_TOKEN"))
+                .timeout(Duration.ofSeconds(5))
+                .GET()
+                .build();
+        try {
+            HttpResponse<String> response = HTTP_CLIENT.send(request, HttpResponse.BodyHandlers.ofString());
+            if (response.statusCode() != 200) {
+                throw new IllegalStateException("Parameter extension returned " + response.statusCode()
+                        + " for " + name);
+            }
+            return new JSONObject(response.body()).getJSONObject("Parameter").getString("Value");
+        } catch (IOException ex) {
+            throw new IllegalStateException(ex);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(ex);
+        }
+    }
+}
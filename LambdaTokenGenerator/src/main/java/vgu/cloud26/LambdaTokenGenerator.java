@@ -10,70 +10,60 @@ import com.amazonaws.services.lambda.runtime.LambdaLogger;
 import com.amazonaws.services.lambda.runtime.RequestHandler;
 import com.amazonaws.services.lambda.runtime.events.APIGatewayProxyRequestEvent;
 import com.amazonaws.services.lambda.runtime.events.APIGatewayProxyResponseEvent;
-import java.net.URI;
-import java.net.http.HttpClient;
-import java.net.http.HttpRequest;
-import java.net.http.HttpResponse;
-import java.nio.charset.StandardCharsets;
-import java.security.InvalidKeyException;
-import java.security.NoSuchAlgorithmException;
-import java.time.Duration;
-import java.util.Base64;
 import java.util.Map;
-import javax.crypto.Mac;
-import javax.crypto.spec.SecretKeySpec;
 import org.json.JSONObject;
+import org.crac.Core;
+import org.crac.Resource;
 
-public class LambdaTokenGenerator implements RequestHandler<APIGatewayProxyRequestEvent, APIGatewayProxyResponseEvent> {
+public class LambdaTokenGenerator implements RequestHandler<APIGatewayProxyRequestEvent, APIGatewayProxyResponseEvent>, Resource {
 
-    public static String generateSecureToken(String data, String key, LambdaLogger logger) {
-        try {
-
-            // Specify the HMAC-SHA256 algorithm
-            Mac mac = Mac.getInstance("HmacSHA256");
-
-            // Create a SecretKeySpec from the provided key
-            SecretKeySpec secretKeySpec
-                    = new SecretKeySpec(key.getBytes(StandardCharsets.UTF_8),
-                            "HmacSHA256");
-            // Initialize the Mac with the secret key
-            mac.init(secretKeySpec);
-
-            // Compute the HMAC-SHA256 hash of the data
-            byte[] hmacBytes = mac.doFinal(data.getBytes(StandardCharsets.UTF_8));
-
-            // Convert the byte array to a base64 string 
-            String base64 = Base64.getEncoder().encodeToString(hmacBytes);
+    public LambdaTokenGenerator() {
+        Core.getGlobalContext().register(this);
+    }
 
-            logger.log("Input String: " + data);
-            logger.log("Secure Token: " + base64);
+    @Override
+    public void beforeCheckpoint(org.crac.Context<? extends Resource> context) {
+        new JSONObject(new JSONObject().put("email", "priming@example.com").toString()).getString("email");
+        TokenVerifier.prime();
+    }
 
-            return base64;
+    @Override
+    public void afterRestore(org.crac.Context<? extends Resource> context) {
+        Metrics.restored();
+        // The key may have been rotated since the snapshot was taken
+        TokenVerifier.reset();
+    }
 
-        } catch (NoSuchAlgorithmException e) {
-            // Handle the exception (e.g., log it, throw a custom exception)
-            logger.log("HmacSHA256 algorithm not found: " + e.getMessage());
-            return null;
-        } catch (InvalidKeyException ex) {
-            logger.log("InvalidKeyException: " + ex.getMessage());
-            return null;
+    public static String generateSecureToken(String data, String key, LambdaLogger logger) {
+        // Reuses this thread's initialized Mac; see TokenVerifier
+        String token = TokenVerifier.generateSecureToken(data, key);
+        if (token == null) {
+            logger.log("Could not compute HmacSHA256 token");
         }
+        return token;
     }
 
     @Override
     public APIGatewayProxyResponseEvent handleRequest(APIGatewayProxyRequestEvent event, Context context) {
+        Metrics.begin();
+        Metrics.recordSize("RequestBytes", event.getBody());
+        Trace.begin(event.getHeaders(), context);
+        try {
+            APIGatewayProxyResponseEvent response = Trace.expired() ? Trace.deadlineExceeded() : handle(event, context);
+            Metrics.recordSize("ResponseBytes", response.getBody());
+            return Trace.finish(response);
+        } finally {
+            Metrics.flush(context);
+        }
+    }
+
+    private APIGatewayProxyResponseEvent handle(APIGatewayProxyRequestEvent event, Context context) {
         LambdaLogger logger = context.getLogger();
         logger.log("Processing token generation request");
 
         try {
             // Parse the request body
             String requestBody = event.getBody();
-            if (requestBody != null && requestBody.equals("EventBridgeInvoke")) {
-                logger.log("Invoked by EventBridge, no action taken.");
-                return new APIGatewayProxyResponseEvent()
-                        .withStatusCode(200)
-                        .withBody("");
-            }
             JSONObject json = new JSONObject(requestBody);
             
             String email = json.getString("email");
@@ -86,32 +76,11 @@ public class LambdaTokenGenerator implements RequestHandler<APIGatewayProxyReque
                     .withBody("{\"success\": false, \"error\": \"Email is required\"}");
             }
             
-            // Get the session token from environment variable
-            String sessionToken = System.getenv("AWS_SESSION_TOKEN");
-            
-            HttpClient client = HttpClient.newBuilder()
-                        .version(HttpClient.Version.HTTP_1_1)
-                        .followRedirects(HttpClient.Redirect.NORMAL)
-                        .connectTimeout(Duration.ofSeconds(10))
-                        .build();
-                
-                HttpRequest requestParameter = HttpRequest.newBuilder()
-                        .uri(URI.create("http://localhost:2773/systemsmanager/parameters/get/?name=S3DownloadKey&withDecryption=true"))
-                        .header("X-Aws-Parameters-Secrets-Token", sessionToken)
-                        .GET()
-                        .build();
-
-                HttpResponse<String> responseParameter = client.send(requestParameter, HttpResponse.BodyHandlers.ofString());
-
-                // Parse the JSON response to extract the Parameter value
-                JSONObject paramResponse = new JSONObject(responseParameter.body());
-                JSONObject parameter = paramResponse.getJSONObject("Parameter");
-                String key = parameter.getString("Value");
-            
-            logger.log("Using key from parameter store: " + key);
-            
-            // Generate the token
-            String token = generateSecureToken(email, key, logger);
+            // The key is cached per container by TokenVerifier's SecretCache
+            String token = TokenVerifier.issue(email, logger);
+            if (token == null) {
+                throw new IllegalStateException("Token could not be generated");
+            }
             
             JSONObject responseBody = new JSONObject();
             responseBody.put("token", token);   
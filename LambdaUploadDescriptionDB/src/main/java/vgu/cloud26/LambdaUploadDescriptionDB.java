@@ -15,60 +15,61 @@ import com.amazonaws.services.lambda.runtime.events.APIGatewayProxyRequestEvent;
 
 import com.amazonaws.services.lambda.runtime.events.APIGatewayProxyResponseEvent;
 
-import java.sql.Connection;
-
-import java.sql.DriverManager;
-
-import java.sql.PreparedStatement;
+import java.sql.SQLException;
 
 
 import java.util.Base64;
 import java.util.Collections;
-import java.util.Properties;
 
 
 import org.json.JSONObject;
-
-import software.amazon.awssdk.auth.credentials.DefaultCredentialsProvider;
-
-import software.amazon.awssdk.regions.Region;
-
-import software.amazon.awssdk.services.rds.RdsUtilities;
-
-import software.amazon.awssdk.services.rds.model.GenerateAuthenticationTokenRequest;
+import org.crac.Core;
+import org.crac.Resource;
 
 public class LambdaUploadDescriptionDB
-                implements RequestHandler<APIGatewayProxyRequestEvent, APIGatewayProxyResponseEvent> {
-
-        private static final String RDS_INSTANCE_HOSTNAME
-
-                        = "database-1.c6p4im2uqehz.us-east-1.rds.amazonaws.com";
-
-        private static final int RDS_INSTANCE_PORT = 3306;
-
-        private static final String DB_USER = "cloud26";
-
-        private static final String JDBC_URL
+                implements RequestHandler<APIGatewayProxyRequestEvent, APIGatewayProxyResponseEvent>, Resource {
 
-                        = "jdbc:mysql://" + RDS_INSTANCE_HOSTNAME
+        public LambdaUploadDescriptionDB() {
+                Core.getGlobalContext().register(this);
+        }
 
-                                        + ":" + RDS_INSTANCE_PORT + "/Cloud26";
+        @Override
+        public void beforeCheckpoint(org.crac.Context<? extends Resource> context) throws SQLException {
+                JSONObject json = new JSONObject(new JSONObject()
+                                .put("description", "priming")
+                                .put("imageKey", "priming.jpeg")
+                                .put("email", "priming@example.com")
+                                .toString());
+                json.getString("imageKey");
+                RdsConnectionPool.prepareForCheckpoint();
+        }
 
         @Override
+        public void afterRestore(org.crac.Context<? extends Resource> context) {
+                Metrics.restored();
+                // getConnection() opens a fresh connection with a new IAM token on first use
+        }
 
+        @Override
         public APIGatewayProxyResponseEvent handleRequest(APIGatewayProxyRequestEvent request, Context context) {
+                Metrics.begin();
+                Metrics.recordSize("RequestBytes", request.getBody());
+                Trace.begin(request.getHeaders(), context);
+                try {
+                        APIGatewayProxyResponseEvent response = Trace.expired() ? Trace.deadlineExceeded() : handle(request, context);
+                        Metrics.recordSize("ResponseBytes", response.getBody());
+                        return Trace.finish(response);
+                } finally {
+                        Metrics.flush(context);
+                }
+        }
+
+        private APIGatewayProxyResponseEvent handle(APIGatewayProxyRequestEvent request, Context context) {
                 LambdaLogger logger = context.getLogger();
 
                 try {
                         String requestBody = request.getBody();
                         
-                        // Check if invoked by EventBridge (body is just a string, not JSON)
-                        if (requestBody != null && requestBody.equals("EventBridgeInvoke")) {
-                                logger.log("Invoked by EventBridge, no action taken.");
-                                return new APIGatewayProxyResponseEvent()
-                                                .withStatusCode(200)
-                                                .withBody("No action taken for EventBridge invocation.");
-                        }
                         
                         // Parse JSON body
                         JSONObject json = new JSONObject(requestBody);
@@ -76,17 +77,8 @@ public class LambdaUploadDescriptionDB
                         String imageKey = json.getString("imageKey");
                         String email = json.getString("email");
 
-                        Class.forName("com.mysql.cj.jdbc.Driver");
-
                         // Insert description into RDS
-                        try (Connection conn = DriverManager.getConnection(JDBC_URL, setMySqlConnectionProperties());
-                                        PreparedStatement stmt = conn.prepareStatement(
-                                                        "INSERT INTO Photos (Description, S3Key, Email) VALUES (?, ?, ?)")) {
-                                stmt.setString(1, description);
-                                stmt.setString(2, imageKey);
-                                stmt.setString(3, email);
-                                stmt.executeUpdate();
-                        }
+                        PhotoTable.insert(description, imageKey, email);
 
                 } catch (Exception ex) {
                         logger.log("Error: " + ex.getMessage());
@@ -107,47 +99,4 @@ public class LambdaUploadDescriptionDB
                                 .withHeaders(Collections.singletonMap("Content-Type", "application/json"));
         }
 
-        private static Properties setMySqlConnectionProperties() throws Exception {
-
-                Properties mysqlConnectionProperties = new Properties();
-
-                mysqlConnectionProperties.setProperty("useSSL", "true");
-
-                mysqlConnectionProperties.setProperty("user", DB_USER);
-
-                mysqlConnectionProperties.setProperty("password", generateAuthToken()); // HERE
-
-                return mysqlConnectionProperties;
-
-        }
-
-        private static String generateAuthToken() throws Exception {
-
-                RdsUtilities rdsUtilities = RdsUtilities.builder().build();
-
-                // Generate the authentication token
-
-                String authToken
-
-                                = rdsUtilities.generateAuthenticationToken(
-
-                                                GenerateAuthenticationTokenRequest.builder()
-
-                                                                .hostname(RDS_INSTANCE_HOSTNAME)
-
-                                                                .port(RDS_INSTANCE_PORT)
-
-                                                                .username(DB_USER)
-
-                                                                .region(Region.US_EAST_1)
-
-                                                                .credentialsProvider(
-                                                                                DefaultCredentialsProvider.create())
-
-                                                                .build());
-
-                return authToken;
-
-        }
-
-}
\ No newline at end of file
+}
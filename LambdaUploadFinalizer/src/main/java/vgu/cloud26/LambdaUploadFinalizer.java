@@ -0,0 +1,153 @@
+/*
+Function: LambdaUploadFinalizer
+Description: Triggered by S3 ObjectCreated events on cloud-public-mpg. For originals uploaded through a presigned URL, write its renditions to the resized bucket and store its description in the database.
+*/
+
+package vgu.cloud26;
+
+import com.amazonaws.services.lambda.runtime.Context;
+import com.amazonaws.services.lambda.runtime.LambdaLogger;
+import com.amazonaws.services.lambda.runtime.RequestHandler;
+import com.amazonaws.services.lambda.runtime.events.S3Event;
+import com.amazonaws.services.lambda.runtime.events.models.s3.S3EventNotification.S3EventNotificationRecord;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import org.json.JSONObject;
+import org.crac.Core;
+import org.crac.Resource;
+import software.amazon.awssdk.core.SdkBytes;
+import software.amazon.awssdk.services.lambda.model.InvokeRequest;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.HeadObjectRequest;
+import software.amazon.awssdk.services.s3.model.HeadObjectResponse;
+
+public class LambdaUploadFinalizer implements RequestHandler<S3Event, String>, Resource {
+
+        // Set by LambdaUploadOrchestrator on presigned uploads; inline uploads are
+        // finished by the orchestrator itself and must not be processed twice
+        private static final String UPLOAD_FLOW = "presigned";
+
+        // Originals arrive through presigned URLs, so they can be far larger than inline uploads
+        private static final Duration RESIZE_TIMEOUT = Duration.ofSeconds(20);
+
+        private static final Duration DESCRIPTION_TIMEOUT = Duration.ofSeconds(10);
+
+        private final LambdaInvoker invoker;
+
+        private final S3Client s3Client;
+
+        public LambdaUploadFinalizer() {
+                this.invoker = LambdaInvoker.create();
+                this.s3Client = AwsClients.build(S3Client.builder());
+                Core.getGlobalContext().register(this);
+        }
+
+        @Override
+        public void beforeCheckpoint(org.crac.Context<? extends Resource> context) {
+                HeadObjectRequest.builder()
+                                .bucket("cloud-public-mpg")
+                                .key("priming.jpeg")
+                                .build();
+                JSONObject descPayload = new JSONObject()
+                                .put("imageKey", "priming.jpeg")
+                                .put("description", decode("priming%20description"))
+                                .put("email", decode("priming%40example.com"));
+                InvokeRequest.builder()
+                                .functionName("LambdaUploadDescriptionDB")
+                                .invocationType("RequestResponse")
+                                .payload(SdkBytes.fromUtf8String(new JSONObject()
+                                                .put("body", descPayload.toString())
+                                                .toString()))
+                                .build();
+        }
+
+        @Override
+        public void afterRestore(org.crac.Context<? extends Resource> context) {
+                Metrics.restored();
+                // Both clients resolve credentials and connect on first use
+        }
+
+        // Helper to call another Lambda without blocking a thread while it runs
+        private CompletableFuture<String> callLambdaAsync(String functionName, String payload, Duration timeout,
+                        Context context) {
+                return invoker.invoke(functionName, payload, LambdaInvoker.timeoutWithin(context, timeout));
+        }
+
+        @Override
+        public String handleRequest(S3Event event, Context context) {
+                Metrics.begin();
+                // Started by S3, so each invocation is a new trace
+                Trace.begin(null, context);
+                try {
+                        return handle(event, context);
+                } finally {
+                        // Nobody reads a Server-Timing header here, so the spans go to the log
+                        context.getLogger().log("Trace " + Trace.traceId() + ": " + Trace.serverTiming());
+                        Metrics.flush(context);
+                }
+        }
+
+        private String handle(S3Event event, Context context) {
+                LambdaLogger logger = context.getLogger();
+
+                int finalized = 0;
+                for (S3EventNotificationRecord record : event.getRecords()) {
+                        String bucket = record.getS3().getBucket().getName();
+                        String key = record.getS3().getObject().getUrlDecodedKey();
+
+                        HeadObjectResponse head = s3Client.headObject(HeadObjectRequest.builder()
+                                        .bucket(bucket)
+                                        .key(key)
+                                        .build());
+                        Map<String, String> metadata = head.metadata();
+                        if (!UPLOAD_FLOW.equals(metadata.get("upload-flow"))) {
+                                logger.log("Skipping " + key + ": not a presigned upload.");
+                                continue;
+                        }
+
+                        // Resize from S3 to S3, so the original never passes through a payload
+                        JSONObject resizePayload = new JSONObject()
+                                        .put("bucket", bucket)
+                                        .put("key", key)
+                                        .put("dstBucket", Renditions.BUCKET)
+                                        .put("imageKey", key);
+                        JSONObject resizeWrapper = new JSONObject()
+                                        .put("body", resizePayload.toString())
+                                        .put("headers", Trace.headers(RESIZE_TIMEOUT));
+
+                        JSONObject descPayload = new JSONObject()
+                                        .put("imageKey", key)
+                                        .put("description", decode(metadata.get("description")))
+                                        .put("email", decode(metadata.get("email")));
+                        JSONObject descWrapper = new JSONObject()
+                                        .put("body", descPayload.toString())
+                                        .put("headers", Trace.headers(DESCRIPTION_TIMEOUT));
+
+                        // Launch both operations in parallel
+                        CompletableFuture<String> resizeFuture = callLambdaAsync("LambdaImageResizer",
+                                        resizeWrapper.toString(), RESIZE_TIMEOUT, context);
+                        CompletableFuture<String> uploadDescFuture = callLambdaAsync("LambdaUploadDescriptionDB",
+                                        descWrapper.toString(), DESCRIPTION_TIMEOUT, context);
+
+                        // Let failures propagate so S3's async invocation retries the event; an open
+                        // circuit fails it at once, and the retry comes after the circuit's pause
+                        try {
+                                LambdaInvoker.joinAll(List.of(resizeFuture, uploadDescFuture));
+                        } finally {
+                                invoker.breakers().recordMetrics();
+                        }
+                        logger.log("Finalized " + key);
+                        finalized++;
+                }
+
+                return "Finalized " + finalized + " upload(s)";
+        }
+
+        private static String decode(String value) {
+                return value == null ? "" : URLDecoder.decode(value, StandardCharsets.UTF_8);
+        }
+}
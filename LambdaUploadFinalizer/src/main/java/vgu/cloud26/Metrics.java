@@ -0,0 +1,308 @@
+/*
+Class: Metrics
+Description: Buffers the measurements of one invocation (step and S3 latencies, bytes, JDBC and resize times) and writes them once, at the end of the invocation, as CloudWatch Embedded Metric Format lines. CloudWatch turns those log lines into metrics, so recording a value only appends to a buffer and nothing is sent while the request runs.
+Work an invocation hands to another thread, and that may outlive it, runs through bind: what it records after the invocation has flushed is written with the next flush, in documents of its own that carry the requestId of the invocation it belongs to.
+*/
+
+package vgu.cloud26;
+
+import com.amazonaws.services.lambda.runtime.Context;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+public final class Metrics {
+
+    public enum Unit {
+        MILLISECONDS("Milliseconds"), BYTES("Bytes"), COUNT("Count"), NONE("None");
+
+        private final String emfName;
+
+        Unit(String emfName) {
+            this.emfName = emfName;
+        }
+    }
+
+    private static final String NAMESPACE = namespace();
+
+    // Dimension every metric carries, set to the function's name
+    private static final String FUNCTION_DIMENSION = "Function";
+
+    // EMF takes at most 100 values per metric in one document
+    private static final int MAX_VALUES = 100;
+
+    // Documents kept when nothing flushes, e.g. code run outside a handler
+    private static final int MAX_DOCUMENTS = 100;
+
+    // The buffer of the invocation running now
+    private static Scope current = new Scope();
+
+    // Buffers of invocations already flushed that bound work has recorded into since
+    private static final List<Scope> late = new ArrayList<>();
+
+    // The buffer of the invocation that handed over the work running on this thread
+    private static final ThreadLocal<Scope> bound = new ThreadLocal<>();
+
+    private static boolean coldStart = true;
+
+    private static long initStartMillis = ProcessHandle.current().info().startInstant()
+            .map(Instant::toEpochMilli)
+            .orElseGet(System::currentTimeMillis);
+
+    private Metrics() {
+    }
+
+    /**
+     * Starts an invocation: records ColdStart (1 for the first invocation
+     * of the execution environment or of a restored snapshot, 0 otherwise)
+     * and, on a cold start, InitDuration since the JVM started or the
+     * snapshot was restored.
+     */
+    public static void begin() {
+        boolean first;
+        long initMillis;
+        synchronized (Metrics.class) {
+            first = coldStart;
+            coldStart = false;
+            initMillis = System.currentTimeMillis() - initStartMillis;
+        }
+        record("ColdStart", first ? 1 : 0, Unit.COUNT);
+        if (first) {
+            record("InitDuration", initMillis, Unit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Call from afterRestore: drops what priming recorded before the
+     * snapshot, and makes the next invocation a cold start again.
+     */
+    public static synchronized void restored() {
+        current = new Scope();
+        late.clear();
+        coldStart = true;
+        initStartMillis = System.currentTimeMillis();
+    }
+
+    public static void record(String name, double value, Unit unit) {
+        record(name, value, unit, null, null);
+    }
+
+    /**
+     * Adds a value to the invocation's buffer.
+     *
+     * @param dimension a second dimension besides Function, e.g. "Step";
+     * null for none.
+     * @param dimensionValue its value, e.g. the function called.
+     */
+    public static synchronized void record(String name, double value, Unit unit, String dimension,
+            String dimensionValue) {
+        Scope scope = bound.get() != null ? bound.get() : current;
+        if (scope.flushed && !scope.queued) {
+            scope.queued = true;
+            late.add(scope);
+        }
+        scope.add(name, value, unit, dimension, dimensionValue);
+    }
+
+    /**
+     * Wraps executor so that what tasks run on it record goes to the
+     * invocation calling bind, even once it has ended: a background refresh,
+     * or a callback on an SDK thread. Values recorded after that invocation
+     * has flushed are written with the next flush, in documents of their own.
+     */
+    public static Executor bind(Executor executor) {
+        Scope scope;
+        synchronized (Metrics.class) {
+            scope = bound.get() != null ? bound.get() : current;
+        }
+        return task -> executor.execute(() -> {
+            Scope previous = bound.get();
+            bound.set(scope);
+            try {
+                task.run();
+            } finally {
+                bound.set(previous);
+            }
+        });
+    }
+
+    /**
+     * Records the size of a payload, e.g. a request or response body. The
+     * bodies are JSON or Base64, so their length in characters is their
+     * size in bytes.
+     */
+    public static void recordSize(String name, String payload) {
+        record(name, payload == null ? 0 : payload.length(), Unit.BYTES);
+    }
+
+    /**
+     * Milliseconds since startNanos, a System.nanoTime() reading.
+     */
+    public static double millisSince(long startNanos) {
+        return (System.nanoTime() - startNanos) / (double) TimeUnit.MILLISECONDS.toNanos(1);
+    }
+
+    /**
+     * Ends an invocation: writes everything recorded since the last flush
+     * to the function's log, one EMF line per dimension.
+     */
+    public static void flush(Context context) {
+        flush(context.getFunctionName(), context.getAwsRequestId(), context.getLogger()::log);
+    }
+
+    /**
+     * Writes everything recorded since the last flush to sink as EMF JSON
+     * lines and empties the buffer. Values bound work recorded for earlier
+     * invocations come first, with those invocations' requestIds.
+     */
+    static void flush(String functionName, String requestId, Consumer<String> sink) {
+        List<Batch> batches = new ArrayList<>();
+        synchronized (Metrics.class) {
+            current.requestId = requestId;
+            late.add(current);
+            current = new Scope();
+            for (Scope scope : late) {
+                scope.flushed = true;
+                scope.queued = false;
+                batches.add(new Batch(scope.requestId, scope.drain()));
+            }
+            late.clear();
+        }
+        long timestamp = System.currentTimeMillis();
+        for (Batch batch : batches) {
+            for (Document document : batch.documents()) {
+                sink.accept(document.toJSON(timestamp, functionName == null ? "unknown" : functionName,
+                        batch.requestId()).toString());
+            }
+        }
+    }
+
+    private static String namespace() {
+        String configured = System.getenv("METRICS_NAMESPACE");
+        return configured == null || configured.isBlank() ? "PhotoGallery" : configured;
+    }
+
+    // The buffer of one invocation; guarded by Metrics.class
+    private static final class Scope {
+
+        // Documents being filled, by dimension
+        private final Map<String, Document> open = new LinkedHashMap<>();
+
+        // Documents with a metric at MAX_VALUES, waiting for the flush
+        private final List<Document> full = new ArrayList<>();
+
+        private String requestId;
+
+        // Set by the invocation's flush; later values wait in late
+        private boolean flushed;
+
+        private boolean queued;
+
+        void add(String name, double value, Unit unit, String dimension, String dimensionValue) {
+            String key = dimension == null ? "" : dimension + "=" + dimensionValue;
+            Document document = open.computeIfAbsent(key, k -> new Document(dimension, dimensionValue));
+            if (!document.add(name, value, unit)) {
+                full.add(document);
+                if (full.size() > MAX_DOCUMENTS) {
+                    full.remove(0);
+                }
+                document = new Document(dimension, dimensionValue);
+                open.put(key, document);
+                document.add(name, value, unit);
+            }
+        }
+
+        List<Document> drain() {
+            List<Document> drained = new ArrayList<>(full);
+            drained.addAll(open.values());
+            full.clear();
+            open.clear();
+            return drained;
+        }
+    }
+
+    // The documents of one invocation, taken by a flush
+    private record Batch(String requestId, List<Document> documents) {
+    }
+
+    // The metrics of one EMF document, which share their dimensions
+    private static final class Document {
+
+        private final String dimension;
+
+        private final String dimensionValue;
+
+        private final Map<String, Series> series = new LinkedHashMap<>();
+
+        Document(String dimension, String dimensionValue) {
+            this.dimension = dimension;
+            this.dimensionValue = dimensionValue;
+        }
+
+        // False if the metric already holds MAX_VALUES values
+        boolean add(String name, double value, Unit unit) {
+            Series values = series.computeIfAbsent(name, n -> new Series(unit));
+            if (values.count == MAX_VALUES) {
+                return false;
+            }
+            values.values[values.count++] = value;
+            return true;
+        }
+
+        JSONObject toJSON(long timestamp, String functionName, String requestId) {
+            JSONArray dimensions = new JSONArray().put(FUNCTION_DIMENSION);
+            JSONObject document = new JSONObject()
+                    .put(FUNCTION_DIMENSION, functionName);
+            if (dimension != null) {
+                dimensions.put(dimension);
+                document.put(dimension, dimensionValue);
+            }
+            if (requestId != null) {
+                document.put("requestId", requestId);
+            }
+            JSONArray definitions = new JSONArray();
+            series.forEach((name, values) -> {
+                definitions.put(new JSONObject()
+                        .put("Name", name)
+                        .put("Unit", values.unit.emfName));
+                if (values.count == 1) {
+                    document.put(name, values.values[0]);
+                } else {
+                    JSONArray list = new JSONArray();
+                    for (int i = 0; i < values.count; i++) {
+                        list.put(values.values[i]);
+                    }
+                    document.put(name, list);
+                }
+            });
+            return document.put("_aws", new JSONObject()
+                    .put("Timestamp", timestamp)
+                    .put("CloudWatchMetrics", new JSONArray().put(new JSONObject()
+                            .put("Namespace", NAMESPACE)
+                            .put("Dimensions", new JSONArray().put(dimensions))
+                            .put("Metrics", definitions))));
+        }
+    }
+
+    private static final class Series {
+
+        private final Unit unit;
+
+        private final double[] values = new double[MAX_VALUES];
+
+        private int count;
+
+        Series(Unit unit) {
+            this.unit = unit;
+        }
+    }
+}
@@ -0,0 +1,178 @@
+package vgu.cloud26;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.json.JSONObject;
+import org.junit.Test;
+
+public class LambdaInvokerTest {
+
+    private static final Duration TIMEOUT = Duration.ofSeconds(5);
+
+    /**
+     * Answers every call with {"statusCode": ..., "body": function name}
+     * after the latency set for the function, and keeps the futures it
+     * handed out.
+     */
+    private static final class LatencyTransport implements LambdaInvoker.Transport {
+
+        private final Map<String, Long> latencies;
+
+        private final Map<String, Integer> statusCodes;
+
+        private final Map<String, CompletableFuture<String>> calls = new ConcurrentHashMap<>();
+
+        private final AtomicInteger inFlight = new AtomicInteger();
+
+        private final AtomicInteger maxInFlight = new AtomicInteger();
+
+        LatencyTransport(Map<String, Long> latencies, Map<String, Integer> statusCodes) {
+            this.latencies = latencies;
+            this.statusCodes = statusCodes;
+        }
+
+        @Override
+        public CompletableFuture<String> invoke(String functionName, String payload) {
+            maxInFlight.accumulateAndGet(inFlight.incrementAndGet(), Math::max);
+            String response = new JSONObject()
+                    .put("statusCode", statusCodes.getOrDefault(functionName, 200))
+                    .put("body", functionName)
+                    .toString();
+            CompletableFuture<String> call = CompletableFuture.supplyAsync(() -> response,
+                    CompletableFuture.delayedExecutor(latencies.get(functionName), TimeUnit.MILLISECONDS));
+            call.whenComplete((result, ex) -> inFlight.decrementAndGet());
+            calls.put(functionName, call);
+            return call;
+        }
+    }
+
+    private static long millisSince(long startNanos) {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+    }
+
+    @Test
+    public void callsOverlapInsteadOfAddingUp() {
+        LatencyTransport transport = new LatencyTransport(
+                Map.of("A", 300L, "B", 300L, "C", 300L, "D", 300L), Map.of());
+        LambdaInvoker invoker = new LambdaInvoker(transport);
+
+        long start = System.nanoTime();
+        List<String> bodies = LambdaInvoker.joinAll(List.of(
+                invoker.invoke("A", "{}", TIMEOUT),
+                invoker.invoke("B", "{}", TIMEOUT),
+                invoker.invoke("C", "{}", TIMEOUT),
+                invoker.invoke("D", "{}", TIMEOUT)));
+        long millis = millisSince(start);
+
+        assertEquals(List.of("A", "B", "C", "D"), bodies);
+        assertEquals(4, transport.maxInFlight.get());
+        // About the slowest call, not the 1200 ms of all four in a row
+        assertTrue("took " + millis + " ms", millis >= 300 && millis < 600);
+    }
+
+    @Test
+    public void joinAllCancelsTheOtherCallsWhenOneFails() {
+        LatencyTransport transport = new LatencyTransport(
+                Map.of("Broken", 50L, "Slow", 3000L, "Slower", 4000L), Map.of("Broken", 500));
+        LambdaInvoker invoker = new LambdaInvoker(transport);
+
+        long start = System.nanoTime();
+        try {
+            LambdaInvoker.joinAll(List.of(
+                    invoker.invoke("Slow", "{}", TIMEOUT),
+                    invoker.invoke("Broken", "{}", TIMEOUT),
+                    invoker.invoke("Slower", "{}", TIMEOUT)));
+            fail("expected InvocationException");
+        } catch (LambdaInvoker.InvocationException e) {
+            assertEquals("Broken", e.functionName());
+        }
+        long millis = millisSince(start);
+
+        assertTrue("took " + millis + " ms", millis < 1000);
+        assertTrue(transport.calls.get("Slow").isCancelled());
+        assertTrue(transport.calls.get("Slower").isCancelled());
+    }
+
+    @Test
+    public void errorStatusFailsTheCall() {
+        LambdaInvoker invoker = new LambdaInvoker(new LatencyTransport(Map.of("A", 10L), Map.of("A", 404)));
+
+        try {
+            invoker.invoke("A", "{}", TIMEOUT).join();
+            fail("expected InvocationException");
+        } catch (RuntimeException e) {
+            assertTrue(e.getCause() instanceof LambdaInvoker.InvocationException);
+            assertEquals("A returned 404: A", e.getCause().getMessage());
+        }
+    }
+
+    @Test
+    public void slowCallTimesOutAndIsAbandoned() {
+        LatencyTransport transport = new LatencyTransport(Map.of("Slow", 3000L), Map.of());
+        LambdaInvoker invoker = new LambdaInvoker(transport);
+
+        long start = System.nanoTime();
+        try {
+            invoker.invoke("Slow", "{}", Duration.ofMillis(100)).join();
+            fail("expected InvocationException");
+        } catch (RuntimeException e) {
+            assertEquals("Slow timed out after 100 ms", e.getCause().getMessage());
+        }
+
+        assertTrue(millisSince(start) < 1000);
+        assertTrue(transport.calls.get("Slow").isDone());
+    }
+
+    @Test
+    public void callWithNoTimeLeftIsNotSentAndLeavesTheBreakerAlone() {
+        LatencyTransport transport = new LatencyTransport(Map.of("A", 10L), Map.of());
+        CircuitBreakers breakers = new CircuitBreakers(new CircuitBreakers.Settings(Duration.ofSeconds(60), 1, 0.5,
+                0.5, 0.5, Duration.ofSeconds(15), 10));
+        LambdaInvoker invoker = new LambdaInvoker(transport, breakers);
+
+        for (int i = 0; i < 3; i++) {
+            try {
+                invoker.invoke("A", "{}", Duration.ZERO).join();
+                fail("expected InvocationException");
+            } catch (RuntimeException e) {
+                assertTrue(e.getCause().getCause() instanceof Trace.DeadlineExceeded);
+            }
+        }
+
+        assertTrue(transport.calls.isEmpty());
+        assertEquals(CircuitBreakers.State.CLOSED, breakers.state("A"));
+        assertEquals("A", invoker.invoke("A", "{}", TIMEOUT).join());
+    }
+
+    @Test
+    public void localStepIsInterruptedWhenItTimesOut() throws InterruptedException {
+        CountDownLatch interrupted = new CountDownLatch(1);
+
+        try {
+            LambdaInvoker.runLocal("LambdaUploadObject", () -> {
+                try {
+                    Thread.sleep(3000);
+                } catch (InterruptedException ex) {
+                    interrupted.countDown();
+                }
+                return "";
+            }, Duration.ofMillis(100)).join();
+            fail("expected InvocationException");
+        } catch (RuntimeException e) {
+            assertTrue(e.getCause() instanceof LambdaInvoker.InvocationException);
+        }
+
+        assertTrue(interrupted.await(1, TimeUnit.SECONDS));
+    }
+}
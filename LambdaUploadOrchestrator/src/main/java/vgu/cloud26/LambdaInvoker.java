@@ -0,0 +1,382 @@
+/*
+Class: LambdaInvoker
+Description: Non-blocking Lambda-to-Lambda calls on the SDK's async client, with a timeout per call and a join that cancels the remaining calls as soon as one of them fails. Steps run in-process get the same timeout and failure handling.
+Every invoke goes through CircuitBreakers: a call to a function whose circuit is open, or that already has too many calls in flight, fails at once with a retryAfter.
+Each call's duration and payload sizes are recorded in Metrics by Target, the function called; calls cancelled by the caller are not. Each call is also a span in Trace, and the spans the callee returns in its Server-Timing header are added under its name.
+*/
+
+package vgu.cloud26;
+
+import com.amazonaws.services.lambda.runtime.Context;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import software.amazon.awssdk.core.SdkBytes;
+import software.amazon.awssdk.regions.Region;
+import software.amazon.awssdk.services.lambda.LambdaAsyncClient;
+import software.amazon.awssdk.services.lambda.model.InvokeRequest;
+import software.amazon.awssdk.services.lambda.model.InvokeResponse;
+
+public final class LambdaInvoker {
+
+    /**
+     * Sends one payload to a function and completes with its raw response
+     * payload. Cancelling the returned future must abandon the call.
+     */
+    @FunctionalInterface
+    public interface Transport {
+
+        CompletableFuture<String> invoke(String functionName, String payload);
+
+        /**
+         * Queues payload for the function (an Event invocation) and
+         * completes once it has been accepted, without waiting for the
+         * function to run.
+         */
+        default CompletableFuture<Void> enqueue(String functionName, String payload) {
+            return invoke(functionName, payload).thenApply(response -> null);
+        }
+    }
+
+    /**
+     * A downstream call that failed, timed out or answered with an error
+     * status.
+     */
+    public static final class InvocationException extends RuntimeException {
+
+        private static final long serialVersionUID = 1L;
+
+        private final String functionName;
+
+        InvocationException(String functionName, String message, Throwable cause) {
+            super(message, cause);
+            this.functionName = functionName;
+        }
+
+        public String functionName() {
+            return functionName;
+        }
+    }
+
+    // Metrics dimension naming the function a call went to
+    static final String TARGET = "Target";
+
+    // Leaves the caller time to report a timed-out step before its own timeout
+    private static final Duration DEADLINE_MARGIN = Duration.ofSeconds(1);
+
+    // In-process steps block on S3 and JDBC, so each gets its own virtual thread
+    private static final ExecutorService LOCAL_STEPS = Executors.newVirtualThreadPerTaskExecutor();
+
+    private final Transport transport;
+
+    private final CircuitBreakers breakers;
+
+    public LambdaInvoker(Transport transport) {
+        this(transport, new CircuitBreakers());
+    }
+
+    public LambdaInvoker(Transport transport, CircuitBreakers breakers) {
+        this.transport = transport;
+        this.breakers = breakers;
+    }
+
+    /**
+     * Invoker on LambdaAsyncClient. Calls in flight wait on the client's
+     * event loop, so fan-out does not need a thread per call and does not
+     * depend on how many vCPUs the function gets.
+     */
+    public static LambdaInvoker create() {
+        LambdaAsyncClient client = LambdaAsyncClient.builder()
+                .region(Region.of("us-east-1"))
+                .build();
+        return new LambdaInvoker(new Transport() {
+
+            @Override
+            public CompletableFuture<String> invoke(String functionName, String payload) {
+                CompletableFuture<InvokeResponse> call = client.invoke(InvokeRequest.builder()
+                        .functionName(functionName)
+                        .invocationType("RequestResponse")
+                        .payload(SdkBytes.fromUtf8String(payload))
+                        .build());
+                CompletableFuture<String> response = call.thenApply(result -> {
+                    if (result.functionError() != null) {
+                        throw new IllegalStateException(result.functionError() + ": "
+                                + result.payload().asUtf8String());
+                    }
+                    return result.payload().asUtf8String();
+                });
+                // Cancelling a dependent stage does not reach the SDK call by itself
+                response.whenComplete((result, ex) -> {
+                    if (ex != null) {
+                        call.cancel(true);
+                    }
+                });
+                return response;
+            }
+
+            @Override
+            public CompletableFuture<Void> enqueue(String functionName, String payload) {
+                return client.invoke(InvokeRequest.builder()
+                        .functionName(functionName)
+                        .invocationType("Event")
+                        .payload(SdkBytes.fromUtf8String(payload))
+                        .build())
+                        .thenApply(result -> null);
+            }
+        });
+    }
+
+    /**
+     * Invokes a function and completes with the "body" of its API Gateway
+     * style response.
+     *
+     * @param functionName function to call.
+     * @param payload request payload, usually {"body": "..."}.
+     * @param timeout time after which the call is abandoned.
+     * @return the body; completes exceptionally with InvocationException if
+     * the call fails, times out, returns statusCode >= 400 or is refused by
+     * the function's circuit breaker or bulkhead. A call with no time left
+     * is not sent and fails with a Trace.DeadlineExceeded cause.
+     */
+    public CompletableFuture<String> invoke(String functionName, String payload, Duration timeout) {
+        if (timeout.isZero() || timeout.isNegative()) {
+            // It could only time out, which says nothing about the function, so the breaker is left out
+            return CompletableFuture.failedFuture(new InvocationException(functionName,
+                    functionName + " not called: no time left before the deadline", new Trace.DeadlineExceeded(0)));
+        }
+        CircuitBreakers.Call permit;
+        try {
+            permit = breakers.start(functionName, timeout);
+        } catch (CircuitBreakers.Rejected ex) {
+            return CompletableFuture.failedFuture(new InvocationException(functionName, ex.getMessage(), ex));
+        }
+        Metrics.record("InvokeRequestBytes", payload.length(), Metrics.Unit.BYTES, TARGET, functionName);
+        long start = System.nanoTime();
+        CompletableFuture<String> call = transport.invoke(functionName, payload)
+                .orTimeout(timeout.toMillis(), TimeUnit.MILLISECONDS);
+        // Here rather than in handle(), which is skipped once body has been cancelled
+        call.whenComplete((response, ex) -> {
+            if (ex instanceof CancellationException) {
+                permit.abandoned();
+                return;
+            }
+            if (ex != null) {
+                permit.failed();
+            } else {
+                Metrics.record("InvokeResponseBytes", response.length(), Metrics.Unit.BYTES, TARGET, functionName);
+            }
+            Metrics.record("InvokeDuration", Metrics.millisSince(start), Metrics.Unit.MILLISECONDS,
+                    TARGET, functionName);
+            Trace.span(functionName, start);
+        });
+        CompletableFuture<String> body = call.handle((response, ex) -> {
+            if (ex != null) {
+                throw failure(functionName, timeout, ex);
+            }
+            return bodyOf(functionName, response, permit);
+        });
+        body.whenComplete((result, ex) -> {
+            if (ex != null) {
+                call.cancel(true);
+            }
+        });
+        return body;
+    }
+
+    /**
+     * Queues a call that must happen even if nobody is left to wait for it,
+     * e.g. undoing a write after the request has run out of time: an Event
+     * invocation, which Lambda retries if the function fails. It is not
+     * capped by a timeout or the deadline, and the circuit breakers leave
+     * it alone; the payload should carry no deadline either.
+     *
+     * @return completes once Lambda has accepted the call, or exceptionally
+     * with InvocationException if it did not.
+     */
+    public CompletableFuture<Void> enqueue(String functionName, String payload) {
+        Metrics.record("InvokeRequestBytes", payload.length(), Metrics.Unit.BYTES, TARGET, functionName);
+        long start = System.nanoTime();
+        CompletableFuture<Void> queued;
+        try {
+            queued = transport.enqueue(functionName, payload);
+        } catch (RuntimeException ex) {
+            queued = CompletableFuture.failedFuture(ex);
+        }
+        return queued.handle((ignored, ex) -> {
+            Trace.span(functionName, start);
+            if (ex != null) {
+                throw failure(functionName, null, ex);
+            }
+            return null;
+        });
+    }
+
+    /**
+     * Runs a step in-process instead of invoking its function, with the same
+     * timeout and failure handling as invoke(). The step is interrupted when
+     * the result is cancelled or times out.
+     *
+     * @param functionName function whose work the step does, for errors.
+     * @param step the work; its result stands in for the function's body.
+     * @param timeout time after which the step is abandoned.
+     */
+    public static CompletableFuture<String> runLocal(String functionName, Callable<String> step, Duration timeout) {
+        CompletableFuture<String> call = new CompletableFuture<>();
+        long start = System.nanoTime();
+        call.whenComplete((result, ex) -> {
+            if (!(ex instanceof CancellationException)) {
+                Metrics.record("LocalStepDuration", Metrics.millisSince(start), Metrics.Unit.MILLISECONDS,
+                        TARGET, functionName);
+                Trace.span(functionName, start);
+            }
+        });
+        Future<?> task = LOCAL_STEPS.submit(() -> {
+            try {
+                call.complete(step.call());
+            } catch (Exception ex) {
+                call.completeExceptionally(ex);
+            }
+        });
+        call.orTimeout(timeout.toMillis(), TimeUnit.MILLISECONDS);
+        CompletableFuture<String> body = call.handle((result, ex) -> {
+            if (ex != null) {
+                throw failure(functionName, timeout, ex);
+            }
+            return result;
+        });
+        body.whenComplete((result, ex) -> {
+            if (ex != null) {
+                task.cancel(true);
+            }
+        });
+        return body;
+    }
+
+    /**
+     * Waits for every call and returns their bodies in order. As soon as one
+     * fails, the calls still running are cancelled and its failure is thrown.
+     *
+     * @throws InvocationException for the first call that failed.
+     */
+    public static List<String> joinAll(List<CompletableFuture<String>> calls) {
+        CompletableFuture<Void> firstFailure = new CompletableFuture<>();
+        for (CompletableFuture<String> call : calls) {
+            call.whenComplete((result, ex) -> {
+                if (ex != null) {
+                    firstFailure.completeExceptionally(ex);
+                }
+            });
+        }
+        try {
+            CompletableFuture.anyOf(CompletableFuture.allOf(calls.toArray(CompletableFuture[]::new)),
+                    firstFailure).join();
+        } catch (CompletionException | CancellationException ex) {
+            calls.forEach(call -> call.cancel(true));
+            throw failure("unknown", null, ex);
+        }
+        return calls.stream().map(CompletableFuture::join).toList();
+    }
+
+    /**
+     * State of the circuit breakers and bulkheads, by function.
+     */
+    public CircuitBreakers breakers() {
+        return breakers;
+    }
+
+    /**
+     * How long to wait before trying again, if ex comes from a call that was
+     * never sent because the function's circuit is open or its bulkhead
+     * full; null otherwise.
+     */
+    public static Duration retryAfter(Throwable ex) {
+        for (Throwable cause = ex; cause != null; cause = cause.getCause()) {
+            if (cause instanceof CircuitBreakers.Rejected rejected) {
+                return rejected.retryAfter();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Whether ex comes from a call that timed out. The callee may still have
+     * finished its work, e.g. committed an insert, after the caller gave up.
+     */
+    public static boolean timedOut(Throwable ex) {
+        for (Throwable cause = ex; cause != null; cause = cause.getCause()) {
+            if (cause instanceof TimeoutException) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Caps a step timeout at the time the calling function has left, or
+     * until the deadline of the request that called it if that is sooner.
+     */
+    public static Duration timeoutWithin(Context context, Duration timeout) {
+        Duration remaining = Duration.ofMillis(context.getRemainingTimeInMillis());
+        if (Trace.remaining().compareTo(remaining) < 0) {
+            remaining = Trace.remaining();
+        }
+        remaining = remaining.minus(DEADLINE_MARGIN);
+        if (remaining.isNegative()) {
+            return Duration.ZERO;
+        }
+        return remaining.compareTo(timeout) < 0 ? remaining : timeout;
+    }
+
+    private static String bodyOf(String functionName, String response, CircuitBreakers.Call permit) {
+        try {
+            JSONObject responseObject = new JSONObject(response);
+            JSONObject headers = responseObject.optJSONObject("headers");
+            if (headers != null) {
+                Trace.remote(functionName, headers.optString(Trace.SERVER_TIMING, null));
+            }
+            int statusCode = responseObject.optInt("statusCode", 200);
+            // A 4xx is about the request; the function itself answered fine
+            if (statusCode >= 500) {
+                permit.failed();
+            } else {
+                permit.succeeded();
+            }
+            if (statusCode >= 400) {
+                throw new InvocationException(functionName, functionName + " returned " + statusCode + ": "
+                        + responseObject.optString("body", ""), null);
+            }
+            return responseObject.optString("body", "");
+        } catch (JSONException ex) {
+            permit.failed();
+            throw new InvocationException(functionName, functionName + " returned an unreadable response", ex);
+        }
+    }
+
+    private static InvocationException failure(String functionName, Duration timeout, Throwable ex) {
+        Throwable cause = ex;
+        while (cause instanceof CompletionException && cause.getCause() != null) {
+            cause = cause.getCause();
+        }
+        if (cause instanceof InvocationException invocationException) {
+            return invocationException;
+        }
+        if (cause instanceof TimeoutException && timeout != null) {
+            return new InvocationException(functionName, functionName + " timed out after "
+                    + timeout.toMillis() + " ms", cause);
+        }
+        return new InvocationException(functionName, functionName + " failed: " + cause.getMessage(), cause);
+    }
+}
@@ -1,6 +1,9 @@
 /*
 Function: LambdaUploadOrchestrator
-Description: Orchestrator function to invoke lambda to upload image to S3, resize it, and store description
+Description: Orchestrator function to invoke lambda to upload image to S3, resize it, and store description. With "mode": "presign", return a presigned PUT URL instead and let LambdaUploadFinalizer finish the upload.
+Steps listed as "local" in STEP_MODES (see StepModes) run in this function instead of through their own Lambda.
+The inline upload runs as a Workflow (see uploadWorkflow): a failed upload deletes the objects it already wrote, and the response lists how long each step took.
+Calls to a function whose circuit breaker is open fail at once, and the upload answers 503 with Retry-After instead of 502.
 */
 
 package vgu.cloud26;
@@ -10,80 +13,258 @@ import com.amazonaws.services.lambda.runtime.LambdaLogger;
 import com.amazonaws.services.lambda.runtime.RequestHandler;
 import com.amazonaws.services.lambda.runtime.events.APIGatewayProxyRequestEvent;
 import com.amazonaws.services.lambda.runtime.events.APIGatewayProxyResponseEvent;
-import java.nio.ByteBuffer;
+import java.io.IOException;
+import java.net.URLEncoder;
 import java.nio.charset.StandardCharsets;
+import java.time.Duration;
 import java.util.Base64;
+import java.util.List;
 import java.util.Map;
 import java.util.UUID;
+import java.sql.SQLException;
 import java.util.concurrent.CompletableFuture;
-import java.util.concurrent.ExecutionException;
+import org.json.JSONArray;
 import org.json.JSONObject;
-import software.amazon.awssdk.awscore.exception.AwsServiceException;
+import org.crac.Core;
+import org.crac.Resource;
+import software.amazon.awssdk.auth.credentials.AwsBasicCredentials;
+import software.amazon.awssdk.auth.credentials.StaticCredentialsProvider;
 import software.amazon.awssdk.core.SdkBytes;
-import software.amazon.awssdk.core.exception.SdkClientException;
+import software.amazon.awssdk.core.sync.RequestBody;
 import software.amazon.awssdk.regions.Region;
-import software.amazon.awssdk.services.lambda.LambdaClient;
 import software.amazon.awssdk.services.lambda.model.InvokeRequest;
-import software.amazon.awssdk.services.lambda.model.InvokeResponse;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.PutObjectRequest;
+import software.amazon.awssdk.services.s3.presigner.S3Presigner;
+import software.amazon.awssdk.services.s3.presigner.model.PresignedPutObjectRequest;
+import software.amazon.awssdk.services.s3.presigner.model.PutObjectPresignRequest;
 
 public class LambdaUploadOrchestrator implements
-                RequestHandler<APIGatewayProxyRequestEvent, APIGatewayProxyResponseEvent> {
+                RequestHandler<APIGatewayProxyRequestEvent, APIGatewayProxyResponseEvent>, Resource {
 
-        private final LambdaClient lambdaClient;
+        private static final String SOURCE_BUCKET = "cloud-public-mpg";
+
+        private static final Duration PRESIGNED_UPLOAD_LIFETIME = Duration.ofMinutes(15);
+
+        private static final Duration UPLOAD_TIMEOUT = Duration.ofSeconds(10);
+
+        // Decoding and scaling a large original dominates the upload
+        private static final Duration RESIZE_TIMEOUT = Duration.ofSeconds(20);
+
+        private static final Duration DESCRIPTION_TIMEOUT = Duration.ofSeconds(10);
+
+        private static final String UPLOAD_OBJECT = "LambdaUploadObject";
+
+        private static final String IMAGE_RESIZER = "LambdaImageResizer";
+
+        private static final String UPLOAD_DESCRIPTION = "LambdaUploadDescriptionDB";
+
+        // Only called to undo the writes of an upload that failed
+        private static final String DELETE_OBJECT = "LambdaDeleteObject";
+
+        // Writing the same key twice is harmless, so a failed write is tried once more
+        private static final Workflow.Retry WRITE_RETRY = new Workflow.Retry(2, Duration.ofMillis(200));
+
+        private final LambdaInvoker invoker;
+
+        private final StepModes steps;
+
+        private final S3Presigner presigner;
+
+        // Only needed when a step runs in-process
+        private final S3Client s3Client;
 
         public LambdaUploadOrchestrator() {
-                this.lambdaClient = LambdaClient.builder()
+                this(LambdaInvoker.create(), StepModes.fromEnvironment());
+        }
+
+        LambdaUploadOrchestrator(LambdaInvoker invoker, StepModes steps) {
+                this.invoker = invoker;
+                this.steps = steps;
+                this.presigner = S3Presigner.builder()
                                 .region(Region.of("us-east-1"))
                                 .build();
+                this.s3Client = steps.anyLocal() ? AwsClients.build(S3Client.builder()) : null;
+                Core.getGlobalContext().register(this);
         }
 
-        // Helper to call another Lambda
-        public String callLambda(String functionName, String payload, LambdaLogger logger) {
-                String message;
-                InvokeRequest invokeRequest = InvokeRequest.builder()
-                                .functionName(functionName)
+        @Override
+        public void beforeCheckpoint(org.crac.Context<? extends Resource> context)
+                        throws IOException, SQLException {
+                // UUID.randomUUID() is left alone so its SecureRandom is first seeded after restore
+                JSONObject bodyJSON = new JSONObject(new JSONObject()
+                                .put("key", "priming.jpeg")
+                                .put("description", "priming")
+                                .put("email", "priming@example.com")
+                                .put("token", "priming")
+                                .toString());
+                TokenVerifier.prime();
+                Renditions.configured();
+                InvokeRequest.builder()
+                                .functionName("LambdaImageResizer")
                                 .invocationType("RequestResponse")
-                                .payload(SdkBytes.fromUtf8String(payload))
+                                .payload(SdkBytes.fromUtf8String(new JSONObject()
+                                                .put("body", bodyJSON.toString())
+                                                .toString()))
                                 .build();
+                uploadWorkflow(bodyJSON.getString("key"), "", null, bodyJSON.getString("description"),
+                                bodyJSON.getString("email"));
+                if (steps.isLocal(IMAGE_RESIZER)) {
+                        ImageRenditions.prime(Renditions.configured());
+                }
+                if (steps.isLocal(UPLOAD_DESCRIPTION)) {
+                        RdsConnectionPool.prepareForCheckpoint();
+                }
 
-                try {
-                        InvokeResponse invokeResult = lambdaClient.invoke(invokeRequest);
-                        ByteBuffer responsePayload = invokeResult.payload().asByteBuffer();
-                        String responseString = StandardCharsets.UTF_8.decode(responsePayload).toString();
-
-                        JSONObject responseObject = new JSONObject(responseString);
-                        message = responseObject.optString("body", "");
-                        logger.log("Response from " + functionName + ": " + message);
-                        return message;
-
-                } catch (AwsServiceException | SdkClientException e) {
-                        message = "Error calling " + functionName + ": " + e.getMessage();
-                        logger.log(message);
-                        return message;
+                // Sign with throwaway credentials: the real ones must not be resolved
+                // before the snapshot, or every restored copy would share them
+                try (S3Presigner primingPresigner = S3Presigner.builder()
+                                .region(Region.of("us-east-1"))
+                                .credentialsProvider(StaticCredentialsProvider.create(
+                                                AwsBasicCredentials.create("priming", "priming")))
+                                .build()) {
+                        primingPresigner.presignPutObject(PutObjectPresignRequest.builder()
+                                        .signatureDuration(PRESIGNED_UPLOAD_LIFETIME)
+                                        .putObjectRequest(PutObjectRequest.builder()
+                                                        .bucket(SOURCE_BUCKET)
+                                                        .key(bodyJSON.getString("key"))
+                                                        .contentType("image/jpeg")
+                                                        .metadata(Map.of("upload-flow", "presigned",
+                                                                        "description", URLEncoder.encode(
+                                                                                        bodyJSON.getString("description"),
+                                                                                        StandardCharsets.UTF_8)))
+                                                        .build())
+                                        .build());
                 }
         }
 
-        // Helper to call another Lambda asynchronously
-        public CompletableFuture<String> callLambdaAsync(String functionName, String payload, LambdaLogger logger) {
-                return CompletableFuture.supplyAsync(() -> {
-                        return callLambda(functionName, payload, logger);
-                });
+        @Override
+        public void afterRestore(org.crac.Context<? extends Resource> context) {
+                Metrics.restored();
+                // The key may have been rotated since the snapshot was taken
+                TokenVerifier.reset();
+        }
+
+        // Helper to call another Lambda with {"body": body, "headers": trace} without blocking a thread while it runs
+        private CompletableFuture<String> callLambdaAsync(String functionName, JSONObject body, Duration timeout) {
+                return invoker.invoke(functionName, new JSONObject()
+                                .put("body", body.toString())
+                                .put("headers", Trace.headers(timeout))
+                                .toString(), timeout);
+        }
+
+        /**
+         * The inline upload: the original and every rendition are written in
+         * parallel, then the description is recorded. If any step fails, the
+         * objects already written are deleted again.
+         */
+        Workflow uploadWorkflow(String imageKey, String content, byte[] imageBytes, String description,
+                        String email) {
+                return Workflow.of("upload",
+                                Workflow.Step.of("original", UPLOAD_TIMEOUT,
+                                                (inputs, timeout) -> uploadOriginal(imageKey, content, imageBytes, timeout))
+                                                .retry(WRITE_RETRY)
+                                                .compensate((inputs, timeout) -> deleteObjects(SOURCE_BUCKET,
+                                                                List.of(imageKey))),
+                                // The resizer puts the renditions in S3 itself, so no thumbnail comes back
+                                Workflow.Step.of("renditions", RESIZE_TIMEOUT,
+                                                (inputs, timeout) -> writeRenditions(imageKey, content, imageBytes, timeout))
+                                                .retry(WRITE_RETRY)
+                                                .compensate((inputs, timeout) -> deleteObjects(Renditions.BUCKET,
+                                                                Renditions.keysFor(imageKey))),
+                                // Recorded last, so the gallery never lists a photo without its images.
+                                // Not retried, and its timeout undoes nothing: a timed-out insert may
+                                // still have committed, and deleting the images would break that rule
+                                Workflow.Step.of("description", DESCRIPTION_TIMEOUT,
+                                                (inputs, timeout) -> insertDescription(imageKey, description, email, timeout))
+                                                .after("original", "renditions")
+                                                .outcomeUnknownIf(LambdaInvoker::timedOut));
+        }
+
+        private CompletableFuture<String> uploadOriginal(String key, String content, byte[] imageBytes,
+                        Duration timeout) {
+                if (steps.isLocal(UPLOAD_OBJECT)) {
+                        return LambdaInvoker.runLocal(UPLOAD_OBJECT, () -> {
+                                s3Client.putObject(PutObjectRequest.builder()
+                                                .bucket(SOURCE_BUCKET)
+                                                .key(key)
+                                                .build(),
+                                                RequestBody.fromBytes(imageBytes));
+                                return Base64.getEncoder().encodeToString("Object uploaded successfully".getBytes());
+                        }, timeout);
+                }
+                return callLambdaAsync(UPLOAD_OBJECT, new JSONObject()
+                                .put("content", content)
+                                .put("key", key)
+                                .put("bucket", SOURCE_BUCKET), timeout);
+        }
+
+        // Completes with {"keys": [...]}, the renditions written
+        private CompletableFuture<String> writeRenditions(String imageKey, String content, byte[] imageBytes,
+                        Duration timeout) {
+                if (steps.isLocal(IMAGE_RESIZER)) {
+                        return LambdaInvoker.runLocal(IMAGE_RESIZER, () -> {
+                                List<String> keys = ImageRenditions.write(s3Client, imageBytes, Renditions.configured(),
+                                                Renditions.BUCKET, imageKey);
+                                return new JSONObject().put("keys", keys).toString();
+                        }, timeout);
+                }
+                return callLambdaAsync(IMAGE_RESIZER, new JSONObject()
+                                .put("content", content)
+                                .put("dstBucket", Renditions.BUCKET)
+                                .put("imageKey", imageKey), timeout);
+        }
+
+        private CompletableFuture<String> insertDescription(String imageKey, String description, String email,
+                        Duration timeout) {
+                if (steps.isLocal(UPLOAD_DESCRIPTION)) {
+                        return LambdaInvoker.runLocal(UPLOAD_DESCRIPTION, () -> {
+                                PhotoTable.insert(description, imageKey, email);
+                                return Base64.getEncoder().encodeToString("Upload description success".getBytes());
+                        }, timeout);
+                }
+                return callLambdaAsync(UPLOAD_DESCRIPTION, new JSONObject()
+                                .put("imageKey", imageKey)
+                                .put("description", description)
+                                .put("email", email), timeout);
+        }
+
+        // Compensation: queued for LambdaDeleteObject even when the steps run in-process. A
+        // compensation runs once a step has used up its time, usually at the deadline,
+        // where neither a call nor an S3 request from here would still be sent; the queued
+        // delete carries no deadline, and Lambda retries it if it fails
+        private CompletableFuture<String> deleteObjects(String bucket, List<String> keys) {
+                return invoker.enqueue(DELETE_OBJECT, new JSONObject()
+                                .put("body", new JSONObject()
+                                                .put("keys", keys)
+                                                .put("bucket", bucket)
+                                                .toString())
+                                .put("headers", Trace.headers(null))
+                                .toString())
+                                .thenApply(queued -> "");
         }
 
         @Override
         public APIGatewayProxyResponseEvent handleRequest(APIGatewayProxyRequestEvent event, Context context) {
+                Metrics.begin();
+                Metrics.recordSize("RequestBytes", event.getBody());
+                Trace.begin(event.getHeaders(), context);
+                try {
+                        APIGatewayProxyResponseEvent response = Trace.expired() ? Trace.deadlineExceeded() : handle(event, context);
+                        Metrics.recordSize("ResponseBytes", response.getBody());
+                        return Trace.finish(response);
+                } finally {
+                        Metrics.flush(context);
+                }
+        }
+
+        private APIGatewayProxyResponseEvent handle(APIGatewayProxyRequestEvent event, Context context) {
                 LambdaLogger logger = context.getLogger();
 
                 String requestBody = event.getBody();
-                if (requestBody != null && requestBody.equals("EventBridgeInvoke")) {
-                        logger.log("Invoked by EventBridge, no action taken.");
-                        return new APIGatewayProxyResponseEvent()
-                                        .withStatusCode(200)
-                                        .withBody("No action taken for EventBridge invocation.");
-                }
                 JSONObject bodyJSON = new JSONObject(requestBody);
 
-                String content = bodyJSON.getString("content");
+                String mode = bodyJSON.optString("mode", "inline");
                 String objName = bodyJSON.getString("key");
                 String objDescription = bodyJSON.getString("description");
                 String email = bodyJSON.getString("email");
@@ -92,19 +273,10 @@ public class LambdaUploadOrchestrator implements
                 // String ext = objName.substring(objName.lastIndexOf('.'));
                 String uniqueFilename = System.currentTimeMillis() + "_" + UUID.randomUUID().toString() + ".jpeg";
 
-                String responseString = "";
-
-                // PARALLEL PROCESSING: Process independent operations concurrently
+                Workflow.Result result;
                 try {
                         // Step 0: Validate token first
-                        JSONObject tokenPayload = new JSONObject()
-                                        .put("email", email)
-                                        .put("token", token);
-                        JSONObject tokenWrapper = new JSONObject()
-                                        .put("body", tokenPayload.toString());
-                        String tokenResponse = callLambda("LambdaTokenChecker", tokenWrapper.toString(), logger);
-                        JSONObject tokenResponseJSON = new JSONObject(tokenResponse);
-                        boolean success = tokenResponseJSON.optBoolean("success", false);
+                        boolean success = TokenVerifier.verify(email, token, logger);
                         if (!success) {
                                 logger.log("Token validation failed. Aborting upload.");
                                 return new APIGatewayProxyResponseEvent()
@@ -113,64 +285,64 @@ public class LambdaUploadOrchestrator implements
                                                 .withIsBase64Encoded(false)
                                                 .withHeaders(Map.of("Content-Type", "text/plain"));
                         }
-                        // Step 1 & 2: Upload original and resize image can run in parallel
-                        JSONObject filePayload = new JSONObject()
-                                        .put("content", content)
-                                        .put("key", uniqueFilename)
-                                        .put("bucket", "cloud-public-mpg");
-                        JSONObject fileWrapper = new JSONObject()
-                                        .put("body", filePayload.toString());
-
-                        JSONObject resizePayload = new JSONObject()
-                                        .put("content", content);
-                        JSONObject resizeWrapper = new JSONObject()
-                                        .put("body", resizePayload.toString());
-
-                        // Launch both operations in parallel
-                        CompletableFuture<String> uploadOriginalFuture = callLambdaAsync("LambdaUploadObject",
-                                        fileWrapper.toString(), logger);
-                        CompletableFuture<String> resizeFuture = callLambdaAsync("LambdaImageResizer",
-                                        resizeWrapper.toString(), logger);
-
-                        // Wait for both to complete
-                        String uploadOriginalResponse = uploadOriginalFuture.get();
-                        String resizeResponse = resizeFuture.get();
-
-                        responseString += uploadOriginalResponse;
-
-                        // Step 3 & 4: Upload resized image and upload description DB can run in parallel
-                        String resizedKey = "resized-" + uniqueFilename;
-                        JSONObject resizeImagePayload = new JSONObject()
-                                        .put("content", resizeResponse)
-                                        .put("key", resizedKey)
-                                        .put("bucket", "resized-cloud-public-mpg");
-                        JSONObject resizeImageWrapper = new JSONObject()
-                                        .put("body", resizeImagePayload.toString());
-
-                        JSONObject descPayload = new JSONObject()
-                                        .put("imageKey", uniqueFilename)
-                                        .put("description", objDescription)
-                                        .put("email", email);
-
-                        JSONObject descWrapper = new JSONObject()
-                                        .put("body", descPayload.toString());
-
-                        // Launch both operations in parallel
-                        CompletableFuture<String> uploadResizedFuture = callLambdaAsync("LambdaUploadObject",
-                                        resizeImageWrapper.toString(), logger);
-                        CompletableFuture<String> uploadDescFuture = callLambdaAsync("LambdaUploadDescriptionDB",
-                                        descWrapper.toString(), logger);
-
-                        // Wait for both to complete
-                        String uploadResizedResponse = uploadResizedFuture.get();
-                        String uploadDescResponse = uploadDescFuture.get();
-
-                        responseString += uploadResizedResponse + uploadDescResponse;
-
-                } catch (InterruptedException | ExecutionException e) {
-                        logger.log("Error during parallel execution: " + e.getMessage());
-                        responseString = "Error: " + e.getMessage();
+
+                        // Two-phase upload: the client PUTs straight to S3 and LambdaUploadFinalizer
+                        // resizes and records the description from the ObjectCreated event
+                        if (mode.equals("presign")) {
+                                return presignedUpload(uniqueFilename, bodyJSON.optString("contentType", "image/jpeg"),
+                                                objDescription, email);
+                        }
+
+                        String content = bodyJSON.getString("content");
+
+                        // In-process steps share one decode of the content instead of each
+                        // receiving and decoding their own Base64 copy
+                        byte[] imageBytes = steps.isLocal(UPLOAD_OBJECT) || steps.isLocal(IMAGE_RESIZER)
+                                        ? Base64.getDecoder().decode(content)
+                                        : null;
+
+                        result = uploadWorkflow(uniqueFilename, content, imageBytes, objDescription, email)
+                                        .run(timeout -> LambdaInvoker.timeoutWithin(context, timeout));
+
+                } catch (Workflow.Failed e) {
+                        logger.log("Upload failed at " + e.step() + ": " + e.getMessage() + "; undone: "
+                                        + e.compensated() + "; not undone: " + e.notCompensated() + "; " + e.timings());
+                        e.timings().recordMetrics();
+                        invoker.breakers().recordMetrics();
+                        if (e.outcomeUnknown()) {
+                                // The images stay: the photo is either listed with them or not listed at all
+                                return new APIGatewayProxyResponseEvent()
+                                                .withStatusCode(504)
+                                                .withBody(new JSONObject()
+                                                                .put("message", "Upload outcome unknown: " + e.getMessage())
+                                                                .put("key", uniqueFilename)
+                                                                .put("step", e.step())
+                                                                .put("outcome", "unknown")
+                                                                .put("timings", e.timings().toJSON())
+                                                                .toString())
+                                                .withIsBase64Encoded(false)
+                                                .withHeaders(Map.of("Content-Type", "application/json"));
+                        }
+                        // Nothing was sent to a function whose circuit is open: tell the client when to come back
+                        Duration retryAfter = LambdaInvoker.retryAfter(e);
+                        return new APIGatewayProxyResponseEvent()
+                                        .withStatusCode(retryAfter != null ? 503 : 502)
+                                        .withBody(new JSONObject()
+                                                        .put("message", "Error: " + e.getMessage())
+                                                        .put("step", e.step())
+                                                        .put("undone", e.compensated())
+                                                        .put("notUndone", e.notCompensated())
+                                                        .put("timings", e.timings().toJSON())
+                                                        .toString())
+                                        .withIsBase64Encoded(false)
+                                        .withHeaders(retryAfter != null
+                                                        ? Map.of("Content-Type", "application/json",
+                                                                        "Retry-After", retryAfterSeconds(retryAfter))
+                                                        : Map.of("Content-Type", "application/json"));
                 }
+                logger.log("Upload " + uniqueFilename + ": " + result.timings());
+                result.timings().recordMetrics();
+                invoker.breakers().recordMetrics();
 
                 /*
                  * SEQUENTIAL PROCESSING (OLD CODE - COMMENTED FOR COMPARISON):
@@ -222,13 +394,65 @@ public class LambdaUploadOrchestrator implements
                  * descWrapper.toString(), logger);
                  */
 
-                // Base64 encode final combined response
-                String encodedString = Base64.getEncoder().encodeToString(responseString.getBytes());
+                return new APIGatewayProxyResponseEvent()
+                                .withStatusCode(200)
+                                .withBody(new JSONObject()
+                                                .put("key", uniqueFilename)
+                                                .put("renditions", renditionsWritten(result.output("renditions")))
+                                                .put("timings", result.timings().toJSON())
+                                                .toString())
+                                .withIsBase64Encoded(false)
+                                .withHeaders(Map.of("Content-Type", "application/json"));
+        }
+
+        // The keys the renditions step reports in {"keys": [...]}: only the copies it wrote,
+        // so no WebP key without a WebP writer
+        static JSONArray renditionsWritten(String output) {
+                JSONArray keys = output == null || output.isBlank() ? null : new JSONObject(output).optJSONArray("keys");
+                return keys == null ? new JSONArray() : keys;
+        }
+
+        // Retry-After in whole seconds, rounded up
+        private static String retryAfterSeconds(Duration retryAfter) {
+                return Long.toString(Math.max(1, (retryAfter.toMillis() + 999) / 1000));
+        }
+
+        private APIGatewayProxyResponseEvent presignedUpload(String uniqueFilename, String contentType,
+                        String objDescription, String email) {
+                // Metadata is part of the signature, so the client must send exactly these headers
+                PutObjectRequest putObjectRequest = PutObjectRequest.builder()
+                                .bucket(SOURCE_BUCKET)
+                                .key(uniqueFilename)
+                                .contentType(contentType)
+                                .metadata(Map.of(
+                                                "upload-flow", "presigned",
+                                                "description", URLEncoder.encode(objDescription, StandardCharsets.UTF_8),
+                                                "email", URLEncoder.encode(email, StandardCharsets.UTF_8)))
+                                .build();
+
+                PresignedPutObjectRequest presigned = presigner.presignPutObject(PutObjectPresignRequest.builder()
+                                .signatureDuration(PRESIGNED_UPLOAD_LIFETIME)
+                                .putObjectRequest(putObjectRequest)
+                                .build());
+
+                JSONObject headers = new JSONObject();
+                presigned.signedHeaders().forEach((name, values) -> {
+                        if (!name.equalsIgnoreCase("host")) {
+                                headers.put(name, String.join(",", values));
+                        }
+                });
+
+                JSONObject responseBody = new JSONObject()
+                                .put("key", uniqueFilename)
+                                .put("url", presigned.url().toString())
+                                .put("method", "PUT")
+                                .put("headers", headers)
+                                .put("expiresIn", PRESIGNED_UPLOAD_LIFETIME.toSeconds());
 
                 return new APIGatewayProxyResponseEvent()
                                 .withStatusCode(200)
-                                .withBody(encodedString)
-                                .withIsBase64Encoded(true)
-                                .withHeaders(Map.of("Content-Type", "text/plain"));
+                                .withBody(responseBody.toString())
+                                .withIsBase64Encoded(false)
+                                .withHeaders(Map.of("Content-Type", "application/json"));
         }
 }
@@ -0,0 +1,154 @@
+package vgu.cloud26;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.Before;
+import org.junit.Test;
+
+public class MetricsTest {
+
+    private static final String NAMESPACE = System.getenv("METRICS_NAMESPACE") == null
+            || System.getenv("METRICS_NAMESPACE").isBlank() ? "PhotoGallery" : System.getenv("METRICS_NAMESPACE");
+
+    private static List<JSONObject> flush(String functionName, String requestId) {
+        List<JSONObject> documents = new ArrayList<>();
+        Metrics.flush(functionName, requestId, line -> documents.add(new JSONObject(line)));
+        return documents;
+    }
+
+    private static JSONObject cloudWatchMetrics(JSONObject document) {
+        return document.getJSONObject("_aws").getJSONArray("CloudWatchMetrics").getJSONObject(0);
+    }
+
+    @Before
+    public void emptyBuffer() {
+        flush(null, null);
+    }
+
+    @Test
+    public void writesOneDocumentPerDimension() {
+        Metrics.record("ResizeDuration", 12.5, Metrics.Unit.MILLISECONDS);
+        Metrics.record("InvokeRequestBytes", 300, Metrics.Unit.BYTES, "Target", "LambdaImageResizer");
+
+        List<JSONObject> documents = flush("LambdaUploadOrchestrator", "request-1");
+
+        assertEquals(2, documents.size());
+        JSONObject plain = documents.get(0);
+        assertEquals("LambdaUploadOrchestrator", plain.getString("Function"));
+        assertEquals("request-1", plain.getString("requestId"));
+        assertEquals(12.5, plain.getDouble("ResizeDuration"), 0);
+        assertTrue(plain.getJSONObject("_aws").getLong("Timestamp") > 0);
+        JSONObject definition = cloudWatchMetrics(plain);
+        assertEquals(NAMESPACE, definition.getString("Namespace"));
+        assertEquals(new JSONArray().put(new JSONArray().put("Function")).toString(),
+                definition.getJSONArray("Dimensions").toString());
+        JSONObject metric = definition.getJSONArray("Metrics").getJSONObject(0);
+        assertEquals("ResizeDuration", metric.getString("Name"));
+        assertEquals("Milliseconds", metric.getString("Unit"));
+
+        JSONObject byTarget = documents.get(1);
+        assertEquals("LambdaImageResizer", byTarget.getString("Target"));
+        assertEquals(300, byTarget.getDouble("InvokeRequestBytes"), 0);
+        assertEquals(new JSONArray().put(new JSONArray().put("Function").put("Target")).toString(),
+                cloudWatchMetrics(byTarget).getJSONArray("Dimensions").toString());
+        assertEquals("Bytes", cloudWatchMetrics(byTarget).getJSONArray("Metrics").getJSONObject(0).getString("Unit"));
+    }
+
+    @Test
+    public void repeatedValuesAreWrittenAsAList() {
+        Metrics.record("S3Latency", 10, Metrics.Unit.MILLISECONDS, "Operation", "PutObject");
+        Metrics.record("S3Latency", 20, Metrics.Unit.MILLISECONDS, "Operation", "PutObject");
+        Metrics.record("S3Latency", 30, Metrics.Unit.MILLISECONDS, "Operation", "PutObject");
+
+        List<JSONObject> documents = flush("LambdaUploadObject", "request-2");
+
+        assertEquals(1, documents.size());
+        assertEquals(List.of(10.0, 20.0, 30.0), documents.get(0).getJSONArray("S3Latency").toList().stream()
+                .map(value -> ((Number) value).doubleValue())
+                .toList());
+        assertEquals(1, cloudWatchMetrics(documents.get(0)).getJSONArray("Metrics").length());
+    }
+
+    @Test
+    public void moreThanOneHundredValuesSpillIntoAnotherDocument() {
+        for (int i = 0; i < 150; i++) {
+            Metrics.record("StepDuration", i, Metrics.Unit.MILLISECONDS, "Step", "original");
+        }
+
+        List<JSONObject> documents = flush("LambdaUploadOrchestrator", "request-3");
+
+        assertEquals(2, documents.size());
+        assertEquals(100, documents.get(0).getJSONArray("StepDuration").length());
+        assertEquals(50, documents.get(1).getJSONArray("StepDuration").length());
+    }
+
+    @Test
+    public void emptyBufferWritesNothing() {
+        assertTrue(flush("LambdaUploadOrchestrator", "request-4").isEmpty());
+    }
+
+    @Test
+    public void flushEmptiesTheBuffer() {
+        Metrics.record("ColdStart", 0, Metrics.Unit.COUNT);
+
+        assertEquals(1, flush("LambdaUploadOrchestrator", "request-5").size());
+        assertTrue(flush("LambdaUploadOrchestrator", "request-6").isEmpty());
+    }
+
+    @Test
+    public void firstInvocationAfterRestoreIsAColdStart() {
+        Metrics.record("ResponseBytes", 1, Metrics.Unit.BYTES);
+        Metrics.restored();
+
+        Metrics.begin();
+        JSONObject cold = flush("LambdaUploadOrchestrator", "request-7").get(0);
+        Metrics.begin();
+        JSONObject warm = flush("LambdaUploadOrchestrator", "request-8").get(0);
+
+        // Recorded before the snapshot, so dropped
+        assertFalse(cold.has("ResponseBytes"));
+        assertEquals(1, cold.getDouble("ColdStart"), 0);
+        assertTrue(cold.has("InitDuration"));
+        assertEquals(0, warm.getDouble("ColdStart"), 0);
+        assertFalse(warm.has("InitDuration"));
+    }
+
+    @Test
+    public void boundWorkOutlivingItsInvocationIsWrittenOnItsOwn() {
+        Executor refresh = Metrics.bind(Runnable::run);
+        refresh.execute(() -> Metrics.record("InvokeDuration", 40, Metrics.Unit.MILLISECONDS));
+        assertEquals(1, flush("LambdaListObjectsOrchestrator", "request-9").size());
+
+        // The next invocation runs while the refresh is still recording
+        Metrics.record("RequestBytes", 10, Metrics.Unit.BYTES);
+        refresh.execute(() -> Metrics.record("InvokeDuration", 50, Metrics.Unit.MILLISECONDS));
+        List<JSONObject> documents = flush("LambdaListObjectsOrchestrator", "request-10");
+
+        assertEquals(2, documents.size());
+        JSONObject late = documents.get(0);
+        assertEquals("request-9", late.getString("requestId"));
+        assertEquals(50, late.getDouble("InvokeDuration"), 0);
+        assertFalse(late.has("RequestBytes"));
+        assertEquals("request-10", documents.get(1).getString("requestId"));
+        assertFalse(documents.get(1).has("InvokeDuration"));
+        assertTrue(flush("LambdaListObjectsOrchestrator", "request-11").isEmpty());
+    }
+
+    @Test
+    public void missingNamesAreLeftOutOrReplaced() {
+        Metrics.record("ColdStart", 0, Metrics.Unit.COUNT);
+
+        JSONObject document = flush(null, null).get(0);
+
+        assertEquals("unknown", document.getString("Function"));
+        assertFalse(document.has("requestId"));
+    }
+}
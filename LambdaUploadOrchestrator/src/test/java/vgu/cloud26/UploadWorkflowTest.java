@@ -0,0 +1,116 @@
+package vgu.cloud26;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.UnaryOperator;
+
+import org.junit.Test;
+
+public class UploadWorkflowTest {
+
+    private static Workflow uploadWorkflow(SimulatedTransport transport) {
+        LambdaUploadOrchestrator orchestrator = new LambdaUploadOrchestrator(new LambdaInvoker(transport),
+                StepModes.allRemote());
+        return orchestrator.uploadWorkflow("simulated.jpeg", "", null, "simulated", "simulation@example.com");
+    }
+
+    @Test
+    public void descriptionIsRecordedAfterBothWrites() {
+        SimulatedTransport transport = SimulatedTransport.parse("LambdaUploadObject=100", "LambdaImageResizer=300");
+
+        Workflow.Result result = uploadWorkflow(transport).run(UnaryOperator.identity());
+
+        assertEquals(List.of("renditions", "description"), result.timings().criticalPath());
+        long descriptionStart = transport.calls("LambdaUploadDescriptionDB").get(0).startMillis();
+        assertTrue(transport.calls().toString(), descriptionStart >= 300);
+        // Original and renditions overlap instead of adding up
+        assertTrue(result.timings().toString(), result.timings().totalMillis() < 600);
+    }
+
+    @Test
+    public void failedDescriptionUndoesBothWrites() {
+        SimulatedTransport transport = SimulatedTransport.parse("LambdaUploadDescriptionDB=fail:50");
+
+        try {
+            uploadWorkflow(transport).run(UnaryOperator.identity());
+            fail("expected Workflow.Failed");
+        } catch (Workflow.Failed e) {
+            assertEquals("description", e.step());
+            assertFalse(e.outcomeUnknown());
+            assertEquals(List.of("original", "renditions"), e.compensated());
+        }
+        // The insert is not retried
+        assertEquals(1, transport.calls("LambdaUploadDescriptionDB").size());
+        assertEquals(2, transport.calls("LambdaDeleteObject").size());
+    }
+
+    @Test
+    public void timedOutDescriptionLeavesTheImages() {
+        SimulatedTransport transport = SimulatedTransport.parse("LambdaUploadDescriptionDB=2000");
+
+        try {
+            uploadWorkflow(transport).run(timeout -> Duration.ofMillis(300));
+            fail("expected Workflow.Failed");
+        } catch (Workflow.Failed e) {
+            assertEquals("description", e.step());
+            // The insert may yet commit, and a listed photo must keep its images
+            assertTrue(e.outcomeUnknown());
+            assertEquals(List.of(), e.compensated());
+        }
+        assertEquals(List.of(), transport.calls("LambdaDeleteObject"));
+    }
+
+    @Test
+    public void undoIsSentEvenWithNoTimeLeft() {
+        SimulatedTransport transport = SimulatedTransport.parse("LambdaUploadObject=fail:20",
+                "LambdaImageResizer=800");
+        long start = System.nanoTime();
+
+        try {
+            // Every attempt is capped at a deadline 400 ms after the start
+            uploadWorkflow(transport).run(timeout -> Duration.ofMillis(
+                    Math.max(0, 400 - TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start))));
+            fail("expected Workflow.Failed");
+        } catch (Workflow.Failed e) {
+            assertEquals("original", e.step());
+            assertEquals(List.of("renditions"), e.compensated());
+            assertEquals(List.of(), e.notCompensated());
+        }
+        assertEquals(1, transport.calls("LambdaDeleteObject").size());
+    }
+
+    @Test
+    public void renditionsCancelledMidFlightAreDeletedOnlyOnceTheResizerAnswers() {
+        SimulatedTransport transport = SimulatedTransport.parse("LambdaUploadObject=fail:20",
+                "LambdaImageResizer=800");
+
+        try {
+            uploadWorkflow(transport).run(UnaryOperator.identity());
+            fail("expected Workflow.Failed");
+        } catch (Workflow.Failed e) {
+            assertEquals("original", e.step());
+            assertEquals(List.of("renditions"), e.compensated());
+        }
+        // Both attempts at the original failed well before the resizer was done
+        assertEquals(2, transport.calls("LambdaUploadObject").size());
+        assertTrue(transport.calls().toString(),
+                transport.calls("LambdaDeleteObject").get(0).startMillis() >= 800);
+    }
+
+    @Test
+    public void renditionsListedAreOnlyThoseTheResizerWrote() {
+        Workflow.Result result = uploadWorkflow(SimulatedTransport.parse()).run(UnaryOperator.identity());
+
+        // The simulated resizer reports no keys, so none are claimed
+        assertTrue(LambdaUploadOrchestrator.renditionsWritten(result.output("renditions")).isEmpty());
+        // No WebP writer: only the JPEG copies come back, not every key keysFor allows
+        assertEquals(List.of("web-a.jpg", "resized-a.jpg"), LambdaUploadOrchestrator.renditionsWritten(
+                "{\"keys\":[\"web-a.jpg\",\"resized-a.jpg\"]}").toList());
+    }
+}
@@ -0,0 +1,248 @@
+package vgu.cloud26;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.UnaryOperator;
+
+import org.junit.Test;
+
+public class WorkflowTest {
+
+    private static final Duration TIMEOUT = Duration.ofSeconds(5);
+
+    // Completes with output after millis, whether or not the future is cancelled meanwhile
+    private static CompletableFuture<String> after(long millis, String output) {
+        return CompletableFuture.supplyAsync(() -> output,
+                CompletableFuture.delayedExecutor(millis, TimeUnit.MILLISECONDS));
+    }
+
+    private static CompletableFuture<String> failingAfter(long millis, String message) {
+        return after(millis, "").thenApply(ignored -> {
+            throw new IllegalStateException(message);
+        });
+    }
+
+    @Test
+    public void stepGetsTheOutputsOfItsDependencies() {
+        Workflow workflow = Workflow.of("test",
+                Workflow.Step.of("a", TIMEOUT, (inputs, timeout) -> after(10, "A")),
+                Workflow.Step.of("b", TIMEOUT, (inputs, timeout) -> after(10, "B")),
+                Workflow.Step.of("c", TIMEOUT,
+                        (inputs, timeout) -> after(10, inputs.get("a") + inputs.get("b"))).after("a", "b"));
+
+        Workflow.Result result = workflow.run(UnaryOperator.identity());
+
+        assertEquals("AB", result.output("c"));
+        assertEquals("c", result.timings().criticalPath().get(result.timings().criticalPath().size() - 1));
+    }
+
+    @Test
+    public void independentStepsRunAtTheSameTime() {
+        Workflow workflow = Workflow.of("test",
+                Workflow.Step.of("a", TIMEOUT, (inputs, timeout) -> after(300, "")),
+                Workflow.Step.of("b", TIMEOUT, (inputs, timeout) -> after(300, "")),
+                Workflow.Step.of("c", TIMEOUT, (inputs, timeout) -> after(300, "")));
+
+        long totalMillis = workflow.run(UnaryOperator.identity()).timings().totalMillis();
+
+        assertTrue("took " + totalMillis + " ms", totalMillis < 600);
+    }
+
+    @Test
+    public void failedStepIsRetried() {
+        AtomicInteger attempts = new AtomicInteger();
+        Workflow workflow = Workflow.of("test",
+                Workflow.Step.of("flaky", TIMEOUT, (inputs, timeout) -> attempts.incrementAndGet() == 1
+                        ? failingAfter(10, "first attempt")
+                        : after(10, "ok"))
+                        .retry(new Workflow.Retry(2, Duration.ofMillis(10))));
+
+        Workflow.Result result = workflow.run(UnaryOperator.identity());
+
+        assertEquals("ok", result.output("flaky"));
+        assertEquals(2, result.timings().steps().get(0).attempts());
+    }
+
+    @Test
+    public void failureCompensatesTheStepsThatFinished() {
+        AtomicReference<Map<String, String>> undoInputs = new AtomicReference<>();
+        Workflow workflow = Workflow.of("test",
+                Workflow.Step.of("write", TIMEOUT, (inputs, timeout) -> after(10, "written"))
+                        .compensate((inputs, timeout) -> {
+                            undoInputs.set(inputs);
+                            return after(0, "");
+                        }),
+                Workflow.Step.of("record", TIMEOUT, (inputs, timeout) -> failingAfter(10, "broken"))
+                        .after("write"));
+
+        try {
+            workflow.run(UnaryOperator.identity());
+            fail("expected Workflow.Failed");
+        } catch (Workflow.Failed e) {
+            assertEquals("record", e.step());
+            assertEquals("broken", e.getCause().getMessage());
+            assertEquals(List.of("write"), e.compensated());
+        }
+        assertEquals(Map.of("write", "written"), undoInputs.get());
+    }
+
+    @Test
+    public void compensationGetsItsStepsOwnTimeoutAndFailuresAreReported() {
+        AtomicReference<Duration> undoTimeout = new AtomicReference<>();
+        Workflow workflow = Workflow.of("test",
+                Workflow.Step.of("write", TIMEOUT, (inputs, timeout) -> after(10, "written"))
+                        .compensate((inputs, timeout) -> {
+                            undoTimeout.set(timeout);
+                            return after(0, "");
+                        }),
+                Workflow.Step.of("other write", TIMEOUT, (inputs, timeout) -> after(10, "written"))
+                        .compensate((inputs, timeout) -> failingAfter(0, "undo refused")),
+                Workflow.Step.of("record", TIMEOUT, (inputs, timeout) -> failingAfter(10, "broken"))
+                        .after("write", "other write"));
+
+        try {
+            // Nearly out of time: the attempts get 100 ms, the compensations their own timeout
+            workflow.run(timeout -> Duration.ofMillis(100));
+            fail("expected Workflow.Failed");
+        } catch (Workflow.Failed e) {
+            assertEquals(List.of("write"), e.compensated());
+            assertEquals(List.of("other write"), e.notCompensated());
+        }
+        assertEquals(TIMEOUT, undoTimeout.get());
+    }
+
+    @Test
+    public void failureWithUnknownOutcomeCompensatesNothing() {
+        AtomicBoolean undone = new AtomicBoolean();
+        Workflow workflow = Workflow.of("test",
+                Workflow.Step.of("write", TIMEOUT, (inputs, timeout) -> after(10, "written"))
+                        .compensate((inputs, timeout) -> {
+                            undone.set(true);
+                            return after(0, "");
+                        }),
+                Workflow.Step.of("record", TIMEOUT, (inputs, timeout) -> failingAfter(10, "maybe committed"))
+                        .after("write")
+                        .outcomeUnknownIf(ex -> ex.getMessage().startsWith("maybe")));
+
+        try {
+            workflow.run(UnaryOperator.identity());
+            fail("expected Workflow.Failed");
+        } catch (Workflow.Failed e) {
+            assertEquals("record", e.step());
+            assertTrue(e.outcomeUnknown());
+            assertEquals(List.of(), e.compensated());
+        }
+        assertFalse(undone.get());
+    }
+
+    @Test
+    public void cancelledStepIsCompensatedOnlyAfterItsWriteLands() {
+        AtomicBoolean written = new AtomicBoolean();
+        AtomicBoolean undoneAfterWrite = new AtomicBoolean();
+        AtomicReference<Map<String, String>> undoInputs = new AtomicReference<>();
+        Workflow workflow = Workflow.of("test",
+                // Stands for a remote write that still lands after the caller cancels it
+                Workflow.Step.of("slow write", TIMEOUT, (inputs, timeout) -> after(400, "written")
+                        .whenComplete((output, ex) -> written.set(true)))
+                        .compensate((inputs, timeout) -> {
+                            undoneAfterWrite.set(written.get());
+                            undoInputs.set(inputs);
+                            return after(0, "");
+                        }),
+                Workflow.Step.of("fails", TIMEOUT, (inputs, timeout) -> failingAfter(50, "broken")));
+
+        try {
+            workflow.run(UnaryOperator.identity());
+            fail("expected Workflow.Failed");
+        } catch (Workflow.Failed e) {
+            assertEquals("fails", e.step());
+            assertEquals(List.of("slow write"), e.compensated());
+            Workflow.Timing slowWrite = e.timings().steps().get(0);
+            assertEquals("cancelled", slowWrite.status());
+        }
+        assertTrue(undoneAfterWrite.get());
+        assertEquals(Map.of("slow write", "written"), undoInputs.get());
+    }
+
+    @Test
+    public void compensationStopsWaitingWhenTheStepTimesOut() {
+        CompletableFuture<String> neverAnswers = new CompletableFuture<>();
+        AtomicReference<Map<String, String>> undoInputs = new AtomicReference<>();
+        Workflow workflow = Workflow.of("test",
+                Workflow.Step.of("hangs", Duration.ofMillis(300), (inputs, timeout) -> neverAnswers)
+                        .compensate((inputs, timeout) -> {
+                            undoInputs.set(inputs);
+                            return after(0, "");
+                        }),
+                Workflow.Step.of("fails", TIMEOUT, (inputs, timeout) -> failingAfter(50, "broken")));
+
+        long start = System.nanoTime();
+        try {
+            workflow.run(UnaryOperator.identity());
+            fail("expected Workflow.Failed");
+        } catch (Workflow.Failed e) {
+            assertEquals(List.of("hangs"), e.compensated());
+        }
+        long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+        assertTrue("compensated after " + millis + " ms", millis >= 250);
+        assertTrue(neverAnswers.isCancelled());
+        assertEquals(Map.of(), undoInputs.get());
+    }
+
+    @Test
+    public void stepsAfterTheFailureNeverStart() {
+        AtomicBoolean started = new AtomicBoolean();
+        Workflow workflow = Workflow.of("test",
+                Workflow.Step.of("fails", TIMEOUT, (inputs, timeout) -> failingAfter(10, "broken")),
+                Workflow.Step.of("next", TIMEOUT, (inputs, timeout) -> {
+                    started.set(true);
+                    return after(0, "");
+                }).after("fails"));
+
+        try {
+            workflow.run(UnaryOperator.identity());
+            fail("expected Workflow.Failed");
+        } catch (Workflow.Failed e) {
+            assertEquals("fails", e.step());
+            assertEquals(1, e.timings().steps().size());
+        }
+        assertFalse(started.get());
+    }
+
+    @Test
+    public void stepsFinishingWhileLaterOnesAreWiredStillStartTheirDependents() {
+        // Early steps finish on other threads while run() is still setting up the rest
+        List<Workflow.Step> chain = new ArrayList<>();
+        chain.add(Workflow.Step.of("step0", TIMEOUT, (inputs, timeout) -> after(0, "0")));
+        for (int i = 1; i < 500; i++) {
+            String previous = "step" + (i - 1);
+            chain.add(Workflow.Step.of("step" + i, TIMEOUT,
+                    (inputs, timeout) -> CompletableFuture.supplyAsync(() -> inputs.get(previous))).after(previous));
+        }
+
+        Workflow.Result result = CompletableFuture.supplyAsync(() -> Workflow.of("test", chain)
+                .run(UnaryOperator.identity())).orTimeout(10, TimeUnit.SECONDS).join();
+
+        assertEquals("0", result.output("step499"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void dependencyMustBeDeclaredFirst() {
+        Workflow.of("test",
+                Workflow.Step.of("b", TIMEOUT, (inputs, timeout) -> after(0, "")).after("a"),
+                Workflow.Step.of("a", TIMEOUT, (inputs, timeout) -> after(0, "")));
+    }
+}
@@ -0,0 +1,224 @@
+/*
+Benchmark: FusedPipelineBenchmark
+Description: End-to-end latency and billed work of the upload and delete orchestrators with their S3 steps invoked as separate Lambdas ("remote") or run in-process ("local"). Remote steps run the real step handlers behind a fixed invocation overhead; every step writes to a loopback S3 stand-in.
+*/
+
+package vgu.cloud26;
+
+import com.amazonaws.services.lambda.runtime.Context;
+import com.amazonaws.services.lambda.runtime.RequestHandler;
+import com.amazonaws.services.lambda.runtime.events.APIGatewayProxyRequestEvent;
+import com.amazonaws.services.lambda.runtime.events.APIGatewayProxyResponseEvent;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.time.Clock;
+import java.time.Duration;
+import java.util.Base64;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+import javax.imageio.ImageIO;
+
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import software.amazon.awssdk.auth.credentials.AwsBasicCredentials;
+import software.amazon.awssdk.auth.credentials.StaticCredentialsProvider;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class FusedPipelineBenchmark {
+
+    private static final String SIGNING_KEY = "benchmark-key";
+
+    private static final String EMAIL = "benchmark@example.com";
+
+    private static final String UPLOAD_DESCRIPTION = "LambdaUploadDescriptionDB";
+
+    private static final String DELETE_DESCRIPTION = "LambdaDeleteDescriptionDB";
+
+    /**
+     * Totals per iteration; divide invocations and billedMillis by
+     * operations for the per-request figures. The orchestrator's own
+     * invocation and run time are included.
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Billing {
+
+        public long operations;
+
+        public long invocations;
+
+        public long billedMillis;
+    }
+
+    // "remote": every step is its own Lambda; "local": S3 and resize steps run
+    // in the orchestrator. The description steps stay remote in both, since
+    // there is no database here; they only add their fixed latency.
+    @Param({"remote", "local"})
+    public String mode;
+
+    // Round-trip overhead of one Lambda invocation, on top of the handler's own time
+    @Param({"25"})
+    public int invokeLatencyMillis;
+
+    // Time the description Lambdas take for their SQL statement
+    @Param({"10"})
+    public int databaseMillis;
+
+    @Param({"2000x1500"})
+    public String dimensions;
+
+    private final AtomicLong invocations = new AtomicLong();
+
+    private final AtomicLong billedNanos = new AtomicLong();
+
+    private final ExecutorService functions = Executors.newVirtualThreadPerTaskExecutor();
+
+    private LocalS3Server server;
+
+    private Map<String, RequestHandler<APIGatewayProxyRequestEvent, APIGatewayProxyResponseEvent>> handlers;
+
+    private LambdaUploadOrchestrator uploadOrchestrator;
+
+    private LambdaDeleteOrchestrator deleteOrchestrator;
+
+    private APIGatewayProxyRequestEvent uploadEvent;
+
+    private APIGatewayProxyRequestEvent deleteEvent;
+
+    private Context context;
+
+    @Setup(Level.Trial)
+    public void setUp(Blackhole blackhole) throws IOException {
+        server = new LocalS3Server();
+        AwsClients.configure(server.endpoint(),
+                StaticCredentialsProvider.create(AwsBasicCredentials.create("local", "local")));
+        TokenVerifier.configure(new SecretCache(() -> SIGNING_KEY, Duration.ofHours(1), Duration.ofHours(1),
+                Clock.systemUTC()));
+        String token = TokenVerifier.generateSecureToken(EMAIL, SIGNING_KEY);
+        context = new StubContext(blackhole::consume, 512);
+
+        handlers = Map.of(
+                "LambdaUploadObject", new LambdaUploadObject(),
+                "LambdaImageResizer", new LambdaImageResizer(),
+                "LambdaDeleteObject", new LambdaDeleteObject());
+
+        LambdaInvoker invoker = new LambdaInvoker(this::invoke);
+        boolean local = mode.equals(StepModes.LOCAL);
+        uploadOrchestrator = new LambdaUploadOrchestrator(invoker, local
+                ? StepModes.local("LambdaUploadObject", "LambdaImageResizer")
+                : StepModes.allRemote());
+        deleteOrchestrator = new LambdaDeleteOrchestrator(invoker, local
+                ? StepModes.local("LambdaDeleteObject")
+                : StepModes.allRemote());
+
+        String[] size = dimensions.split("x");
+        ByteArrayOutputStream photo = new ByteArrayOutputStream();
+        ImageIO.write(ImageResizeBenchmark.photoLike(Integer.parseInt(size[0]), Integer.parseInt(size[1])),
+                "jpeg", photo);
+        uploadEvent = new APIGatewayProxyRequestEvent().withBody(new JSONObject()
+                .put("email", EMAIL)
+                .put("token", token)
+                .put("key", "photo.jpeg")
+                .put("description", "benchmark")
+                .put("content", Base64.getEncoder().encodeToString(photo.toByteArray()))
+                .toString());
+        deleteEvent = new APIGatewayProxyRequestEvent().withBody(new JSONObject()
+                .put("email", EMAIL)
+                .put("token", token)
+                .put("key", "1700000000000_photo.jpeg")
+                .toString());
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        functions.shutdownNow();
+        server.close();
+    }
+
+    @Benchmark
+    public APIGatewayProxyResponseEvent upload(Billing billing) {
+        return bill(billing, () -> uploadOrchestrator.handleRequest(uploadEvent, context));
+    }
+
+    @Benchmark
+    public APIGatewayProxyResponseEvent delete(Billing billing) {
+        return bill(billing, () -> deleteOrchestrator.handleRequest(deleteEvent, context));
+    }
+
+    private APIGatewayProxyResponseEvent bill(Billing billing,
+            Supplier<APIGatewayProxyResponseEvent> orchestrator) {
+        long invocationsBefore = invocations.get();
+        long billedBefore = billedNanos.get();
+        long start = System.nanoTime();
+        APIGatewayProxyResponseEvent response = orchestrator.get();
+        long orchestratorNanos = System.nanoTime() - start;
+
+        billing.operations++;
+        billing.invocations += 1 + invocations.get() - invocationsBefore;
+        billing.billedMillis += TimeUnit.NANOSECONDS.toMillis(
+                orchestratorNanos + billedNanos.get() - billedBefore);
+        return response;
+    }
+
+    /**
+     * A Lambda invocation: the request and response cross the wire as JSON
+     * and the handler is billed for its own run time only.
+     */
+    private CompletableFuture<String> invoke(String functionName, String payload) {
+        return CompletableFuture.supplyAsync(() -> {
+            invocations.incrementAndGet();
+            long start = System.nanoTime();
+            JSONObject response;
+            if (functionName.equals(UPLOAD_DESCRIPTION) || functionName.equals(DELETE_DESCRIPTION)) {
+                sleep(databaseMillis);
+                response = new JSONObject()
+                        .put("statusCode", 200)
+                        .put("body", Base64.getEncoder().encodeToString("ok".getBytes()));
+            } else {
+                APIGatewayProxyResponseEvent result = handlers.get(functionName).handleRequest(
+                        new APIGatewayProxyRequestEvent().withBody(new JSONObject(payload).getString("body")),
+                        context);
+                response = new JSONObject()
+                        .put("statusCode", result.getStatusCode())
+                        .put("body", result.getBody());
+            }
+            billedNanos.addAndGet(System.nanoTime() - start);
+            return response.toString();
+        }, CompletableFuture.delayedExecutor(invokeLatencyMillis, TimeUnit.MILLISECONDS, functions));
+    }
+
+    private static void sleep(int millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,129 @@
+/*
+Benchmark: HedgedReadBenchmark
+Description: Latency distribution of a read from a function that usually answers quickly but now and then stalls like a cold start. Compares one plain call with HedgedReads, through a latency-injecting transport instead of AWS. Sample mode, so JMH reports p50, p90, p99 and p99.9 for each.
+*/
+
+package vgu.cloud26;
+
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import software.amazon.awssdk.core.SdkBytes;
+import software.amazon.awssdk.services.lambda.model.InvokeResponse;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 3, time = 10)
+@Threads(8)
+@Fork(1)
+public class HedgedReadBenchmark {
+
+    private static final String FUNCTION = "LambdaGetPhotosDB";
+
+    private static final String PAYLOAD = new JSONObject()
+            .put("envelope", "none")
+            .put("body", new JSONObject().put("limit", 50).toString())
+            .toString();
+
+    private static final Duration READ_TIMEOUT = Duration.ofSeconds(10);
+
+    // Typical latency; each call takes between half and one and a half times this
+    @Param({"20"})
+    public int fastMillis;
+
+    // Latency of a stalled call
+    @Param({"600"})
+    public int slowMillis;
+
+    // Share of calls that stall, in percent
+    @Param({"2"})
+    public double slowPercent;
+
+    // Share of calls that fail with an unhandled function error, in percent
+    @Param({"0"})
+    public double failPercent;
+
+    @Param({"95"})
+    public double hedgePercentile;
+
+    private HedgedReads.Transport transport;
+
+    private HedgedReads reads;
+
+    private final AtomicLong invocations = new AtomicLong();
+
+    /**
+     * Calls that reached the transport, to set against the number of reads:
+     * the load hedging and retries add.
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Load {
+
+        public long invocations;
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        InvokeResponse ok = InvokeResponse.builder()
+                .statusCode(200)
+                .payload(SdkBytes.fromUtf8String("{\"version\":1,\"items\":[],\"nextCursor\":null}"))
+                .build();
+        InvokeResponse failed = InvokeResponse.builder()
+                .statusCode(200)
+                .functionError("Unhandled")
+                .payload(SdkBytes.fromUtf8String(new JSONObject()
+                        .put("errorType", "java.lang.RuntimeException")
+                        .put("errorMessage", "injected")
+                        .toString()))
+                .build();
+        transport = (functionName, payload) -> {
+            invocations.incrementAndGet();
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            long latency = random.nextDouble(100) < slowPercent
+                    ? slowMillis
+                    : Math.round(fastMillis * (0.5 + random.nextDouble()));
+            InvokeResponse response = random.nextDouble(100) < failPercent ? failed : ok;
+            return CompletableFuture.supplyAsync(() -> response,
+                    CompletableFuture.delayedExecutor(latency, TimeUnit.MILLISECONDS));
+        };
+        reads = new HedgedReads(transport, hedgePercentile);
+    }
+
+    @Benchmark
+    public InvokeResponse plainRead(Load load) {
+        long before = invocations.get();
+        InvokeResponse response = transport.invoke(FUNCTION, PAYLOAD).join();
+        load.invocations += invocations.get() - before;
+        return response;
+    }
+
+    @Benchmark
+    public InvokeResponse hedgedRead(Load load) {
+        long before = invocations.get();
+        InvokeResponse response = reads.invoke(FUNCTION, PAYLOAD, READ_TIMEOUT, HedgedReads.newBudget()).join();
+        load.invocations += invocations.get() - before;
+        return response;
+    }
+}
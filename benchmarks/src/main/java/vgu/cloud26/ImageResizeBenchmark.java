@@ -0,0 +1,154 @@
+/*
+Benchmark: ImageResizeBenchmark
+Description: Throughput, allocation and peak heap of LambdaImageResizer's Base64 decode -> ImageIO.read -> resizeImage -> ImageIO.write chain for JPEG and PNG inputs from 0.5 to 24 megapixels.
+*/
+
+package vgu.cloud26;
+
+import com.amazonaws.services.lambda.runtime.Context;
+import com.amazonaws.services.lambda.runtime.events.APIGatewayProxyRequestEvent;
+import com.amazonaws.services.lambda.runtime.events.APIGatewayProxyResponseEvent;
+
+import java.awt.Color;
+import java.awt.GradientPaint;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Base64;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import javax.imageio.ImageIO;
+
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 3)
+@Measurement(iterations = 3, time = 5)
+@Fork(value = 1, jvmArgs = {"-Xmx2g"})
+public class ImageResizeBenchmark {
+
+    private static final float THUMBNAIL_DIMENSION = 100;
+
+    @Param({"0.5", "2", "8", "12", "24"})
+    public double megapixels;
+
+    @Param({"jpeg", "png"})
+    public String format;
+
+    private LambdaImageResizer resizer;
+
+    private Context context;
+
+    private APIGatewayProxyRequestEvent event;
+
+    private byte[] encoded;
+
+    private BufferedImage decoded;
+
+    private BufferedImage thumbnail;
+
+    @Setup(Level.Trial)
+    public void setUp(Blackhole blackhole) throws IOException {
+        // 3:2, like most camera sensors
+        int width = (int) Math.round(Math.sqrt(megapixels * 1_000_000 * 3 / 2));
+        int height = width * 2 / 3;
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ImageIO.write(photoLike(width, height), format, out);
+        encoded = out.toByteArray();
+
+        event = new APIGatewayProxyRequestEvent().withBody(new JSONObject()
+                .put("content", Base64.getEncoder().encodeToString(encoded))
+                .toString());
+        context = new StubContext(blackhole::consume, 512);
+        resizer = new LambdaImageResizer();
+        decoded = ImageIO.read(new ByteArrayInputStream(encoded));
+        thumbnail = resizer.resizeImage(decoded);
+    }
+
+    /**
+     * Whole request as LambdaUploadOrchestrator sends it: JSON parse, Base64
+     * decode, ImageIO.read, resize, JPEG encode and Base64 encode.
+     */
+    @Benchmark
+    public APIGatewayProxyResponseEvent handleRequest() {
+        return resizer.handleRequest(event, context);
+    }
+
+    /**
+     * Full-resolution decode, as the resizer did before subsampling.
+     */
+    @Benchmark
+    public BufferedImage decode() throws IOException {
+        return ImageIO.read(new ByteArrayInputStream(encoded));
+    }
+
+    @Benchmark
+    public BufferedImage subsampledDecode() throws IOException {
+        return resizer.readImage(new ByteArrayInputStream(encoded), THUMBNAIL_DIMENSION);
+    }
+
+    @Benchmark
+    public BufferedImage resizeImage() {
+        return resizer.resizeImage(decoded);
+    }
+
+    @Benchmark
+    public byte[] encodeThumbnail() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ImageIO.write(thumbnail, "jpeg", out);
+        return out.toByteArray();
+    }
+
+    /**
+     * Smooth gradients with some shapes and sensor-like noise, so that JPEG
+     * and PNG compress roughly as they would for a real photo.
+     */
+    static BufferedImage photoLike(int width, int height) {
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        Graphics2D graphics = image.createGraphics();
+        graphics.setPaint(new GradientPaint(0, 0, new Color(40, 90, 160), width, height, new Color(230, 200, 120)));
+        graphics.fillRect(0, 0, width, height);
+        Random random = new Random(42);
+        for (int i = 0; i < 40; i++) {
+            graphics.setColor(new Color(random.nextInt(256), random.nextInt(256), random.nextInt(256), 120));
+            int size = width / 10 + random.nextInt(width / 5);
+            graphics.fillOval(random.nextInt(width), random.nextInt(height), size, size * 2 / 3);
+        }
+        graphics.dispose();
+
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int noise = random.nextInt(9) - 4;
+                int rgb = image.getRGB(x, y);
+                int r = clamp(((rgb >> 16) & 0xff) + noise);
+                int g = clamp(((rgb >> 8) & 0xff) + noise);
+                int b = clamp((rgb & 0xff) + noise);
+                image.setRGB(x, y, (r << 16) | (g << 8) | b);
+            }
+        }
+        return image;
+    }
+
+    private static int clamp(int value) {
+        return Math.max(0, Math.min(255, value));
+    }
+}
@@ -0,0 +1,209 @@
+/*
+Class: InMemoryS3Client
+Description: S3Client stand-in backed by a sorted map, with an optional fixed delay per request to model S3 round-trip latency.
+*/
+
+package vgu.cloud26;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import software.amazon.awssdk.core.ResponseInputStream;
+import software.amazon.awssdk.core.sync.RequestBody;
+import software.amazon.awssdk.core.sync.ResponseTransformer;
+import software.amazon.awssdk.http.AbortableInputStream;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.GetObjectRequest;
+import software.amazon.awssdk.services.s3.model.GetObjectResponse;
+import software.amazon.awssdk.services.s3.model.HeadObjectRequest;
+import software.amazon.awssdk.services.s3.model.HeadObjectResponse;
+import software.amazon.awssdk.services.s3.model.ListObjectsRequest;
+import software.amazon.awssdk.services.s3.model.ListObjectsResponse;
+import software.amazon.awssdk.services.s3.model.ListObjectsV2Request;
+import software.amazon.awssdk.services.s3.model.ListObjectsV2Response;
+import software.amazon.awssdk.services.s3.model.NoSuchKeyException;
+import software.amazon.awssdk.services.s3.model.PutObjectRequest;
+import software.amazon.awssdk.services.s3.model.PutObjectResponse;
+import software.amazon.awssdk.services.s3.model.S3Object;
+
+public class InMemoryS3Client implements S3Client {
+
+    // S3 returns at most 1000 keys per list page
+    private static final int MAX_KEYS = 1000;
+
+    private record StoredObject(byte[] content, String contentType, String eTag, Instant lastModified) {
+    }
+
+    private final Map<String, NavigableMap<String, StoredObject>> buckets = new ConcurrentSkipListMap<>();
+
+    private final long requestLatencyNanos;
+
+    private final AtomicLong requestCount = new AtomicLong();
+
+    public InMemoryS3Client() {
+        this(0);
+    }
+
+    public InMemoryS3Client(long requestLatencyNanos) {
+        this.requestLatencyNanos = requestLatencyNanos;
+    }
+
+    public void put(String bucket, String key, byte[] content, String contentType) {
+        bucket(bucket).put(key, new StoredObject(content, contentType,
+                "\"" + Integer.toHexString(Arrays.hashCode(content)) + "\"", Instant.now()));
+    }
+
+    public long requestCount() {
+        return requestCount.get();
+    }
+
+    @Override
+    public HeadObjectResponse headObject(HeadObjectRequest request) {
+        simulateRoundTrip();
+        StoredObject object = lookup(request.bucket(), request.key());
+        return HeadObjectResponse.builder()
+                .contentLength((long) object.content().length)
+                .contentType(object.contentType())
+                .eTag(object.eTag())
+                .lastModified(object.lastModified())
+                .build();
+    }
+
+    @Override
+    public ListObjectsResponse listObjects(ListObjectsRequest request) {
+        simulateRoundTrip();
+        ListPage page = listPage(request.bucket(), request.prefix(), request.marker(), request.maxKeys());
+        return ListObjectsResponse.builder()
+                .contents(page.contents())
+                .isTruncated(page.truncated())
+                .build();
+    }
+
+    @Override
+    public ListObjectsV2Response listObjectsV2(ListObjectsV2Request request) {
+        simulateRoundTrip();
+        ListPage page = listPage(request.bucket(), request.prefix(), request.continuationToken(),
+                request.maxKeys());
+        return ListObjectsV2Response.builder()
+                .contents(page.contents())
+                .keyCount(page.contents().size())
+                .isTruncated(page.truncated())
+                .nextContinuationToken(page.truncated() ? page.lastKey() : null)
+                .build();
+    }
+
+    @Override
+    public <ReturnT> ReturnT getObject(GetObjectRequest request,
+            ResponseTransformer<GetObjectResponse, ReturnT> responseTransformer) {
+        simulateRoundTrip();
+        StoredObject object = lookup(request.bucket(), request.key());
+        GetObjectResponse response = GetObjectResponse.builder()
+                .contentLength((long) object.content().length)
+                .contentType(object.contentType())
+                .eTag(object.eTag())
+                .lastModified(object.lastModified())
+                .build();
+        InputStream body = new ByteArrayInputStream(object.content());
+        try {
+            return responseTransformer.transform(response, AbortableInputStream.create(body));
+        } catch (Exception ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    @Override
+    public ResponseInputStream<GetObjectResponse> getObject(GetObjectRequest request) {
+        return getObject(request, ResponseTransformer.toInputStream());
+    }
+
+    @Override
+    public PutObjectResponse putObject(PutObjectRequest request, RequestBody requestBody) {
+        simulateRoundTrip();
+        try (InputStream in = requestBody.contentStreamProvider().newStream()) {
+            put(request.bucket(), request.key(), in.readAllBytes(), request.contentType());
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+        return PutObjectResponse.builder()
+                .eTag(lookup(request.bucket(), request.key()).eTag())
+                .build();
+    }
+
+    @Override
+    public String serviceName() {
+        return SERVICE_NAME;
+    }
+
+    @Override
+    public void close() {
+    }
+
+    private NavigableMap<String, StoredObject> bucket(String bucket) {
+        return buckets.computeIfAbsent(bucket, name -> new ConcurrentSkipListMap<>());
+    }
+
+    private StoredObject lookup(String bucket, String key) {
+        StoredObject object = bucket(bucket).get(key);
+        if (object == null) {
+            throw NoSuchKeyException.builder()
+                    .statusCode(404)
+                    .message("The specified key does not exist.")
+                    .build();
+        }
+        return object;
+    }
+
+    private record ListPage(List<S3Object> contents, boolean truncated) {
+
+        String lastKey() {
+            return contents.isEmpty() ? null : contents.get(contents.size() - 1).key();
+        }
+    }
+
+    private ListPage listPage(String bucket, String prefix, String startAfter, Integer maxKeys) {
+        NavigableMap<String, StoredObject> view = bucket(bucket);
+        if (startAfter != null) {
+            view = view.tailMap(startAfter, false);
+        } else if (prefix != null) {
+            view = view.tailMap(prefix, true);
+        }
+
+        int limit = maxKeys == null ? MAX_KEYS : Math.min(maxKeys, MAX_KEYS);
+        List<S3Object> contents = new ArrayList<>();
+        boolean truncated = false;
+        for (Map.Entry<String, StoredObject> entry : view.entrySet()) {
+            if (prefix != null && !entry.getKey().startsWith(prefix)) {
+                break;
+            }
+            if (contents.size() == limit) {
+                truncated = true;
+                break;
+            }
+            contents.add(S3Object.builder()
+                    .key(entry.getKey())
+                    .size((long) entry.getValue().content().length)
+                    .eTag(entry.getValue().eTag())
+                    .lastModified(entry.getValue().lastModified())
+                    .build());
+        }
+        return new ListPage(contents, truncated);
+    }
+
+    private void simulateRoundTrip() {
+        requestCount.incrementAndGet();
+        if (requestLatencyNanos > 0) {
+            LockSupport.parkNanos(requestLatencyNanos);
+        }
+    }
+}
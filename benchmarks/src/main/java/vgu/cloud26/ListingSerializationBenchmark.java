@@ -0,0 +1,145 @@
+/*
+Benchmark: ListingSerializationBenchmark
+Description: Time and allocation of getting a page of the Photos listing from the ResultSet to the orchestrator's response body. Compares the old JSONArray -> toString -> Base64 -> envelope -> parse -> Base64 chain with PhotoPageWriter writing into a reused buffer that the orchestrator passes on as is.
+*/
+
+package vgu.cloud26;
+
+import com.amazonaws.services.lambda.runtime.events.APIGatewayProxyResponseEvent;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Base64;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgs = {"-Xmx2g"})
+public class ListingSerializationBenchmark {
+
+    @Param({"10000", "100000"})
+    public int rows;
+
+    private String[] descriptions;
+
+    private String[] keys;
+
+    private String[] emails;
+
+    private PhotoQuery query;
+
+    // Kept across invocations, as LambdaGetPhotosDB keeps its buffer
+    private final ByteArrayOutputStream responseBuffer = new ByteArrayOutputStream(64 * 1024);
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        descriptions = new String[rows];
+        keys = new String[rows];
+        emails = new String[rows];
+        for (int i = 0; i < rows; i++) {
+            descriptions[i] = "Photo " + i + " from the \"summer\" trip, day " + (i % 30);
+            keys[i] = (1700000000000L + i) + "_IMG_" + i + ".jpeg";
+            emails[i] = "user" + (i % 100) + "@example.com";
+        }
+        // The whole result set as one page
+        query = new PhotoQuery(rows, false, null, null, PhotoQuery.COLUMNS);
+    }
+
+    /**
+     * The old path: LambdaGetPhotosDB builds a JSONArray and Base64-encodes
+     * its string; the runtime serializes the envelope; the orchestrator
+     * parses it and Base64-encodes the body again.
+     */
+    @Benchmark
+    public APIGatewayProxyResponseEvent legacy() throws SQLException {
+        JSONArray items = new JSONArray();
+        ResultSet rs = resultSet();
+        while (rs.next()) {
+            JSONObject item = new JSONObject();
+            item.put("ID", rs.getInt("ID"));
+            item.put("Description", rs.getString("Description"));
+            item.put("S3Key", rs.getString("S3Key"));
+            item.put("Email", rs.getString("Email"));
+            items.put(item);
+        }
+        String encodedResult = Base64.getEncoder().encodeToString(items.toString().getBytes());
+        byte[] payload = new JSONObject()
+                .put("statusCode", 200)
+                .put("body", encodedResult)
+                .put("isBase64Encoded", true)
+                .toString()
+                .getBytes(StandardCharsets.UTF_8);
+
+        String responseString = new JSONObject(new String(payload, StandardCharsets.UTF_8)).optString("body", "");
+        return new APIGatewayProxyResponseEvent()
+                .withStatusCode(200)
+                .withBody(Base64.getEncoder().encodeToString(responseString.getBytes()))
+                .withIsBase64Encoded(true)
+                .withHeaders(Map.of("Content-Type", "text/plain"));
+    }
+
+    /**
+     * The streaming path: rows go from the ResultSet into the reused buffer,
+     * which is the invoke payload; the orchestrator decodes it to the body.
+     */
+    @Benchmark
+    public APIGatewayProxyResponseEvent streaming() throws SQLException, IOException {
+        responseBuffer.reset();
+        Writer writer = new OutputStreamWriter(responseBuffer, StandardCharsets.UTF_8);
+        PhotoPageWriter.write(resultSet(), query, 1, writer);
+        writer.flush();
+        byte[] payload = responseBuffer.toByteArray();
+
+        return new APIGatewayProxyResponseEvent()
+                .withStatusCode(200)
+                .withBody(new String(payload, StandardCharsets.UTF_8))
+                .withIsBase64Encoded(false)
+                .withHeaders(Map.of("Content-Type", "application/json"));
+    }
+
+    /**
+     * Forward-only ResultSet over the generated rows; only the calls the
+     * listing makes are implemented.
+     */
+    private ResultSet resultSet() {
+        int[] row = {-1};
+        return (ResultSet) Proxy.newProxyInstance(ResultSet.class.getClassLoader(), new Class<?>[] {ResultSet.class},
+                (proxy, method, args) -> switch (method.getName()) {
+                    case "next" -> ++row[0] < rows;
+                    case "getInt" -> row[0] + 1;
+                    case "getString" -> switch ((String) args[0]) {
+                        case "Description" -> descriptions[row[0]];
+                        case "S3Key" -> keys[row[0]];
+                        case "Email" -> emails[row[0]];
+                        default -> throw new SQLException("Unknown column " + args[0]);
+                    };
+                    case "close" -> null;
+                    default -> throw new UnsupportedOperationException(method.getName());
+                });
+    }
+}
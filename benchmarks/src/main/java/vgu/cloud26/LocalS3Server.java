@@ -0,0 +1,128 @@
+/*
+Class: LocalS3Server
+Description: Path-style S3 HTTP stand-in on the loopback interface, answering GET, HEAD, PUT and DELETE for objects held in memory, so real SDK clients can be measured end to end.
+*/
+
+package vgu.cloud26;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.HexFormat;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+public class LocalS3Server implements AutoCloseable {
+
+    private record StoredObject(byte[] content, String contentType, String eTag) {
+    }
+
+    private static final String LAST_MODIFIED = DateTimeFormatter.RFC_1123_DATE_TIME
+            .format(ZonedDateTime.of(2025, 1, 1, 0, 0, 0, 0, ZoneOffset.UTC));
+
+    private final Map<String, StoredObject> objects = new ConcurrentHashMap<>();
+
+    private final HttpServer server;
+
+    private final ExecutorService executor = Executors.newFixedThreadPool(8);
+
+    public LocalS3Server() throws IOException {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.createContext("/", this::handle);
+        server.setExecutor(executor);
+        server.start();
+    }
+
+    /**
+     * An IP endpoint makes the SDK use path-style requests (/bucket/key), so
+     * no wildcard DNS is needed.
+     */
+    public URI endpoint() {
+        return URI.create("http://127.0.0.1:" + server.getAddress().getPort());
+    }
+
+    public void put(String bucket, String key, byte[] content, String contentType) {
+        objects.put("/" + bucket + "/" + key, new StoredObject(content, contentType, md5ETag(content)));
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try (exchange) {
+            String path = exchange.getRequestURI().getPath();
+            switch (exchange.getRequestMethod()) {
+                case "PUT" -> {
+                    byte[] content = exchange.getRequestBody().readAllBytes();
+                    StoredObject object = new StoredObject(content,
+                            exchange.getRequestHeaders().getFirst("Content-Type"), md5ETag(content));
+                    objects.put(path, object);
+                    exchange.getResponseHeaders().set("ETag", object.eTag());
+                    exchange.sendResponseHeaders(200, -1);
+                }
+                case "DELETE" -> {
+                    objects.remove(path);
+                    exchange.sendResponseHeaders(204, -1);
+                }
+                case "GET", "HEAD" -> {
+                    StoredObject object = objects.get(path);
+                    if (object == null) {
+                        sendNotFound(exchange);
+                        return;
+                    }
+                    exchange.getResponseHeaders().set("Content-Type", object.contentType());
+                    exchange.getResponseHeaders().set("ETag", object.eTag());
+                    exchange.getResponseHeaders().set("Last-Modified", LAST_MODIFIED);
+                    if (exchange.getRequestMethod().equals("HEAD")) {
+                        exchange.getResponseHeaders().set("Content-Length",
+                                Integer.toString(object.content().length));
+                        exchange.sendResponseHeaders(200, -1);
+                        return;
+                    }
+                    exchange.sendResponseHeaders(200, object.content().length);
+                    try (OutputStream out = exchange.getResponseBody()) {
+                        out.write(object.content());
+                    }
+                }
+                default -> exchange.sendResponseHeaders(405, -1);
+            }
+        }
+    }
+
+    private static void sendNotFound(HttpExchange exchange) throws IOException {
+        if (exchange.getRequestMethod().equals("HEAD")) {
+            exchange.sendResponseHeaders(404, -1);
+            return;
+        }
+        byte[] body = ("<Error><Code>NoSuchKey</Code><Message>The specified key does not exist.</Message>"
+                + "</Error>").getBytes();
+        exchange.getResponseHeaders().set("Content-Type", "application/xml");
+        exchange.sendResponseHeaders(404, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    private static String md5ETag(byte[] content) {
+        try {
+            return "\"" + HexFormat.of().formatHex(MessageDigest.getInstance("MD5").digest(content)) + "\"";
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+}
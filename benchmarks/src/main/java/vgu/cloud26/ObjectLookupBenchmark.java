@@ -0,0 +1,110 @@
+/*
+Benchmark: ObjectLookupBenchmark
+Description: Per-key lookup cost of the legacy bucket scan versus ObjectLookup (HEAD and prefix LIST) as the bucket grows.
+*/
+
+package vgu.cloud26;
+
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import software.amazon.awssdk.services.s3.model.ListObjectsRequest;
+import software.amazon.awssdk.services.s3.model.ListObjectsResponse;
+import software.amazon.awssdk.services.s3.model.S3Object;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgs = {"-Xmx4g"})
+public class ObjectLookupBenchmark {
+
+    private static final String BUCKET = "resized-cloud-public-mpg";
+
+    @Param({"10000", "100000", "1000000"})
+    public int keyCount;
+
+    // Set to e.g. 20000 to charge every S3 request a realistic round-trip
+    @Param({"0"})
+    public long requestLatencyMicros;
+
+    private InMemoryS3Client s3Client;
+
+    private String[] keys;
+
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        s3Client = new InMemoryS3Client(TimeUnit.MICROSECONDS.toNanos(requestLatencyMicros));
+        keys = new String[keyCount];
+        byte[] thumbnail = new byte[4 * 1024];
+        long timestamp = 1_700_000_000_000L;
+        for (int i = 0; i < keyCount; i++) {
+            keys[i] = "resized-" + (timestamp + i) + "_" + UUID.randomUUID() + ".jpeg";
+            s3Client.put(BUCKET, keys[i], thumbnail, "image/jpeg");
+        }
+    }
+
+    private String nextKey() {
+        String key = keys[next];
+        next = (int) ((next + 7919L) % keys.length);
+        return key;
+    }
+
+    /**
+     * What the handlers did before: page through the whole bucket until the
+     * key shows up. Pagination is added here so the scan is at least correct
+     * beyond the first 1000 keys.
+     */
+    @Benchmark
+    public boolean legacyListScan() {
+        String key = nextKey();
+        String marker = null;
+        while (true) {
+            ListObjectsResponse res = s3Client.listObjects(ListObjectsRequest.builder()
+                    .bucket(BUCKET)
+                    .marker(marker)
+                    .build());
+            for (S3Object object : res.contents()) {
+                if (object.key().equals(key)) {
+                    return true;
+                }
+            }
+            if (!res.isTruncated() || res.contents().isEmpty()) {
+                return false;
+            }
+            marker = res.contents().get(res.contents().size() - 1).key();
+        }
+    }
+
+    @Benchmark
+    public Optional<ObjectLookup.ObjectInfo> headLookup() {
+        return ObjectLookup.find(s3Client, BUCKET, nextKey(), ObjectLookup.Mode.HEAD);
+    }
+
+    @Benchmark
+    public Optional<ObjectLookup.ObjectInfo> prefixListLookup() {
+        return ObjectLookup.find(s3Client, BUCKET, nextKey(), ObjectLookup.Mode.LIST);
+    }
+
+    @Benchmark
+    public Optional<ObjectLookup.ObjectInfo> headLookupMissingKey() {
+        return ObjectLookup.find(s3Client, BUCKET, "resized-missing.jpeg", ObjectLookup.Mode.HEAD);
+    }
+}
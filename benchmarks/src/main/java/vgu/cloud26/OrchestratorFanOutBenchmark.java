@@ -0,0 +1,145 @@
+/*
+Benchmark: OrchestratorFanOutBenchmark
+Description: Wall time of the delete fan-out and the two upload phases when every downstream Lambda takes a fixed latency. Compares the old blocking invoke wrapped in CompletableFuture.supplyAsync with the orchestrators on LambdaInvoker, using an invoker stub instead of AWS.
+*/
+
+package vgu.cloud26;
+
+import com.amazonaws.services.lambda.runtime.Context;
+import com.amazonaws.services.lambda.runtime.events.APIGatewayProxyRequestEvent;
+import com.amazonaws.services.lambda.runtime.events.APIGatewayProxyResponseEvent;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class OrchestratorFanOutBenchmark {
+
+    private static final String SIGNING_KEY = "benchmark-key";
+
+    private static final String EMAIL = "benchmark@example.com";
+
+    private static final String RESPONSE = new JSONObject()
+            .put("statusCode", 200)
+            .put("body", "ok")
+            .toString();
+
+    // Latency of every downstream invocation
+    @Param({"50"})
+    public int latencyMillis;
+
+    private LambdaDeleteOrchestrator deleteOrchestrator;
+
+    private LambdaUploadOrchestrator uploadOrchestrator;
+
+    private APIGatewayProxyRequestEvent deleteEvent;
+
+    private APIGatewayProxyRequestEvent uploadEvent;
+
+    private Context context;
+
+    private int deleteCalls;
+
+    @Setup(Level.Trial)
+    public void setUp(Blackhole blackhole) {
+        TokenVerifier.configure(new SecretCache(() -> SIGNING_KEY, Duration.ofHours(1), Duration.ofHours(1),
+                Clock.systemUTC()));
+        String token = TokenVerifier.generateSecureToken(EMAIL, SIGNING_KEY);
+
+        LambdaInvoker invoker = new LambdaInvoker((functionName, payload) -> CompletableFuture.supplyAsync(
+                () -> RESPONSE, CompletableFuture.delayedExecutor(latencyMillis, TimeUnit.MILLISECONDS)));
+        deleteOrchestrator = new LambdaDeleteOrchestrator(invoker, StepModes.allRemote());
+        uploadOrchestrator = new LambdaUploadOrchestrator(invoker, StepModes.allRemote());
+        context = new StubContext(blackhole::consume, 512);
+
+        deleteEvent = new APIGatewayProxyRequestEvent().withBody(new JSONObject()
+                .put("email", EMAIL)
+                .put("token", token)
+                .put("key", "1700000000000_photo.jpeg")
+                .toString());
+        uploadEvent = new APIGatewayProxyRequestEvent().withBody(new JSONObject()
+                .put("email", EMAIL)
+                .put("token", token)
+                .put("key", "photo.jpeg")
+                .put("description", "benchmark")
+                .put("content", Base64.getEncoder().encodeToString(new byte[64 * 1024]))
+                .toString());
+
+        // Original + description + every rendition key
+        deleteCalls = 2 + Renditions.keysFor("1700000000000_photo.jpeg").size();
+    }
+
+    /**
+     * The old delete: blocking invokes wrapped in supplyAsync on the common
+     * pool, then get() on each.
+     */
+    @Benchmark
+    public String legacyDeleteFanOut() throws InterruptedException, ExecutionException {
+        List<CompletableFuture<String>> futures = new ArrayList<>();
+        for (int i = 0; i < deleteCalls; i++) {
+            futures.add(CompletableFuture.supplyAsync(this::blockingInvoke));
+        }
+        String responseString = "";
+        for (CompletableFuture<String> future : futures) {
+            responseString += future.get();
+        }
+        return responseString;
+    }
+
+    /**
+     * The old inline upload: original and resize through supplyAsync, then
+     * the description insert.
+     */
+    @Benchmark
+    public String legacyUploadPhases() throws InterruptedException, ExecutionException {
+        CompletableFuture<String> uploadOriginalFuture = CompletableFuture.supplyAsync(this::blockingInvoke);
+        CompletableFuture<String> resizeFuture = CompletableFuture.supplyAsync(this::blockingInvoke);
+        String responseString = uploadOriginalFuture.get() + resizeFuture.get();
+        return responseString + blockingInvoke();
+    }
+
+    @Benchmark
+    public APIGatewayProxyResponseEvent deleteOrchestrator() {
+        return deleteOrchestrator.handleRequest(deleteEvent, context);
+    }
+
+    @Benchmark
+    public APIGatewayProxyResponseEvent uploadOrchestrator() {
+        return uploadOrchestrator.handleRequest(uploadEvent, context);
+    }
+
+    private String blockingInvoke() {
+        try {
+            Thread.sleep(latencyMillis);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        return new JSONObject(RESPONSE).optString("body", "");
+    }
+}
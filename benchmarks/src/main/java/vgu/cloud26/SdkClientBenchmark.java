@@ -0,0 +1,125 @@
+/*
+Benchmark: SdkClientBenchmark
+Description: Warm-invocation latency of building an S3Client per request, as the S3 Lambdas used to, versus reusing the container-scoped client from AwsClients, against a local S3 stand-in.
+*/
+
+package vgu.cloud26;
+
+import com.amazonaws.services.lambda.runtime.Context;
+import com.amazonaws.services.lambda.runtime.events.APIGatewayProxyRequestEvent;
+import com.amazonaws.services.lambda.runtime.events.APIGatewayProxyResponseEvent;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import software.amazon.awssdk.auth.credentials.AwsBasicCredentials;
+import software.amazon.awssdk.auth.credentials.StaticCredentialsProvider;
+import software.amazon.awssdk.core.ResponseBytes;
+import software.amazon.awssdk.regions.Region;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.GetObjectRequest;
+import software.amazon.awssdk.services.s3.model.GetObjectResponse;
+import software.amazon.awssdk.services.s3.model.HeadObjectRequest;
+import software.amazon.awssdk.services.s3.model.HeadObjectResponse;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgs = {"-Daws.accessKeyId=local", "-Daws.secretAccessKey=local"})
+public class SdkClientBenchmark {
+
+    private static final String BUCKET = "cloud-public-mpg";
+
+    private static final String KEY = "1700000000000_photo.jpeg";
+
+    private LocalS3Server server;
+
+    private S3Client containerClient;
+
+    private LambdaDownloadObject handler;
+
+    private APIGatewayProxyRequestEvent event;
+
+    private Context context;
+
+    @Setup(Level.Trial)
+    public void setUp(Blackhole blackhole) throws IOException {
+        server = new LocalS3Server();
+        byte[] photo = new byte[256 * 1024];
+        new Random(42).nextBytes(photo);
+        server.put(BUCKET, KEY, photo, "image/jpeg");
+
+        AwsClients.configure(server.endpoint(),
+                StaticCredentialsProvider.create(AwsBasicCredentials.create("local", "local")));
+        containerClient = AwsClients.build(S3Client.builder());
+        handler = new LambdaDownloadObject();
+        event = new APIGatewayProxyRequestEvent().withBody(new JSONObject().put("key", KEY).toString());
+        context = new StubContext(blackhole::consume, 512);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        containerClient.close();
+        server.close();
+    }
+
+    /**
+     * What every warm invocation paid before: default builder (credentials
+     * chain, Apache HTTP client, new connection pool), then HEAD + GET.
+     */
+    @Benchmark
+    public byte[] legacyClientPerInvocation() {
+        try (S3Client s3Client = S3Client.builder()
+                .region(Region.US_EAST_1)
+                .endpointOverride(server.endpoint())
+                .build()) {
+            return headAndGet(s3Client);
+        }
+    }
+
+    @Benchmark
+    public byte[] containerScopedClient() {
+        return headAndGet(containerClient);
+    }
+
+    /**
+     * LambdaDownloadObject end to end, with its container-scoped client.
+     */
+    @Benchmark
+    public APIGatewayProxyResponseEvent downloadObjectHandler() {
+        return handler.handleRequest(event, context);
+    }
+
+    private static byte[] headAndGet(S3Client s3Client) {
+        HeadObjectResponse head = s3Client.headObject(HeadObjectRequest.builder()
+                .bucket(BUCKET)
+                .key(KEY)
+                .build());
+        ResponseBytes<GetObjectResponse> object = s3Client.getObjectAsBytes(GetObjectRequest.builder()
+                .bucket(BUCKET)
+                .key(KEY)
+                .build());
+        if (object.response().contentLength() != head.contentLength().longValue()) {
+            throw new IllegalStateException("Size mismatch");
+        }
+        return object.asByteArray();
+    }
+}
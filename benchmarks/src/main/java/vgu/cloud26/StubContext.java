@@ -0,0 +1,90 @@
+/*
+Class: StubContext
+Description: Minimal Lambda Context for calling handlers outside the Lambda runtime; log lines go to a caller-supplied sink instead of stdout.
+*/
+
+package vgu.cloud26;
+
+import com.amazonaws.services.lambda.runtime.ClientContext;
+import com.amazonaws.services.lambda.runtime.CognitoIdentity;
+import com.amazonaws.services.lambda.runtime.Context;
+import com.amazonaws.services.lambda.runtime.LambdaLogger;
+
+import java.util.function.Consumer;
+
+public class StubContext implements Context {
+
+    private final LambdaLogger logger;
+
+    private final int memoryLimitInMB;
+
+    public StubContext(Consumer<Object> sink, int memoryLimitInMB) {
+        this.memoryLimitInMB = memoryLimitInMB;
+        this.logger = new LambdaLogger() {
+            @Override
+            public void log(String message) {
+                sink.accept(message);
+            }
+
+            @Override
+            public void log(byte[] message) {
+                sink.accept(message);
+            }
+        };
+    }
+
+    @Override
+    public String getAwsRequestId() {
+        return "benchmark";
+    }
+
+    @Override
+    public String getLogGroupName() {
+        return "/aws/lambda/benchmark";
+    }
+
+    @Override
+    public String getLogStreamName() {
+        return "benchmark";
+    }
+
+    @Override
+    public String getFunctionName() {
+        return "benchmark";
+    }
+
+    @Override
+    public String getFunctionVersion() {
+        return "$LATEST";
+    }
+
+    @Override
+    public String getInvokedFunctionArn() {
+        return "arn:aws:lambda:us-east-1:000000000000:function:benchmark";
+    }
+
+    @Override
+    public CognitoIdentity getIdentity() {
+        return null;
+    }
+
+    @Override
+    public ClientContext getClientContext() {
+        return null;
+    }
+
+    @Override
+    public int getRemainingTimeInMillis() {
+        return 30_000;
+    }
+
+    @Override
+    public int getMemoryLimitInMB() {
+        return memoryLimitInMB;
+    }
+
+    @Override
+    public LambdaLogger getLogger() {
+        return logger;
+    }
+}
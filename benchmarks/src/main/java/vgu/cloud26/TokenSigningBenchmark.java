@@ -0,0 +1,164 @@
+/*
+Benchmark: TokenSigningBenchmark
+Description: Cost of generateSecureToken and of a full token check before and after caching the secret and reusing the Mac.
+*/
+
+package vgu.cloud26;
+
+import com.amazonaws.services.lambda.runtime.LambdaLogger;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.time.Clock;
+import java.time.Duration;
+import java.util.Base64;
+import java.util.concurrent.TimeUnit;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TokenSigningBenchmark {
+
+    private static final String KEY = "benchmark-secret-key-0123456789";
+
+    private static final String EMAIL = "someone@example.com";
+
+    // Local stand-in for the Parameters and Secrets extension on localhost:2773
+    private HttpServer extension;
+
+    private URI parameterUri;
+
+    private LambdaLogger logger;
+
+    private String validToken;
+
+    @Setup(Level.Trial)
+    public void setUp(Blackhole blackhole) throws IOException {
+        byte[] body = new JSONObject()
+                .put("Parameter", new JSONObject().put("Name", "S3DownloadKey").put("Value", KEY))
+                .toString().getBytes(StandardCharsets.UTF_8);
+        extension = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        extension.createContext("/systemsmanager/parameters/get/", exchange -> {
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+        extension.start();
+        parameterUri = URI.create("http://localhost:" + extension.getAddress().getPort()
+                + "/systemsmanager/parameters/get/?name=S3DownloadKey&withDecryption=true");
+
+        logger = new LambdaLogger() {
+            @Override
+            public void log(String message) {
+                blackhole.consume(message);
+            }
+
+            @Override
+            public void log(byte[] message) {
+                blackhole.consume(message);
+            }
+        };
+
+        TokenVerifier.configure(new SecretCache(this::fetchKey, SecretCache.DEFAULT_TTL,
+                SecretCache.DEFAULT_REFRESH_AFTER, Clock.systemUTC()));
+        validToken = TokenVerifier.generateSecureToken(EMAIL, KEY);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        extension.stop(0);
+    }
+
+    /**
+     * generateSecureToken as it was: a fresh Mac per call, and the input and
+     * token written to the log.
+     */
+    @Benchmark
+    public String legacyGenerateSecureToken() throws GeneralSecurityException {
+        Mac mac = Mac.getInstance("HmacSHA256");
+        mac.init(new SecretKeySpec(KEY.getBytes(StandardCharsets.UTF_8), "HmacSHA256"));
+        byte[] hmacBytes = mac.doFinal(EMAIL.getBytes(StandardCharsets.UTF_8));
+        String base64 = Base64.getEncoder().encodeToString(hmacBytes);
+        logger.log("Input String: " + EMAIL);
+        logger.log("Secure Token: " + base64);
+        return base64;
+    }
+
+    @Benchmark
+    public String generateSecureToken() {
+        return LambdaTokenGenerator.generateSecureToken(EMAIL, KEY, logger);
+    }
+
+    /**
+     * The old per-request path of the token Lambdas: new HttpClient, one
+     * round-trip to the extension, then a fresh Mac.
+     */
+    @Benchmark
+    public boolean legacyCheckToken() throws Exception {
+        HttpClient client = HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_1_1)
+                .followRedirects(HttpClient.Redirect.NORMAL)
+                .connectTimeout(Duration.ofSeconds(10))
+                .build();
+        HttpResponse<String> response = client.send(HttpRequest.newBuilder(parameterUri).GET().build(),
+                HttpResponse.BodyHandlers.ofString());
+        String key = new JSONObject(response.body()).getJSONObject("Parameter").getString("Value");
+        client.close();
+        return validToken.equals(legacyGenerateSecureToken(key));
+    }
+
+    @Benchmark
+    public boolean checkToken() {
+        return TokenVerifier.verify(EMAIL, validToken, logger);
+    }
+
+    @Benchmark
+    public String issueToken() {
+        return TokenVerifier.issue(EMAIL, logger);
+    }
+
+    private String legacyGenerateSecureToken(String key) throws GeneralSecurityException {
+        Mac mac = Mac.getInstance("HmacSHA256");
+        mac.init(new SecretKeySpec(key.getBytes(StandardCharsets.UTF_8), "HmacSHA256"));
+        return Base64.getEncoder().encodeToString(mac.doFinal(EMAIL.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    private String fetchKey() {
+        try {
+            HttpResponse<String> response = HttpClient.newHttpClient().send(
+                    HttpRequest.newBuilder(parameterUri).GET().build(), HttpResponse.BodyHandlers.ofString());
+            return new JSONObject(response.body()).getJSONObject("Parameter").getString("Value");
+        } catch (IOException | InterruptedException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+}
@@ -1,5 +1,6 @@
 import java.io.IOException;
 import java.io.OutputStream;
+import java.time.Instant;
 
 import jakarta.servlet.ServletException;
 import jakarta.servlet.annotation.WebServlet;
@@ -13,12 +14,15 @@ import software.amazon.awssdk.regions.Region;
 import software.amazon.awssdk.services.s3.S3Client;
 import software.amazon.awssdk.services.s3.model.GetObjectRequest;
 import software.amazon.awssdk.services.s3.model.GetObjectResponse;
+import software.amazon.awssdk.services.s3.model.S3Exception;
 
 @WebServlet(urlPatterns = { "/download-object/*" })
 public class DownloadObjectFromBucket extends HttpServlet {
 
         private static final long serialVersionUID = 1L;
 
+        private static final String CACHE_CONTROL = "public, max-age=31536000, immutable";
+
         @Override
         protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
                 resp.setContentType("application/octet-stream");
@@ -46,12 +50,36 @@ public class DownloadObjectFromBucket extends HttpServlet {
                                 .region(Region.US_EAST_1)
                                 .build();
 
+                // S3 evaluates the browser's conditions itself and answers 304
+                // without a body when its copy is current. If-Modified-Since
+                // only counts without If-None-Match
+                String ifNoneMatch = req.getHeader("If-None-Match");
+                long ifModifiedSince = ifNoneMatch == null ? req.getDateHeader("If-Modified-Since") : -1;
                 GetObjectRequest request = GetObjectRequest.builder()
                                 .bucket(bucketName)
                                 .key(key)
+                                .ifNoneMatch(ifNoneMatch)
+                                .ifModifiedSince(ifModifiedSince == -1 ? null : Instant.ofEpochMilli(ifModifiedSince))
                                 .build();
 
-                ResponseInputStream<GetObjectResponse> response = s3Client.getObject(request);
+                ResponseInputStream<GetObjectResponse> response;
+                try {
+                        response = s3Client.getObject(request);
+                } catch (S3Exception ex) {
+                        if (ex.statusCode() != HttpServletResponse.SC_NOT_MODIFIED) {
+                                throw ex;
+                        }
+                        ex.awsErrorDetails().sdkHttpResponse().firstMatchingHeader("ETag")
+                                        .ifPresent(eTag -> resp.setHeader("ETag", eTag));
+                        resp.setHeader("Cache-Control", CACHE_CONTROL);
+                        resp.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+                        return;
+                }
+
+                // Keys are never reused, so the object under one never changes
+                resp.setHeader("ETag", response.response().eTag());
+                resp.setDateHeader("Last-Modified", response.response().lastModified().toEpochMilli());
+                resp.setHeader("Cache-Control", CACHE_CONTROL);
                 OutputStream outputStream = resp.getOutputStream();
 
                 byte[] buffer = new byte[4096];
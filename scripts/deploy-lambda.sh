@@ -50,8 +50,9 @@ FUNCTION_NAME=$(jq -r ".lambdas[\"$PROJECT_NAME\"].functionName // empty" "$CONF
 HANDLER=$(jq -r ".lambdas[\"$PROJECT_NAME\"].handler // empty" "$CONFIG_FILE")
 REGION=$(jq -r ".region // \"us-east-1\"" "$CONFIG_FILE")
 RUNTIME=$(jq -r ".runtime // \"java21\"" "$CONFIG_FILE")
-TIMEOUT=$(jq -r ".timeout // 30" "$CONFIG_FILE")
-MEMORY=$(jq -r ".memorySize // 512" "$CONFIG_FILE")
+# A function's own timeout and memory size override the defaults
+TIMEOUT=$(jq -r ".lambdas[\"$PROJECT_NAME\"].timeout // .timeout // 30" "$CONFIG_FILE")
+MEMORY=$(jq -r ".lambdas[\"$PROJECT_NAME\"].memorySize // .memorySize // 512" "$CONFIG_FILE")
 
 # Check if Lambda is configured
 if [ -z "$FUNCTION_NAME" ]; then
@@ -113,6 +114,23 @@ if aws lambda get-function --function-name "$FUNCTION_NAME" --region "$REGION" &
         --region "$REGION" \
         --no-cli-pager &> /dev/null || true
 
+    # Steps an orchestrator runs in-process, merged into its existing variables
+    STEP_MODES=$(jq -r ".lambdas[\"$PROJECT_NAME\"].steps // {} | to_entries | map(\"\\(.key)=\\(.value)\") | join(\",\")" "$CONFIG_FILE")
+    if [ -n "$STEP_MODES" ]; then
+        echo "Step modes: $STEP_MODES"
+        aws lambda wait function-updated --function-name "$FUNCTION_NAME" --region "$REGION"
+        VARIABLES=$(aws lambda get-function-configuration \
+            --function-name "$FUNCTION_NAME" \
+            --region "$REGION" \
+            --query 'Environment.Variables' --output json \
+            | jq -c --arg modes "$STEP_MODES" '(. // {}) + {STEP_MODES: $modes}')
+        aws lambda update-function-configuration \
+            --function-name "$FUNCTION_NAME" \
+            --environment "{\"Variables\":$VARIABLES}" \
+            --region "$REGION" \
+            --no-cli-pager > /dev/null
+    fi
+
     echo -e "${GREEN}✓ Function updated successfully!${NC}"
 else
     echo -e "${RED}Error: Function '$FUNCTION_NAME' does not exist.${NC}"